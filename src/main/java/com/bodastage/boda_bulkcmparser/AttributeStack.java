@@ -0,0 +1,230 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Attribute name-value frames indexed by element depth.
+ * <p>
+ * The frames are allocated once per depth and reused. Removing the frame at
+ * a depth clears it and marks it absent. Absent frames are returned as null
+ * just like missing keys of a Map&lt;Integer, Map&lt;String,String&gt;&gt;.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class AttributeStack {
+
+    private Frame[] frames = new Frame[16];
+
+    private boolean[] present = new boolean[16];
+
+    /**
+     * Number of present frames.
+     */
+    private int count = 0;
+
+    /**
+     * Get the frame at depth.
+     *
+     * @param depth
+     * @return The frame or null if there is no frame at depth
+     */
+    public Frame get(int depth) {
+        if (depth < 0 || depth >= present.length || !present[depth]) return null;
+        return frames[depth];
+    }
+
+    public boolean containsKey(int depth) {
+        return depth >= 0 && depth < present.length && present[depth];
+    }
+
+    /**
+     * Start a new empty frame at depth. This replaces any frame at depth.
+     *
+     * @param depth
+     * @return The empty frame
+     */
+    public Frame open(int depth) {
+        ensureCapacity(depth);
+        Frame frame = frames[depth];
+        if (frame == null) {
+            frame = new Frame();
+            frames[depth] = frame;
+        }
+        frame.clear();
+        if (!present[depth]) {
+            present[depth] = true;
+            count++;
+        }
+        return frame;
+    }
+
+    /**
+     * Get the frame at depth, starting a new one if there is none.
+     *
+     * @param depth
+     * @return Frame
+     */
+    public Frame getOrOpen(int depth) {
+        Frame frame = get(depth);
+        return frame != null ? frame : open(depth);
+    }
+
+    /**
+     * Remove the frame at depth.
+     *
+     * @param depth
+     */
+    public void remove(int depth) {
+        if (!containsKey(depth)) return;
+        frames[depth].clear();
+        present[depth] = false;
+        count--;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < present.length; i++) {
+            remove(i);
+        }
+    }
+
+    private void ensureCapacity(int depth) {
+        if (depth >= frames.length) {
+            int length = Math.max(depth + 1, frames.length * 2);
+            frames = Arrays.copyOf(frames, length);
+            present = Arrays.copyOf(present, length);
+        }
+    }
+
+    /**
+     * Attribute names and values of an element in insertion order.
+     * <p>
+     * The names and values are kept in flat arrays which are cleared and
+     * reused. Values can be null.
+     */
+    public static final class Frame extends AbstractMap<String, String> {
+
+        private String[] keys = new String[8];
+
+        private String[] values = new String[8];
+
+        private int size = 0;
+
+        public String keyAt(int index) {
+            return keys[index];
+        }
+
+        public String valueAt(int index) {
+            return values[index];
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i].equals(key)) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public String get(Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : values[i];
+        }
+
+        /**
+         * Set the value of a name. A new name is added at the end.
+         */
+        @Override
+        public String put(String key, String value) {
+            int i = indexOf(key);
+            if (i >= 0) {
+                String old = values[i];
+                values[i] = value;
+                return old;
+            }
+
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size] = value;
+            size++;
+            return null;
+        }
+
+        @Override
+        public String remove(Object key) {
+            int i = indexOf(key);
+            if (i < 0) return null;
+
+            String old = values[i];
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(values, i + 1, values, i, size - i - 1);
+            size--;
+            keys[size] = null;
+            values[size] = null;
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int next = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < size;
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (next >= size) throw new NoSuchElementException();
+                            Map.Entry<String, String> entry = new SimpleImmutableEntry<String, String>(keys[next], values[next]);
+                            next++;
+                            return entry;
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
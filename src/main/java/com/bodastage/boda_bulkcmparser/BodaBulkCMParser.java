@@ -7,23 +7,43 @@
  */
 package com.bodastage.boda_bulkcmparser;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.Attribute;
 import javax.xml.stream.events.Characters;
 import javax.xml.stream.events.EndElement;
@@ -40,6 +60,17 @@ import org.apache.commons.cli.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Parses 3GPP Bulk CM XML files to csv files.
+ * <p>
+ * A parser is not thread-safe. It can be reused for one run after another,
+ * but it must not be used by more than one thread at a time. The settings,
+ * the MO columns and the output files are shared by all the files of a run.
+ * With --threads, each file or piece is parsed by a worker parser with its
+ * own copy of the MO columns and its own part directory, and the results are
+ * merged by this parser. Separate parsers can run at the same time if they
+ * write to different output directories.
+ */
 public class BodaBulkCMParser {
 
     BodaBulkCMParser() {
@@ -58,207 +89,175 @@ public class BodaBulkCMParser {
     private static final Logger LOGGER = LoggerFactory.getLogger(BodaBulkCMParser.class);
 
     /**
-     * Tracks XML elements.
-     *
-     * @version 1.0.0
-     * @since 1.0.0
-     */
-    Stack xmlTagStack = new Stack();
-
-
-    /**
-     * Tracks how deep a Management Object is in the XML doc hierarchy.
+     * State of the file being parsed.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    Integer depth = 0;
+    ParseContext context = new ParseContext();
 
     /**
-     * Tracks XML attributes per Management Objects.
+     * Multi-valued parameter separator.
      *
      * @version 1.0.0
      * @since 1.0.0
      */
-    Map<Integer, Map<String, String>> xmlAttrStack = new LinkedHashMap<Integer, Map<String, String>>();
+    String multiValueSeparetor = ";";
 
     /**
-     * Tracks Managed Object specific 3GPP attributes.
-     * <p>
-     * This tracks every thing within <xn:attributes>...</xn:attributes>.
+     * For attributes with children, define parameter-child separator
      *
-     * @version 1.0.0
      * @since 1.0.0
      */
-    Map<Integer, Map<String, String>> threeGPPAttrStack = new LinkedHashMap<Integer, Map<String, String>>();
+    String parentChildAttrSeperator = "_";
 
     /**
-     * Marks start of processing per MO attributes.
-     * <p>
-     * This is set to true when xn:attributes is encountered. It's set to false
-     * when the corresponding closing tag is encountered.
+     * Output file print writers
      *
      * @version 1.0.0
      * @since 1.0.0
      */
-    boolean attrMarker = false;
+    Map<String, PrintWriter> outputFilePW = new LinkedHashMap<String, PrintWriter>();
 
     /**
-     * Tracks the depth of VsDataContainer tags in the XML document hierarchy.
+     * Output directory.
      *
      * @version 1.0.0
      * @since 1.0.0
      */
-    int vsDCDepth = 0;
+    String outputDirectory = "/tmp";
 
     /**
-     * Maps of vsDataContainer instances to vendor specific data types.
+     * Limit the number of iterations for testing.
      *
      * @version 1.0.0
      * @since 1.0.0
      */
-    Map<String, String> vsDataContainerTypeMap = new LinkedHashMap<String, String>();
+    int testCounter = 0;
 
     /**
-     * Tracks current vsDataType if not null
+     * The csv file streams. 3GPP MO files are keyed by "3GPP:" and the MO,
+     * vendor specific MO files by "vsData:" and the csv file name.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    String vsDataType = null;
+    final OutputWriterPool outputWriters = new OutputWriterPool(new OutputWriterPool.Opener() {
+        @Override
+        public OutputStream open(String filename, boolean append) throws IOException {
+            return openOutputFile(filename, append);
+        }
+    });
 
     /**
-     * vsDataTypes stack.
+     * Encodes the csv lines written to the files.
      *
-     * @version 1.1.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    Map<String, String> vsDataTypeStack = new LinkedHashMap<String, String>();
+    private final CsvRowEncoder csvEncoder = new CsvRowEncoder();
 
     /**
-     * Real stack to push and pop vsDataType attributes.
-     * <p>
-     * This is used to track multivalued attributes and attributes with children
+     * Writes the rows to the csv files.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    Stack vsDataTypeRlStack = new Stack();
+    private final CsvRecordSink csvSink = new CsvRecordSink();
 
     /**
-     * Real stack to push and pop xn:attributes.
-     * <p>
-     * This is used to track multivalued attributes and attributes with children
+     * Takes the rows instead of the csv files. Null to write the csv files.
      *
-     * @version 1.0.0
-     * @since 1.0.2
+     * @since 2.3.0
      */
-    Stack xnAttrRlStack = new Stack();
+    private RecordSink recordSink = null;
 
     /**
-     * Multi-valued parameter separator.
+     * Delta store file. Null to write all the rows.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    String multiValueSeparetor = ";";
+    private String deltaStoreFile = null;
 
     /**
-     * For attributes with children, define parameter-child separator
+     * Passes on the changed rows during a run in delta mode.
      *
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    String parentChildAttrSeperator = "_";
+    private RecordSink deltaSink = null;
 
     /**
-     * Output file print writers
+     * Manifest file. Null to parse all the input files.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    Map<String, PrintWriter> outputFilePW = new LinkedHashMap<String, PrintWriter>();
+    private String manifestFile = null;
 
     /**
-     * Output directory.
+     * The input files of the run and their rows. Null if no manifest is
+     * kept.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    String outputDirectory = "/tmp";
+    private RunManifest manifest = null;
 
     /**
-     * Limit the number of iterations for testing.
+     * The manifest entry of the input file being parsed.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    int testCounter = 0;
+    private RunManifest.Entry manifestEntry = null;
 
     /**
-     * Start element tag.
-     * <p>
-     * Use in the character event to determine the data parent XML tag.
+     * Unchanged input files whose rows are kept in the csv files.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    String startElementTag = "";
+    private final Set<String> skippedFiles = new HashSet<String>();
 
     /**
-     * Start element NS prefix.
+     * Add the rows to the existing csv files instead of truncating them.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    String startElementTagPrefix = "";
+    private boolean appendOutput = false;
 
     /**
-     * Tag data.
+     * Checkpoint file. Null to parse without checkpoints.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    String tagData = "";
+    private String checkpointFile = null;
 
     /**
-     * Tracking parameters with children under vsDataSomeMO.
+     * Seconds between checkpoints.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    Map<String, String> parentChildParameters = new LinkedHashMap<String, String>();
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
 
     /**
-     * Tracking parameters with children in xn:attributes.
+     * Continue from the checkpoint of a run that did not finish.
      *
-     * @version 1.0.0
-     * @since 1.0.2
+     * @since 2.3.0
      */
-    Map<String, String> attrParentChildMap = new LinkedHashMap<String, String>();
+    private boolean resume = false;
 
     /**
-     * A map of MO to printwriter.
+     * How far the run has got. Null if no checkpoints are kept.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    Map<String, PrintWriter> outputVsDataTypePWMap = new LinkedHashMap<String, PrintWriter>();
+    private Checkpoint checkpoint = null;
 
     /**
-     * A map of 3GPP MOs to their file print writers.
+     * Time of the last checkpoint in milliseconds.
      *
-     * @version 1.0.0
-     * @since 1.0.0
+     * @since 2.3.0
      */
-    Map<String, PrintWriter> output3GPPMOPWMap = new LinkedHashMap<String, PrintWriter>();
+    private long lastCheckpointTime = 0;
 
     /**
      * Bulk CM XML file name. The file we are parsing.
      */
     String bulkCMXMLFile;
 
-    String bulkCMXMLFileBasename;
-
     /**
      * Tracks Managed Object attributes to write to file. This is dictated by
      * the first instance of the MO found.
@@ -267,14 +266,14 @@ public class BodaBulkCMParser {
      * @version 1.0.0
      * @since 1.0.3
      */
-    Map<String, Stack> moColumns = new LinkedHashMap<String, Stack>();
+    Map<String, ColumnRegistry> moColumns = new LinkedHashMap<String, ColumnRegistry>();
 
     /**
      * Tracks the IDs of the parent elements
      *
      * @since 1.2.0
      */
-    Map<String, Stack> moColumnsParentIds = new LinkedHashMap<String, Stack>();
+    Map<String, ColumnRegistry> moColumnsParentIds = new LinkedHashMap<String, ColumnRegistry>();
 
     /**
      * A map of 3GPP attributes to the 3GPP MOs
@@ -283,15 +282,29 @@ public class BodaBulkCMParser {
      *
      * @since 1.3.0
      */
-    Map<String, Stack> moThreeGPPAttrMap = new LinkedHashMap<String, Stack>();
+    Map<String, ColumnRegistry> moThreeGPPAttrMap = new LinkedHashMap<String, ColumnRegistry>();
 
     /**
-     * This stores the values of the 3GPP MO attributes to be used when combining
-     * a 3GPP MO with a vendor specific MO (i.e. vsData...).
+     * Row layouts of the 3GPP MO csv files.
      *
-     * @since 2.1.0
+     * @since 2.3.0
+     */
+    private Map<String, RowLayout> threeGPPRowLayouts = new HashMap<String, RowLayout>();
+
+    /**
+     * Row layouts of the vendor specific MO csv files.
+     *
+     * @since 2.3.0
+     */
+    private Map<String, RowLayout> vendorRowLayouts = new HashMap<String, RowLayout>();
+
+    /**
+     * Row layouts of the 3GPP MOs without 3GPP attributes. Their columns are
+     * the MO and parent IDs of the row.
+     *
+     * @since 2.3.0
      */
-    Map<String, String> threeGPPAttrValues = new LinkedHashMap<String, String>();
+    private Map<String, RowLayout> parentIdRowLayouts = new HashMap<String, RowLayout>();
 
     /**
      * This is used to renamed some of the generated csv files to prevent name
@@ -314,13 +327,26 @@ public class BodaBulkCMParser {
     private String dataFile;
 
     /**
-     * The base file name of the file being parsed.
+     * The fileFooter dateTime of the files already looked up.
      *
-     * @since 1.1.0
+     * @since 2.3.0
+     */
+    private Map<String, String> fileDateTimes = new LinkedHashMap<String, String>();
+
+    /**
+     * Number of bytes at the end of a file searched for the fileFooter.
+     *
+     * @since 2.3.0
      */
-    private String baseFileName = "";
+    static final int FOOTER_SCAN_SIZE = 64 * 1024;
 
-    private String dateTime = "";
+    /**
+     * Matches the dateTime attribute of the fileFooter tag.
+     *
+     * @since 2.3.0
+     */
+    static final Pattern FOOTER_DATETIME_PATTERN
+            = Pattern.compile("\\sdateTime\\s*=\\s*([\"'])([^\"']*)\\1");
 
     private Boolean separateVendorAttributes = true;
 
@@ -340,196 +366,1008 @@ public class BodaBulkCMParser {
     private Boolean extractParametersOnly = false;
 
     /**
-     * Add meta fields to each MO.
-     * FILENAME,DATETIME,NE_TECHNOLOGY,NE_VENDOR,NE_VERSION,NE_TYPE
+     * Collect the MO parameters and values in one pass over the input.
+     * <p>
+     * The rows are spilled to disk as they are found and written out once all
+     * the parameters are known.
+     *
+     * @since 2.3.0
      */
-    private Boolean extractMetaFields = false;
+    private Boolean singlePass = false;
 
     /**
-     * parameter selection file
+     * Schema cache file. Null if the MO parameters are not cached.
+     *
+     * @since 2.3.0
      */
-    private String parameterFile = null;
+    private String schemaCacheFile = null;
 
+    /**
+     * Default schema cache file name in the output directory.
+     *
+     * @since 2.3.0
+     */
+    public static final String SCHEMA_CACHE_FILENAME = ".bulkcm_schema_cache";
 
     /**
-     * This is used to mark when processing is still inside the children of a
-     * a parameter - child scenario. It is useful when one of the children has
-     * the same name as the parent.
-     * <moname>
-     * <chid1>someValue</child1>
-     * ...
-     * <moname>someValue</moname>
-     * ...
-     * <child/>someValue<childN>
-     * </moName>
+     * Default manifest file name in the output directory.
+     *
+     * @since 2.3.0
      */
-    private Boolean inParentChildTag = false;
+    public static final String MANIFEST_FILENAME = ".bulkcm_manifest";
 
-    public void setExtractParametersOnly(Boolean bool) {
-        extractParametersOnly = bool;
-    }
+    /**
+     * Default checkpoint file name in the output directory.
+     *
+     * @since 2.3.0
+     */
+    public static final String CHECKPOINT_FILENAME = ".bulkcm_checkpoint";
 
-    public void setExtractMetaFields(Boolean bool) {
-        extractMetaFields = bool;
-    }
+    /**
+     * Default number of seconds between checkpoints.
+     *
+     * @since 2.3.0
+     */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
 
     /**
-     * Get the date
+     * Default delta store file name in the output directory.
      *
-     * @param inputFilename
+     * @since 2.3.0
      */
-    public void getDateTime(String inputFilename) {
-        try {
-            XMLInputFactory factory = XMLInputFactory.newInstance();
+    public static final String DELTA_STORE_FILENAME = ".bulkcm_delta_store";
 
-            XMLEventReader eventReader = factory.createXMLEventReader(
-                    new FileReader(inputFilename));
-            baseFileName = bulkCMXMLFileBasename = getFileBasename(inputFilename);
+    /**
+     * Name of the parameter file written in the output directory when only
+     * the parameters are extracted.
+     *
+     * @since 2.3.0
+     */
+    public static final String PARAMETER_FILENAME = "parameters.conf";
 
-            while (eventReader.hasNext()) {
-                XMLEvent event = eventReader.nextEvent();
-                switch (event.getEventType()) {
-                    case XMLStreamConstants.START_ELEMENT:
-                        StartElement startElement = event.asStartElement();
-                        String qName = startElement.getName().getLocalPart();
-                        Iterator<Attribute> attributes = startElement.getAttributes();
-                        if (qName.equals("fileFooter")) {
-                            while (attributes.hasNext()) {
-                                Attribute attribute = attributes.next();
-                                if (attribute.getName().toString().equals("dateTime")) {
-                                    dateTime = attribute.getValue();
-                                }
-                            }
-                        }
+    /**
+     * IDs of the MeContext and ManagedElement elements to parse. Null to
+     * parse whole files.
+     *
+     * @since 2.3.0
+     */
+    private Set<String> networkElements = null;
 
-                        break;
-                }
+    /**
+     * Only write the network element indexes of the input files.
+     *
+     * @since 2.3.0
+     */
+    private boolean buildIndex = false;
 
+    /**
+     * Directory of the network element indexes. Null to keep each index next
+     * to its input file.
+     *
+     * @since 2.3.0
+     */
+    private String indexDirectory = null;
 
-            }
-        } catch (Exception e) {
+    /**
+     * True when the MO parameters were loaded from the schema cache. New MOs
+     * and parameters are then collected while extracting values.
+     *
+     * @since 2.3.0
+     */
+    private boolean schemaFromCache = false;
 
-        }
-    }
+    /**
+     * Number of parameters of each MO when the schema cache was loaded.
+     *
+     * @since 2.3.0
+     */
+    private Map<String, Integer> cachedSchemaSizes = new HashMap<String, Integer>();
 
     /**
-     * Extract parameter list from  parameter file
+     * When not null, only these 3GPP MO csv files are written.
      *
-     * @param filename
+     * @since 2.3.0
      */
-    public void getParametersToExtract(String filename) throws FileNotFoundException, IOException {
-        BufferedReader br = new BufferedReader(new FileReader(filename));
-        for (String line; (line = br.readLine()) != null; ) {
-            String[] moAndParameters = line.split(":");
-            String mo = moAndParameters[0];
-            String[] parameters = moAndParameters[1].split(",");
+    private Set<String> rewrite3GPPFiles = null;
 
-            Stack parameterStack = new Stack();
-            for (int i = 0; i < parameters.length; i++) {
-                parameterStack.push(parameters[i]);
-            }
+    /**
+     * When not null, only these vendor specific MO csv files are written.
+     *
+     * @since 2.3.0
+     */
+    private Set<String> rewriteVendorFiles = null;
 
-            if (mo.startsWith("vsData")) {
-                moColumns.put(mo, parameterStack);
-                moColumnsParentIds.put(mo, new Stack());
-            } else {
-                moThreeGPPAttrMap.put(mo, parameterStack);
-            }
+    /**
+     * Number of files of an input directory parsed at the same time.
+     *
+     * @since 2.3.0
+     */
+    private int threads = 1;
 
-        }
+    /**
+     * Read the input in a reader thread and write the csv files in a writer
+     * thread.
+     *
+     * @since 2.3.0
+     */
+    private boolean pipeline = false;
 
-        //Move to the parameter value extraction stage
-        //parserState = ParserStates.EXTRACTING_VALUES;
-    }
+    /**
+     * Writer thread of the csv files. Started by the first file opened
+     * when pipeline is set.
+     *
+     * @since 2.3.0
+     */
+    private OutputPipeline outputPipeline = null;
 
     /**
-     * @param inputFilename
+     * Write gzip compressed csv files.
+     *
+     * @since 2.3.0
      */
-    public void parseFile(String inputFilename) throws FileNotFoundException, XMLStreamException, UnsupportedEncodingException {
+    public static final String COMPRESS_GZIP = "gzip";
 
-        XMLInputFactory factory = XMLInputFactory.newInstance();
-        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    /**
+     * Compression of the csv files or null.
+     *
+     * @since 2.3.0
+     */
+    private String outputCompression = null;
 
-        XMLEventReader eventReader = factory.createXMLEventReader(
-                new FileReader(inputFilename));
-        baseFileName = bulkCMXMLFileBasename = getFileBasename(inputFilename);
+    /**
+     * Threads deflating blocks of the compressed csv files. Started by the
+     * first compressed file.
+     *
+     * @since 2.3.0
+     */
+    private ExecutorService compressionExecutor = null;
 
-        while (eventReader.hasNext()) {
-            XMLEvent event = eventReader.nextEvent();
-            switch (event.getEventType()) {
-                case XMLStreamConstants.START_ELEMENT:
-                    startElementEvent(event);
-                    break;
-                case XMLStreamConstants.SPACE:
-                case XMLStreamConstants.CHARACTERS:
-                    characterEvent(event);
-                    break;
-                case XMLStreamConstants.END_ELEMENT:
-                    endELementEvent(event);
-                    break;
-            }
-        }
+    /**
+     * Memory for buffering the csv files in bytes.
+     *
+     * @since 2.3.0
+     */
+    private long outputMemory = OutputBufferBudget.DEFAULT_BUDGET_MB * (1L << 20);
 
-    }
+    /**
+     * Buffers of the open csv files. Created by the first file opened.
+     *
+     * @since 2.3.0
+     */
+    private OutputBufferBudget outputBuffers = null;
 
-    public void setParameterFile(String filename) {
-        parameterFile = filename;
-    }
+    /**
+     * Compressed input files whose fileFooter dateTimes have all been read.
+     *
+     * @since 2.3.0
+     */
+    private Set<String> scannedArchives = new HashSet<String>();
 
     /**
-     * Set multi-value separator
+     * Target number of pieces per thread when a file is split.
      *
-     * @since 2.2.0
+     * @since 2.3.0
      */
-    public void setMultiValueSeparator(String mvSeparator) {
-        multiValueSeparetor = mvSeparator;
-    }
+    private static final int PIECES_PER_THREAD = 4;
 
     /**
-     * Separate vendor specifiic attributes from 3GPP attributes
+     * Pieces of the files split for parsing with more than one thread.
      *
-     * @since 2.1.0
+     * @since 2.3.0
      */
-    public void setSeparateVendorAttributes(Boolean separate) {
-        separateVendorAttributes = separate;
-    }
+    private Map<String, List<FileSplitter.Piece>> filePieces = new HashMap<String, List<FileSplitter.Piece>>();
 
     /**
-     * @param args the command line arguments
-     * @version 1.0.1
-     * @since 1.0.0
+     * Parse with the XMLStreamReader cursor.
+     *
+     * @since 2.3.0
      */
-    public static void main(String[] args) {
+    public static final String ENGINE_CURSOR = "cursor";
 
-        //Define
-        Options options = new Options();
-        CommandLine cmd = null;
-        String outputDirectory = null;
-        String inputFile = null;
-        String parameterConfigFile = null;
-        Boolean onlyExtractParameters = false;
-        Boolean showHelpMessage = false;
-        Boolean showVersion = false;
-        Boolean separateVsData = false; //separaete 3GPP standard attributes and vendor specific attr
-        Boolean attachMetaFields = false; //Attach mattachMetaFields FILENAME,DATETIME,NE_TECHNOLOGY,NE_VENDOR,NE_VERSION,NE_TYPE
+    /**
+     * Parse with the XMLEventReader.
+     *
+     * @since 2.3.0
+     */
+    public static final String ENGINE_EVENT = "event";
 
-        //Multi-valued separator
-        String mvSeparator = ";";
+    /**
+     * Parse with the byte level Bulk CM tokenizer. Files with a DOCTYPE or
+     * an encoding other than UTF-8 are parsed with the XMLStreamReader cursor.
+     *
+     * @since 2.3.0
+     */
+    public static final String ENGINE_BULKCM = "bulkcm";
 
-        try {
-            options.addOption("p", "extract-parameters", false, "extract only the managed objects and parameters");
-            options.addOption("v", "version", false, "display version");
-            options.addOption("m", "meta-fields", false, "add meta fields to extracted parameters. FILENAME,DATETIME");
-            options.addOption(Option.builder("i")
-                    .longOpt("input-file")
-                    .desc("input file or directory name")
-                    .hasArg()
-                    .argName("INPUT_FILE").build());
-            options.addOption(Option.builder("o")
-                    .longOpt("output-directory")
-                    .desc("output directory name")
-                    .hasArg()
-                    .argName("OUTPUT_DIRECTORY").build());
+    /**
+     * The XML parser engine.
+     *
+     * @since 2.3.0
+     */
+    private String parserEngine = ENGINE_CURSOR;
+
+    /**
+     * Input stream buffer size.
+     *
+     * @since 2.3.0
+     */
+    static final int INPUT_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * XML input factory for the XMLStreamReader cursor.
+     *
+     * @since 2.3.0
+     */
+    private XMLInputFactory xmlInputFactory = null;
+
+    /**
+     * Element names seen in this run.
+     *
+     * @since 2.3.0
+     */
+    private final SymbolTable symbolTable = new SymbolTable();
+
+    /**
+     * Rows collected in single pass mode.
+     *
+     * @since 2.3.0
+     */
+    private RowSpillStore rowSpillStore = null;
+
+    /**
+     * Add meta fields to each MO.
+     * FILENAME,DATETIME,NE_TECHNOLOGY,NE_VENDOR,NE_VERSION,NE_TYPE
+     */
+    private Boolean extractMetaFields = false;
+
+    /**
+     * parameter selection file
+     */
+    private String parameterFile = null;
+
+
+    public void setExtractParametersOnly(Boolean bool) {
+        extractParametersOnly = bool;
+    }
+
+    public void setExtractMetaFields(Boolean bool) {
+        extractMetaFields = bool;
+    }
+
+    /**
+     * Parse the input once instead of separate parameter and value passes.
+     *
+     * @param bool
+     * @since 2.3.0
+     */
+    public void setSinglePass(Boolean bool) {
+        singlePass = bool;
+    }
+
+    /**
+     * Set the number of files of an input directory parsed at the same time.
+     * <p>
+     * Each file is parsed by its own parser in both the parameter and the
+     * value extraction passes. The rows of each file are written to a part
+     * directory and the parts are merged in the order of the files. Single
+     * pass parsing is not used with more than one thread.
+     *
+     * @param threads
+     * @since 2.3.0
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Parse only the MeContext and ManagedElement elements with given IDs.
+     * <p>
+     * The elements are found with the network element index of each input
+     * file, which is built and saved next to the file when it is missing or
+     * out of date. Only their byte ranges and the start tags of the elements
+     * they are in are read. Compressed files and files the Bulk CM tokenizer
+     * does not support are read whole, and the MeContext and ManagedElement
+     * elements with other IDs are skipped as they are found.
+     *
+     * @param ids The id attributes of the elements. Null to parse whole
+     * files.
+     * @since 2.3.0
+     */
+    public void setNetworkElements(Collection<String> ids) {
+        networkElements = ids == null ? null : new HashSet<String>(ids);
+    }
+
+    /**
+     * Only write the network element index of each input file next to it,
+     * or in the index directory. No csv files are written.
+     *
+     * @param buildIndex
+     * @since 2.3.0
+     */
+    public void setBuildIndex(boolean buildIndex) {
+        this.buildIndex = buildIndex;
+    }
+
+    /**
+     * Keep the network element indexes in a directory instead of next to
+     * the input files, for input directories that cannot be written to.
+     *
+     * @param indexDirectory The directory or null for the input directories
+     * @since 2.3.0
+     */
+    public void setIndexDirectory(String indexDirectory) {
+        this.indexDirectory = indexDirectory;
+    }
+
+    /**
+     * Read the input and write the csv files in their own threads.
+     * <p>
+     * A reader thread reads the input ahead of the parser and a writer
+     * thread writes the rows, so reading, parsing and writing overlap. They
+     * hand over fixed sets of buffers through ring buffers. With more than
+     * one thread each worker parser has its own reader and writer threads.
+     *
+     * @param pipeline
+     * @since 2.3.0
+     */
+    public void setPipeline(boolean pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Compress the csv files.
+     * <p>
+     * With gzip the files are written as .csv.gz. Blocks of each file are
+     * deflated at the same time by a thread per processor. With more than
+     * one thread the worker parsers write plain csv files that are
+     * compressed when they are merged.
+     *
+     * @param compression gzip, or null to write plain csv files
+     * @since 2.3.0
+     */
+    public void setOutputCompression(String compression) {
+        outputCompression = compression;
+    }
+
+    /**
+     * Set the largest number of csv files kept open.
+     * <p>
+     * When more MOs are written, the least recently written files are
+     * closed and opened again in append mode when they get another row. With
+     * more than one thread the files are shared out among the worker
+     * parsers.
+     *
+     * @param maxOpenFiles
+     * @since 2.3.0
+     */
+    public void setMaxOpenFiles(int maxOpenFiles) {
+        outputWriters.setMaxOpen(maxOpenFiles);
+    }
+
+    /**
+     * Set the memory for buffering the csv files.
+     * <p>
+     * The memory is shared out in chunks. Files getting many rows get more
+     * chunks and write them together, files getting few rows keep one. With
+     * more than one thread the memory is shared out among the worker
+     * parsers.
+     *
+     * @param bytes
+     * @since 2.3.0
+     */
+    public void setOutputMemory(long bytes) {
+        outputMemory = bytes;
+    }
+
+    /**
+     * Set the schema cache file.
+     * <p>
+     * If the file exists, the MO parameters are loaded from it and the
+     * parameter extraction pass is skipped. The file is written with the
+     * MO parameters after parsing.
+     *
+     * @param filename
+     * @since 2.3.0
+     */
+    public void setSchemaCacheFile(String filename) {
+        schemaCacheFile = filename;
+    }
+
+    /**
+     * Get the date
+     * <p>
+     * The fileFooter is looked for at the end of the file first. If it is not
+     * found there, the date is picked from the fileFooter during the parameter
+     * extraction pass or, failing that, by reading through the whole file.
+     *
+     * @param inputFilename
+     */
+    public void getDateTime(String inputFilename) {
+        context.fileBasename = getFileBasename(inputFilename);
+        context.footerDateTimeFound = false;
+
+        if (fileDateTimes.containsKey(inputFilename)) {
+            context.dateTime = fileDateTimes.get(inputFilename);
+            return;
+        }
+
+        String footerDateTime = readFooterDateTime(inputFilename);
+        if (footerDateTime != null) {
+            context.dateTime = footerDateTime;
+            fileDateTimes.put(inputFilename, footerDateTime);
+            return;
+        }
+
+        //Leave it to the parameter extraction pass which also reads the
+        //fileFooter. Rows are only written in the value extraction pass.
+        if (parserState == ParserStates.EXTRACTING_PARAMETERS && singlePass == false) {
+            return;
+        }
+
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(inputFilename), INPUT_BUFFER_SIZE);
+            XMLStreamReader reader = getXMLInputFactory().createXMLStreamReader(in);
+
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT
+                        && reader.getLocalName().equals("fileFooter")) {
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        String nsURI = reader.getAttributeNamespace(i);
+                        if ((nsURI == null || nsURI.length() == 0)
+                                && reader.getAttributeLocalName(i).equals("dateTime")) {
+                            context.dateTime = reader.getAttributeValue(i);
+                        }
+                    }
+                }
+            }
+            reader.close();
+        } catch (Exception e) {
+
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep the fileFooter dateTime read during the parameter extraction pass
+     * for use in the value extraction pass.
+     *
+     * @param inputFilename
+     * @since 2.3.0
+     */
+    private void rememberFooterDateTime(String inputFilename) {
+        if (context.footerDateTimeFound && !fileDateTimes.containsKey(inputFilename)) {
+            fileDateTimes.put(inputFilename, context.dateTime);
+        }
+    }
+
+    /**
+     * Read the fileFooter dateTime from the end of the file.
+     *
+     * @param inputFilename
+     * @return The dateTime or null if a well formed fileFooter is not found in
+     * the last FOOTER_SCAN_SIZE bytes of the file.
+     * @since 2.3.0
+     */
+    public String readFooterDateTime(String inputFilename) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(inputFilename, "r");
+            long length = raf.length();
+            if (length < 2) return null;
+
+            //Skip compressed files
+            byte[] head = new byte[4];
+            int headLength = raf.read(head);
+            if (CompressedInput.detect(head, headLength) != CompressedInput.NONE) return null;
+
+            int size = (int) Math.min(length, FOOTER_SCAN_SIZE);
+            byte[] tail = new byte[size];
+            raf.seek(length - size);
+            raf.readFully(tail);
+
+            return footerDateTime(tail, 0, size);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the fileFooter dateTime from the end of a stream. The stream is
+     * read to the end.
+     *
+     * @param in
+     * @return The dateTime or null if a well formed fileFooter is not found in
+     * the last FOOTER_SCAN_SIZE bytes of the stream.
+     * @since 2.3.0
+     */
+    private String readFooterDateTime(InputStream in) throws IOException {
+        //The last bytes read, kept in a circular buffer
+        byte[] buf = new byte[FOOTER_SCAN_SIZE];
+        long total = 0;
+        int r;
+        while ((r = in.read(buf, (int) (total % buf.length), buf.length - (int) (total % buf.length))) > 0) {
+            total += r;
+        }
+
+        int size = (int) Math.min(total, buf.length);
+        byte[] tail = new byte[size];
+        int start = (int) (total % buf.length);
+        if (total > buf.length) {
+            System.arraycopy(buf, start, tail, 0, buf.length - start);
+            System.arraycopy(buf, 0, tail, buf.length - start, start);
+        } else {
+            System.arraycopy(buf, 0, tail, 0, size);
+        }
+        return footerDateTime(tail, 0, size);
+    }
+
+    /**
+     * Get the fileFooter dateTime from the last bytes of a file.
+     *
+     * @param tail
+     * @param offset
+     * @param length
+     * @return The dateTime or null if a well formed fileFooter is not found
+     * @since 2.3.0
+     */
+    private static String footerDateTime(byte[] tail, int offset, int length) {
+        //One char per byte. The dateTime is expected to be ASCII.
+        String text = new String(tail, offset, length, StandardCharsets.ISO_8859_1);
+
+        int tagIdx = text.lastIndexOf("fileFooter");
+        if (tagIdx < 1) return null;
+
+        //The tag name may have a namespace prefix
+        int start = tagIdx - 1;
+        if (text.charAt(start) == ':') {
+            start--;
+            while (start >= 0 && text.charAt(start) != '<'
+                    && !Character.isWhitespace(text.charAt(start))) {
+                start--;
+            }
+        }
+        if (start < 0 || text.charAt(start) != '<') return null;
+
+        int end = text.indexOf('>', tagIdx);
+        if (end < 0) return null;
+
+        Matcher m = FOOTER_DATETIME_PATTERN.matcher(text.substring(tagIdx, end));
+        if (!m.find()) return null;
+
+        String value = m.group(2);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '&' || c == '<' || c > 0x7f) return null;
+        }
+        return value;
+    }
+
+    /**
+     * Extract parameter list from  parameter file
+     *
+     * @param filename
+     */
+    public void getParametersToExtract(String filename) throws FileNotFoundException, IOException {
+        BufferedReader br = new BufferedReader(new FileReader(filename));
+        for (String line; (line = br.readLine()) != null; ) {
+            String[] moAndParameters = line.split(":");
+            String mo = moAndParameters[0];
+            String[] parameters = moAndParameters[1].split(",");
+
+            ColumnRegistry parameterStack = new ColumnRegistry();
+            for (int i = 0; i < parameters.length; i++) {
+                parameterStack.append(parameters[i]);
+            }
+
+            if (mo.startsWith("vsData")) {
+                moColumns.put(mo, parameterStack);
+                moColumnsParentIds.put(mo, new ColumnRegistry());
+            } else {
+                moThreeGPPAttrMap.put(mo, parameterStack);
+            }
+
+        }
+
+        //Move to the parameter value extraction stage
+        //parserState = ParserStates.EXTRACTING_VALUES;
+    }
+
+    /**
+     * Write the MOs and parameters found in the format read by
+     * {@link #getParametersToExtract(String)}. A line is written for each
+     * MO with parameters, the 3GPP MOs first. The FILENAME and DATETIME
+     * meta fields are added to each line when they are extracted.
+     *
+     * @param filename
+     * @since 2.3.0
+     */
+    public void writeParameterFile(String filename) throws IOException {
+        PrintWriter pw = new PrintWriter(filename);
+        try {
+            writeParameters(pw, moThreeGPPAttrMap);
+            writeParameters(pw, moColumns);
+        } finally {
+            pw.close();
+        }
+        if (pw.checkError()) throw new IOException("Error writing " + filename);
+    }
+
+    private void writeParameters(PrintWriter pw, Map<String, ColumnRegistry> map) {
+        Iterator<Map.Entry<String, ColumnRegistry>> iter = map.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, ColumnRegistry> me = iter.next();
+            ColumnRegistry parameters = me.getValue();
+            if (parameters.size() == 0) continue;
+
+            StringBuilder sb = new StringBuilder(me.getKey()).append(':');
+            if (extractMetaFields == true) sb.append("FILENAME,DATETIME,");
+            for (int i = 0; i < parameters.size(); i++) {
+                if (i > 0) sb.append(',');
+                sb.append(parameters.get(i));
+            }
+            pw.println(sb.toString());
+        }
+    }
+
+    /**
+     * @param inputFilename
+     */
+    public void parseFile(String inputFilename) throws FileNotFoundException, XMLStreamException, UnsupportedEncodingException, IOException {
+        resetVariables();
+
+        if (networkElements != null && isTokenizerSupported(inputFilename)) {
+            parseNetworkElements(inputFilename);
+            return;
+        }
+
+        if (checkpoint != null && rewrite3GPPFiles == null && rewriteVendorFiles == null
+                && isTokenizerSupported(inputFilename)) {
+            parseCheckpointedFile(inputFilename);
+            return;
+        }
+
+        if (ENGINE_EVENT.equals(parserEngine)) {
+            parseFileWithEventReader(inputFilename);
+            return;
+        }
+
+        if (ENGINE_BULKCM.equals(parserEngine)) {
+            if (isTokenizerSupported(inputFilename)) {
+                context.fileBasename = getFileBasename(inputFilename);
+                BulkCMTokenizer tokenizer = new BulkCMTokenizer(openInputChannel(inputFilename));
+                try {
+                    parseTokens(tokenizer);
+                } finally {
+                    tokenizer.close();
+                }
+                return;
+            }
+            LOGGER.info(inputFilename + " uses XML features the bulkcm tokenizer does not support. Parsing with StAX.");
+        }
+
+        InputStream in = new BufferedInputStream(Channels.newInputStream(openInputChannel(inputFilename)), INPUT_BUFFER_SIZE);
+        context.fileBasename = getFileBasename(inputFilename);
+        try {
+            parseStream(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parse XML from a byte stream with the XMLStreamReader cursor.
+     * <p>
+     * The character encoding is taken from the XML declaration.
+     *
+     * @param in
+     * @since 2.3.0
+     */
+    public void parseStream(InputStream in) throws XMLStreamException, IOException {
+        XMLStreamReader reader = getXMLInputFactory().createXMLStreamReader(in);
+        context.characterBuffer.setLength(0);
+
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        startElementEvent(reader);
+                        if (context.skipCurrentElement) endSkippedElement(skipElement(reader));
+                        break;
+                    case XMLStreamConstants.SPACE:
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        characterEvent(reader);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        endELementEvent(reader);
+                        break;
+                    default:
+                        flushCharacters();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parse the tokens from the Bulk CM tokenizer.
+     *
+     * @param tokenizer
+     * @since 2.3.0
+     */
+    public void parseTokens(BulkCMTokenizer tokenizer) throws XMLStreamException, IOException {
+        parseTokens(tokenizer, Long.MAX_VALUE);
+    }
+
+    /**
+     * Parse the tokens from the Bulk CM tokenizer up to a byte offset.
+     *
+     * @param tokenizer
+     * @param end Offset in the tokenizer's input to stop at. It must be at
+     * the end of a token.
+     * @since 2.3.0
+     */
+    public void parseTokens(BulkCMTokenizer tokenizer, long end) throws XMLStreamException, IOException {
+        while (tokenizer.getOffset() < end || tokenizer.isEndPending()) {
+            switch (tokenizer.next()) {
+                case BulkCMTokenizer.START_ELEMENT:
+                    context.attrCount = 0;
+                    for (int i = 0; i < tokenizer.getAttributeCount(); i++) {
+                        addAttribute(tokenizer.getAttributeLocalName(i),
+                                tokenizer.getAttributeValue(i),
+                                tokenizer.attributeHasNamespace(i));
+                    }
+                    startElement(elementSymbol(tokenizer));
+                    if (context.skipCurrentElement) endSkippedElement(tokenizer.skipElement());
+                    break;
+                case BulkCMTokenizer.CHARACTERS:
+                    if (!tokenizer.isWhiteSpace()) {
+                        context.tagData = tokenizer.getText();
+                    }
+                    break;
+                case BulkCMTokenizer.END_ELEMENT:
+                    SymbolTable.Symbol symbol = elementSymbol(tokenizer);
+                    endElement(symbol);
+                    if (context.checkpointedFile != null && isNetworkElementEnd(symbol)) {
+                        checkpoint.networkElementParsed(context.checkpointedFile,
+                                context.checkpointedFileOffset + tokenizer.getOffset());
+                        saveCheckpointIfDue();
+                    }
+                    break;
+                case BulkCMTokenizer.END_DOCUMENT:
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Get the symbol of the tokenizer's current element. The symbol is kept
+     * on the tokenizer's name so the lookup is done once per distinct name.
+     *
+     * @param tokenizer
+     * @since 2.3.0
+     */
+    private SymbolTable.Symbol elementSymbol(BulkCMTokenizer tokenizer) {
+        BulkCMTokenizer.Name name = tokenizer.getElementName();
+        if (name.symbol == null) {
+            name.symbol = symbolTable.lookup(name.localName, name.prefix);
+        }
+        return name.symbol;
+    }
+
+    /**
+     * Check whether the file can be parsed with the Bulk CM tokenizer.
+     *
+     * @param inputFilename
+     * @since 2.3.0
+     */
+    private boolean isTokenizerSupported(String inputFilename) throws IOException {
+        InputStream in = new FileInputStream(inputFilename);
+        try {
+            return BulkCMTokenizer.isSupported(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parse file with the XMLEventReader.
+     *
+     * @param inputFilename
+     * @since 2.3.0
+     */
+    private void parseFileWithEventReader(String inputFilename) throws FileNotFoundException, XMLStreamException, UnsupportedEncodingException, IOException {
+
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+
+        XMLEventReader eventReader = factory.createXMLEventReader(
+                new FileReader(inputFilename));
+        context.fileBasename = getFileBasename(inputFilename);
+
+        while (eventReader.hasNext()) {
+            XMLEvent event = eventReader.nextEvent();
+            switch (event.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    startElementEvent(event);
+                    if (context.skipCurrentElement) endSkippedElement(skipElement(eventReader));
+                    break;
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CHARACTERS:
+                    characterEvent(event);
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    endELementEvent(event);
+                    break;
+            }
+        }
+
+    }
+
+    /**
+     * Skip the rest of the current element with the XMLStreamReader cursor.
+     *
+     * @param reader
+     * @return true if the element has child elements
+     * @since 2.3.0
+     */
+    private boolean skipElement(XMLStreamReader reader) throws XMLStreamException {
+        boolean hasChildren = false;
+        int level = 0;
+        while (true) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    hasChildren = true;
+                    level++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (level == 0) return hasChildren;
+                    level--;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Skip the rest of the current element with the XMLEventReader.
+     *
+     * @param eventReader
+     * @return true if the element has child elements
+     * @since 2.3.0
+     */
+    private boolean skipElement(XMLEventReader eventReader) throws XMLStreamException {
+        boolean hasChildren = false;
+        int level = 0;
+        while (true) {
+            switch (eventReader.nextEvent().getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    hasChildren = true;
+                    level++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (level == 0) return hasChildren;
+                    level--;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Get the XML input factory used by the XMLStreamReader cursor.
+     *
+     * @since 2.3.0
+     */
+    private XMLInputFactory getXMLInputFactory() {
+        if (xmlInputFactory == null) {
+            xmlInputFactory = XMLInputFactory.newInstance();
+        }
+        return xmlInputFactory;
+    }
+
+    /**
+     * Set the XML parser engine.
+     *
+     * @param engine ENGINE_CURSOR, ENGINE_EVENT or ENGINE_BULKCM
+     * @since 2.3.0
+     */
+    public void setParserEngine(String engine) {
+        parserEngine = engine;
+    }
+
+    public void setParameterFile(String filename) {
+        parameterFile = filename;
+    }
+
+    /**
+     * Set multi-value separator
+     *
+     * @since 2.2.0
+     */
+    public void setMultiValueSeparator(String mvSeparator) {
+        multiValueSeparetor = mvSeparator;
+    }
+
+    /**
+     * Separate vendor specifiic attributes from 3GPP attributes
+     *
+     * @since 2.1.0
+     */
+    public void setSeparateVendorAttributes(Boolean separate) {
+        separateVendorAttributes = separate;
+    }
+
+    /**
+     * @param args the command line arguments
+     * @version 1.0.1
+     * @since 1.0.0
+     */
+    public static void main(String[] args) {
+
+        //Define
+        Options options = new Options();
+        CommandLine cmd = null;
+        String outputDirectory = null;
+        String inputFile = null;
+        String parameterConfigFile = null;
+        Boolean onlyExtractParameters = false;
+        Boolean showHelpMessage = false;
+        Boolean showVersion = false;
+        Boolean separateVsData = false; //separaete 3GPP standard attributes and vendor specific attr
+        Boolean attachMetaFields = false; //Attach mattachMetaFields FILENAME,DATETIME,NE_TECHNOLOGY,NE_VENDOR,NE_VERSION,NE_TYPE
+        Boolean singlePass = false;
+        Boolean useSchemaCache = false;
+        String schemaCacheFile = null;
+        int threads = 1;
+        Boolean pipeline = false;
+        String outputCompression = null;
+        int maxOpenFiles = OutputWriterPool.DEFAULT_MAX_OPEN;
+        int outputMemory = OutputBufferBudget.DEFAULT_BUDGET_MB;
+        String parserEngine = ENGINE_CURSOR;
+        Boolean engineChosen = false;
+        Boolean buildIndex = false;
+        String indexDirectory = null;
+        Boolean useDeltaStore = false;
+        String deltaStoreFile = null;
+        Boolean useManifest = false;
+        String manifestFile = null;
+        Boolean useCheckpoint = false;
+        int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+        Boolean resume = false;
+        String networkElements = null;
+
+        //Multi-valued separator
+        String mvSeparator = ";";
+
+        try {
+            options.addOption("p", "extract-parameters", false, "extract only the managed objects and parameters. "
+                    + "They are written to " + PARAMETER_FILENAME + " in the output directory for use with -c");
+            options.addOption("v", "version", false, "display version");
+            options.addOption("m", "meta-fields", false, "add meta fields to extracted parameters. FILENAME,DATETIME");
+            options.addOption(Option.builder("i")
+                    .longOpt("input-file")
+                    .desc("input file or directory name. Files can be gzip, zip or tar.gz compressed")
+                    .hasArg()
+                    .argName("INPUT_FILE").build());
+            options.addOption(Option.builder("o")
+                    .longOpt("output-directory")
+                    .desc("output directory name")
+                    .hasArg()
+                    .argName("OUTPUT_DIRECTORY").build());
             options.addOption(Option.builder("c")
                     .longOpt("parameter-config")
                     .desc("parameter configuration file")
@@ -541,262 +1379,1427 @@ public class BodaBulkCMParser {
                     .hasArg()
                     .argName("MV_SEPARATOR").build());
             options.addOption("s", "separate-vsdata", false, "Separate vendor specific data");
+            options.addOption(Option.builder()
+                    .longOpt("engine")
+                    .desc("XML parser engine: cursor(default), event or bulkcm")
+                    .hasArg()
+                    .argName("ENGINE").build());
+            options.addOption(Option.builder()
+                    .longOpt("single-pass")
+                    .desc("parse each input file once. Rows are kept on disk until all parameters are known")
+                    .build());
+            options.addOption(Option.builder()
+                    .longOpt("threads")
+                    .desc("number of files, or pieces of a large file, to parse at the same time. Default is 1")
+                    .hasArg()
+                    .argName("THREADS").build());
+            options.addOption(Option.builder()
+                    .longOpt("pipeline")
+                    .desc("read the input and write the output in separate threads while parsing")
+                    .build());
+            options.addOption(Option.builder()
+                    .longOpt("compress")
+                    .desc("compress the csv files. gzip writes .csv.gz files")
+                    .hasArg()
+                    .argName("FORMAT").build());
+            options.addOption(Option.builder()
+                    .longOpt("max-open-files")
+                    .desc("largest number of csv files kept open. Idle files are closed and opened again "
+                            + "when needed. Default is " + OutputWriterPool.DEFAULT_MAX_OPEN)
+                    .hasArg()
+                    .argName("FILES").build());
+            options.addOption(Option.builder()
+                    .longOpt("output-memory")
+                    .desc("memory in MB for buffering the csv files. Files with more rows get larger buffers. "
+                            + "Default is " + OutputBufferBudget.DEFAULT_BUDGET_MB)
+                    .hasArg()
+                    .argName("MB").build());
+            options.addOption(Option.builder()
+                    .longOpt("schema-cache")
+                    .desc("reuse the managed objects and parameters of earlier runs and skip the parameter extraction pass. "
+                            + "Default file is " + SCHEMA_CACHE_FILENAME + " in the output directory")
+                    .hasArg()
+                    .optionalArg(true)
+                    .argName("FILE").build());
+            options.addOption(Option.builder()
+                    .longOpt("delta")
+                    .desc("write only the rows added, changed or deleted since the last run with the same FILE, "
+                            + "with a CHANGE_TYPE column. Default file is " + DELTA_STORE_FILENAME
+                            + " in the output directory")
+                    .hasArg()
+                    .optionalArg(true)
+                    .argName("FILE").build());
+            options.addOption(Option.builder()
+                    .longOpt("manifest")
+                    .desc("skip the input files that have not changed since the last run with the same FILE "
+                            + "and keep their rows. Default file is " + MANIFEST_FILENAME
+                            + " in the output directory")
+                    .hasArg()
+                    .optionalArg(true)
+                    .argName("FILE").build());
+            options.addOption(Option.builder()
+                    .longOpt("checkpoint")
+                    .desc("save a checkpoint every SECONDS so that the run can be resumed with --resume if it dies. "
+                            + "Default is " + DEFAULT_CHECKPOINT_INTERVAL + " seconds. The checkpoint is kept in "
+                            + CHECKPOINT_FILENAME + " in the output directory")
+                    .hasArg()
+                    .optionalArg(true)
+                    .argName("SECONDS").build());
+            options.addOption(Option.builder()
+                    .longOpt("resume")
+                    .desc("continue from the checkpoint of a run that did not finish and keep saving checkpoints")
+                    .build());
+            options.addOption(Option.builder()
+                    .longOpt("index")
+                    .desc("only write an index of the MeContext and ManagedElement elements of each input file "
+                            + "next to it or in --index-dir, for use with --ne")
+                    .build());
+            options.addOption(Option.builder()
+                    .longOpt("ne")
+                    .desc("parse only the MeContext or ManagedElement elements with these comma separated IDs. "
+                            + "The index of each input file is used, and built if needed. "
+                            + "Files that cannot be indexed are read whole")
+                    .hasArg()
+                    .argName("IDS").build());
+            options.addOption(Option.builder()
+                    .longOpt("index-dir")
+                    .desc("keep the indexes in this directory instead of next to the input files")
+                    .hasArg()
+                    .argName("DIR").build());
             options.addOption("h", "help", false, "show help");
 
-            //Parse command line arguments
-            CommandLineParser parser = new DefaultParser();
-            cmd = parser.parse(options, args);
+            //Parse command line arguments
+            CommandLineParser parser = new DefaultParser();
+            cmd = parser.parse(options, args);
+
+            if (cmd.hasOption("h")) {
+                showHelpMessage = true;
+            }
+
+            if (cmd.hasOption("s")) {
+                separateVsData = true;
+            }
+
+            if (cmd.hasOption("v")) {
+                showVersion = true;
+            }
+
+            if (cmd.hasOption("d")) {
+                mvSeparator = cmd.getOptionValue("d");
+            }
+
+
+            if (cmd.hasOption('o')) {
+                outputDirectory = cmd.getOptionValue("o");
+            }
+
+            if (cmd.hasOption('i')) {
+                inputFile = cmd.getOptionValue("i");
+            }
+
+            if (cmd.hasOption('c')) {
+                parameterConfigFile = cmd.getOptionValue("c");
+            }
+
+            if (cmd.hasOption('p')) {
+                onlyExtractParameters = true;
+            }
+
+            if (cmd.hasOption('m')) {
+                attachMetaFields = true;
+            }
+
+            if (cmd.hasOption("single-pass")) {
+                singlePass = true;
+            }
+
+            if (cmd.hasOption("engine")) {
+                parserEngine = cmd.getOptionValue("engine");
+                engineChosen = true;
+            }
+
+            if (cmd.hasOption("threads")) {
+                try {
+                    threads = Integer.parseInt(cmd.getOptionValue("threads"));
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+            }
+
+            if (cmd.hasOption("pipeline")) {
+                pipeline = true;
+            }
+
+            if (cmd.hasOption("compress")) {
+                outputCompression = cmd.getOptionValue("compress");
+            }
+
+            if (cmd.hasOption("max-open-files")) {
+                try {
+                    maxOpenFiles = Integer.parseInt(cmd.getOptionValue("max-open-files"));
+                } catch (NumberFormatException e) {
+                    maxOpenFiles = 0;
+                }
+            }
+
+            if (cmd.hasOption("output-memory")) {
+                try {
+                    outputMemory = Integer.parseInt(cmd.getOptionValue("output-memory"));
+                } catch (NumberFormatException e) {
+                    outputMemory = 0;
+                }
+            }
+
+            if (cmd.hasOption("schema-cache")) {
+                useSchemaCache = true;
+                schemaCacheFile = cmd.getOptionValue("schema-cache");
+            }
+
+            if (cmd.hasOption("delta")) {
+                useDeltaStore = true;
+                deltaStoreFile = cmd.getOptionValue("delta");
+            }
+
+            if (cmd.hasOption("manifest")) {
+                useManifest = true;
+                manifestFile = cmd.getOptionValue("manifest");
+            }
+
+            if (cmd.hasOption("checkpoint")) {
+                useCheckpoint = true;
+                if (cmd.getOptionValue("checkpoint") != null) {
+                    try {
+                        checkpointInterval = Integer.parseInt(cmd.getOptionValue("checkpoint"));
+                    } catch (NumberFormatException e) {
+                        checkpointInterval = -1;
+                    }
+                }
+            }
+
+            if (cmd.hasOption("resume")) {
+                useCheckpoint = true;
+                resume = true;
+            }
+
+            if (cmd.hasOption("index")) {
+                buildIndex = true;
+            }
+
+            if (cmd.hasOption("ne")) {
+                networkElements = cmd.getOptionValue("ne");
+            }
+
+            if (cmd.hasOption("index-dir")) {
+                indexDirectory = cmd.getOptionValue("index-dir");
+            }
+
+        } catch (IllegalArgumentException e) {
+
+        } catch (ParseException ex) {
+//            java.util.logging.Logger.getLogger(HuaweiCMObjectParser.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+
+        try {
+
+            if (showVersion == true) {
+                System.out.println(VERSION);
+                System.out.println("Copyright (c) 2020 Bodastage Solutions(https://www.bodastage.com)");
+                System.exit(0);
+            }
+
+            //show help
+            if (showHelpMessage == true ||
+                    inputFile == null ||
+                    (outputDirectory == null && onlyExtractParameters == false && buildIndex == false)) {
+                HelpFormatter formatter = new HelpFormatter();
+                String header = "Parses BulkCM configuration data file XML to csv\n\n";
+                String footer = "\n";
+                footer += "Examples: \n";
+                footer += "java -jar boda-bulkcmparser.jar -i bulkcm_dump.xml -o out_folder\n";
+                footer += "java -jar boda-bulkcmparser.jar -i input_folder -o out_folder\n";
+                footer += "java -jar boda-bulkcmparser.jar -i input_folder -p\n";
+                footer += "java -jar boda-bulkcmparser.jar -i input_folder -p -m\n";
+                footer += "java -jar boda-bulkcmparser.jar -i bulkcm_dump.xml --index\n";
+                footer += "java -jar boda-bulkcmparser.jar -i input_folder -o out_folder --ne SITE1\n";
+                footer += "java -jar boda-bulkcmparser.jar -i input_folder --index --index-dir idx\n";
+                footer += "\nCopyright (c) 2020 Bodastage Solutions(https://www.bodastage.com)";
+                formatter.printHelp("java -jar boda-bulkcmparser.jar", header, options, footer);
+                System.exit(0);
+            }
+
+            //Confirm that the output directory is a directory and has write 
+            //privileges
+            if (outputDirectory != null) {
+                File fOutputDir = new File(outputDirectory);
+                if (!fOutputDir.isDirectory()) {
+                    System.err.println("ERROR: The specified output directory is not a directory!.");
+                    System.exit(1);
+                }
+
+                if (!fOutputDir.canWrite()) {
+                    System.err.println("ERROR: Cannot write to output directory!");
+                    System.exit(1);
+                }
+            }
+
+
+            if (threads < 1) {
+                System.err.println("ERROR: The number of threads must be a positive number!");
+                System.exit(1);
+            }
+
+            if (maxOpenFiles < 1) {
+                System.err.println("ERROR: The number of open files must be a positive number!");
+                System.exit(1);
+            }
+
+            if (outputMemory < 1) {
+                System.err.println("ERROR: The output memory must be a positive number of MB!");
+                System.exit(1);
+            }
+
+            if (checkpointInterval < 0) {
+                System.err.println("ERROR: The checkpoint interval must be a number of seconds!");
+                System.exit(1);
+            }
+
+            if (threads > 1 && singlePass == true) {
+                System.err.println("WARNING: --single-pass is not used with more than one thread.");
+            }
+
+            if (useSchemaCache == true && schemaCacheFile == null) {
+                if (outputDirectory == null) {
+                    System.err.println("ERROR: Specify the schema cache file or the output directory!");
+                    System.exit(1);
+                }
+                schemaCacheFile = outputDirectory + File.separatorChar + SCHEMA_CACHE_FILENAME;
+            }
+
+            if (useDeltaStore == true && deltaStoreFile == null) {
+                deltaStoreFile = outputDirectory + File.separatorChar + DELTA_STORE_FILENAME;
+            }
+
+            if (useManifest == true && manifestFile == null) {
+                manifestFile = outputDirectory + File.separatorChar + MANIFEST_FILENAME;
+            }
+
+            String checkpointFile = null;
+            if (useCheckpoint == true) {
+                checkpointFile = outputDirectory + File.separatorChar + CHECKPOINT_FILENAME;
+            }
+
+            if (!ENGINE_CURSOR.equals(parserEngine) && !ENGINE_EVENT.equals(parserEngine)
+                    && !ENGINE_BULKCM.equals(parserEngine)) {
+                System.err.println("ERROR: Unknown parser engine " + parserEngine + "!");
+                System.exit(1);
+            }
+
+            //Selecting network elements, checkpoints and splitting a file
+            //between threads need the byte offsets of the bulkcm tokenizer
+            if (engineChosen == true && !ENGINE_BULKCM.equals(parserEngine)) {
+                String option = null;
+                if (networkElements != null) {
+                    option = "--ne";
+                } else if (useCheckpoint == true) {
+                    option = resume == true ? "--resume" : "--checkpoint";
+                } else if (threads > 1 && ENGINE_CURSOR.equals(parserEngine)) {
+                    option = "--threads";
+                }
+                if (option != null) {
+                    System.err.println("WARNING: Files the bulkcm tokenizer supports are parsed with it when "
+                            + option + " is used. The " + parserEngine + " engine is only used for the other files.");
+                }
+            }
+
+            if (outputCompression != null && !COMPRESS_GZIP.equals(outputCompression)) {
+                System.err.println("ERROR: Unknown output compression " + outputCompression + "!");
+                System.exit(1);
+            }
+
+            //Get parser instance
+            BodaBulkCMParser cmParser = new BodaBulkCMParser();
+
+            cmParser.setSeparateVendorAttributes(separateVsData);
+
+            if (onlyExtractParameters == true) {
+                cmParser.setExtractParametersOnly(true);
+            }
+
+
+            if (attachMetaFields == true) {
+                cmParser.setExtractMetaFields(true);
+            }
+
+            cmParser.setSinglePass(singlePass);
+            cmParser.setParserEngine(parserEngine);
+            cmParser.setSchemaCacheFile(schemaCacheFile);
+            cmParser.setThreads(threads);
+            cmParser.setPipeline(pipeline);
+            cmParser.setOutputCompression(outputCompression);
+            cmParser.setMaxOpenFiles(maxOpenFiles);
+            cmParser.setOutputMemory(outputMemory * (1L << 20));
+            cmParser.setBuildIndex(buildIndex);
+            cmParser.setIndexDirectory(indexDirectory);
+            cmParser.setDeltaStoreFile(deltaStoreFile);
+            cmParser.setManifestFile(manifestFile);
+            cmParser.setCheckpointFile(checkpointFile);
+            cmParser.setCheckpointInterval(checkpointInterval);
+            cmParser.setResume(resume);
+            if (networkElements != null) {
+                cmParser.setNetworkElements(Arrays.asList(networkElements.split(",")));
+            }
+
+            if (parameterConfigFile != null) {
+                File f = new File(parameterConfigFile);
+                if (f.isFile()) {
+                    cmParser.setParameterFile(parameterConfigFile);
+                    cmParser.getParametersToExtract(parameterConfigFile);
+                    cmParser.parserState = ParserStates.EXTRACTING_VALUES;
+                }
+            }
+
+            cmParser.setMultiValueSeparator(mvSeparator);
+            cmParser.setDataSource(inputFile);
+            if (outputDirectory != null) cmParser.setOutputDirectory(outputDirectory);
+
+            cmParser.parse();
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parser entry point
+     * <p>
+     * Must not be called while another call on the same parser is running.
+     *
+     * @throws XMLStreamException
+     * @throws FileNotFoundException
+     * @throws UnsupportedEncodingException
+     * @throws IOException
+     */
+    public void parse() throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException, IOException {
+        //The parser is being used again
+        if (parserState == ParserStates.EXTRACTING_DONE) {
+            resetRun();
+        }
+
+        if (recordSink != null && threads > 1) {
+            System.err.println("WARNING: A record sink takes the rows from one thread. Parsing with 1 thread.");
+            threads = 1;
+        }
+
+        if (deltaStoreFile != null && threads > 1) {
+            System.err.println("WARNING: Delta mode compares the rows in one thread. Parsing with 1 thread.");
+            threads = 1;
+        }
+
+        if (buildIndex) {
+            buildIndexes();
+            parserState = ParserStates.EXTRACTING_DONE;
+            printExecutionTime();
+            return;
+        }
+
+        //The parameters to extract are given
+        if (parserState == ParserStates.EXTRACTING_PARAMETERS && parameterFile != null) {
+            getParametersToExtract(parameterFile);
+            parserState = ParserStates.EXTRACTING_VALUES;
+        }
+
+        //Stop after collecting the MOs and parameters
+        if (extractParametersOnly == true) {
+            if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
+                processFileOrDirectory();
+                saveSchemaCache();
+            }
+            parserState = ParserStates.EXTRACTING_DONE;
+
+            String filename = outputDirectory + File.separatorChar + PARAMETER_FILENAME;
+            writeParameterFile(filename);
+            System.out.println("Parameters written to " + filename);
+
+            sink().close();
+            printExecutionTime();
+            return;
+        }
+
+        if (deltaStoreFile != null) {
+            deltaSink = new DeltaRecordSink(deltaStoreFile, recordSink != null ? recordSink : csvSink);
+        }
+
+        boolean useManifest = manifestFile != null;
+        if (useManifest && (recordSink != null || deltaStoreFile != null || outputCompression != null)) {
+            System.err.println("WARNING: The manifest is only kept for plain csv files. Parsing all the files.");
+            useManifest = false;
+        }
+        if (useManifest) {
+            //The rows of each input file are kept together in the csv files
+            if (threads > 1) {
+                System.err.println("WARNING: The manifest is kept in one thread. Parsing with 1 thread.");
+                threads = 1;
+            }
+            singlePass = false;
+            if (schemaCacheFile == null) {
+                schemaCacheFile = outputDirectory + File.separatorChar + SCHEMA_CACHE_FILENAME;
+            }
+        }
+
+        boolean useCheckpoint = checkpointFile != null;
+        if (useCheckpoint && (recordSink != null || deltaStoreFile != null || outputCompression != null || useManifest)) {
+            System.err.println("WARNING: Checkpoints are only kept for plain csv files without a manifest. "
+                    + "Parsing without checkpoints.");
+            useCheckpoint = false;
+        }
+        checkpoint = null;
+        boolean resumed = false;
+        if (useCheckpoint) {
+            //The checkpoint is kept in one thread with the rows of each file
+            //written as it is parsed
+            if (threads > 1) {
+                System.err.println("WARNING: Checkpoints are kept in one thread. Parsing with 1 thread.");
+                threads = 1;
+            }
+            singlePass = false;
+            resumed = startCheckpoint();
+        }
+
+        //Use the MO parameters from the schema cache and skip the parameter
+        //extraction pass
+        if (parserState == ParserStates.EXTRACTING_PARAMETERS && !resumed && loadSchemaCache()) {
+            parserState = ParserStates.EXTRACTING_VALUES;
+        }
+
+        //Extract parameters and values in one pass
+        if (parserState == ParserStates.EXTRACTING_PARAMETERS && singlePass == true && threads == 1) {
+            rowSpillStore = new RowSpillStore(outputDirectory, outputWriters.getMaxOpen());
+            try {
+                processFileOrDirectory();
+
+                parserState = ParserStates.EXTRACTING_VALUES;
+                writeSpilledRows();
+                parserState = ParserStates.EXTRACTING_DONE;
+                saveSchemaCache();
+            } finally {
+                rowSpillStore.close();
+                rowSpillStore = null;
+            }
+        }
 
-            if (cmd.hasOption("h")) {
-                showHelpMessage = true;
+        //Extract parameters
+        if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
+            processFileOrDirectory();
+
+            parserState = ParserStates.EXTRACTING_VALUES;
+            saveSchemaCache();
+
+            if (checkpoint != null) {
+                checkpoint.startPass(Checkpoint.VALUES);
+                saveCheckpoint();
             }
+        }
 
-            if (cmd.hasOption("s")) {
-                separateVsData = true;
+        //Reset variables
+        resetVariables();
+
+        //Extracting values
+        if (parserState == ParserStates.EXTRACTING_VALUES) {
+            if (useManifest) startManifest();
+            processFileOrDirectory();
+
+            if (schemaFromCache) {
+                rewriteChangedFiles();
+                saveSchemaCache();
             }
+            parserState = ParserStates.EXTRACTING_DONE;
+        }
 
-            if (cmd.hasOption("v")) {
-                showVersion = true;
+        try {
+            sink().close();
+        } finally {
+            deltaSink = null;
+        }
+        finishManifest();
+
+        if (checkpoint != null) {
+            Checkpoint.delete(checkpointFile);
+            checkpoint = null;
+        }
+
+        printExecutionTime();
+    }
+
+    /**
+     * Clear what was found by the last run so that the parser can parse
+     * another input with the same settings.
+     *
+     * @since 2.3.0
+     */
+    private void resetRun() throws IOException {
+        moThreeGPPAttrMap = new LinkedHashMap<String, ColumnRegistry>();
+        moColumns = new LinkedHashMap<String, ColumnRegistry>();
+        moColumnsParentIds = new LinkedHashMap<String, ColumnRegistry>();
+        threeGPPRowLayouts.clear();
+        vendorRowLayouts.clear();
+        parentIdRowLayouts.clear();
+        cachedSchemaSizes.clear();
+        schemaFromCache = false;
+        rewrite3GPPFiles = null;
+        rewriteVendorFiles = null;
+        fileDateTimes.clear();
+        filePieces.clear();
+        scannedArchives.clear();
+        context.dateTime = "";
+        resetVariables();
+
+        parserState = ParserStates.EXTRACTING_PARAMETERS;
+        if (parameterFile != null) {
+            getParametersToExtract(parameterFile);
+            parserState = ParserStates.EXTRACTING_VALUES;
+        }
+    }
+
+    /**
+     * Load the MO parameters from the schema cache.
+     *
+     * @return True if the schema cache was loaded
+     * @since 2.3.0
+     */
+    private boolean loadSchemaCache() throws IOException {
+        if (schemaCacheFile == null || parameterFile != null) return false;
+
+        Map<String, ColumnRegistry> threeGPPAttrs = new LinkedHashMap<String, ColumnRegistry>();
+        Map<String, ColumnRegistry> columns = new LinkedHashMap<String, ColumnRegistry>();
+        Map<String, ColumnRegistry> parentIds = new LinkedHashMap<String, ColumnRegistry>();
+        if (!SchemaCache.load(schemaCacheFile, threeGPPAttrs, columns, parentIds)) {
+            return false;
+        }
+
+        moThreeGPPAttrMap = threeGPPAttrs;
+        moColumns = columns;
+        moColumnsParentIds = parentIds;
+
+        Iterator<Map.Entry<String, ColumnRegistry>> iter = moThreeGPPAttrMap.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, ColumnRegistry> me = iter.next();
+            cachedSchemaSizes.put(SchemaCache.THREE_GPP + ":" + me.getKey(), me.getValue().size());
+        }
+        iter = moColumns.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, ColumnRegistry> me = iter.next();
+            cachedSchemaSizes.put(SchemaCache.VENDOR + ":" + me.getKey(), me.getValue().size());
+        }
+
+        schemaFromCache = true;
+        System.out.println("Using MO parameters from " + schemaCacheFile);
+        return true;
+    }
+
+    /**
+     * Save the MO parameters to the schema cache.
+     *
+     * @since 2.3.0
+     */
+    private void saveSchemaCache() throws IOException {
+        if (schemaCacheFile == null || parameterFile != null) return;
+
+        SchemaCache.save(schemaCacheFile, moThreeGPPAttrMap, moColumns, moColumnsParentIds);
+    }
+
+    /**
+     * Write the csv files of MOs with parameters that were not in the schema
+     * cache again now that all their parameters are known.
+     * <p>
+     * The rows of these MOs were written before the new parameters were
+     * found so their columns are not aligned with the header.
+     *
+     * @since 2.3.0
+     */
+    private void rewriteChangedFiles() throws XMLStreamException, IOException {
+        Set<String> threeGPPFiles = new LinkedHashSet<String>();
+        Set<String> vendorFiles = new LinkedHashSet<String>();
+
+        //A 3GPP MO's attributes are also written in its vendor specific MO
+        //file when the vendor attributes are not separated.
+        Iterator<Map.Entry<String, ColumnRegistry>> iter = moThreeGPPAttrMap.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, ColumnRegistry> me = iter.next();
+            Integer size = cachedSchemaSizes.get(SchemaCache.THREE_GPP + ":" + me.getKey());
+            if (size == null || size != me.getValue().size()) {
+                threeGPPFiles.add(me.getKey());
+                vendorFiles.add(getVendorCsvFileName("vsData" + me.getKey()));
             }
+        }
 
-            if (cmd.hasOption("d")) {
-                mvSeparator = cmd.getOptionValue("d");
+        //A new vendor specific MO also decides whether its 3GPP MO is written
+        //to a separate file.
+        iter = moColumns.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, ColumnRegistry> me = iter.next();
+            Integer size = cachedSchemaSizes.get(SchemaCache.VENDOR + ":" + me.getKey());
+            if (size == null || size != me.getValue().size()) {
+                vendorFiles.add(getVendorCsvFileName(me.getKey()));
+                threeGPPFiles.add(me.getKey().replace("vsData", ""));
             }
+        }
 
+        if (threeGPPFiles.isEmpty() && vendorFiles.isEmpty()) return;
 
-            if (cmd.hasOption('o')) {
-                outputDirectory = cmd.getOptionValue("o");
+        System.out.println("New MO parameters found. Rewriting " + (threeGPPFiles.size() + vendorFiles.size()) + " csv files...");
+
+        closeMOPWMap();
+        Iterator<String> fIter = threeGPPFiles.iterator();
+        while (fIter.hasNext()) sink().discard(RecordSink.THREE_GPP, fIter.next());
+        fIter = vendorFiles.iterator();
+        while (fIter.hasNext()) sink().discard(RecordSink.VENDOR, fIter.next());
+
+        //A run resumed from here writes the files again
+        if (checkpoint != null) saveCheckpoint();
+
+        rewrite3GPPFiles = threeGPPFiles;
+        rewriteVendorFiles = vendorFiles;
+        try {
+            resetVariables();
+            processFileOrDirectory();
+            closeMOPWMap();
+        } finally {
+            rewrite3GPPFiles = null;
+            rewriteVendorFiles = null;
+        }
+    }
+
+    /**
+     * Reset parser variables before next file
+     * <p>
+     * The file name and dateTime looked up for the next file are kept.
+     */
+    public void resetVariables() {
+        //Start from a new parse context
+        ParseContext previous = context;
+        context = new ParseContext();
+        context.fileBasename = previous.fileBasename;
+        context.dateTime = previous.dateTime;
+    }
+
+    /**
+     * Determines if the source data file is a regular file or a directory and
+     * parses it accordingly
+     *
+     * @throws XMLStreamException
+     * @throws FileNotFoundException
+     * @throws UnsupportedEncodingException
+     * @throws IOException
+     * @version 1.0.0
+     * @since 1.1.0
+     */
+    public void processFileOrDirectory()
+            throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException, IOException {
+        //this.dataFILe;
+        Path file = Paths.get(this.dataSource);
+        boolean isRegularExecutableFile = Files.isRegularFile(file)
+                & Files.isReadable(file);
+
+        boolean isReadableDirectory = Files.isDirectory(file)
+                & Files.isReadable(file);
+
+        if (isRegularExecutableFile) {
+            if (skipUnchangedFile(this.dataSource)) {
+                skipFile(this.dataSource);
+                return;
             }
+            if (parsedBeforeCheckpoint(this.dataSource)) return;
+            startManifestEntry(this.dataSource);
 
-            if (cmd.hasOption('i')) {
-                inputFile = cmd.getOptionValue("i");
+            int format = CompressedInput.detect(this.dataSource);
+            if (format != CompressedInput.NONE) {
+                processCompressedFile(this.dataSource, format);
+                checkpointParsedFile(this.dataSource);
+                return;
             }
+        }
 
-            if (cmd.hasOption('c')) {
-                parameterConfigFile = cmd.getOptionValue("c");
+        if (isRegularExecutableFile && threads > 1 && networkElements == null
+                && processFileInParallel(this.dataSource)) {
+            return;
+        }
+
+        if (isRegularExecutableFile) {
+            this.setFileName(this.dataSource);
+            context.fileBasename = getFileBasename(this.dataFile);
+            if (parserState == ParserStates.EXTRACTING_PARAMETERS && singlePass == false) {
+                System.out.print("Extracting parameters from " + context.fileBasename + "...");
+            } else {
+                System.out.print("Parsing " + context.fileBasename + "...");
             }
 
-            if (cmd.hasOption('p')) {
-                onlyExtractParameters = true;
+            //Get date time 
+            getDateTime(this.dataSource);
+
+            //Parse file
+            this.parseFile(this.dataSource);
+            rememberFooterDateTime(this.dataSource);
+            checkpointParsedFile(this.dataSource);
+
+            if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
+                System.out.println("Done.");
+            } else {
+                System.out.println("Done.");
+                //System.out.println(this.baseFileName + " successfully parsed.\n");
             }
+        }
 
-            if (cmd.hasOption('m')) {
-                attachMetaFields = true;
+        if (isReadableDirectory) {
+            File directory = new File(this.dataSource);
+
+            //get all the files from a directory
+            File[] fList = listInputFiles(directory);
+
+            if (threads > 1) {
+                processFilesInParallel(fList);
+                return;
             }
 
-        } catch (IllegalArgumentException e) {
+            for (File f : fList) {
+                this.setFileName(f.getAbsolutePath());
+                try {
+                    if (skipUnchangedFile(f.getAbsolutePath())) {
+                        skipFile(f.getAbsolutePath());
+                        continue;
+                    }
+                    if (parsedBeforeCheckpoint(f.getAbsolutePath())) continue;
+                    startManifestEntry(f.getAbsolutePath());
+
+                    int format = f.isFile() ? CompressedInput.detect(f.getAbsolutePath()) : CompressedInput.NONE;
+                    if (format != CompressedInput.NONE) {
+                        processCompressedFile(f.getAbsolutePath(), format);
+                        checkpointParsedFile(f.getAbsolutePath());
+                        continue;
+                    }
 
-        } catch (ParseException ex) {
-//            java.util.logging.Logger.getLogger(HuaweiCMObjectParser.class.getName()).log(Level.SEVERE, null, ex);
+                    context.fileBasename = getFileBasename(this.dataFile);
+                    if (parserState == ParserStates.EXTRACTING_PARAMETERS && singlePass == false) {
+                        System.out.print("Extracting parameters from " + context.fileBasename + "...");
+                    } else {
+                        System.out.print("Parsing " + context.fileBasename + "...");
+                    }
+
+                    //Get date time 
+                    getDateTime(f.getAbsolutePath());
+
+                    //Parse dump file 
+                    this.parseFile(f.getAbsolutePath());
+                    rememberFooterDateTime(f.getAbsolutePath());
+                    checkpointParsedFile(f.getAbsolutePath());
+
+                    if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
+                        System.out.println("Done.");
+                    } else {
+                        System.out.println("Done.");
+                        //System.out.println(this.baseFileName + " successfully parsed.\n");
+                    }
+
+                } catch (Exception e) {
+                    //LOGGER.info("depth:" + depth);
+                    //LOGGER.info("xmlTagStack:" + xmlTagStack.toString());
+                    //LOGGER.info("xmlAttrStack:" + xmlAttrStack.toString());
+                    System.out.println(e.getMessage());
+                    System.out.println("Skipping file: " + context.fileBasename + "\n");
+
+                    //Reset variables if a file is skipped
+                    resetVariables();
+
+                    //The file is not parsed again when the run is resumed
+                    checkpointParsedFile(f.getAbsolutePath());
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Parse the files in a gzip, zip or gzip compressed tar file.
+     * <p>
+     * Each file in the archive is parsed like a file of an input directory.
+     * The files are decompressed in a reader thread while they are parsed.
+     *
+     * @param inputFilename
+     * @param format The format returned by CompressedInput.detect
+     * @since 2.3.0
+     */
+    private void processCompressedFile(final String inputFilename, int format) throws IOException {
+        //The rows need the fileFooter dateTime before the file is parsed.
+        //The parameter extraction pass reads the dateTimes while parsing.
+        if (!scannedArchives.contains(inputFilename)
+                && (parserState != ParserStates.EXTRACTING_PARAMETERS || singlePass == true)) {
+            readCompressedFooterDateTimes(inputFilename, format);
         }
 
+        try {
+            CompressedInput.forEachEntry(inputFilename, format, new CompressedInput.EntryHandler() {
+                @Override
+                public void entry(String name, InputStream in) {
+                    String entryKey = inputFilename + "!" + name;
+                    setFileName(inputFilename);
+                    context.fileBasename = getFileBasename(name);
+                    context.footerDateTimeFound = false;
+                    if (fileDateTimes.containsKey(entryKey)) {
+                        context.dateTime = fileDateTimes.get(entryKey);
+                    }
+
+                    //Each message is printed at once so that the messages of
+                    //worker parsers are not mixed up
+                    String message;
+                    if (parserState == ParserStates.EXTRACTING_PARAMETERS && singlePass == false) {
+                        message = "Extracting parameters from " + context.fileBasename + "...";
+                    } else {
+                        message = "Parsing " + context.fileBasename + "...";
+                    }
+
+                    try {
+                        parseCompressedEntry(in);
+                        rememberFooterDateTime(entryKey);
+                        System.out.println(message + "Done.");
+                    } catch (Exception e) {
+                        System.out.println(message + e.getMessage() + "\n"
+                                + "Skipping file: " + context.fileBasename + "\n");
+                        resetVariables();
+                    }
+                }
+            });
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+
+        if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
+            scannedArchives.add(inputFilename);
+        }
+    }
 
+    /**
+     * Read the fileFooter dateTimes of the files in a compressed file.
+     *
+     * @param inputFilename
+     * @param format
+     * @since 2.3.0
+     */
+    private void readCompressedFooterDateTimes(final String inputFilename, int format) throws IOException {
         try {
+            CompressedInput.forEachEntry(inputFilename, format, new CompressedInput.EntryHandler() {
+                @Override
+                public void entry(String name, InputStream in) throws IOException {
+                    String footerDateTime = readFooterDateTime(in);
+                    if (footerDateTime != null) {
+                        fileDateTimes.put(inputFilename + "!" + name, footerDateTime);
+                    }
+                }
+            });
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        scannedArchives.add(inputFilename);
+    }
 
-            if (showVersion == true) {
-                System.out.println(VERSION);
-                System.out.println("Copyright (c) 2020 Bodastage Solutions(https://www.bodastage.com)");
-                System.exit(0);
-            }
+    /**
+     * Parse a file read from a compressed file. The file is decompressed in
+     * a reader thread.
+     *
+     * @param in
+     * @since 2.3.0
+     */
+    private void parseCompressedEntry(InputStream in) throws XMLStreamException, IOException {
+        resetVariables();
 
-            //show help
-            if (showHelpMessage == true ||
-                    inputFile == null ||
-                    (outputDirectory == null && onlyExtractParameters == false)) {
-                HelpFormatter formatter = new HelpFormatter();
-                String header = "Parses BulkCM configuration data file XML to csv\n\n";
-                String footer = "\n";
-                footer += "Examples: \n";
-                footer += "java -jar boda-bulkcmparser.jar -i bulkcm_dump.xml -o out_folder\n";
-                footer += "java -jar boda-bulkcmparser.jar -i input_folder -o out_folder\n";
-                footer += "java -jar boda-bulkcmparser.jar -i input_folder -p\n";
-                footer += "java -jar boda-bulkcmparser.jar -i input_folder -p -m\n";
-                footer += "\nCopyright (c) 2020 Bodastage Solutions(https://www.bodastage.com)";
-                formatter.printHelp("java -jar boda-bulkcmparser.jar", header, options, footer);
-                System.exit(0);
+        ReadableByteChannel channel = new ReadAheadChannel(Channels.newChannel(in));
+        try {
+            InputStream stream = new BufferedInputStream(Channels.newInputStream(channel), INPUT_BUFFER_SIZE);
+
+            if (ENGINE_BULKCM.equals(parserEngine)) {
+                stream.mark(INPUT_BUFFER_SIZE);
+                boolean supported = BulkCMTokenizer.isSupported(stream);
+                stream.reset();
+                if (supported) {
+                    parseTokens(new BulkCMTokenizer(Channels.newChannel(stream)));
+                    return;
+                }
             }
 
-            //Confirm that the output directory is a directory and has write 
-            //privileges
-            if (outputDirectory != null) {
-                File fOutputDir = new File(outputDirectory);
-                if (!fOutputDir.isDirectory()) {
-                    System.err.println("ERROR: The specified output directory is not a directory!.");
-                    System.exit(1);
-                }
+            //The event engine reads files with a FileReader. Compressed
+            //files are parsed with the cursor.
+            parseStream(stream);
+        } finally {
+            channel.close();
+        }
+    }
 
-                if (!fOutputDir.canWrite()) {
-                    System.err.println("ERROR: Cannot write to output directory!");
-                    System.exit(1);
+    /**
+     * Parse the files of a directory with a pool of worker parsers.
+     * <p>
+     * Each file is parsed by a new worker.
+     *
+     * @param fList
+     * @since 2.3.0
+     */
+    private void processFilesInParallel(final File[] fList) throws IOException {
+        final boolean writeRows = parserState != ParserStates.EXTRACTING_PARAMETERS;
+
+        //Files without a fileFooter dateTime get the dateTime of the file
+        //before them.
+        final String[] dateTimes = new String[fList.length];
+        if (writeRows) {
+            for (int i = 0; i < fList.length; i++) {
+                dateTimes[i] = context.dateTime;
+                String path = fList[i].getAbsolutePath();
+                String footerDateTime = fileDateTimes.get(path);
+                if (footerDateTime == null && fList[i].isFile()) {
+                    footerDateTime = readFooterDateTime(path);
+                    if (footerDateTime != null) fileDateTimes.put(path, footerDateTime);
                 }
+                if (footerDateTime != null) context.dateTime = footerDateTime;
             }
+        }
 
+        List<WorkerJob> jobs = new ArrayList<WorkerJob>();
+        for (int i = 0; i < fList.length; i++) {
+            final File f = fList[i];
+            final String fileDateTime = dateTimes[i];
+            jobs.add(new WorkerJob() {
+                @Override
+                public void parse(BodaBulkCMParser worker) {
+                    worker.context.dateTime = fileDateTime;
+                    worker.parseWorkerFile(f);
+                }
 
-            //Get parser instance
-            BodaBulkCMParser cmParser = new BodaBulkCMParser();
+                @Override
+                public void done(BodaBulkCMParser worker) {
+                    String path = f.getAbsolutePath();
+                    if (!writeRows && worker.fileDateTimes.containsKey(path)) {
+                        context.dateTime = worker.fileDateTimes.get(path);
+                        fileDateTimes.put(path, context.dateTime);
+                    }
 
-            cmParser.setSeparateVendorAttributes(separateVsData);
+                    //The files in a compressed file
+                    if (!writeRows && worker.scannedArchives.contains(path)) {
+                        fileDateTimes.putAll(worker.fileDateTimes);
+                        scannedArchives.add(path);
+                        context.dateTime = worker.context.dateTime;
+                    }
+                }
+            });
+        }
 
-            if (onlyExtractParameters == true) {
-                cmParser.setExtractParametersOnly(true);
-            }
+        runWorkers(jobs);
+    }
 
+    /**
+     * Split a file into pieces and parse them with a pool of worker parsers.
+     * <p>
+     * The pieces are cut at MeContext and ManagedElement elements. Each
+     * piece's rows are written by the end tags in the piece, so joining the
+     * pieces' csv files in file order gives the rows in the same order as
+     * parsing the file in one go.
+     *
+     * @param inputFilename
+     * @return false if the file can not be split. It is then not parsed.
+     * @since 2.3.0
+     */
+    private boolean processFileInParallel(final String inputFilename) throws IOException {
+        if (ENGINE_EVENT.equals(parserEngine) || !isTokenizerSupported(inputFilename)) {
+            return false;
+        }
 
-            if (attachMetaFields == true) {
-                cmParser.setExtractMetaFields(true);
+        //The pieces of a file are the same in both passes
+        List<FileSplitter.Piece> pieces = filePieces.get(inputFilename);
+        if (pieces == null) {
+            long size = new File(inputFilename).length();
+            try {
+                pieces = FileSplitter.split(inputFilename, Math.max(size / (threads * PIECES_PER_THREAD), 1), threads);
+            } catch (XMLStreamException e) {
+                //Leave the error to the parser
+                return false;
             }
+            filePieces.put(inputFilename, pieces);
+        }
+        if (pieces.size() < 2) return false;
 
-            if (parameterConfigFile != null) {
-                File f = new File(parameterConfigFile);
-                if (f.isFile()) {
-                    cmParser.setParameterFile(parameterConfigFile);
-                    cmParser.getParametersToExtract(parameterConfigFile);
-                    cmParser.parserState = ParserStates.EXTRACTING_VALUES;
-                }
-            }
+        this.setFileName(inputFilename);
+        context.fileBasename = getFileBasename(this.dataFile);
+        if (parserState == ParserStates.EXTRACTING_PARAMETERS && singlePass == false) {
+            System.out.print("Extracting parameters from " + context.fileBasename + "...");
+        } else {
+            System.out.print("Parsing " + context.fileBasename + "...");
+        }
 
-            cmParser.setMultiValueSeparator(mvSeparator);
-            cmParser.setDataSource(inputFile);
-            if (outputDirectory != null) cmParser.setOutputDirectory(outputDirectory);
+        getDateTime(inputFilename);
+        final String fileDateTime = context.dateTime;
 
-            cmParser.parse();
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
-            e.printStackTrace();
-            System.exit(1);
+        List<WorkerJob> jobs = new ArrayList<WorkerJob>();
+        for (final FileSplitter.Piece piece : pieces) {
+            jobs.add(new WorkerJob() {
+                @Override
+                public void parse(BodaBulkCMParser worker) throws Exception {
+                    worker.context.dateTime = fileDateTime;
+                    worker.parsePiece(inputFilename, piece);
+                }
+
+                @Override
+                public void done(BodaBulkCMParser worker) {
+                    if (worker.context.footerDateTimeFound) {
+                        context.dateTime = worker.context.dateTime;
+                        context.footerDateTimeFound = true;
+                    }
+                }
+            });
         }
+
+        runWorkers(jobs);
+        rememberFooterDateTime(inputFilename);
+        System.out.println("Done.");
+        return true;
     }
 
     /**
-     * Parser entry point
+     * Work done by a worker parser.
      *
-     * @throws XMLStreamException
-     * @throws FileNotFoundException
-     * @throws UnsupportedEncodingException
+     * @since 2.3.0
      */
-    public void parse() throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException {
-        //Extract parameters
-        if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
-            processFileOrDirectory();
+    private interface WorkerJob {
+
+        /**
+         * Parse with the worker. This is called in a pool thread.
+         */
+        void parse(BodaBulkCMParser worker) throws Exception;
+
+        /**
+         * Take the results of the worker. This is called in the calling
+         * thread in the order of the jobs.
+         */
+        void done(BodaBulkCMParser worker) throws IOException;
+    }
 
-            parserState = ParserStates.EXTRACTING_VALUES;
-        }
+    /**
+     * Run jobs with a pool of worker parsers.
+     * <p>
+     * Each job gets a new worker writing to its own part directory. When MOs
+     * and parameters are being collected, each worker starts with a copy of
+     * the MO columns and the columns it adds are merged in the order of the
+     * jobs. This gives the columns in the same order as running the jobs one
+     * after the other. The csv files of the part directories are then merged
+     * into the output directory in the same order.
+     *
+     * @param jobs
+     * @since 2.3.0
+     */
+    private void runWorkers(List<WorkerJob> jobs) throws IOException {
+        final boolean collectColumns = parserState == ParserStates.EXTRACTING_PARAMETERS || schemaFromCache;
+        final boolean writeRows = parserState != ParserStates.EXTRACTING_PARAMETERS;
+
+        //The workers copy the columns from here while the merged columns are
+        //updated
+        final Map<String, ColumnRegistry> threeGPPAttrs = collectColumns ? copyColumns(moThreeGPPAttrMap) : moThreeGPPAttrMap;
+        final Map<String, ColumnRegistry> columns = collectColumns ? copyColumns(moColumns) : moColumns;
+        final Map<String, ColumnRegistry> parentIds = collectColumns ? copyColumns(moColumnsParentIds) : moColumnsParentIds;
+
+        File partsDirectory = Files.createTempDirectory(Paths.get(outputDirectory), ".bulkcm_parts").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<BodaBulkCMParser>> workers = new ArrayList<Future<BodaBulkCMParser>>();
+            List<File> partDirectories = new ArrayList<File>();
+            for (int i = 0; i < jobs.size(); i++) {
+                final WorkerJob job = jobs.get(i);
+                final File partDirectory = new File(partsDirectory, String.valueOf(i));
+                partDirectories.add(partDirectory);
+
+                workers.add(executor.submit(new Callable<BodaBulkCMParser>() {
+                    @Override
+                    public BodaBulkCMParser call() throws Exception {
+                        partDirectory.mkdir();
+                        BodaBulkCMParser worker = createWorker(partDirectory.getAbsolutePath(),
+                                collectColumns ? copyColumns(threeGPPAttrs) : threeGPPAttrs,
+                                collectColumns ? copyColumns(columns) : columns,
+                                collectColumns ? copyColumns(parentIds) : parentIds);
+                        job.parse(worker);
+                        return worker;
+                    }
+                }));
+            }
 
-        //Reset variables
-        resetVariables();
+            for (int i = 0; i < workers.size(); i++) {
+                BodaBulkCMParser worker;
+                try {
+                    worker = workers.get(i).get();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw new IOException(e.getCause().getMessage(), e.getCause());
+                }
 
-        //Extracting values
-        if (parserState == ParserStates.EXTRACTING_VALUES) {
-            processFileOrDirectory();
-            parserState = ParserStates.EXTRACTING_DONE;
-        }
+                if (collectColumns) {
+                    mergeColumns(moThreeGPPAttrMap, threeGPPAttrs, worker.moThreeGPPAttrMap);
+                    mergeColumns(moColumns, columns, worker.moColumns);
+                    mergeColumns(moColumnsParentIds, parentIds, worker.moColumnsParentIds);
+                }
+                jobs.get(i).done(worker);
 
-        closeMOPWMap();
+                //Let the worker be garbage collected
+                workers.set(i, null);
+            }
 
-        printExecutionTime();
+            if (writeRows) {
+                PartialOutputMerger.merge(partDirectories, new File(outputDirectory), getCompressionExecutor());
+            }
+        } finally {
+            executor.shutdownNow();
+            PartialOutputMerger.delete(partsDirectory);
+        }
     }
 
     /**
-     * Reset parser variables before next file
+     * Create a parser for one file of a directory with the same settings as
+     * this parser.
+     *
+     * @param workerOutputDirectory The part directory of the file
+     * @param threeGPPAttrs The worker's 3GPP MO columns
+     * @param columns The worker's vendor specific MO columns
+     * @param parentIds The worker's vendor specific MO parent IDs
+     * @since 2.3.0
      */
-    public void resetVariables() {
-        //Reset variables
-        vsDataType = null;
-        vsDataTypeStack.clear();
-        vsDataTypeRlStack.clear();
-        xmlAttrStack.clear();
-        xmlTagStack.clear();
-        startElementTag = null;
-        startElementTagPrefix = "";
-        attrMarker = false;
-        depth = 0;
+    private BodaBulkCMParser createWorker(String workerOutputDirectory,
+            Map<String, ColumnRegistry> threeGPPAttrs,
+            Map<String, ColumnRegistry> columns,
+            Map<String, ColumnRegistry> parentIds) {
+        BodaBulkCMParser worker = new BodaBulkCMParser();
+        worker.parserState = parserState;
+        worker.separateVendorAttributes = separateVendorAttributes;
+        worker.multiValueSeparetor = multiValueSeparetor;
+        worker.extractMetaFields = extractMetaFields;
+        worker.parameterFile = parameterFile;
+        worker.parserEngine = parserEngine;
+        worker.pipeline = pipeline;
+        worker.networkElements = networkElements;
+        worker.indexDirectory = indexDirectory;
+        worker.outputWriters.setMaxOpen(outputWriters.getMaxOpen() / threads);
+        worker.outputMemory = outputMemory / threads;
+        worker.schemaFromCache = schemaFromCache;
+        worker.rewrite3GPPFiles = rewrite3GPPFiles;
+        worker.rewriteVendorFiles = rewriteVendorFiles;
+        worker.fileDateTimes.putAll(fileDateTimes);
+        worker.scannedArchives.addAll(scannedArchives);
+        worker.outputDirectory = workerOutputDirectory;
+        worker.moThreeGPPAttrMap = threeGPPAttrs;
+        worker.moColumns = columns;
+        worker.moColumnsParentIds = parentIds;
+        return worker;
     }
 
     /**
-     * Determines if the source data file is a regular file or a directory and
-     * parses it accordingly
+     * Parse one file of a directory in a worker.
      *
-     * @throws XMLStreamException
-     * @throws FileNotFoundException
-     * @throws UnsupportedEncodingException
-     * @version 1.0.0
-     * @since 1.1.0
+     * @param f
+     * @since 2.3.0
      */
-    public void processFileOrDirectory()
-            throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException {
-        //this.dataFILe;
-        Path file = Paths.get(this.dataSource);
-        boolean isRegularExecutableFile = Files.isRegularFile(file)
-                & Files.isReadable(file);
-
-        boolean isReadableDirectory = Files.isDirectory(file)
-                & Files.isReadable(file);
+    private void parseWorkerFile(File f) {
+        int format = CompressedInput.NONE;
+        try {
+            if (f.isFile()) format = CompressedInput.detect(f.getAbsolutePath());
+        } catch (IOException e) {
+            //Left to the parser
+        }
 
-        if (isRegularExecutableFile) {
-            this.setFileName(this.dataSource);
-            baseFileName = getFileBasename(this.dataFile);
-            if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
-                System.out.print("Extracting parameters from " + this.baseFileName + "...");
-            } else {
-                System.out.print("Parsing " + this.baseFileName + "...");
+        if (format != CompressedInput.NONE) {
+            try {
+                processCompressedFile(f.getAbsolutePath(), format);
+            } catch (Exception e) {
+                System.out.println(e.getMessage() + "\n" + "Skipping file: " + f.getName() + "\n");
+            } finally {
+                closeMOPWMap();
             }
+            return;
+        }
 
-            //Get date time 
-            getDateTime(this.dataSource);
+        this.setFileName(f.getAbsolutePath());
+        context.fileBasename = getFileBasename(this.dataFile);
 
-            //Parse file
-            this.parseFile(this.dataSource);
+        //Each message is printed at once so that the workers' messages are
+        //not mixed up
+        String message;
+        if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
+            message = "Extracting parameters from " + context.fileBasename + "...";
+        } else {
+            message = "Parsing " + context.fileBasename + "...";
+        }
 
-            if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
-                System.out.println("Done.");
-            } else {
-                System.out.println("Done.");
-                //System.out.println(this.baseFileName + " successfully parsed.\n");
-            }
+        try {
+            getDateTime(f.getAbsolutePath());
+            this.parseFile(f.getAbsolutePath());
+            rememberFooterDateTime(f.getAbsolutePath());
+            System.out.println(message + "Done.");
+        } catch (Exception e) {
+            System.out.println(message + e.getMessage() + "\n"
+                    + "Skipping file: " + context.fileBasename + "\n");
+            resetVariables();
+        } finally {
+            closeMOPWMap();
         }
+    }
 
-        if (isReadableDirectory) {
-            File directory = new File(this.dataSource);
+    /**
+     * Parse a piece of a file in a worker.
+     *
+     * @param inputFilename
+     * @param piece
+     * @since 2.3.0
+     */
+    private void parsePiece(String inputFilename, FileSplitter.Piece piece) throws XMLStreamException, IOException {
+        this.setFileName(inputFilename);
+        context.fileBasename = getFileBasename(inputFilename);
+        resetVariables();
 
-            //get all the files from a directory
-            File[] fList = directory.listFiles();
+        try {
+            parsePieceTokens(inputFilename, piece);
+        } finally {
+            closeMOPWMap();
+        }
+    }
 
-            for (File f : fList) {
-                this.setFileName(f.getAbsolutePath());
-                try {
-                    baseFileName = getFileBasename(this.dataFile);
-                    if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
-                        System.out.print("Extracting parameters from " + this.baseFileName + "...");
-                    } else {
-                        System.out.print("Parsing " + this.baseFileName + "...");
-                    }
+    /**
+     * Parse a piece of a file. The parse context must be new.
+     *
+     * @param inputFilename
+     * @param piece
+     * @since 2.3.0
+     */
+    private void parsePieceTokens(String inputFilename, FileSplitter.Piece piece) throws XMLStreamException, IOException {
+        ReadableByteChannel channel = piece.open(inputFilename);
+        BulkCMTokenizer tokenizer = new BulkCMTokenizer(pipeline ? new ReadAheadChannel(channel) : channel);
+        try {
+            //The prefix opens the parents of the piece's elements
+            parseTokens(tokenizer, piece.prefixLength());
 
-                    //Get date time 
-                    getDateTime(f.getAbsolutePath());
+            //The piece starts where a MeContext or ManagedElement starts or
+            //ends. The parent's 3GPP attributes are no longer in use there.
+            context.threeGPPAttrValues.clear();
+            context.tagData = "";
 
-                    //Parse dump file 
-                    this.parseFile(f.getAbsolutePath());
+            parseTokens(tokenizer, piece.length());
+        } finally {
+            tokenizer.close();
+        }
+    }
 
-                    if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
-                        System.out.println("Done.");
-                    } else {
-                        System.out.println("Done.");
-                        //System.out.println(this.baseFileName + " successfully parsed.\n");
-                    }
+    /**
+     * Parse the network elements of a file that are asked for.
+     *
+     * @param inputFilename A file supported by the Bulk CM tokenizer
+     * @since 2.3.0
+     */
+    private void parseNetworkElements(String inputFilename) throws XMLStreamException, IOException {
+        context.fileBasename = getFileBasename(inputFilename);
 
-                } catch (Exception e) {
-                    //LOGGER.info("depth:" + depth);
-                    //LOGGER.info("xmlTagStack:" + xmlTagStack.toString());
-                    //LOGGER.info("xmlAttrStack:" + xmlAttrStack.toString());
-                    System.out.println(e.getMessage());
-                    System.out.println("Skipping file: " + this.baseFileName + "\n");
+        NetworkElementIndex index = NetworkElementIndex.get(inputFilename, indexDirectory);
+        for (FileSplitter.Piece piece : index.pieces(inputFilename, networkElements)) {
+            resetVariables();
+            parsePieceTokens(inputFilename, piece);
+        }
+        resetVariables();
+    }
 
-                    //Reset variables if a file is skipped
-                    resetVariables();
-                }
+    /**
+     * Write the network element index of each input file that can be
+     * indexed.
+     *
+     * @since 2.3.0
+     */
+    private void buildIndexes() throws IOException {
+        File input = new File(dataSource);
+        File[] fList = input.isDirectory() ? listInputFiles(input) : new File[]{input};
+        for (File f : fList) {
+            if (!f.isFile()) continue;
+
+            String filename = f.getAbsolutePath();
+            if (CompressedInput.detect(filename) != CompressedInput.NONE || !isTokenizerSupported(filename)) {
+                System.out.println("Skipping file: " + f.getName() + ". It cannot be indexed.");
+                continue;
+            }
+
+            System.out.print("Indexing " + f.getName() + "...");
+            try {
+                NetworkElementIndex index = NetworkElementIndex.build(filename);
+                index.save(NetworkElementIndex.indexFilename(filename, indexDirectory));
+                System.out.println("Done. " + index.size() + " network elements.");
+            } catch (XMLStreamException e) {
+                System.out.println(e.getMessage());
+                System.out.println("Skipping file: " + f.getName() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Get the files of an input directory, leaving out the network element
+     * indexes.
+     *
+     * @param directory
+     * @since 2.3.0
+     */
+    private static File[] listInputFiles(File directory) {
+        return directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                String name = f.getName();
+                return !name.endsWith(NetworkElementIndex.EXTENSION)
+                        && !name.endsWith(NetworkElementIndex.EXTENSION + ".tmp");
+            }
+        });
+    }
+
+    /**
+     * Copy MO columns.
+     *
+     * @param columns
+     * @since 2.3.0
+     */
+    private static Map<String, ColumnRegistry> copyColumns(Map<String, ColumnRegistry> columns) {
+        Map<String, ColumnRegistry> copy = new LinkedHashMap<String, ColumnRegistry>();
+        Iterator<Map.Entry<String, ColumnRegistry>> iter = columns.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, ColumnRegistry> me = iter.next();
+            ColumnRegistry registry = new ColumnRegistry();
+            for (int i = 0; i < me.getValue().size(); i++) {
+                registry.append(me.getValue().get(i));
             }
+            copy.put(me.getKey(), registry);
         }
+        return copy;
+    }
+
+    /**
+     * Add the MOs and columns a worker found to the merged columns.
+     *
+     * @param merged The merged columns
+     * @param start The columns the worker started with
+     * @param found The worker's columns
+     * @since 2.3.0
+     */
+    private static void mergeColumns(Map<String, ColumnRegistry> merged,
+            Map<String, ColumnRegistry> start, Map<String, ColumnRegistry> found) {
+        Iterator<Map.Entry<String, ColumnRegistry>> iter = found.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, ColumnRegistry> me = iter.next();
+            ColumnRegistry startColumns = start.get(me.getKey());
+            ColumnRegistry mergedColumns = merged.get(me.getKey());
+            if (mergedColumns == null) {
+                mergedColumns = new ColumnRegistry();
+                merged.put(me.getKey(), mergedColumns);
+            }
 
+            ColumnRegistry workerColumns = me.getValue();
+            for (int i = startColumns == null ? 0 : startColumns.size(); i < workerColumns.size(); i++) {
+                mergedColumns.add(workerColumns.get(i));
+            }
+        }
     }
 
     /**
@@ -822,26 +2825,12 @@ public class BodaBulkCMParser {
             }
 
 
-            XMLInputFactory factory = XMLInputFactory.newInstance();
-
-            XMLEventReader eventReader = factory.createXMLEventReader(
-                    new FileReader(bulkCMXMLFile));
-            bulkCMXMLFileBasename = getFileBasename(bulkCMXMLFile);
-
-            while (eventReader.hasNext()) {
-                XMLEvent event = eventReader.nextEvent();
-                switch (event.getEventType()) {
-                    case XMLStreamConstants.START_ELEMENT:
-                        startElementEvent(event);
-                        break;
-                    case XMLStreamConstants.SPACE:
-                    case XMLStreamConstants.CHARACTERS:
-                        characterEvent(event);
-                        break;
-                    case XMLStreamConstants.END_ELEMENT:
-                        endELementEvent(event);
-                        break;
-                }
+            InputStream in = new BufferedInputStream(new FileInputStream(bulkCMXMLFile), INPUT_BUFFER_SIZE);
+            context.fileBasename = getFileBasename(bulkCMXMLFile);
+            try {
+                parseStream(in);
+            } finally {
+                in.close();
             }
         } catch (FileNotFoundException e) {
             System.err.println("ERROR:" + e.getMessage());
@@ -852,6 +2841,9 @@ public class BodaBulkCMParser {
         } catch (UnsupportedEncodingException e) {
             System.err.println("ERROR:" + e.getMessage());
             System.exit(1);
+        } catch (IOException e) {
+            System.err.println("ERROR:" + e.getMessage());
+            System.exit(1);
         }
 
     }
@@ -869,153 +2861,299 @@ public class BodaBulkCMParser {
         String qName = startElement.getName().getLocalPart();
         String prefix = startElement.getName().getPrefix();
 
-        startElementTag = qName;
-        startElementTagPrefix = prefix;
-
+        context.attrCount = 0;
         Iterator<Attribute> attributes = startElement.getAttributes();
+        while (attributes.hasNext()) {
+            Attribute attribute = attributes.next();
+            QName attrName = attribute.getName();
+            addAttribute(attrName.getLocalPart(), attribute.getValue(),
+                    attrName.getNamespaceURI().length() > 0);
+        }
+
+        startElement(symbolTable.lookup(qName, prefix));
+    }
+
+    /**
+     * Handle start element event from the XMLStreamReader cursor.
+     *
+     * @param reader
+     * @since 2.3.0
+     */
+    public void startElementEvent(XMLStreamReader reader) {
+        flushCharacters();
+
+        context.attrCount = 0;
+        int count = reader.getAttributeCount();
+        for (int i = 0; i < count; i++) {
+            String nsURI = reader.getAttributeNamespace(i);
+            addAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i),
+                    nsURI != null && nsURI.length() > 0);
+        }
+
+        String prefix = reader.getPrefix();
+        startElement(symbolTable.lookup(reader.getLocalName(), prefix == null ? "" : prefix));
+    }
+
+    /**
+     * Add an attribute of the current start element.
+     *
+     * @param localName
+     * @param value
+     * @param hasNamespace True if the attribute name is namespace qualified
+     * @since 2.3.0
+     */
+    private void addAttribute(String localName, String value, boolean hasNamespace) {
+        if (context.attrCount == context.attrLocalNames.length) {
+            context.attrLocalNames = Arrays.copyOf(context.attrLocalNames, context.attrCount * 2);
+            context.attrValues = Arrays.copyOf(context.attrValues, context.attrCount * 2);
+            context.attrHasNamespace = Arrays.copyOf(context.attrHasNamespace, context.attrCount * 2);
+        }
+        context.attrLocalNames[context.attrCount] = localName;
+        context.attrValues[context.attrCount] = value;
+        context.attrHasNamespace[context.attrCount] = hasNamespace;
+        context.attrCount++;
+    }
+
+    /**
+     * Put the attributes of the current start element into the XML attribute
+     * stack at the current depth.
+     *
+     * @since 2.3.0
+     */
+    private void putAttributesInXmlAttrStack() {
+        if (context.attrCount == 0) return;
+
+        AttributeStack.Frame frame = context.xmlAttrStack.getOrOpen(context.depth);
+        for (int i = 0; i < context.attrCount; i++) {
+            frame.put(context.attrLocalNames[i], context.attrValues[i]);
+        }
+    }
 
-        if (qName.equals("fileFooter") && ParserStates.EXTRACTING_PARAMETERS == parserState) {
-            while (attributes.hasNext()) {
-                Attribute attribute = attributes.next();
-                if (attribute.getName().toString().equals("dateTime")) {
-                    dateTime = attribute.getValue();
+    /**
+     * Handle start element.
+     * <p>
+     * The element's attributes are in attrLocalNames and attrValues.
+     *
+     * @param symbol The element's name
+     * @since 2.3.0
+     */
+    private void startElement(SymbolTable.Symbol symbol) {
+        String qName = symbol.localName;
+        int kind = symbol.kind;
+
+        context.startElementTag = qName;
+        context.startElementTagPrefix = symbol.prefix;
+        context.skipCurrentElement = false;
+
+        if (kind == SymbolTable.KIND_FILE_FOOTER && ParserStates.EXTRACTING_PARAMETERS == parserState) {
+            for (int i = 0; i < context.attrCount; i++) {
+                if (!context.attrHasNamespace[i] && context.attrLocalNames[i].equals("dateTime")) {
+                    context.dateTime = context.attrValues[i];
+                    context.footerDateTimeFound = true;
                 }
             }
         }
 
+        //Outside the network elements that are asked for, only the start
+        //tags of the MOs are parsed. The network elements with other IDs are
+        //skipped.
+        if (networkElements != null && !isInNetworkElement()) {
+            if (kind == SymbolTable.KIND_VS_DATA_CONTAINER || kind == SymbolTable.KIND_ATTRIBUTES
+                    || (FileSplitter.isManagedElement(qName) && !isNetworkElementAskedFor())) {
+                context.skipCurrentElement = true;
+                return;
+            }
+        }
+
         //E1:0. xn:VsDataContainer encountered
         //Push vendor speicific MOs to the xmlTagStack
-        if (qName.equalsIgnoreCase("VsDataContainer")) {
-            vsDCDepth++;
-            depth++;
-
-            String vsDCTagWithDepth = "VsDataContainer_" + vsDCDepth;
-            xmlTagStack.push(vsDCTagWithDepth);
-
-            while (attributes.hasNext()) {
-                Attribute attribute = attributes.next();
-                if (attribute.getName().toString().equals("id")) {
-                    Map<String, String> m = new LinkedHashMap<String, String>();
-                    m.put("id", attribute.getValue());
-                    xmlAttrStack.put(depth, m);
+        if (kind == SymbolTable.KIND_VS_DATA_CONTAINER) {
+            context.vsDCDepth++;
+            context.depth++;
+
+            context.xmlTagStack.pushContainer(context.vsDCDepth);
+
+            for (int i = 0; i < context.attrCount; i++) {
+                if (!context.attrHasNamespace[i] && context.attrLocalNames[i].equals("id")) {
+                    context.xmlAttrStack.open(context.depth).put("id", context.attrValues[i]);
                 }
             }
 
-            vsDataType = null;
-            vsDataTypeStack.clear();
-            vsDataTypeRlStack.clear();
+            context.vsDataType = null;
+            context.vsDataTypeStack.clear();
+            context.vsDataTypeRlStack.clear();
             return;
         }
 
         //E1:1 
-        if (!prefix.equals("xn") && qName.startsWith("vsData")) {
-            vsDataType = qName;
+        if (kind == SymbolTable.KIND_VS_DATA_TYPE) {
+            context.vsDataType = qName;
+            context.vsDataTypeSymbol = symbol;
 
-            String vsDCTagWithDepth = "VsDataContainer_" + vsDCDepth;
-            vsDataContainerTypeMap.put(vsDCTagWithDepth, qName);
+            context.vsDataContainerTypeMap.put(context.xmlTagStack.containerName(context.vsDCDepth), qName);
+
+            //Skip the vendor attributes if the MO is not in the parameter file
+            if (parameterFile != null && parserState == ParserStates.EXTRACTING_VALUES
+                    && !moColumns.containsKey(qName)) {
+                context.skipCurrentElement = true;
+            }
 
             return;
         }
 
         //E1.2
-        if (null != vsDataType) {
+        if (null != context.vsDataType) {
 
             //Handle parameters with children
             //Update vsDataTypeStack and vsDataTypeRlStack
-            if (vsDataTypeRlStack.size() > 0) {
-                String parentParameter = vsDataTypeRlStack.get(0).toString();
+            if (context.vsDataTypeRlStack.size() > 0) {
+                String parentParameter = context.vsDataTypeRlStack.get(0).toString();
                 String childParameter = qName;
                 String param = parentParameter + "_" + childParameter;
-                if (!vsDataTypeStack.containsKey(param)) {
-                    vsDataTypeStack.put(param, null);
+                if (!context.vsDataTypeStack.containsKey(param)) {
+                    context.vsDataTypeStack.put(param, null);
                 }
-                vsDataTypeRlStack.push(qName);
+                context.vsDataTypeRlStack.push(qName);
 
                 return;
             }
 
             //Handle parameters with no children
-            if (!vsDataTypeStack.containsKey(qName)) {
-                vsDataTypeStack.put(qName, null);
-                vsDataTypeRlStack.push(qName);
+            if (!context.vsDataTypeStack.containsKey(qName)) {
+                context.vsDataTypeStack.put(qName, null);
+                context.vsDataTypeRlStack.push(qName);
             }
             return;
         }
 
         //E1.3
-        if (qName.equals("attributes")) {
-            attrMarker = true;
+        if (kind == SymbolTable.KIND_ATTRIBUTES) {
+            context.attrMarker = true;
+
+            //Skip the attributes of 3GPP MOs that are not in the parameter file
+            if (parameterFile != null && parserState == ParserStates.EXTRACTING_VALUES
+                    && !context.xmlTagStack.isEmpty() && !context.xmlTagStack.isContainer(context.xmlTagStack.size() - 1)
+                    && !moThreeGPPAttrMap.containsKey(context.xmlTagStack.peek())) {
+                context.skipCurrentElement = true;
+            }
             return;
         }
 
         //E1.4
-        if (xmlTagStack.contains(qName)) {
-            depth++;
-            Integer occurences = getXMLTagOccurences(qName) + 1;
-            String newTagName = qName + "_" + occurences;
-            xmlTagStack.push(newTagName);
+        if (context.xmlTagStack.contains(symbol)) {
+            context.depth++;
+            //Pushed as qName_<occurences+1>
+            context.xmlTagStack.push(symbol);
 
-            //Add XML attributes to the XML Attribute Stack.
-            //@TODO: This while block is repeated below. The 2 should be combined
-            while (attributes.hasNext()) {
-                Attribute attribute = attributes.next();
-
-                if (xmlAttrStack.containsKey(depth)) {
-                    Map<String, String> mm = xmlAttrStack.get(depth);
-                    mm.put(attribute.getName().getLocalPart(), attribute.getValue());
-                    xmlAttrStack.put(depth, mm);
-                } else {
-                    Map<String, String> m = new LinkedHashMap<String, String>();
-                    m.put(attribute.getName().getLocalPart(), attribute.getValue());
-                    xmlAttrStack.put(depth, m);
-                }
-            }
+            //Add XML attributes to the XML Attribute Stack.
+            putAttributesInXmlAttrStack();
 
             return;
         }
 
         //E1.5 --<xn:attributes>
-        if (attrMarker == true && vsDataType == null) {
+        if (context.attrMarker == true && context.vsDataType == null) {
             //LOGGER.info("attrMarker == true && vsDataType == null qName="+ qName);
             //Tracks hierachy of tags under xn:attributes.
-            xnAttrRlStack.push(qName);
-
-            Map<String, String> m = new LinkedHashMap<String, String>();
-            if (threeGPPAttrStack.containsKey(depth)) {
-                m = threeGPPAttrStack.get(depth);
-                //LOGGER.info( "depth:" + depth + " qName:" + qName + "iiii XML Tag Stack:" + xmlTagStack.get(depth-1) + "  m :" + m.toString());
-                //Check if the parameter is already in the stack so that we dont
-                //over write it.
-                if (!m.containsKey(qName)) {
-                    m.put(qName, null);
-                    threeGPPAttrStack.put(depth, m);
-                }
-                //LOGGER.info("startElementEvent>>threeGPPAttrStack:" + threeGPPAttrStack.toString());
-            } else {
-                m.put(qName, null); //Initial value null
-                threeGPPAttrStack.put(depth, m);
+            context.xnAttrRlStack.push(qName);
+
+            //Check if the parameter is already in the stack so that we dont
+            //over write it. The initial value is null.
+            AttributeStack.Frame m = context.threeGPPAttrStack.getOrOpen(context.depth);
+            if (!m.containsKey(qName)) {
+                m.put(qName, null);
             }
             return;
         }
 
         //E1.6
         //Push 3GPP Defined MOs to the xmlTagStack
-        depth++;
-        xmlTagStack.push(qName);
-        xmlAttrStack.put(depth, new LinkedHashMap<String, String>());
-        while (attributes.hasNext()) {
-            Attribute attribute = attributes.next();
+        context.depth++;
+        context.xmlTagStack.push(symbol);
+        context.xmlAttrStack.open(context.depth);
+        putAttributesInXmlAttrStack();
+    }
 
-            if (xmlAttrStack.containsKey(depth)) {
-                Map<String, String> mm = xmlAttrStack.get(depth);
-                mm.put(attribute.getName().getLocalPart(), attribute.getValue());
-                xmlAttrStack.put(depth, mm);
-            } else {
-                Map<String, String> m = new LinkedHashMap<String, String>();
-                m.put(attribute.getName().getLocalPart(), attribute.getValue());
-                xmlAttrStack.put(depth, m);
+    /**
+     * Check whether a MeContext or ManagedElement is on the xmlTagStack.
+     * Only the network elements that are asked for get on the stack when
+     * networkElements is set.
+     *
+     * @since 2.3.0
+     */
+    private boolean isInNetworkElement() {
+        //Network elements in a network element are renamed only when they
+        //have the name of an outer one, so the plain names are enough
+        for (int i = 0; i < context.xmlTagStack.size(); i++) {
+            if (!context.xmlTagStack.isContainer(i)
+                    && FileSplitter.isManagedElement(context.xmlTagStack.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether an end element that has been handled ends an outermost
+     * MeContext or ManagedElement. These are the elements the network
+     * element index holds.
+     *
+     * @param symbol The element's name
+     * @since 2.3.0
+     */
+    private boolean isNetworkElementEnd(SymbolTable.Symbol symbol) {
+        return FileSplitter.isManagedElement(symbol.localName) && context.attrMarker == false
+                && context.vsDataType == null && !isInNetworkElement();
+    }
+
+    /**
+     * Check whether the id attribute of the current start element is in
+     * networkElements.
+     * <p>
+     * The element's attributes are in attrLocalNames and attrValues.
+     *
+     * @since 2.3.0
+     */
+    private boolean isNetworkElementAskedFor() {
+        for (int i = 0; i < context.attrCount; i++) {
+            if (!context.attrHasNamespace[i] && context.attrLocalNames[i].equals("id")) {
+                return networkElements.contains(context.attrValues[i]);
             }
         }
+        return false;
+    }
+
+    /**
+     * Update the parser state at the end of a skipped element. This does what
+     * endElement does for a vsData type or xn:attributes element whose values
+     * are not written. An element skipped outside the network elements that
+     * are asked for leaves nothing to update.
+     *
+     * @param hasChildren Whether the skipped element has child elements
+     * @since 2.3.0
+     */
+    private void endSkippedElement(boolean hasChildren) {
+        context.skipCurrentElement = false;
+        context.startElementTag = "";
+
+        //The end of each child element leaves the tag data empty
+        if (hasChildren) context.tagData = "";
+
+        //E3:3 xx:vsData<VendorSpecificDataType>
+        if (context.vsDataType != null) {
+            context.vsDataType = null;
+            context.vsDataTypeStack.clear();
+            return;
+        }
+
+        //An element outside the network elements that are asked for
+        if (context.attrMarker == false) return;
+
+        //3.2 </xn:attributes>
+        context.attrMarker = false;
+        if (separateVendorAttributes == false && context.xmlTagStack.size() > 1) {
+            context.threeGPPAttrValues.clear();
+        }
     }
 
     /**
@@ -1028,211 +3166,270 @@ public class BodaBulkCMParser {
     public void characterEvent(XMLEvent xmlEvent) {
         Characters characters = xmlEvent.asCharacters();
         if (!characters.isWhiteSpace()) {
-            tagData = characters.getData();
+            context.tagData = characters.getData();
+        }
+    }
+
+    /**
+     * Handle character events from the XMLStreamReader cursor.
+     * <p>
+     * The text is not coalesced by the reader. It is collected here and
+     * handled as one value at the next start or end tag.
+     *
+     * @param reader
+     * @since 2.3.0
+     */
+    public void characterEvent(XMLStreamReader reader) {
+        context.characterBuffer.append(reader.getTextCharacters(),
+                reader.getTextStart(), reader.getTextLength());
+    }
+
+    /**
+     * Set the tag data from the collected characters if they are not all
+     * white space.
+     *
+     * @since 2.3.0
+     */
+    private void flushCharacters() {
+        int len = context.characterBuffer.length();
+        if (len == 0) return;
+
+        for (int i = 0; i < len; i++) {
+            char c = context.characterBuffer.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                context.tagData = context.characterBuffer.toString();
+                break;
+            }
         }
+        context.characterBuffer.setLength(0);
     }
 
     public void endELementEvent(XMLEvent xmlEvent)
-            throws FileNotFoundException, UnsupportedEncodingException {
+            throws FileNotFoundException, UnsupportedEncodingException, IOException {
 
         EndElement endElement = xmlEvent.asEndElement();
-        String prefix = endElement.getName().getPrefix();
-        String qName = endElement.getName().getLocalPart();
+        endElement(symbolTable.lookup(endElement.getName().getLocalPart(), endElement.getName().getPrefix()));
+    }
+
+    /**
+     * Handle end element event from the XMLStreamReader cursor.
+     *
+     * @param reader
+     * @since 2.3.0
+     */
+    public void endELementEvent(XMLStreamReader reader)
+            throws FileNotFoundException, UnsupportedEncodingException, IOException {
+        flushCharacters();
+
+        String prefix = reader.getPrefix();
+        endElement(symbolTable.lookup(reader.getLocalName(), prefix == null ? "" : prefix));
+    }
+
+    /**
+     * Handle end element.
+     *
+     * @param symbol The element's name
+     * @since 2.3.0
+     */
+    private void endElement(SymbolTable.Symbol symbol) throws IOException {
+        String qName = symbol.localName;
+        int kind = symbol.kind;
 
-        startElementTag = "";
+        context.startElementTag = "";
 
         //E3:1 </xn:VsDataContainer>
-        if (qName.equalsIgnoreCase("VsDataContainer")) {
-            String vsDCTag = "VsDataContainer_" + vsDCDepth;
-            xmlTagStack.pop();
-            if (xmlAttrStack.containsKey(depth)) {
-                xmlAttrStack.remove(depth);
-                threeGPPAttrStack.remove(depth);
-            }
-            if (vsDataContainerTypeMap.containsKey(vsDCDepth)) vsDataContainerTypeMap.remove(vsDCDepth);
-            vsDCDepth--;
-            depth--;
+        if (kind == SymbolTable.KIND_VS_DATA_CONTAINER) {
+            String vsDCTag = "VsDataContainer_" + context.vsDCDepth;
+            context.xmlTagStack.pop();
+            if (context.xmlAttrStack.containsKey(context.depth)) {
+                context.xmlAttrStack.remove(context.depth);
+                context.threeGPPAttrStack.remove(context.depth);
+            }
+            if (context.vsDataContainerTypeMap.containsKey(context.vsDCDepth)) context.vsDataContainerTypeMap.remove(context.vsDCDepth);
+            context.vsDCDepth--;
+            context.depth--;
             return;
         }
 
-        //We are at the end of </attributes> in 3GPP tag
-        if (qName.equals("attributes") && !xmlTagStack.peek().toString().startsWith("VsDataContainer")) {
-            //Collect values for use when separateVsData is false
-            if (parserState == ParserStates.EXTRACTING_VALUES &&
+        //3.2 </xn:attributes>
+        if (kind == SymbolTable.KIND_ATTRIBUTES) {
+            boolean in3GPPTag = !context.xmlTagStack.isContainer(context.xmlTagStack.size() - 1);
+
+            context.attrMarker = false;
+            if ((parserState == ParserStates.EXTRACTING_PARAMETERS || schemaFromCache)
+                    && context.vsDataType == null) {
+                updateThreeGPPAttrMap();
+            }
+
+            //We are at the end of </attributes> in 3GPP tag.
+            //Collect values for use when separateVsData is false. In single
+            //pass mode this is done after updateThreeGPPAttrMap so that the
+            //current attributes are already in moThreeGPPAttrMap.
+            if (in3GPPTag &&
+                    (parserState == ParserStates.EXTRACTING_VALUES || singlePass == true) &&
                     separateVendorAttributes == false &&
-                    vsDataType == null) {
-                int xmlTagStackSize = xmlTagStack.size();
+                    context.vsDataType == null) {
+                int xmlTagStackSize = context.xmlTagStack.size();
                 //@TODO: Keep copy of attribute values
                 if (xmlTagStackSize > 1) {
 
-                    String tagBeforeCurrentVsContainer = xmlTagStack.get(xmlTagStackSize - 1).toString();
+                    String tagBeforeCurrentVsContainer = context.xmlTagStack.get(xmlTagStackSize - 1).toString();
                     saveThreeGPPAttrValues(tagBeforeCurrentVsContainer);
                 }
             }
-        }
 
-        //3.2 </xn:attributes>
-        if (qName.equals("attributes")) {
-            attrMarker = false;
-            if (parserState == ParserStates.EXTRACTING_PARAMETERS && vsDataType == null) {
-                updateThreeGPPAttrMap();
-            }
-            
             return;
         }
 
         //E3:3 xx:vsData<VendorSpecificDataType>
-        if (qName.startsWith("vsData") && !qName.equalsIgnoreCase("VsDataContainer")
-                && !prefix.equals("xn")) { //This skips xn:vsDataType
+        if (kind == SymbolTable.KIND_VS_DATA_TYPE) { //This skips xn:vsDataType
 
             if (ParserStates.EXTRACTING_PARAMETERS == parserState) {
                 collectVendorMOColumns();
+                if (singlePass == true) spillVendorAttributes();
             } else {
+                //Pick up MOs and parameters that are not in the schema cache
+                if (schemaFromCache) collectVendorMOColumns();
                 processVendorAttributes();
             }
 
-            vsDataType = null;
-            vsDataTypeStack.clear();
+            context.vsDataType = null;
+            context.vsDataTypeStack.clear();
             return;
         }
 
         //E3:4
         //Process parameters under <bs:vsDataSomeMO>..</bs:vsDataSomeMo>
-        if (vsDataType != null && attrMarker == true) {//We are processing vsData<DataType> attributes
+        if (context.vsDataType != null && context.attrMarker == true) {//We are processing vsData<DataType> attributes
             String newTag = qName;
-            String newValue = tagData;
+            String newValue = context.tagData;
 
             //Note end of the parent-child
-            if (vsDataTypeRlStack.size() == 1 && inParentChildTag == true) {
-                inParentChildTag = false;
+            if (context.vsDataTypeRlStack.size() == 1 && context.inParentChildTag == true) {
+                context.inParentChildTag = false;
             }
 
             //Handle attributes with children
             //inParentChildTag== false, means we have completed processing the children
-            if (parentChildParameters.containsKey(qName) && inParentChildTag == false) {//End of parent tag
+            if (context.parentChildParameters.containsKey(qName) && context.inParentChildTag == false) {//End of parent tag
 
                 //Ware at the end of the parent tag so we remove the mapping
                 //as the child values have already been collected in 
                 //vsDataTypeStack.
-                parentChildParameters.remove(qName);
+                context.parentChildParameters.remove(qName);
 
                 //The top most value on the stack should be qName
-                if (vsDataTypeRlStack.size() > 0) {
-                    vsDataTypeRlStack.pop();
+                if (context.vsDataTypeRlStack.size() > 0) {
+                    context.vsDataTypeRlStack.pop();
                 }
 
                 //Remove the parent tag from the stack so that we don't output 
                 //data for it. It's values are taked care of by its children.
-                vsDataTypeStack.remove(qName);
+                context.vsDataTypeStack.remove(qName);
                 return;
             }
 
             //If size is greater than 1, then there is parent with chidren
-            if (vsDataTypeRlStack.size() > 1) {
-                int len = vsDataTypeRlStack.size();
-                String parentTag = vsDataTypeRlStack.get(len - 2).toString();
+            if (context.vsDataTypeRlStack.size() > 1) {
+                int len = context.vsDataTypeRlStack.size();
+                String parentTag = context.vsDataTypeRlStack.get(len - 2).toString();
                 newTag = parentTag + parentChildAttrSeperator + qName;
-                inParentChildTag = true;
+                context.inParentChildTag = true;
 
                 //Store the parent and it's child
-                parentChildParameters.put(parentTag, qName);
+                context.parentChildParameters.put(parentTag, qName);
 
             }
 
             //Handle multivalued paramenters
-            if (vsDataTypeStack.containsKey(newTag)) {
-                if (vsDataTypeStack.get(newTag) != null) {
-                    newValue = vsDataTypeStack.get(newTag) + multiValueSeparetor + tagData;
+            if (context.vsDataTypeStack.containsKey(newTag)) {
+                if (context.vsDataTypeStack.get(newTag) != null) {
+                    newValue = context.vsDataTypeStack.get(newTag) + multiValueSeparetor + context.tagData;
                 }
             }
 
             //@TODO: Handle cases of multi values parameters and parameters with children
             //For now continue as if they do not exist
-            vsDataTypeStack.put(newTag, newValue);
-            tagData = "";
-            if (vsDataTypeRlStack.size() > 0) {
-                vsDataTypeRlStack.pop();
+            context.vsDataTypeStack.put(newTag, newValue);
+            context.tagData = "";
+            if (context.vsDataTypeRlStack.size() > 0) {
+                context.vsDataTypeRlStack.pop();
             }
         }
         
         //E3.5
         //Process tags under xn:attributes.
-        if (attrMarker == true && vsDataType == null) {
-            String newValue = tagData;
+        if (context.attrMarker == true && context.vsDataType == null) {
+            String newValue = context.tagData;
             String newTag = qName;
 
             //Handle attributes with children.Do this when parent end tag is 
             //encountered.
-            if (attrParentChildMap.containsKey(qName)) { //End of parent tag
+            if (context.attrParentChildMap.containsKey(qName)) { //End of parent tag
                 //Remove parent child map
-                attrParentChildMap.remove(qName);
+                context.attrParentChildMap.remove(qName);
 
                 //Remove the top most value from the stack.
-                xnAttrRlStack.pop();
+                context.xnAttrRlStack.pop();
 
                 //Remove the parent from the threeGPPAttrStack so that we 
                 //don't output data for it.
-                Map<String, String> treMap = threeGPPAttrStack.get(depth);
-                treMap.remove(qName);
-                threeGPPAttrStack.put(depth, treMap);
+                context.threeGPPAttrStack.get(context.depth).remove(qName);
 
                 return;
             }
 
             //Handle parent child attributes. Get the child value
-            int xnAttrRlStackLen = xnAttrRlStack.size();
+            int xnAttrRlStackLen = context.xnAttrRlStack.size();
             if (xnAttrRlStackLen > 1) {
                 String parentXnAttr
-                        = xnAttrRlStack.get(xnAttrRlStackLen - 2).toString();
+                        = context.xnAttrRlStack.get(xnAttrRlStackLen - 2).toString();
                 newTag = parentXnAttr + parentChildAttrSeperator + qName;
 
                 //Store parent child map
-                attrParentChildMap.put(parentXnAttr, qName);
+                context.attrParentChildMap.put(parentXnAttr, qName);
 
                 //Remove the child tag from the 3gpp xnAttribute stack
-                Map<String, String> cMap = threeGPPAttrStack.get(depth);
-                if (cMap.containsKey(qName)) {
-                    cMap.remove(qName);
-                    threeGPPAttrStack.put(depth, cMap);
-                }
+                context.threeGPPAttrStack.get(context.depth).remove(qName);
             }
 
-            Map<String, String> m = new LinkedHashMap<String, String>();
-            m = threeGPPAttrStack.get(depth);
+            AttributeStack.Frame m = context.threeGPPAttrStack.get(context.depth);
 
             //For multivaluted attributes , first check that the tag already 
             //exits.
-            if (m.containsKey(newTag) && m.get(newTag) != null) {
-                String oldValue = m.get(newTag);
-                String val = oldValue + multiValueSeparetor + newValue;
-                m.put(newTag, val);
+            String oldValue = m.get(newTag);
+            if (oldValue != null) {
+                m.put(newTag, oldValue + multiValueSeparetor + newValue);
             } else {
                 m.put(newTag, newValue);
             }
 
-            threeGPPAttrStack.put(depth, m);
-            tagData = "";
-            xnAttrRlStack.pop();
+            context.tagData = "";
+            context.xnAttrRlStack.pop();
             return;
         }
 
         //E3:6 
         //At this point, the remaining XML elements are 3GPP defined Managed 
         //Objects. 
-        if (xmlTagStack.contains(qName)) {
+        if (context.xmlTagStack.contains(symbol)) {
             String theTag = qName;
 
             //@TODO: This occurences check does not appear to be of any use; test 
             // and remove if not needed.
-            int occurences = getXMLTagOccurences(qName);
+            int occurences = context.xmlTagStack.occurrences(symbol);
             if (occurences > 1) {
                 theTag = qName + "_" + occurences;
             }
 
             //Extracting parameter value stage.
             //Printout values ifthere is no matching vsDataMO  and separateVsData is true
-            String vsDataMO = "vsData" + qName; //This create vsDataMO
-            if (parserState != ParserStates.EXTRACTING_PARAMETERS &&
+            String vsDataMO = symbol.vsDataName;
+
+            //The MOs outside the network elements that are asked for have
+            //no rows
+            boolean hasRow = networkElements == null || isInNetworkElement();
+            if (hasRow && parserState != ParserStates.EXTRACTING_PARAMETERS &&
                     (separateVendorAttributes == true ||
                             (!moColumns.containsKey(vsDataMO) && separateVendorAttributes == false)
                     )
@@ -1240,11 +3437,16 @@ public class BodaBulkCMParser {
                 process3GPPAttributes();
             }
 
-            threeGPPAttrValues.clear();
-            xmlTagStack.pop();
-            xmlAttrStack.remove(depth);
-            threeGPPAttrStack.remove(depth);
-            depth--;
+            //The vsDataMO check is done when the spilled rows are replayed
+            if (hasRow && parserState == ParserStates.EXTRACTING_PARAMETERS && singlePass == true) {
+                spill3GPPAttributes(vsDataMO);
+            }
+
+            context.threeGPPAttrValues.clear();
+            context.xmlTagStack.pop();
+            context.xmlAttrStack.remove(context.depth);
+            context.threeGPPAttrStack.remove(context.depth);
+            context.depth--;
         }
         //parentChildParameters.clear();
 
@@ -1263,17 +3465,9 @@ public class BodaBulkCMParser {
      * @since 1.0.0
      */
     public Integer getXMLTagOccurences(String tagName) {
-        int tagOccurences = 0;
-        Iterator<String> iter = xmlTagStack.iterator();
-        while (iter.hasNext()) {
-            String tag = iter.next();
-            String regex = "^(" + tagName + "|" + tagName + "_\\d+)$";
-
-            if (tag.matches(regex)) {
-                tagOccurences++;
-            }
-        }
-        return tagOccurences;
+        SymbolTable.Symbol symbol = symbolTable.get(tagName);
+        if (symbol == null) return 0;
+        return context.xmlTagStack.occurrences(symbol);
     }
 
     /**
@@ -1286,113 +3480,314 @@ public class BodaBulkCMParser {
     public void process3GPPAttributes()
             throws FileNotFoundException, UnsupportedEncodingException {
 
-        String mo = xmlTagStack.peek().toString();
+        String mo = context.xmlTagStack.peek().toString();
 
-        //Holds parameter-value map before printing
-        Map<String, String> xmlTagValues = new LinkedHashMap<String, String>();
         //LOGGER.info("GOOD PLACE TO START " + " mo:" + mo);
         if (parameterFile != null && !moThreeGPPAttrMap.containsKey(mo)) {
             return;
         }
 
-        String paramNames = "FILENAME,DATETIME";
-        String paramValues = bulkCMXMLFileBasename + "," + dateTime;
+        Map<String, String> current3GPPAttrs = null;
+        current3GPPAttrs = context.threeGPPAttrStack.get(context.depth);
+
+        write3GPPAttributes(mo, context.fileBasename, context.dateTime,
+                collect3GPPParentIds(), current3GPPAttrs);
+    }
 
-        Stack<String> ignoreInParameterFile = new Stack();
+    /**
+     * Collect the IDs of the current 3GPP MO and its parents.
+     *
+     * @return Map of parent ID names to their values
+     * @since 2.3.0
+     */
+    private Map<String, String> collect3GPPParentIds() {
+        //Holds parameter-value map before printing
+        Map<String, String> xmlTagValues = new LinkedHashMap<String, String>();
 
         //Parent IDs
-        for (int i = 0; i < xmlTagStack.size(); i++) {
-            String parentMO = xmlTagStack.get(i).toString();
+        for (int i = 0; i < context.xmlTagStack.size(); i++) {
+            String parentMO = context.xmlTagStack.get(i).toString();
 
             //The depth at each xml tag index is  index+1 
             int depthKey = i + 1;
 
             //Iterate through the XML attribute tags for the element.
-            if (xmlAttrStack.get(depthKey) == null) {
+            AttributeStack.Frame frame = context.xmlAttrStack.get(depthKey);
+            if (frame == null) {
                 continue; //Skip null values
             }
 
-            Iterator<Map.Entry<String, String>> mIter
-                    = xmlAttrStack.get(depthKey).entrySet().iterator();
-
-            while (mIter.hasNext()) {
-                Map.Entry<String, String> meMap = mIter.next();
-                String pName = parentMO + "_" + meMap.getKey();
-                String pValue = toCSVFormat(meMap.getValue());
-
-                xmlTagValues.put(pName, pValue);
+            for (int j = 0; j < frame.size(); j++) {
+                String pName = parentMO + "_" + frame.keyAt(j);
+                xmlTagValues.put(pName, frame.valueAt(j));
 
             }
         }
 
+        return xmlTagValues;
+    }
+
+    /**
+     * Write a 3GPP MO row.
+     *
+     * @param mo The 3GPP MO
+     * @param fileBasename Value of the FILENAME column
+     * @param fileDateTime Value of the DATETIME column
+     * @param xmlTagValues The MO and parent IDs
+     * @param current3GPPAttrs The MO's 3GPP attributes. Can be null.
+     * @since 2.3.0
+     */
+    private void write3GPPAttributes(String mo, String fileBasename,
+            String fileDateTime, Map<String, String> xmlTagValues,
+            Map<String, String> current3GPPAttrs) {
+
+        if (rewrite3GPPFiles != null && !rewrite3GPPFiles.contains(mo)) return;
+
+        RowLayout layout = null;
+
         //Some MOs dont have 3GPP attributes e.g. the fileHeader 
         //and the fileFooter
         if (moThreeGPPAttrMap.get(mo) != null) {
             //Get 3GPP attributes for MO at the current depth
-            Stack a3GPPAtrr = moThreeGPPAttrMap.get(mo);
-            Map<String, String> current3GPPAttrs = new LinkedHashMap<String, String>();
+            layout = getThreeGPPRowLayout(mo);
+            layout.clearRow();
 
-            if (!threeGPPAttrStack.isEmpty() && threeGPPAttrStack.get(depth) != null) {
-                current3GPPAttrs = threeGPPAttrStack.get(depth);
+            Iterator<Map.Entry<String, String>> mIter
+                    = xmlTagValues.entrySet().iterator();
+            while (mIter.hasNext()) {
+                Map.Entry<String, String> meMap = mIter.next();
+                int[] slots = layout.slotsOf(meMap.getKey());
+                for (int i = 0; i < slots.length; i++) {
+                    layout.set(slots[i], meMap.getValue());
+                }
             }
 
-            for (int i = 0; i < a3GPPAtrr.size(); i++) {
-                String aAttr = (String) a3GPPAtrr.get(i);
-
-                //Skip parameters listed in the parameter file that are in the xmlTagList already
-//                  if(ignoreInParameterFile.contains(aAttr)) continue;
-
-                //Skip fileName, and dateTime in the parameter file as they are added by default
-                if (aAttr.toLowerCase().equals("filename") ||
-                        aAttr.toLowerCase().equals("datetime")) continue;
-
-                String aValue = "";
-
-                if (xmlTagValues.containsKey(aAttr)) {
-                    aValue = xmlTagValues.get(aAttr);
-                }
+            if (current3GPPAttrs != null) {
+                mIter = current3GPPAttrs.entrySet().iterator();
+                while (mIter.hasNext()) {
+                    Map.Entry<String, String> meMap = mIter.next();
+                    int[] slots = layout.slotsOf(meMap.getKey());
+                    if (slots.length == 0) continue;
 
-                if (current3GPPAttrs != null && current3GPPAttrs.containsKey(aAttr)) {
-                    aValue = toCSVFormat(current3GPPAttrs.get(aAttr));
+                    for (int i = 0; i < slots.length; i++) {
+                        layout.set(slots[i], meMap.getValue());
+                    }
                 }
-
-                paramNames = paramNames + "," + aAttr;
-                paramValues = paramValues + "," + aValue;
             }
+
         } else {
             //if there are not 3GPP Attributes(ie moThreeGPPAttrMap is empty), collect the XML attributes 
-            Iterator<Map.Entry<String, String>> mIter
-                    = xmlTagValues.entrySet().iterator();
-            while (mIter.hasNext()) {
-                Map.Entry<String, String> meMap = mIter.next();
-                paramNames = paramNames + "," + meMap.getKey();
-                paramValues = paramValues + "," + toCSVFormat(meMap.getValue());
-            }
+            layout = getParentIdRowLayout(mo, xmlTagValues);
+            layout.clearRow();
 
+            Iterator<String> vIter = xmlTagValues.values().iterator();
+            for (int i = 0; vIter.hasNext(); i++) {
+                layout.set(i, vIter.next());
+            }
         }
 
         //Write the 3GPP defined MOs to files.
-        PrintWriter pw = null;
-        if (!output3GPPMOPWMap.containsKey(mo)) {
+        try {
+            sink().row(RecordSink.THREE_GPP, mo, fileBasename, fileDateTime, layout);
+        } catch (IOException e) {
+            //@TODO: Add logger
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Get the row layout of a 3GPP MO without 3GPP attributes, building it
+     * if the row's IDs are not the columns of the last row.
+     *
+     * @param mo
+     * @param xmlTagValues The MO and parent IDs
+     * @since 2.3.0
+     */
+    private RowLayout getParentIdRowLayout(String mo, Map<String, String> xmlTagValues) {
+        RowLayout layout = parentIdRowLayouts.get(mo);
+        if (layout != null && layout.size() == xmlTagValues.size()) {
+            Iterator<String> nIter = xmlTagValues.keySet().iterator();
+            int i = 0;
+            while (nIter.hasNext() && nIter.next().equals(layout.getColumn(i))) i++;
+            if (i == layout.size()) return layout;
+        }
+
+        layout = new RowLayout(new ArrayList<String>(xmlTagValues.keySet()), null, 0);
+        parentIdRowLayouts.put(mo, layout);
+        return layout;
+    }
+
+    /**
+     * Get the row layout of a 3GPP MO, building it if the MO's attributes
+     * have changed since it was built.
+     *
+     * @param mo
+     * @return RowLayout
+     * @since 2.3.0
+     */
+    private RowLayout getThreeGPPRowLayout(String mo) {
+        ColumnRegistry a3GPPAtrr = moThreeGPPAttrMap.get(mo);
+        RowLayout layout = threeGPPRowLayouts.get(mo);
+        if (layout != null && layout.getRegistrySize() == a3GPPAtrr.size()) {
+            return layout;
+        }
+
+        List<String> columns = new ArrayList<String>();
+        for (int i = 0; i < a3GPPAtrr.size(); i++) {
+            String aAttr = a3GPPAtrr.get(i);
+
+            //Skip fileName, and dateTime in the parameter file as they are added by default
+            if (aAttr.toLowerCase().equals("filename") ||
+                    aAttr.toLowerCase().equals("datetime")) continue;
+
+            columns.add(aAttr);
+        }
+
+        layout = new RowLayout(columns, null, a3GPPAtrr.size());
+        threeGPPRowLayouts.put(mo, layout);
+        return layout;
+    }
+
+    /**
+     * Slot kind of a vendor attribute column.
+     */
+    private static final int VENDOR_ATTR = 0;
+
+    /**
+     * Slot kind of a vendor attribute column that is also a 3GPP attribute
+     * of the 3GPP MO. The 3GPP value is used if there is no vendor value.
+     */
+    private static final int VENDOR_AND_3GPP_ATTR = 1;
+
+    /**
+     * Slot kind of a 3GPP attribute added to the vendor specific MO when
+     * the vendor attributes are not separated.
+     */
+    private static final int THREE_GPP_ATTR = 2;
+
+    /**
+     * Get the row layout of a vendor specific MO, building it if the MO's
+     * columns or the 3GPP MO's attributes have changed since it was built.
+     *
+     * @param vsDataType The vendor specific MO
+     * @param threeGGPMo The 3GPP MO of the vendor specific MO
+     * @return RowLayout
+     * @since 2.3.0
+     */
+    private RowLayout getVendorRowLayout(String vsDataType, String threeGGPMo) {
+        ColumnRegistry columns = moColumns.get(vsDataType);
+        ColumnRegistry _3gppAttr = moThreeGPPAttrMap.get(threeGGPMo);
+
+        long registrySize = ((long) columns.size() << 32) | (_3gppAttr == null ? 0 : _3gppAttr.size() + 1);
+        RowLayout layout = vendorRowLayouts.get(vsDataType);
+        if (layout != null && layout.getRegistrySize() == registrySize) {
+            return layout;
+        }
+
+        List<String> names = new ArrayList<String>();
+        List<Integer> kinds = new ArrayList<Integer>();
 
-            //Rename conflicting csv files on windows
-            String renamedFileName = mo;
-            if (System.getProperty("os.name").startsWith("Windows")) {
-                if (MoToFileNameMap.containsKey(mo)) renamedFileName = MoToFileNameMap.get(mo);
+        //Iterate through the columns already collected
+        for (int i = 0; i < columns.size(); i++) {
+            String pName = columns.get(i);
+
+            //This strips vsData from vsDataSomeMO_Attribute e.g
+            //vsDataGsmCell_id becaomes GsmCell_id
+            if (separateVendorAttributes == false) {
+                //Remove vsData from vsDataSomeMO_id to vsSomeMO_id
+                pName = pName.replace("vsData", "vs");
             }
 
-            String moFile = outputDirectory + File.separatorChar + renamedFileName + ".csv";
-            try {
-                output3GPPMOPWMap.put(mo, new PrintWriter(new File(moFile)));
-                output3GPPMOPWMap.get(mo).println(paramNames);
-            } catch (FileNotFoundException e) {
-                //@TODO: Add logger
-                System.err.println(e.getMessage());
+            if (pName.equals("FILENAME") || pName.equals("DATETIME")) continue;
+
+            names.add(pName);
+            kinds.add(_3gppAttr != null && _3gppAttr.contains(pName) ? VENDOR_AND_3GPP_ATTR : VENDOR_ATTR);
+        }
+
+        //If we dont't want to separate the vsDataMo from the 3GPP mos
+        //we must print the 3GPP mos attributes here too.
+        if (separateVendorAttributes == false && _3gppAttr != null) {
+            for (int idx = 0; idx < _3gppAttr.size(); idx++) {
+                String pName = _3gppAttr.get(idx);
+
+                //Skip parameters that already exist in the vendor attr list 
+                if (columns.contains(pName)) continue;
+
+                //Skip _id  and bulkCmConfigDataFile_schemaLocation fields
+                if (pName.endsWith("_id") || pName.equals("bulkCmConfigDataFile_schemaLocation")) continue;
+
+                names.add(pName);
+                kinds.add(THREE_GPP_ATTR);
             }
         }
 
-        pw = output3GPPMOPWMap.get(mo);
-        pw.println(paramValues);
+        int[] slotKinds = new int[kinds.size()];
+        for (int i = 0; i < slotKinds.length; i++) {
+            slotKinds[i] = kinds.get(i);
+        }
+
+        layout = new RowLayout(names, slotKinds, registrySize);
+        vendorRowLayouts.put(vsDataType, layout);
+        return layout;
+    }
+
+    /**
+     * Spill the current 3GPP MO row in single pass mode.
+     *
+     * @param vsDataMO The vendor specific MO of the MO's tag name
+     * @since 2.3.0
+     */
+    private void spill3GPPAttributes(String vsDataMO) throws IOException {
+        String mo = context.xmlTagStack.peek().toString();
+
+        Map<String, String> current3GPPAttrs = null;
+        current3GPPAttrs = context.threeGPPAttrStack.get(context.depth);
+
+        String[] fields = {mo, context.fileBasename, context.dateTime, vsDataMO};
+        List<Map<String, String>> maps = new ArrayList<Map<String, String>>(2);
+        maps.add(collect3GPPParentIds());
+        maps.add(current3GPPAttrs);
+        rowSpillStore.spill("3GPP:" + mo, RowSpillStore.THREE_GPP_ROW, fields, maps);
+    }
+
+    /**
+     * Spill the current vendor specific MO row in single pass mode.
+     *
+     * @since 2.3.0
+     */
+    private void spillVendorAttributes() throws IOException {
+        String[] fields = {context.vsDataType, context.fileBasename, context.dateTime,
+            context.vsDataTypeSymbol.threeGPPName};
+        List<Map<String, String>> maps = new ArrayList<Map<String, String>>(3);
+        maps.add(collectVendorParentIds());
+        maps.add(context.vsDataTypeStack);
+        maps.add(context.threeGPPAttrValues);
+        rowSpillStore.spill("vsData:" + context.vsDataType, RowSpillStore.VENDOR_ROW, fields, maps);
+    }
+
+    /**
+     * Write the rows collected in single pass mode now that all MO
+     * parameters are known.
+     *
+     * @since 2.3.0
+     */
+    private void writeSpilledRows() throws IOException {
+        rowSpillStore.replay(new RowSpillStore.RowHandler() {
+            @Override
+            public void handleRow(int kind, String[] fields, List<Map<String, String>> maps) {
+                if (kind == RowSpillStore.VENDOR_ROW) {
+                    writeVendorAttributes(fields[0], fields[3], fields[1], fields[2],
+                            maps.get(0), maps.get(1), maps.get(2));
+                    return;
+                }
+
+                //Same check as at the end of the 3GPP MO in the value extraction stage
+                if (separateVendorAttributes == true || !moColumns.containsKey(fields[3])) {
+                    write3GPPAttributes(fields[0], fields[1], fields[2],
+                            maps.get(0), maps.get(1));
+                }
+            }
+        });
     }
 
     /**
@@ -1404,46 +3799,27 @@ public class BodaBulkCMParser {
      */
     private void saveThreeGPPAttrValues(String mo) {
 
-        threeGPPAttrValues.clear();
+        context.threeGPPAttrValues.clear();
 
         //Some MOs dont have 3GPP attributes e.g. the fileHeader 
         //and the fileFooter
-        if (moThreeGPPAttrMap.get(mo) != null) {
-            //Get 3GPP attributes for MO at the current depth
-            Stack a3GPPAtrr = moThreeGPPAttrMap.get(mo);
-            Map<String, String> current3GPPAttrs = null;
-
-            //We are assuming the vsDataSomeMO is an immediate child of SomeMO
-//              if (!threeGPPAttrStack.isEmpty() && threeGPPAttrStack.get(depth-2) != null) {
-//                  current3GPPAttrs = threeGPPAttrStack.get(depth);
-//              }
-
-            if (!threeGPPAttrStack.isEmpty() && threeGPPAttrStack.containsKey(depth)) {
-                current3GPPAttrs = threeGPPAttrStack.get(depth);
-            }
-
-            for (int i = 0; i < a3GPPAtrr.size(); i++) {
-                String aAttr = (String) a3GPPAtrr.get(i);
+        ColumnRegistry a3GPPAtrr = moThreeGPPAttrMap.get(mo);
+        if (a3GPPAtrr == null) return;
 
+        //Only take the current attributes that are in moThreeGPPAttrMap.
+        //We are assuming the vsDataSomeMO is an immediate child of SomeMO
+        AttributeStack.Frame current3GPPAttrs = context.threeGPPAttrStack.get(context.depth);
+        if (current3GPPAttrs == null) return;
 
-                //Skip parameters listed in the parameter file that are in the xmlTagList already
-//                  if(ignoreInParameterFile.contains(aAttr)) continue;
+        for (int i = 0; i < current3GPPAttrs.size(); i++) {
+            String aAttr = current3GPPAttrs.keyAt(i);
 
-                //Skip fileName, and dateTime in the parameter file as they are added by default
-                if (aAttr.toLowerCase().equals("filename") ||
-                        aAttr.toLowerCase().equals("datetime")) continue;
+            //Skip fileName, and dateTime in the parameter file as they are added by default
+            if (!a3GPPAtrr.contains(aAttr) ||
+                    aAttr.toLowerCase().equals("filename") ||
+                    aAttr.toLowerCase().equals("datetime")) continue;
 
-                String aValue = "";
-
-                if (current3GPPAttrs != null && current3GPPAttrs.containsKey(aAttr)) {
-                    aValue = toCSVFormat(current3GPPAttrs.get(aAttr));
-                } else {
-                    //Only take the current Attri but maitain the order in 
-                    //a3GPPAtrr i.e. moThreeGPPAttrMap
-                    continue;
-                }
-                threeGPPAttrValues.put(aAttr, aValue);
-            }
+            context.threeGPPAttrValues.put(aAttr, current3GPPAttrs.valueAt(i));
         }
     }
 
@@ -1457,177 +3833,162 @@ public class BodaBulkCMParser {
     public void processVendorAttributes() {
 
         //Skip if the mo is not in the parameterFile
-        if (parameterFile != null && !moColumns.containsKey(vsDataType)) {
+        if (parameterFile != null && !moColumns.containsKey(context.vsDataType)) {
             return;
         }
 
-        String paramNames = "FILENAME,DATETIME";
-        String paramValues = bulkCMXMLFileBasename + "," + dateTime;
+        writeVendorAttributes(context.vsDataType, context.vsDataTypeSymbol.threeGPPName,
+                context.fileBasename, context.dateTime,
+                collectVendorParentIds(), context.vsDataTypeStack, context.threeGPPAttrValues);
+    }
 
+    /**
+     * Collect the IDs of the current vendor specific MO and its parents.
+     *
+     * @return Map of parent ID names to their values
+     * @since 2.3.0
+     */
+    private Map<String, String> collectVendorParentIds() {
         Map<String, String> parentIdValues = new LinkedHashMap<String, String>();
 
         //Parent MO IDs
-        for (int i = 0; i < xmlTagStack.size(); i++) {
+        for (int i = 0; i < context.xmlTagStack.size(); i++) {
 
             //Get parent tag from the stack
-            String parentMO = xmlTagStack.get(i).toString();
+            String parentMO = context.xmlTagStack.get(i).toString();
 
             //The depth at each XML tag in xmlTagStack is given by index+1. 
             int depthKey = i + 1;
 
             //If the parent tag is VsDataContainer, look for the 
             //vendor specific MO in the vsDataContainer-to-vsDataType map.
-            if (parentMO.startsWith("VsDataContainer")) {
-                parentMO = vsDataContainerTypeMap.get(parentMO);
-            }
-
-            Map<String, String> m = null;
-            if (xmlAttrStack.containsKey(depthKey)) m = xmlAttrStack.get(depthKey);
-
-            if (null == m || m.isEmpty()) {
-                continue;
-            }
-            Iterator<Map.Entry<String, String>> aIter
-                    = xmlAttrStack.get(depthKey).entrySet().iterator();
-
-            //If we dont't want to separate the vsDataMo from the 3GPP mos
-            //strip vsData From the MOs Ids ie.e vsDataSomeMO_id becomes SomeMO_id
-            if (separateVendorAttributes == false) {
-                parentMO = parentMO.replace("vsData", "vs");
-            }
-
-            while (aIter.hasNext()) {
-                Map.Entry<String, String> meMap = aIter.next();
-
-                String pValue = toCSVFormat(meMap.getValue());
-                String pName = parentMO + "_" + meMap.getKey();
-
-                parentIdValues.put(pName, pValue);
-
-            }
-        }
-
-        
-        //3GPP MO. It has been moved her for use in combining attr that exist in 
-        //the vendor attr and 3GPP attr list
-        String threeGGPMo = vsDataType.replace("vsData", "");
-        
-        //Check for if 3GPP ofr MO exists
-        Boolean tgppExists = moThreeGPPAttrMap.containsKey(threeGGPMo);
-        
-        //Get the 3GPP attributes
-        Stack _3gppAttr = new Stack();
-        if (!moThreeGPPAttrMap.isEmpty() && moThreeGPPAttrMap.containsKey(threeGGPMo)){
-            _3gppAttr = moThreeGPPAttrMap.get(threeGGPMo);
-        }
-        
-        //Make copy of the columns first i.e the vendor attributes
-        Stack columns = new Stack();
-
-        columns = moColumns.get(vsDataType);
-
-        //Iterate through the columns already collected
-        for (int i = 0; i < columns.size(); i++) {
-            String pName = columns.get(i).toString();
-
-            //This strips vsData from vsDataSomeMO_Attribute e.g
-            //vsDataGsmCell_id becaomes GsmCell_id
-            if (separateVendorAttributes == false) {
-                //Skip vsDataSomeMO_Id
-                //if( pName.equals(vsDataType + "_id") ) continue;
-
-                //Remove vsData from vsDataSomeMO_id to vsSomeMO_id
-                pName = pName.replace("vsData", "vs");
+            if (context.xmlTagStack.isContainer(i)) {
+                parentMO = context.vsDataContainerTypeMap.get(parentMO);
             }
 
-
-            //Skip parent parameters/ parentIds listed in the parameter file
-//            if( parameterFile != null && moColumnsParentIds.get(vsDataType).contains(pName)) continue;
-
-            if (pName.equals("FILENAME") || pName.equals("DATETIME")) continue;
-
-            String pValue = "";
-
-            //Check parameter ids fro parameter name
-            if (parentIdValues.containsKey(pName)) {
-                pValue = parentIdValues.get(pName);
+            AttributeStack.Frame frame = context.xmlAttrStack.get(depthKey);
+            if (null == frame || frame.isEmpty()) {
+                continue;
             }
 
-            //
-            if (vsDataTypeStack.containsKey(pName)) {
-                pValue = toCSVFormat(vsDataTypeStack.get(pName));
+            //If we dont't want to separate the vsDataMo from the 3GPP mos
+            //strip vsData From the MOs Ids ie.e vsDataSomeMO_id becomes SomeMO_id
+            if (separateVendorAttributes == false) {
+                parentMO = parentMO.replace("vsData", "vs");
             }
 
-            //Handle parameters that exist in 3GGP attr list too i.e in moThreeGPPAttrMap
-            if(pValue.length() == 0 && _3gppAttr.contains(pName)){
-                if (threeGPPAttrValues.containsKey(pName)) pValue = threeGPPAttrValues.get(pName);
+            for (int j = 0; j < frame.size(); j++) {
+                String pName = parentMO + "_" + frame.keyAt(j);
+                parentIdValues.put(pName, frame.valueAt(j));
+
             }
-            
-            paramNames = paramNames + "," + pName;
-            paramValues = paramValues + "," + pValue;
         }
 
-        //If we dont't want to separate the vsDataMo from the 3GPP mos
-        //strip vsData From the MOs, we must print the 3GPP mos here .
-        //Get the parameter names and values of the 3GPP MOs
-        //@TODO: Handle parameter file
-        
-        //String threeGGPMo = vsDataType.replace("vsData", "");
-        
-        //Replace to fix bug
-        //if (separateVendorAttributes == false && xmlTagStack.contains(threeGGPMo)) {
-        if (separateVendorAttributes == false && moThreeGPPAttrMap.containsKey(threeGGPMo)) {
-            
-            //Moved to the top just before collecting the vendor attribute values
-            //Stack _3gppAttr = new Stack();
-            //if (!moThreeGPPAttrMap.isEmpty() && moThreeGPPAttrMap.containsKey(threeGGPMo)){
-            //    _3gppAttr = moThreeGPPAttrMap.get(threeGGPMo);
-            //}
-            for (int idx = 0; idx < _3gppAttr.size(); idx++) {
-                String pName = _3gppAttr.get(idx).toString();
-                String pValue = "";
+        return parentIdValues;
+    }
 
-                //Skip parameters that already exist in the vendor attr list 
-                if(columns.contains(pName)) continue;
-                
-                //Skip _id  and bulkCmConfigDataFile_schemaLocationfileds
-                if (pName.endsWith("_id") || pName.equals("bulkCmConfigDataFile_schemaLocation")) continue;
+    /**
+     * Write a vendor specific MO row.
+     *
+     * @param vsDataType The vendor specific MO
+     * @param threeGGPMo The vendor specific MO without vsData i.e. its 3GPP MO
+     * @param fileBasename Value of the FILENAME column
+     * @param fileDateTime Value of the DATETIME column
+     * @param parentIdValues The MO and parent IDs
+     * @param vsDataTypeStack The MO's vendor specific attributes
+     * @param threeGPPAttrValues Attributes of the matching 3GPP MO
+     * @since 2.3.0
+     */
+    private void writeVendorAttributes(String vsDataType, String threeGGPMo, String fileBasename,
+            String fileDateTime, Map<String, String> parentIdValues,
+            Map<String, String> vsDataTypeStack,
+            Map<String, String> threeGPPAttrValues) {
 
-                if (threeGPPAttrValues.containsKey(pName)) pValue = threeGPPAttrValues.get(pName);
+        String csvFileName = getVendorCsvFileName(vsDataType);
+        if (rewriteVendorFiles != null && !rewriteVendorFiles.contains(csvFileName)) return;
 
-                paramNames = paramNames + "," + pName;
-                paramValues = paramValues + "," + pValue;
+        RowLayout layout = getVendorRowLayout(vsDataType, threeGGPMo);
+        layout.clearRow();
+
+        //Parent IDs
+        Iterator<Map.Entry<String, String>> iter = parentIdValues.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, String> me = iter.next();
+            int[] slots = layout.slotsOf(me.getKey());
+            for (int i = 0; i < slots.length; i++) {
+                if (layout.getKind(slots[i]) != THREE_GPP_ATTR) layout.set(slots[i], me.getValue());
             }
         }
-        String csvFileName = vsDataType;
-
-        //Remove vsData if we don't want to separate the 3GPP and vendor attributes
-        if (separateVendorAttributes == false) csvFileName = csvFileName.replace("vsData", "");
 
-        //Write the parameters and values to files.
-        PrintWriter pw = null;
-        if (!outputVsDataTypePWMap.containsKey(csvFileName)) {
+        //Vendor attributes
+        iter = vsDataTypeStack.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, String> me = iter.next();
+            int[] slots = layout.slotsOf(me.getKey());
+            if (slots.length == 0) continue;
 
-            String renamedFileName = csvFileName;
-            if (System.getProperty("os.name").startsWith("Windows")) {
-                if (MoToFileNameMap.containsKey(csvFileName)) renamedFileName = MoToFileNameMap.get(csvFileName);
+            for (int i = 0; i < slots.length; i++) {
+                if (layout.getKind(slots[i]) != THREE_GPP_ATTR) layout.set(slots[i], me.getValue());
             }
+        }
 
-            String moFile = outputDirectory + File.separatorChar + renamedFileName + ".csv";
-            try {
-                outputVsDataTypePWMap.put(csvFileName, new PrintWriter(new File(moFile)));
-                outputVsDataTypePWMap.get(csvFileName).println(paramNames);
-            } catch (FileNotFoundException e) {
-                //@TODO: Add logger
-                System.err.println(e.getMessage());
+        //Handle parameters that exist in 3GGP attr list too i.e in moThreeGPPAttrMap
+        //and the 3GPP attributes added when the vendor attributes are not separated
+        iter = threeGPPAttrValues.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, String> me = iter.next();
+            int[] slots = layout.slotsOf(me.getKey());
+            for (int i = 0; i < slots.length; i++) {
+                int slot = slots[i];
+                if (layout.getKind(slot) == VENDOR_ATTR) continue;
+
+                String pValue = layout.get(slot);
+                if (layout.getKind(slot) == THREE_GPP_ATTR || pValue == null || pValue.length() == 0) {
+                    layout.set(slot, me.getValue());
+                }
             }
         }
 
-        pw = outputVsDataTypePWMap.get(csvFileName);
-        pw.println(paramValues);
+        //Write the parameters and values to files.
+        try {
+            sink().row(RecordSink.VENDOR, csvFileName, fileBasename, fileDateTime, layout);
+        } catch (IOException e) {
+            //@TODO: Add logger
+            System.err.println(e.getMessage());
+        }
+    }
+
 
+    /**
+     * Get the csv file name of a vendor specific MO without the extension.
+     *
+     * @param vsDataType
+     * @return String
+     * @since 2.3.0
+     */
+    private String getVendorCsvFileName(String vsDataType) {
+        //Remove vsData if we don't want to separate the 3GPP and vendor attributes
+        if (separateVendorAttributes == false) return vsDataType.replace("vsData", "");
+        return vsDataType;
     }
 
+    /**
+     * Get the path of an MO's csv file.
+     *
+     * @param csvFileName The csv file name without the extension
+     * @return String
+     * @since 2.3.0
+     */
+    private String getMOFile(String csvFileName) {
+        //Rename conflicting csv files on windows
+        String renamedFileName = csvFileName;
+        if (System.getProperty("os.name").startsWith("Windows")) {
+            if (MoToFileNameMap.containsKey(csvFileName)) renamedFileName = MoToFileNameMap.get(csvFileName);
+        }
+
+        return outputDirectory + File.separatorChar + renamedFileName + ".csv"
+                + (outputCompression != null ? ".gz" : "");
+    }
 
     /**
      * Update the map of 3GPP MOs to attributes.
@@ -1637,53 +3998,50 @@ public class BodaBulkCMParser {
      * @since 1.3.0
      */
     private void updateThreeGPPAttrMap() {
-        if (xmlTagStack == null || xmlTagStack.isEmpty()) return;
+        if (context.xmlTagStack == null || context.xmlTagStack.isEmpty()) return;
 
-        String mo = xmlTagStack.peek().toString();
+        String mo = context.xmlTagStack.peek().toString();
 
         //Skip 3GPP MO if it is not in the parameter file
         if (parameterFile != null && !moThreeGPPAttrMap.containsKey(mo)) return;
 
         //Hold the current 3GPP attributes
-        HashMap<String, String> tgppAttrs = null;
+        AttributeStack.Frame tgppAttrs = null;
 
-        Stack attrs = new Stack();
+        ColumnRegistry attrs = null;
 
         //Initialize if the MO does not exist
         if (!moThreeGPPAttrMap.containsKey(mo)) {
-            moThreeGPPAttrMap.put(mo, new Stack());
+            moThreeGPPAttrMap.put(mo, new ColumnRegistry());
         }
 
         //The attributes stack can be empty if the MO has no 3GPP attributes
-        if (threeGPPAttrStack.isEmpty() || threeGPPAttrStack.get(depth) == null) {
+        tgppAttrs = context.threeGPPAttrStack.get(context.depth);
+        if (tgppAttrs == null) {
             return;
         }
-        tgppAttrs = (LinkedHashMap<String, String>) threeGPPAttrStack.get(depth);
 
         attrs = moThreeGPPAttrMap.get(mo);
 
 
         //Add Parent IDs as parameters
-        for (int i = 0; i < xmlTagStack.size(); i++) {
-            String parentMO = xmlTagStack.get(i).toString();
+        for (int i = 0; i < context.xmlTagStack.size(); i++) {
+            String parentMO = context.xmlTagStack.get(i).toString();
 
             //The depth at each xml tag index is  index+1 
             int depthKey = i + 1;
 
             //Iterate through the XML attribute tags for the element.
-            if (xmlAttrStack.get(depthKey) == null) {
+            AttributeStack.Frame frame = context.xmlAttrStack.get(depthKey);
+            if (frame == null) {
                 continue; //Skip null values
             }
 
-            Iterator<Map.Entry<String, String>> mIter
-                    = xmlAttrStack.get(depthKey).entrySet().iterator();
-
-            while (mIter.hasNext()) {
-                Map.Entry<String, String> meMap = mIter.next();
-                String pName = parentMO + "_" + meMap.getKey();
+            for (int j = 0; j < frame.size(); j++) {
+                String pName = parentMO + "_" + frame.keyAt(j);
 
-                if (!attrs.contains(pName) && parameterFile == null) {
-                    attrs.push(pName);
+                if (parameterFile == null) {
+                    attrs.add(pName);
                 }
             }
         }
@@ -1691,20 +4049,16 @@ public class BodaBulkCMParser {
 
         if (tgppAttrs != null) {
             //Get vendor specific attributes
-            Iterator<Map.Entry<String, String>> iter
-                    = tgppAttrs.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, String> me = iter.next();
-                String parameter = me.getKey();
+            for (int j = 0; j < tgppAttrs.size(); j++) {
+                String parameter = tgppAttrs.keyAt(j);
 
                 //Only add missing parameter is a paramterFile was not specified.
                 //The parameter file parameter list is our only interest in this 
                 //case
-                if (!attrs.contains(parameter) && parameterFile == null) {
-                    attrs.push(parameter);
+                if (parameterFile == null) {
+                    attrs.add(parameter);
                 }
             }
-            moThreeGPPAttrMap.replace(mo, attrs);
         }
     }
 
@@ -1714,69 +4068,57 @@ public class BodaBulkCMParser {
     private void collectVendorMOColumns() {
 
         //If MO is not in the parameter list, then don't continue
-        if (parameterFile != null && !moColumns.containsKey(vsDataType)) return;
+        if (parameterFile != null && !moColumns.containsKey(context.vsDataType)) return;
 
-        if (!moColumns.containsKey(vsDataType)) {
-            moColumns.put(vsDataType, new Stack());
-            moColumnsParentIds.put(vsDataType, new Stack()); //Holds parent element IDs
+        if (!moColumns.containsKey(context.vsDataType)) {
+            moColumns.put(context.vsDataType, new ColumnRegistry());
+            moColumnsParentIds.put(context.vsDataType, new ColumnRegistry()); //Holds parent element IDs
         }
 
-        Stack s = moColumns.get(vsDataType);
-        Stack parentIDStack = moColumnsParentIds.get(vsDataType);
+        ColumnRegistry s = moColumns.get(context.vsDataType);
+        ColumnRegistry parentIDStack = moColumnsParentIds.get(context.vsDataType);
 
         //
         //Parent IDs
-        for (int i = 0; i < xmlTagStack.size(); i++) {
-            String parentMO = xmlTagStack.get(i).toString();
+        for (int i = 0; i < context.xmlTagStack.size(); i++) {
+            String parentMO = context.xmlTagStack.get(i).toString();
 
             //If the parent tag is VsDataContainer, look for the 
             //vendor specific MO in the vsDataContainer-to-vsDataType map.
-            if (parentMO.startsWith("VsDataContainer")) {
-                parentMO = vsDataContainerTypeMap.get(parentMO);
+            if (context.xmlTagStack.isContainer(i)) {
+                parentMO = context.vsDataContainerTypeMap.get(parentMO);
             }
 
             //The depth at each xml tag index is  index+1 
             int depthKey = i + 1;
 
             //Iterate through the XML attribute tags for the element.
-            if (xmlAttrStack.get(depthKey) == null) {
+            AttributeStack.Frame frame = context.xmlAttrStack.get(depthKey);
+            if (frame == null) {
                 continue; //Skip null values
             }
 
-            Iterator<Map.Entry<String, String>> mIter
-                    = xmlAttrStack.get(depthKey).entrySet().iterator();
-
-            while (mIter.hasNext()) {
-                Map.Entry<String, String> meMap = mIter.next();
-                //String pName = meMap.getKey();
-                String pName = parentMO + "_" + meMap.getKey();
+            for (int j = 0; j < frame.size(); j++) {
+                String pName = parentMO + "_" + frame.keyAt(j);
 
-                if (parentIDStack.search(pName) < 0) {
-                    parentIDStack.push(pName);
-                }
+                parentIDStack.add(pName);
 
-                if (parameterFile == null && !s.contains(pName)) {
-                    s.push(pName);
+                if (parameterFile == null) {
+                    s.add(pName);
                 }
             }
         }
 
-        moColumnsParentIds.replace(vsDataType, parentIDStack);
-
         //Only update hte moColumns list if the parameterFile is not set
         //else use the list provided in the parameterFile
         if (parameterFile == null) {
             //Get vendor specific attributes
             Iterator<Map.Entry<String, String>> iter
-                    = vsDataTypeStack.entrySet().iterator();
+                    = context.vsDataTypeStack.entrySet().iterator();
             while (iter.hasNext()) {
                 Map.Entry<String, String> me = iter.next();
-                String parameter = me.getKey();
-                if (!s.contains(parameter)) {
-                    s.push(parameter);
-                }
+                s.add(me.getKey());
             }
-            moColumns.replace(vsDataType, s);
         }
 
     }
@@ -1789,23 +4131,548 @@ public class BodaBulkCMParser {
      * @since 1.0.0
      */
     public String toCSVFormat(String s) {
-        String csvValue = s;
+        if (s == null) return "\"\"";
+
+        //Values with a comma, a quote or a line break are quoted and their
+        //quotes doubled. Other values are returned as they are.
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                StringBuilder sb = new StringBuilder(n + 8);
+                sb.append('"').append(s, 0, i);
+                for (; i < n; i++) {
+                    c = s.charAt(i);
+                    if (c == '"') sb.append('"');
+                    sb.append(c);
+                }
+                return sb.append('"').toString();
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Open a csv file for writing.
+     * <p>
+     * A compressed file opened in append mode gets another gzip member.
+     * Gzip readers read the members as one file.
+     *
+     * @param filename
+     * @param append Add to the end of the file
+     * @since 2.3.0
+     */
+    private OutputStream openOutputFile(String filename, boolean append) throws IOException {
+        if (outputBuffers == null) outputBuffers = new OutputBufferBudget(outputMemory);
+
+        OutputStream out = outputBuffers.open(filename, append);
+        if (outputCompression != null) {
+            try {
+                out = new ParallelGzipOutputStream(out, getCompressionExecutor());
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+        }
+
+        if (!pipeline) return out;
+
+        if (outputPipeline == null) outputPipeline = new OutputPipeline();
+        return outputPipeline.open(out);
+    }
+
+    /**
+     * Get the threads deflating the compressed csv files, or null if the
+     * csv files are not compressed.
+     *
+     * @since 2.3.0
+     */
+    private ExecutorService getCompressionExecutor() {
+        if (outputCompression == null) return null;
+
+        if (compressionExecutor == null) {
+            compressionExecutor = ParallelGzipOutputStream.newExecutor(Runtime.getRuntime().availableProcessors());
+        }
+        return compressionExecutor;
+    }
+
+    /**
+     * Open the input file as a channel.
+     *
+     * @param inputFilename
+     * @since 2.3.0
+     */
+    private ReadableByteChannel openInputChannel(String inputFilename) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(inputFilename), StandardOpenOption.READ);
+        return pipeline ? new ReadAheadChannel(channel) : channel;
+    }
+
+    /**
+     * Set the sink taking the rows instead of the csv files. The parser
+     * parses with one thread when a sink is set.
+     *
+     * @param recordSink Null to write the csv files
+     * @since 2.3.0
+     */
+    public void setRecordSink(RecordSink recordSink) {
+        this.recordSink = recordSink;
+    }
+
+    /**
+     * Write only the rows added, changed or deleted since the last run with
+     * the same delta store file.
+     * <p>
+     * The rows get a CHANGE_TYPE column after DATETIME. Rows of the last run
+     * that are not found are written as deleted with their IDs. The parser
+     * parses with one thread in delta mode. See {@link DeltaRecordSink}.
+     *
+     * @param filename The delta store file. Null to write all the rows.
+     * @since 2.3.0
+     */
+    public void setDeltaStoreFile(String filename) {
+        deltaStoreFile = filename;
+    }
+
+    /**
+     * Skip the input files that have not changed since the last run with the
+     * same manifest file and keep their rows in the csv files.
+     * <p>
+     * The rows of changed and removed input files are cut out of the csv
+     * files and the rows of changed and new files are added at the end of
+     * them. The MO parameters are kept in the schema cache, which defaults
+     * to the output directory. A csv file whose columns change is written
+     * again from all the input files. All the input files are parsed if a
+     * csv file has changed since the last run. The manifest is only used
+     * when plain csv files are written, and the parser then parses with one
+     * thread. See {@link RunManifest}.
+     *
+     * @param filename The manifest file. Null to parse all the input files.
+     * @since 2.3.0
+     */
+    public void setManifestFile(String filename) {
+        manifestFile = filename;
+    }
+
+    /**
+     * Save a checkpoint now and then so that a run that dies can be resumed
+     * with {@link #setResume(boolean)}.
+     * <p>
+     * A checkpoint is saved after a file or an outermost MeContext or
+     * ManagedElement once the checkpoint interval has passed, and when the
+     * parameter extraction pass ends. Files the Bulk CM tokenizer supports
+     * are parsed with it so that the checkpoint can be in the middle of a
+     * file. The checkpoint file is deleted when the run finishes.
+     * Checkpoints are only kept when plain csv files are written without a
+     * manifest, and the parser then parses with one thread. See
+     * {@link Checkpoint}.
+     *
+     * @param filename The checkpoint file. Null to parse without
+     * checkpoints.
+     * @since 2.3.0
+     */
+    public void setCheckpointFile(String filename) {
+        checkpointFile = filename;
+    }
+
+    /**
+     * Set the number of seconds between checkpoints. 0 saves a checkpoint
+     * after each file and network element.
+     *
+     * @param seconds
+     * @since 2.3.0
+     */
+    public void setCheckpointInterval(int seconds) {
+        checkpointInterval = Math.max(0, seconds);
+    }
+
+    /**
+     * Continue from the checkpoint file of a run that did not finish. The
+     * csv files are truncated to their lengths at the checkpoint. The run
+     * starts from the beginning if there is no checkpoint or the input has
+     * changed since.
+     *
+     * @param resume
+     * @since 2.3.0
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Get the sink taking the rows.
+     *
+     * @since 2.3.0
+     */
+    private RecordSink sink() {
+        if (deltaSink != null) return deltaSink;
+        return recordSink != null ? recordSink : csvSink;
+    }
+
+    /**
+     * Start the manifest of the run. The unchanged input files of the last
+     * run are skipped if the MO parameters were loaded from the schema cache
+     * and the csv files still hold the rows of the last run.
+     *
+     * @since 2.3.0
+     */
+    private void startManifest() throws IOException {
+        manifest = new RunManifest();
+        skippedFiles.clear();
+        appendOutput = false;
+
+        RunManifest previous = RunManifest.load(manifestFile);
+        if (previous == null || !schemaFromCache) return;
+
+        if (!previous.hasRows(outputDirectory)) {
+            System.out.println("The csv files have changed since the last run. Parsing all the files.");
+            return;
+        }
+
+        Set<String> inputFiles = new HashSet<String>();
+        File input = new File(dataSource);
+        File[] fList = input.isDirectory() ? listInputFiles(input) : new File[]{input};
+        for (File f : fList) {
+            if (f.isFile()) inputFiles.add(f.getAbsolutePath());
+        }
+
+        List<RunManifest.Entry> kept = new ArrayList<RunManifest.Entry>();
+        List<RunManifest.Entry> removed = new ArrayList<RunManifest.Entry>();
+        for (RunManifest.Entry e : previous.entries()) {
+            if (inputFiles.contains(e.path) && RunManifest.isUnchanged(e, new File(e.path))) {
+                kept.add(e);
+            } else {
+                removed.add(e);
+            }
+        }
+
+        RunManifest.cutRows(outputDirectory, removed, kept);
+        for (RunManifest.Entry e : kept) {
+            manifest.add(e);
+            skippedFiles.add(e.path);
+        }
+        appendOutput = true;
+
+        if (!kept.isEmpty()) System.out.println("Skipping " + kept.size() + " unchanged files.");
+    }
+
+    /**
+     * Check whether an input file is skipped because it has not changed.
+     * No files are skipped while csv files are written again.
+     *
+     * @param filename
+     * @since 2.3.0
+     */
+    private boolean skipUnchangedFile(String filename) {
+        if (skippedFiles.isEmpty() || rewrite3GPPFiles != null || rewriteVendorFiles != null) return false;
+        return skippedFiles.contains(new File(filename).getAbsolutePath());
+    }
+
+    /**
+     * Pass over an unchanged input file. Its fileFooter dateTime is still
+     * taken so that a following file without one gets the same dateTime.
+     *
+     * @param filename
+     * @since 2.3.0
+     */
+    private void skipFile(String filename) {
+        String footerDateTime = readFooterDateTime(filename);
+        if (footerDateTime != null) context.dateTime = footerDateTime;
+        System.out.println("Skipping unchanged " + getFileBasename(filename) + ".");
+    }
+
+    /**
+     * Make the manifest entry taking the rows of an input file.
+     *
+     * @param filename
+     * @since 2.3.0
+     */
+    private void startManifestEntry(String filename) throws IOException {
+        if (manifest == null) return;
+
+        File f = new File(filename);
+        if (!f.isFile()) return;
+
+        //The entry of a file whose rows of some csv files are written again
+        //keeps the rows of the other csv files
+        manifestEntry = manifest.get(f.getAbsolutePath());
+        if (manifestEntry == null || (rewrite3GPPFiles == null && rewriteVendorFiles == null)) {
+            manifestEntry = manifest.add(f);
+        }
+    }
+
+    /**
+     * Start keeping checkpoints, continuing from the last checkpoint if the
+     * run is resumed.
+     *
+     * @return True if the run continues from a checkpoint
+     * @since 2.3.0
+     */
+    private boolean startCheckpoint() throws IOException {
+        checkpoint = resume ? loadCheckpoint() : null;
+        boolean resumed = checkpoint != null;
+        if (!resumed) checkpoint = new Checkpoint(new File(dataSource).getAbsolutePath());
+
+        lastCheckpointTime = System.currentTimeMillis();
+        return resumed;
+    }
+
+    /**
+     * Load the checkpoint and the MO parameters found by the run it is of,
+     * and truncate the csv files to their lengths at the checkpoint.
+     *
+     * @return The checkpoint or null if the run cannot be resumed
+     * @since 2.3.0
+     */
+    private Checkpoint loadCheckpoint() throws IOException {
+        Checkpoint cp = Checkpoint.load(checkpointFile);
+        if (cp == null) {
+            System.out.println("No checkpoint found in " + checkpointFile + ". Parsing from the start.");
+            return null;
+        }
+
+        if (!cp.dataSource.equals(new File(dataSource).getAbsolutePath())) {
+            System.err.println("WARNING: The checkpoint is of another input. Parsing from the start.");
+            return null;
+        }
+        if (!cp.isCurrentFileUnchanged()) {
+            System.err.println("WARNING: " + cp.currentFile + " has changed since the checkpoint. Parsing from the start.");
+            return null;
+        }
+
+        Map<String, ColumnRegistry> threeGPPAttrs = new LinkedHashMap<String, ColumnRegistry>();
+        Map<String, ColumnRegistry> columns = new LinkedHashMap<String, ColumnRegistry>();
+        Map<String, ColumnRegistry> parentIds = new LinkedHashMap<String, ColumnRegistry>();
+        if (!SchemaCache.load(Checkpoint.schemaFilename(checkpointFile), threeGPPAttrs, columns, parentIds)) {
+            System.err.println("WARNING: Cannot load the MO parameters of the checkpoint. Parsing from the start.");
+            return null;
+        }
+
+        if (!cp.truncate(outputDirectory)) {
+            System.err.println("WARNING: The csv files are shorter than at the checkpoint. Parsing from the start.");
+            return null;
+        }
+
+        moThreeGPPAttrMap = threeGPPAttrs;
+        moColumns = columns;
+        moColumnsParentIds = parentIds;
+        cachedSchemaSizes.clear();
+        if (cp.cachedSchemaSizes != null) cachedSchemaSizes.putAll(cp.cachedSchemaSizes);
+        schemaFromCache = cp.cachedSchemaSizes != null;
+        parserState = Checkpoint.VALUES.equals(cp.pass)
+                ? ParserStates.EXTRACTING_VALUES : ParserStates.EXTRACTING_PARAMETERS;
+        context.dateTime = cp.dateTime;
+
+        System.out.println("Resuming from " + checkpointFile + ". " + cp.parsedFiles.size() + " files parsed.");
+        return cp;
+    }
+
+    /**
+     * Save a checkpoint. The csv files are flushed first and their lengths
+     * are the bytes written to them so far.
+     *
+     * @since 2.3.0
+     */
+    private void saveCheckpoint() throws IOException {
+        outputWriters.flushAll();
+        if (outputPipeline != null) outputPipeline.sync();
+        csvSink.setCheckpointLengths();
+
+        checkpoint.pass = parserState == ParserStates.EXTRACTING_PARAMETERS
+                ? Checkpoint.PARAMETERS : Checkpoint.VALUES;
+        checkpoint.dateTime = context.dateTime;
+        checkpoint.cachedSchemaSizes = schemaFromCache ? new LinkedHashMap<String, Integer>(cachedSchemaSizes) : null;
+
+        SchemaCache.save(Checkpoint.schemaFilename(checkpointFile), moThreeGPPAttrMap, moColumns, moColumnsParentIds);
+        checkpoint.save(checkpointFile, outputDirectory);
+        lastCheckpointTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Save a checkpoint if the checkpoint interval has passed.
+     *
+     * @since 2.3.0
+     */
+    private void saveCheckpointIfDue() throws IOException {
+        if (System.currentTimeMillis() - lastCheckpointTime >= checkpointInterval * 1000L) saveCheckpoint();
+    }
+
+    /**
+     * Check whether an input file was parsed by the pass before the
+     * checkpoint the run continues from.
+     *
+     * @param filename
+     * @since 2.3.0
+     */
+    private boolean parsedBeforeCheckpoint(String filename) {
+        if (checkpoint == null || rewrite3GPPFiles != null || rewriteVendorFiles != null) return false;
+        return checkpoint.parsedFiles.contains(new File(filename).getAbsolutePath());
+    }
+
+    /**
+     * Take an input file the pass has parsed into the checkpoint.
+     *
+     * @param filename
+     * @since 2.3.0
+     */
+    private void checkpointParsedFile(String filename) throws IOException {
+        if (checkpoint == null || rewrite3GPPFiles != null || rewriteVendorFiles != null) return;
+
+        checkpoint.fileParsed(new File(filename).getAbsolutePath());
+        saveCheckpointIfDue();
+    }
+
+    /**
+     * Parse a file with checkpoints after its outermost MeContext and
+     * ManagedElement elements, starting after the last one parsed before the
+     * checkpoint the run continues from.
+     * <p>
+     * The ends of the elements are taken as they are parsed. The network
+     * element index is only used to find the parents of the element to
+     * start after.
+     *
+     * @param inputFilename A file supported by the Bulk CM tokenizer
+     * @since 2.3.0
+     */
+    private void parseCheckpointedFile(String inputFilename) throws XMLStreamException, IOException {
+        context.fileBasename = getFileBasename(inputFilename);
+
+        File file = new File(inputFilename);
+        long start = checkpoint.startOffset(file);
+
+        FileSplitter.Piece piece;
+        if (start > 0) {
+            piece = NetworkElementIndex.get(inputFilename, indexDirectory).piece(inputFilename, start);
+            if (piece == null) {
+                throw new IOException("The checkpoint of " + inputFilename + " is not at the end of a network element");
+            }
+        } else {
+            piece = new FileSplitter.Piece(0, file.length(), new byte[0]);
+        }
+
+        ReadableByteChannel channel = piece.open(inputFilename);
+        BulkCMTokenizer tokenizer = new BulkCMTokenizer(pipeline ? new ReadAheadChannel(channel) : channel);
+        try {
+            if (piece.prefixLength() > 0) {
+                //The prefix opens the parents of the rest of the file
+                parseTokens(tokenizer, piece.prefixLength());
+                context.threeGPPAttrValues.clear();
+                context.tagData = "";
+            }
+
+            //Offsets in the file are moved by the prefix
+            context.checkpointedFile = file;
+            context.checkpointedFileOffset = piece.start - piece.prefixLength();
+            parseTokens(tokenizer);
+        } finally {
+            context.checkpointedFile = null;
+            tokenizer.close();
+        }
+    }
+
+    /**
+     * Save the manifest of the run.
+     *
+     * @since 2.3.0
+     */
+    private void finishManifest() throws IOException {
+        if (manifest == null) return;
+
+        try {
+            manifest.save(manifestFile, outputDirectory);
+        } finally {
+            manifest = null;
+            manifestEntry = null;
+            skippedFiles.clear();
+            appendOutput = false;
+        }
+    }
+
+    /**
+     * Writes the rows to the csv files in the output directory.
+     * <p>
+     * 3GPP MO files are keyed by "3GPP:" and the MO, vendor specific MO files
+     * by "vsData:" and the csv file name. The header is written when a file
+     * is created.
+     *
+     * @since 2.3.0
+     */
+    private class CsvRecordSink implements RecordSink {
+
+        /**
+         * Names and sizes of the csv files by key. They are only kept for
+         * the manifest and the checkpoints.
+         */
+        private final Map<String, Object[]> csvFiles = new HashMap<String, Object[]>();
+
+        @Override
+        public void row(int kind, String table, String fileBasename, String fileDateTime, RowLayout row) throws IOException {
+            String key = (kind == THREE_GPP ? "3GPP:" : "vsData:") + table;
+            try {
+                OutputStream out = outputWriters.get(key);
+                if (out == null) {
+                    File file = new File(getMOFile(table));
+                    long size;
+                    boolean append = appendOutput || (checkpoint != null && checkpoint.hasCsvFile(file.getName()));
+                    if (append && file.isFile()) {
+                        out = outputWriters.append(key, file.getPath());
+                        size = file.length();
+                    } else {
+                        out = outputWriters.create(key, file.getPath());
+                        csvEncoder.append(row.getHeader()).newLine();
+                        size = csvEncoder.size();
+                        csvEncoder.writeTo(out);
+                    }
+                    if (manifest != null || checkpoint != null) csvFiles.put(key, new Object[]{file.getName(), size});
+                    if (checkpoint != null) checkpoint.addCsvFile(file.getName());
+                }
+
+                csvEncoder.appendRow(fileBasename, fileDateTime, row).newLine();
+                if (manifest != null || checkpoint != null) addRow(key, csvEncoder.size());
+                csvEncoder.writeTo(out);
+            } catch (IOException e) {
+                csvEncoder.reset();
+                throw e;
+            }
+        }
 
-        if (s == null) {
-            csvValue = "\"\"";
-            return csvValue;
+        /**
+         * Add a row to the size of its csv file and to the manifest entry of
+         * the input file.
+         *
+         * @param key
+         * @param length Bytes of the row
+         */
+        private void addRow(String key, int length) {
+            Object[] csvFile = csvFiles.get(key);
+            long start = (Long) csvFile[1];
+            csvFile[1] = start + length;
+            if (manifestEntry != null) manifestEntry.addRow((String) csvFile[0], start, start + length);
         }
 
-        //Check if value contains comma
-        if (s.contains(",")) {
-            csvValue = "\"" + s + "\"";
+        /**
+         * Set the lengths of the csv files in the checkpoint to the bytes
+         * written to them.
+         */
+        void setCheckpointLengths() {
+            Iterator<Object[]> iter = csvFiles.values().iterator();
+            while (iter.hasNext()) {
+                Object[] csvFile = iter.next();
+                checkpoint.setCsvLength((String) csvFile[0], (Long) csvFile[1]);
+            }
         }
 
-        if (s.contains("\"")) {
-            csvValue = "\"" + s.replace("\"", "\"\"") + "\"";
+        @Override
+        public void discard(int kind, String table) {
+            File file = new File(getMOFile(table));
+            file.delete();
+            if (manifest != null) manifest.removeRows(file.getName());
+            if (checkpoint != null) checkpoint.removeCsvFile(file.getName());
         }
 
-        return csvValue;
+        @Override
+        public void close() {
+            closeMOPWMap();
+        }
     }
 
     /**
@@ -1815,20 +4682,29 @@ public class BodaBulkCMParser {
      * @since 1.0.0
      */
     public void closeMOPWMap() {
-        Iterator<Map.Entry<String, PrintWriter>> iter
-                = outputVsDataTypePWMap.entrySet().iterator();
-        while (iter.hasNext()) {
-            iter.next().getValue().close();
+        try {
+            outputWriters.closeAll();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+
+        //Wait for the writer thread to write the closed files
+        if (outputPipeline != null) {
+            try {
+                outputPipeline.close();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+            outputPipeline = null;
         }
-        outputVsDataTypePWMap.clear();
 
-        //Close 3GPP MO files.
-        Iterator<Map.Entry<String, PrintWriter>> mIter
-                = output3GPPMOPWMap.entrySet().iterator();
-        while (mIter.hasNext()) {
-            mIter.next().getValue().close();
+        if (compressionExecutor != null) {
+            compressionExecutor.shutdown();
+            compressionExecutor = null;
         }
-        output3GPPMOPWMap.clear();
+
+        //All the files are closed so the buffers can be let go
+        outputBuffers = null;
     }
 
     /**
@@ -0,0 +1,858 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Byte level tokenizer for 3GPP Bulk CM XML files.
+ * <p>
+ * Bulk CM dumps do not use DTDs, user defined entities or encodings other
+ * than UTF-8. This tokenizer reads the bytes from a FileChannel window
+ * directly and only handles what the dumps use: elements, attributes,
+ * character data, CDATA sections, comments, processing instructions and the
+ * predefined and character entity references.
+ * <p>
+ * Element and attribute names are looked up by their bytes in a name table
+ * so that repeated names do not create new Strings. Character data is only
+ * turned into a String when asked for with getText().
+ * <p>
+ * Use isSupported() to check a file before tokenizing it. Files with a
+ * DOCTYPE or an unsupported encoding should be parsed with StAX.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class BulkCMTokenizer {
+
+    public static final int START_ELEMENT = 1;
+
+    public static final int END_ELEMENT = 2;
+
+    public static final int CHARACTERS = 4;
+
+    /**
+     * Comments and processing instructions.
+     */
+    public static final int OTHER = 5;
+
+    public static final int END_DOCUMENT = 8;
+
+    /**
+     * Number of bytes read from the start of the file by isSupported().
+     */
+    static final int PROLOG_SCAN_SIZE = 64 * 1024;
+
+    static final Pattern ENCODING_PATTERN
+            = Pattern.compile("encoding\\s*=\\s*[\"']([A-Za-z0-9._\\-]+)[\"']");
+
+    private final ReadableByteChannel channel;
+
+    private byte[] buf = new byte[1 << 16];
+
+    /**
+     * Position of the next byte to tokenize in buf.
+     */
+    private int pos = 0;
+
+    /**
+     * Number of valid bytes in buf.
+     */
+    private int limit = 0;
+
+    /**
+     * Number of bytes dropped from the start of buf so far.
+     */
+    private long consumed = 0;
+
+    private boolean eof = false;
+
+    /**
+     * Byte offset of the current token in the input.
+     */
+    private long tokenOffset = 0;
+
+    private final NameTable names = new NameTable();
+
+    /**
+     * Names of the open elements.
+     */
+    private Name[] openElements = new Name[64];
+
+    private int openCount = 0;
+
+    /**
+     * Set when the input can start inside elements.
+     */
+    private boolean fragment = false;
+
+    /**
+     * Set after an empty element tag so that the end element is returned next.
+     */
+    private boolean pendingEnd = false;
+
+    private Name elementName;
+
+    private Name[] attrNames = new Name[16];
+
+    private String[] attrValues = new String[16];
+
+    private int attrCount = 0;
+
+    private int textStart;
+
+    private int textLength;
+
+    /**
+     * Set when the text has entity references, CDATA sections, carriage
+     * returns or non ASCII bytes.
+     */
+    private boolean textNeedsDecoding;
+
+    private boolean textHasNonWhiteSpace;
+
+    private final StringBuilder decodeBuffer = new StringBuilder();
+
+    /**
+     * Create a tokenizer reading from a byte channel.
+     *
+     * @param channel
+     */
+    public BulkCMTokenizer(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Create a tokenizer reading a file through a FileChannel.
+     *
+     * @param filename
+     */
+    public static BulkCMTokenizer open(String filename) throws IOException {
+        return new BulkCMTokenizer(FileChannel.open(Paths.get(filename), StandardOpenOption.READ));
+    }
+
+    /**
+     * Tokenize input that can start inside elements. The end tags of
+     * elements opened before the input are returned as END_ELEMENT without
+     * being matched to a start tag.
+     *
+     * @param fragment
+     */
+    void setFragment(boolean fragment) {
+        this.fragment = fragment;
+    }
+
+    /**
+     * Check whether a file can be tokenized.
+     * <p>
+     * The encoding must be UTF-8 or US-ASCII and there must be no DOCTYPE.
+     *
+     * @param in The start of the input. It is not closed.
+     */
+    public static boolean isSupported(InputStream in) throws IOException {
+        byte[] head = new byte[PROLOG_SCAN_SIZE];
+        int len = 0;
+        int r;
+        while (len < head.length && (r = in.read(head, len, head.length - len)) > 0) {
+            len += r;
+        }
+
+        int start = 0;
+        if (len >= 3 && (head[0] & 0xff) == 0xEF && (head[1] & 0xff) == 0xBB && (head[2] & 0xff) == 0xBF) {
+            start = 3;
+        } else if (len >= 2 && ((head[0] & 0xff) == 0xFE || (head[0] & 0xff) == 0xFF)) {
+            //UTF-16 byte order mark
+            return false;
+        }
+
+        String text = new String(head, start, len - start, StandardCharsets.ISO_8859_1);
+
+        if (text.startsWith("<?xml")) {
+            int declEnd = text.indexOf("?>");
+            if (declEnd < 0) return false;
+            Matcher m = ENCODING_PATTERN.matcher(text.substring(0, declEnd));
+            if (m.find()) {
+                String encoding = m.group(1).toUpperCase(Locale.ENGLISH);
+                if (!encoding.equals("UTF-8") && !encoding.equals("UTF8")
+                        && !encoding.equals("US-ASCII") && !encoding.equals("ASCII")) {
+                    return false;
+                }
+            }
+        }
+
+        //A DOCTYPE can only come before the root element
+        int idx = 0;
+        while ((idx = text.indexOf('<', idx)) >= 0 && idx + 1 < text.length()) {
+            char c = text.charAt(idx + 1);
+            if (text.startsWith("<!DOCTYPE", idx)) return false;
+            if (c == '?' || c == '!') {
+                idx++;
+                continue;
+            }
+            return true;
+        }
+        return true;
+    }
+
+    /**
+     * Move to the next token.
+     *
+     * @return START_ELEMENT, END_ELEMENT, CHARACTERS, OTHER or END_DOCUMENT
+     */
+    public int next() throws XMLStreamException, IOException {
+        if (pendingEnd) {
+            pendingEnd = false;
+            openCount--;
+            return END_ELEMENT;
+        }
+
+        if (pos >= limit && !ensure(1)) {
+            if (openCount > 0) {
+                throw error("Unexpected end of document. Element " + openElements[openCount - 1].qName + " is not closed");
+            }
+            return END_DOCUMENT;
+        }
+
+        tokenOffset = consumed + pos;
+
+        if (buf[pos] != '<' || isCDATAStart(0)) {
+            readText();
+            return CHARACTERS;
+        }
+
+        if (!ensure(2)) throw error("Unexpected end of document");
+
+        byte b = buf[pos + 1];
+        if (b == '/') {
+            readEndTag();
+            return END_ELEMENT;
+        }
+
+        if (b == '?') {
+            skipPast(2, "?>");
+            return OTHER;
+        }
+
+        if (b == '!') {
+            if (matches(2, "--")) {
+                skipPast(4, "-->");
+                return OTHER;
+            }
+            throw error("Unsupported markup declaration");
+        }
+
+        readStartTag();
+        return START_ELEMENT;
+    }
+
+    /**
+     * Skip the rest of the current element up to and including its end tag.
+     * <p>
+     * Only the nesting of the tags inside the element is followed. Their
+     * names, attributes and text are not read. Call this right after
+     * START_ELEMENT. The current token is then the element's END_ELEMENT.
+     *
+     * @return true if the element has child elements
+     */
+    public boolean skipElement() throws XMLStreamException, IOException {
+        if (pendingEnd) {
+            pendingEnd = false;
+            openCount--;
+            return false;
+        }
+
+        boolean hasChildren = false;
+        int level = 0;
+        while (true) {
+            //Move to the next markup
+            while (true) {
+                if (pos >= limit && !ensure(1)) {
+                    throw error("Unexpected end of document. Element " + openElements[openCount - 1].qName + " is not closed");
+                }
+                if (buf[pos] == '<') break;
+                pos++;
+            }
+
+            if (!ensure(2)) throw error("Unexpected end of document");
+
+            byte b = buf[pos + 1];
+            if (b == '/') {
+                if (level == 0) {
+                    tokenOffset = consumed + pos;
+                    readEndTag();
+                    return hasChildren;
+                }
+                level--;
+                skipPast(2, (byte) '>');
+            } else if (b == '?') {
+                skipPast(2, "?>");
+            } else if (b == '!') {
+                if (matches(2, "--")) {
+                    skipPast(4, "-->");
+                } else if (isCDATAStart(0)) {
+                    skipPast(9, "]]>");
+                } else {
+                    throw error("Unsupported markup declaration");
+                }
+            } else {
+                hasChildren = true;
+                int end = startTagEnd();
+                if (buf[pos + end - 1] != '/') level++;
+                pos += end + 1;
+            }
+        }
+    }
+
+    /**
+     * Byte offset of the current token in the input.
+     */
+    public long getTokenOffset() {
+        return tokenOffset;
+    }
+
+    /**
+     * Byte offset just after the current token in the input.
+     */
+    public long getOffset() {
+        return consumed + pos;
+    }
+
+    /**
+     * Whether the current token is an empty element tag whose END_ELEMENT is
+     * returned next.
+     */
+    public boolean isEndPending() {
+        return pendingEnd;
+    }
+
+    /**
+     * Name of the current start or end element.
+     */
+    Name getElementName() {
+        return elementName;
+    }
+
+    public String getLocalName() {
+        return elementName.localName;
+    }
+
+    public String getPrefix() {
+        return elementName.prefix;
+    }
+
+    public int getAttributeCount() {
+        return attrCount;
+    }
+
+    public String getAttributeLocalName(int index) {
+        return attrNames[index].localName;
+    }
+
+    public String getAttributeValue(int index) {
+        return attrValues[index];
+    }
+
+    /**
+     * Whether the attribute name has a namespace prefix.
+     */
+    public boolean attributeHasNamespace(int index) {
+        return attrNames[index].prefix.length() > 0;
+    }
+
+    /**
+     * Whether the current character data is all white space.
+     */
+    public boolean isWhiteSpace() throws XMLStreamException {
+        if (!textNeedsDecoding) return !textHasNonWhiteSpace;
+
+        String text = getText();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the current character data.
+     */
+    public String getText() throws XMLStreamException {
+        if (!textNeedsDecoding) {
+            return new String(buf, textStart, textLength, StandardCharsets.ISO_8859_1);
+        }
+
+        decodeBuffer.setLength(0);
+        int end = textStart + textLength;
+        int i = textStart;
+        while (i < end) {
+            if (buf[i] == '<') {
+                //CDATA section
+                int dataStart = i + 9;
+                int dataEnd = indexOf(dataStart, end, "]]>");
+                decode(dataStart, dataEnd, false, false);
+                i = dataEnd + 3;
+                continue;
+            }
+            int next = i;
+            while (next < end && buf[next] != '<') next++;
+            decode(i, next, true, false);
+            i = next;
+        }
+        return decodeBuffer.toString();
+    }
+
+    /**
+     * Close the underlying channel.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Make sure at least n bytes from pos are in buf.
+     *
+     * @return false if the end of the input is reached first
+     */
+    private boolean ensure(int n) throws IOException {
+        while (limit - pos < n) {
+            if (eof) return false;
+
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                consumed += pos;
+                pos = 0;
+            }
+            if (limit == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+
+            int r = channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit));
+            if (r < 0) {
+                eof = true;
+            } else {
+                limit += r;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(int offset, String s) throws IOException {
+        if (!ensure(offset + s.length())) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[pos + offset + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean isCDATAStart(int offset) throws IOException {
+        return matches(offset, "<![CDATA[");
+    }
+
+    /**
+     * Move pos past the next occurrence of s after pos + offset.
+     */
+    private void skipPast(int offset, String s) throws IOException, XMLStreamException {
+        int i = offset;
+        while (!matches(i, s)) {
+            if (!ensure(i + s.length())) throw error("Unexpected end of document");
+            i++;
+        }
+        pos += i + s.length();
+    }
+
+    /**
+     * Move pos past the next b after pos + offset.
+     */
+    private void skipPast(int offset, byte b) throws IOException, XMLStreamException {
+        int i = offset;
+        while (true) {
+            if (pos + i >= limit && !ensure(i + 1)) throw error("Unexpected end of document");
+            if (buf[pos + i] == b) break;
+            i++;
+        }
+        pos += i + 1;
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, String s) {
+        outer:
+        for (int i = from; i <= to - s.length(); i++) {
+            for (int j = 0; j < s.length(); j++) {
+                if (buf[i + j] != s.charAt(j)) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(int from, int to, String s) {
+        return indexOf(buf, from, to, s);
+    }
+
+    /**
+     * Read character data and CDATA sections up to the next markup.
+     */
+    private void readText() throws IOException, XMLStreamException {
+        textNeedsDecoding = false;
+        textHasNonWhiteSpace = false;
+        textStart = pos;
+
+        int i = 0;
+        while (true) {
+            if (pos + i >= limit && !ensure(i + 1)) break;
+
+            byte b = buf[pos + i];
+            if (b == '<') {
+                if (!isCDATAStart(i)) break;
+
+                textNeedsDecoding = true;
+                int dataStart = i + 9;
+                int j = dataStart;
+                while (!matches(j, "]]>")) {
+                    if (!ensure(j + 3)) throw error("Unexpected end of document in CDATA section");
+                    j++;
+                }
+                if (j > dataStart) textHasNonWhiteSpace = true;
+                i = j + 3;
+                continue;
+            }
+
+            if (b == '&' || b == '\r' || b < 0) {
+                textNeedsDecoding = true;
+            }
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                textHasNonWhiteSpace = true;
+            }
+            i++;
+        }
+
+        textStart = pos;
+        textLength = i;
+        pos += i;
+    }
+
+    /**
+     * Read an end tag.
+     */
+    private void readEndTag() throws IOException, XMLStreamException {
+        int i = 2;
+        while (true) {
+            if (pos + i >= limit && !ensure(i + 1)) throw error("Unexpected end of document in end tag");
+            if (buf[pos + i] == '>') break;
+            i++;
+        }
+
+        int nameEnd = 2;
+        while (nameEnd < i && !isWhiteSpace(buf[pos + nameEnd])) nameEnd++;
+
+        Name name = names.lookup(buf, pos + 2, nameEnd - 2);
+        if (openCount == 0 && fragment) {
+            elementName = name;
+            pos += i + 1;
+            return;
+        }
+        if (openCount == 0 || openElements[openCount - 1] != name) {
+            throw error("End tag " + name.qName + " does not match the start tag");
+        }
+        elementName = name;
+        openCount--;
+        pos += i + 1;
+    }
+
+    /**
+     * Read a start tag and its attributes.
+     */
+    private void readStartTag() throws IOException, XMLStreamException {
+        int i = startTagEnd();
+
+        int start = pos;
+        int end = pos + i;
+        boolean empty = buf[end - 1] == '/';
+        if (empty) end--;
+
+        int p = start + 1;
+        int nameStart = p;
+        while (p < end && !isWhiteSpace(buf[p])) p++;
+        if (p == nameStart) throw error("Missing element name");
+        elementName = names.lookup(buf, nameStart, p - nameStart);
+
+        attrCount = 0;
+        while (true) {
+            while (p < end && isWhiteSpace(buf[p])) p++;
+            if (p >= end) break;
+
+            int attrStart = p;
+            while (p < end && buf[p] != '=' && !isWhiteSpace(buf[p])) p++;
+            Name attrName = names.lookup(buf, attrStart, p - attrStart);
+            while (p < end && isWhiteSpace(buf[p])) p++;
+            if (p >= end || buf[p] != '=') throw error("Missing value for attribute " + attrName.qName);
+            p++;
+            while (p < end && isWhiteSpace(buf[p])) p++;
+            if (p >= end || (buf[p] != '"' && buf[p] != '\'')) {
+                throw error("Attribute value of " + attrName.qName + " is not quoted");
+            }
+            byte q = buf[p++];
+            int valueStart = p;
+            while (p < end && buf[p] != q) p++;
+            if (p >= end) throw error("Attribute value of " + attrName.qName + " is not closed");
+            int valueEnd = p++;
+
+            //Namespace declarations are not attributes
+            if (attrName.isNamespaceDeclaration) continue;
+
+            if (attrCount == attrNames.length) {
+                attrNames = Arrays.copyOf(attrNames, attrCount * 2);
+                attrValues = Arrays.copyOf(attrValues, attrCount * 2);
+            }
+            attrNames[attrCount] = attrName;
+            attrValues[attrCount] = attributeValue(valueStart, valueEnd);
+            attrCount++;
+        }
+
+        if (openCount == openElements.length) {
+            openElements = Arrays.copyOf(openElements, openCount * 2);
+        }
+        openElements[openCount++] = elementName;
+        pendingEnd = empty;
+
+        pos += i + 1;
+    }
+
+    /**
+     * Find the end of the start tag at pos. Attribute values can contain '>'.
+     *
+     * @return The offset of the tag's '>' from pos
+     */
+    private int startTagEnd() throws IOException, XMLStreamException {
+        int i = 1;
+        byte quote = 0;
+        while (true) {
+            if (pos + i >= limit && !ensure(i + 1)) throw error("Unexpected end of document in start tag");
+            byte b = buf[pos + i];
+            if (quote != 0) {
+                if (b == quote) quote = 0;
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private String attributeValue(int start, int end) throws XMLStreamException {
+        for (int i = start; i < end; i++) {
+            byte b = buf[i];
+            if (b == '&' || b < 0 || b == '\t' || b == '\n' || b == '\r') {
+                decodeBuffer.setLength(0);
+                decode(start, end, true, true);
+                return decodeBuffer.toString();
+            }
+        }
+        return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decode UTF-8 bytes into the decode buffer.
+     *
+     * @param entities Replace entity references
+     * @param attribute Normalize white space as in attribute values
+     */
+    private void decode(int start, int end, boolean entities, boolean attribute) throws XMLStreamException {
+        int i = start;
+        while (i < end) {
+            int b = buf[i] & 0xff;
+
+            if (b == '&' && entities) {
+                int semi = i + 1;
+                while (semi < end && buf[semi] != ';') semi++;
+                if (semi >= end) throw error("Entity reference is not terminated");
+                appendEntity(i + 1, semi);
+                i = semi + 1;
+                continue;
+            }
+
+            if (b == '\r') {
+                if (i + 1 < end && buf[i + 1] == '\n') i++;
+                decodeBuffer.append(attribute ? ' ' : '\n');
+                i++;
+                continue;
+            }
+
+            if (attribute && (b == '\n' || b == '\t')) {
+                decodeBuffer.append(' ');
+                i++;
+                continue;
+            }
+
+            if (b < 0x80) {
+                decodeBuffer.append((char) b);
+                i++;
+                continue;
+            }
+
+            int n;
+            int cp;
+            if ((b & 0xE0) == 0xC0) {
+                n = 1;
+                cp = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                n = 2;
+                cp = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                n = 3;
+                cp = b & 0x07;
+            } else {
+                throw error("Invalid UTF-8 byte");
+            }
+            if (i + n >= end) throw error("Invalid UTF-8 sequence");
+            for (int j = 1; j <= n; j++) {
+                int c = buf[i + j] & 0xff;
+                if ((c & 0xC0) != 0x80) throw error("Invalid UTF-8 sequence");
+                cp = (cp << 6) | (c & 0x3F);
+            }
+            decodeBuffer.appendCodePoint(cp);
+            i += n + 1;
+        }
+    }
+
+    private void appendEntity(int start, int end) throws XMLStreamException {
+        int len = end - start;
+        if (len > 1 && buf[start] == '#') {
+            int cp = 0;
+            boolean hex = buf[start + 1] == 'x';
+            for (int i = start + (hex ? 2 : 1); i < end; i++) {
+                int d = Character.digit((char) buf[i], hex ? 16 : 10);
+                if (d < 0) throw error("Invalid character reference");
+                cp = cp * (hex ? 16 : 10) + d;
+            }
+            decodeBuffer.appendCodePoint(cp);
+            return;
+        }
+
+        String name = new String(buf, start, len, StandardCharsets.ISO_8859_1);
+        if (name.equals("lt")) {
+            decodeBuffer.append('<');
+        } else if (name.equals("gt")) {
+            decodeBuffer.append('>');
+        } else if (name.equals("amp")) {
+            decodeBuffer.append('&');
+        } else if (name.equals("apos")) {
+            decodeBuffer.append('\'');
+        } else if (name.equals("quot")) {
+            decodeBuffer.append('"');
+        } else {
+            throw error("The entity \"" + name + "\" was referenced, but not declared");
+        }
+    }
+
+    private static boolean isWhiteSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    private XMLStreamException error(String message) {
+        return new XMLStreamException(message + " at byte offset " + tokenOffset);
+    }
+
+    /**
+     * An element or attribute name.
+     */
+    static final class Name {
+
+        final byte[] bytes;
+
+        final int hash;
+
+        final String qName;
+
+        final String prefix;
+
+        final String localName;
+
+        final boolean isNamespaceDeclaration;
+
+        /**
+         * Symbol of an element name. Set by the parser on first use.
+         */
+        SymbolTable.Symbol symbol;
+
+        Name next;
+
+        Name(byte[] bytes, int hash) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.qName = new String(bytes, StandardCharsets.UTF_8);
+            int colon = qName.indexOf(':');
+            this.prefix = colon < 0 ? "" : qName.substring(0, colon).intern();
+            this.localName = colon < 0 ? qName.intern() : qName.substring(colon + 1).intern();
+            this.isNamespaceDeclaration = qName.equals("xmlns") || prefix.equals("xmlns");
+        }
+    }
+
+    /**
+     * Hash table of names keyed by their bytes.
+     */
+    static final class NameTable {
+
+        private Name[] table = new Name[256];
+
+        private int size = 0;
+
+        Name lookup(byte[] buf, int start, int len) {
+            int h = 0;
+            for (int i = start; i < start + len; i++) {
+                h = 31 * h + buf[i];
+            }
+
+            int idx = h & (table.length - 1);
+            for (Name n = table[idx]; n != null; n = n.next) {
+                if (n.hash == h && n.bytes.length == len && equals(n.bytes, buf, start)) {
+                    return n;
+                }
+            }
+
+            Name n = new Name(Arrays.copyOfRange(buf, start, start + len), h);
+            n.next = table[idx];
+            table[idx] = n;
+            if (++size > table.length * 3 / 4) rehash();
+            return n;
+        }
+
+        private static boolean equals(byte[] a, byte[] buf, int start) {
+            for (int i = 0; i < a.length; i++) {
+                if (a[i] != buf[start + i]) return false;
+            }
+            return true;
+        }
+
+        private void rehash() {
+            Name[] old = table;
+            table = new Name[old.length * 2];
+            for (int i = 0; i < old.length; i++) {
+                Name n = old[i];
+                while (n != null) {
+                    Name next = n.next;
+                    int idx = n.hash & (table.length - 1);
+                    n.next = table[idx];
+                    table[idx] = n;
+                    n = next;
+                }
+            }
+        }
+    }
+}
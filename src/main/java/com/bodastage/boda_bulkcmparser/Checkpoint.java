@@ -0,0 +1,393 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * How far a run has got, so that a run that dies can be resumed.
+ * <p>
+ * A checkpoint holds the pass the parser is in, the input files the pass has
+ * parsed, the end of the last outermost MeContext or ManagedElement parsed
+ * in the current file and the length of each csv file written by the run.
+ * The MOs and parameters found so far are saved next to it in a schema
+ * cache file. A resumed run truncates the csv files to their lengths and
+ * goes on after the last parsed file or network element.
+ * <p>
+ * The checkpoint file:
+ * <pre>
+ * #bulkcm checkpoint 1
+ * I &lt;input file or directory&gt;
+ * P &lt;PARAMETERS or VALUES&gt;
+ * T &lt;dateTime&gt;
+ * D &lt;parsed input file&gt;
+ * F &lt;offset&gt; &lt;size&gt; &lt;last modified time&gt; &lt;current input file&gt;
+ * O &lt;length&gt; &lt;csv file name&gt;
+ * C 1
+ * S &lt;parameter count&gt; &lt;schema cache key&gt;
+ * </pre>
+ * The C line is there if the MOs were loaded from the schema cache at the
+ * start of the run. The S lines then hold their parameter counts, which
+ * decide the csv files written again at the end of the run.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class Checkpoint {
+
+    /**
+     * First line of a checkpoint file.
+     */
+    static final String HEADER = "#bulkcm checkpoint 1";
+
+    /**
+     * Extension of the schema cache file added to the checkpoint file name.
+     */
+    public static final String SCHEMA_EXTENSION = ".schema";
+
+    static final String PARAMETERS = "PARAMETERS";
+
+    static final String VALUES = "VALUES";
+
+    /**
+     * Absolute path of the input file or directory.
+     */
+    String dataSource;
+
+    /**
+     * PARAMETERS or VALUES.
+     */
+    String pass = PARAMETERS;
+
+    /**
+     * The dateTime of the rows when the checkpoint was made.
+     */
+    String dateTime = "";
+
+    /**
+     * Input files parsed by the pass.
+     */
+    final Set<String> parsedFiles = new LinkedHashSet<String>();
+
+    /**
+     * The input file being parsed or null.
+     */
+    String currentFile = null;
+
+    long currentSize;
+
+    long currentLastModified;
+
+    /**
+     * End of the last network element parsed in the current file.
+     */
+    long offset;
+
+    /**
+     * Lengths of the csv files written by the run by name. A file created
+     * since the last save has the length -1.
+     */
+    final Map<String, Long> csvFiles = new LinkedHashMap<String, Long>();
+
+    /**
+     * Parameter counts of the MOs loaded from the schema cache. Null if the
+     * schema cache was not used.
+     */
+    Map<String, Integer> cachedSchemaSizes = null;
+
+    Checkpoint(String dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Get the schema cache file of a checkpoint file.
+     *
+     * @param filename
+     */
+    public static String schemaFilename(String filename) {
+        return filename + SCHEMA_EXTENSION;
+    }
+
+    /**
+     * Take an input file the pass has parsed.
+     *
+     * @param path Absolute path of the file
+     */
+    void fileParsed(String path) {
+        parsedFiles.add(path);
+        currentFile = null;
+        offset = 0;
+    }
+
+    /**
+     * Take the end of a network element parsed in an input file.
+     *
+     * @param file
+     * @param offset
+     */
+    void networkElementParsed(File file, long offset) {
+        String path = file.getAbsolutePath();
+        if (!path.equals(currentFile)) {
+            currentFile = path;
+            currentSize = file.length();
+            currentLastModified = file.lastModified();
+        }
+        this.offset = offset;
+    }
+
+    /**
+     * Get the offset to start parsing an input file at.
+     *
+     * @param file
+     * @return The end of the last network element parsed in the file or 0
+     */
+    long startOffset(File file) {
+        return file.getAbsolutePath().equals(currentFile) ? offset : 0;
+    }
+
+    /**
+     * Take a csv file written by the run.
+     *
+     * @param name
+     */
+    void addCsvFile(String name) {
+        if (!csvFiles.containsKey(name)) csvFiles.put(name, -1L);
+    }
+
+    boolean hasCsvFile(String name) {
+        return csvFiles.containsKey(name);
+    }
+
+    /**
+     * Set the length of a csv file written by the run.
+     *
+     * @param name
+     * @param length The bytes written to the file. They must be on disk
+     * when the checkpoint is saved.
+     */
+    void setCsvLength(String name, long length) {
+        if (csvFiles.containsKey(name)) csvFiles.put(name, length);
+    }
+
+    /**
+     * Forget a csv file that is written again from the start.
+     *
+     * @param name
+     */
+    void removeCsvFile(String name) {
+        csvFiles.remove(name);
+    }
+
+    /**
+     * Start the next pass.
+     *
+     * @param pass PARAMETERS or VALUES
+     */
+    void startPass(String pass) {
+        this.pass = pass;
+        parsedFiles.clear();
+        currentFile = null;
+        offset = 0;
+    }
+
+    /**
+     * Check whether the current input file has the size and time it had at
+     * the checkpoint.
+     */
+    boolean isCurrentFileUnchanged() {
+        if (currentFile == null) return true;
+
+        File file = new File(currentFile);
+        return file.length() == currentSize && file.lastModified() == currentLastModified;
+    }
+
+    /**
+     * Truncate the csv files to their lengths at the checkpoint. Nothing is
+     * truncated if a file is missing or shorter than it was.
+     *
+     * @param outputDirectory
+     * @return False if a csv file is missing or shorter than it was
+     */
+    boolean truncate(String outputDirectory) throws IOException {
+        Iterator<Map.Entry<String, Long>> iter = csvFiles.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Long> me = iter.next();
+            File f = new File(outputDirectory, me.getKey());
+            if (!f.isFile() || f.length() < me.getValue()) return false;
+        }
+
+        iter = csvFiles.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Long> me = iter.next();
+            File f = new File(outputDirectory, me.getKey());
+            if (f.length() == me.getValue()) continue;
+
+            FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE);
+            try {
+                channel.truncate(me.getValue());
+            } finally {
+                channel.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Load a checkpoint file.
+     *
+     * @param filename
+     * @return The checkpoint or null if the file does not exist or is not a
+     * checkpoint file
+     */
+    public static Checkpoint load(String filename) throws IOException {
+        File file = new File(filename);
+        if (!file.isFile()) return null;
+
+        Checkpoint checkpoint = new Checkpoint(null);
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            if (!HEADER.equals(br.readLine())) return null;
+
+            for (String line; (line = br.readLine()) != null; ) {
+                if (line.length() < 2) continue;
+
+                String value = line.substring(2);
+                String[] parts;
+                switch (line.charAt(0)) {
+                    case 'I':
+                        checkpoint.dataSource = value;
+                        break;
+                    case 'P':
+                        checkpoint.pass = value;
+                        break;
+                    case 'T':
+                        checkpoint.dateTime = value;
+                        break;
+                    case 'D':
+                        checkpoint.parsedFiles.add(value);
+                        break;
+                    case 'F':
+                        parts = value.split(" ", 4);
+                        checkpoint.offset = Long.parseLong(parts[0]);
+                        checkpoint.currentSize = Long.parseLong(parts[1]);
+                        checkpoint.currentLastModified = Long.parseLong(parts[2]);
+                        checkpoint.currentFile = parts[3];
+                        break;
+                    case 'O':
+                        parts = value.split(" ", 2);
+                        checkpoint.csvFiles.put(parts[1], Long.parseLong(parts[0]));
+                        break;
+                    case 'C':
+                        checkpoint.cachedSchemaSizes = new LinkedHashMap<String, Integer>();
+                        break;
+                    case 'S':
+                        parts = value.split(" ", 2);
+                        checkpoint.cachedSchemaSizes.put(parts[1], Integer.parseInt(parts[0]));
+                        break;
+                }
+            }
+        } catch (RuntimeException e) {
+            //Not a checkpoint file written by save
+            return null;
+        } finally {
+            br.close();
+        }
+
+        if (checkpoint.dataSource == null) return null;
+        return checkpoint;
+    }
+
+    /**
+     * Save the checkpoint. The csv files whose lengths were not set are
+     * given their current lengths. The file is replaced once the new
+     * checkpoint has been written.
+     *
+     * @param filename
+     * @param outputDirectory
+     */
+    public void save(String filename, String outputDirectory) throws IOException {
+        Iterator<Map.Entry<String, Long>> iter = csvFiles.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Long> me = iter.next();
+            if (me.getValue() < 0) me.setValue(new File(outputDirectory, me.getKey()).length());
+        }
+
+        File file = new File(filename);
+        File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmpFile), StandardCharsets.UTF_8));
+        try {
+            bw.write(HEADER);
+            bw.newLine();
+            bw.write("I " + dataSource);
+            bw.newLine();
+            bw.write("P " + pass);
+            bw.newLine();
+            bw.write("T " + dateTime.replace('\n', ' ').replace('\r', ' '));
+            bw.newLine();
+            for (String path : parsedFiles) {
+                bw.write("D " + path);
+                bw.newLine();
+            }
+            if (currentFile != null) {
+                bw.write("F " + offset + " " + currentSize + " " + currentLastModified + " " + currentFile);
+                bw.newLine();
+            }
+
+            iter = csvFiles.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<String, Long> me = iter.next();
+                bw.write("O " + me.getValue() + " " + me.getKey());
+                bw.newLine();
+            }
+
+            if (cachedSchemaSizes != null) {
+                bw.write("C 1");
+                bw.newLine();
+                Iterator<Map.Entry<String, Integer>> sIter = cachedSchemaSizes.entrySet().iterator();
+                while (sIter.hasNext()) {
+                    Map.Entry<String, Integer> me = sIter.next();
+                    bw.write("S " + me.getValue() + " " + me.getKey());
+                    bw.newLine();
+                }
+            }
+        } finally {
+            bw.close();
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Delete a checkpoint file and its schema cache file, with the files
+     * left by a save that did not finish.
+     *
+     * @param filename
+     */
+    public static void delete(String filename) {
+        new File(filename).delete();
+        new File(filename + ".tmp").delete();
+        new File(schemaFilename(filename)).delete();
+        new File(schemaFilename(filename) + ".tmp").delete();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The columns of an MO in the order they were found.
+ * <p>
+ * Each column gets an ordinal, its position in the column list. Looking up
+ * a column by name does not scan the list.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class ColumnRegistry {
+
+    private final List<String> names = new ArrayList<String>();
+
+    /**
+     * Ordinal of the first column with each name.
+     */
+    private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+
+    /**
+     * Add a column if it is not in the registry.
+     *
+     * @param name
+     * @return The ordinal of the column
+     */
+    public int add(String name) {
+        Integer ordinal = ordinals.get(name);
+        if (ordinal != null) return ordinal;
+        return append(name);
+    }
+
+    /**
+     * Add a column even if it is already in the registry. This keeps
+     * repeated parameters in a parameter file.
+     *
+     * @param name
+     * @return The ordinal of the new column
+     */
+    public int append(String name) {
+        int ordinal = names.size();
+        names.add(name);
+        if (!ordinals.containsKey(name)) ordinals.put(name, ordinal);
+        return ordinal;
+    }
+
+    public boolean contains(String name) {
+        return ordinals.containsKey(name);
+    }
+
+    /**
+     * Get the ordinal of a column.
+     *
+     * @param name
+     * @return The ordinal or -1 if the column is not in the registry
+     */
+    public int ordinal(String name) {
+        Integer ordinal = ordinals.get(name);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * Get the name of the column with the given ordinal.
+     */
+    public String get(int ordinal) {
+        return names.get(ordinal);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    @Override
+    public String toString() {
+        return names.toString();
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Reads the files in gzip, zip and gzip compressed tar input files.
+ * <p>
+ * The format is told from the first bytes of the file, not from its name.
+ * The entries are decompressed as they are read. Nothing is unpacked to
+ * disk.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class CompressedInput {
+
+    /**
+     * Not a compressed file.
+     */
+    public static final int NONE = 0;
+
+    public static final int GZIP = 1;
+
+    public static final int ZIP = 2;
+
+    /**
+     * A tar archive in a gzip file i.e. .tar.gz or .tgz
+     */
+    public static final int TAR_GZIP = 3;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    /**
+     * Receives the files of a compressed input.
+     */
+    public interface EntryHandler {
+
+        /**
+         * Handle one file.
+         *
+         * @param name Name of the file in the archive. For a gzip file this
+         * is the gzip file's name without the .gz extension.
+         * @param in The decompressed file. Closing it does not close the
+         * archive.
+         */
+        void entry(String name, InputStream in) throws IOException, XMLStreamException;
+    }
+
+    /**
+     * Tell the format of a file from its first bytes.
+     *
+     * @param filename
+     * @return NONE, GZIP, ZIP or TAR_GZIP
+     */
+    public static int detect(String filename) throws IOException {
+        InputStream in = new FileInputStream(filename);
+        try {
+            byte[] head = new byte[4];
+            int len = readFully(in, head);
+            int format = detect(head, len);
+            if (format != GZIP) return format;
+        } finally {
+            in.close();
+        }
+
+        //Look for a tar header at the start of the decompressed data
+        InputStream gz = new GZIPInputStream(new FileInputStream(filename), BUFFER_SIZE);
+        try {
+            byte[] block = new byte[TAR_BLOCK_SIZE];
+            int len = readFully(gz, block);
+            return len == TAR_BLOCK_SIZE && isTarHeader(block) ? TAR_GZIP : GZIP;
+        } catch (IOException e) {
+            return GZIP;
+        } finally {
+            gz.close();
+        }
+    }
+
+    /**
+     * Tell the format of a file from its first bytes.
+     *
+     * @param head The first bytes of the file
+     * @param len Number of bytes in head
+     * @return NONE, GZIP or ZIP. A gzip file holding a tar archive is GZIP.
+     */
+    public static int detect(byte[] head, int len) {
+        if (len >= 2 && (head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b) return GZIP;
+        if (len >= 4 && head[0] == 'P' && head[1] == 'K' && head[2] == 3 && head[3] == 4) return ZIP;
+        return NONE;
+    }
+
+    /**
+     * Pass each file of a compressed input to the handler in archive order.
+     * Directories and other entries that are not regular files are skipped.
+     *
+     * @param filename
+     * @param format The format returned by detect
+     * @param handler
+     */
+    public static void forEachEntry(String filename, int format, EntryHandler handler) throws IOException, XMLStreamException {
+        InputStream in = new BufferedInputStream(new FileInputStream(filename), BUFFER_SIZE);
+        try {
+            if (format == ZIP) {
+                ZipInputStream zip = new ZipInputStream(in);
+                in = zip;
+                for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                    if (entry.isDirectory()) continue;
+                    handler.entry(entry.getName(), new EntryInputStream(zip));
+                }
+            } else if (format == TAR_GZIP) {
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+                readTar(in, handler);
+            } else {
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+                handler.entry(gzipEntryName(filename), new EntryInputStream(in));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Name of the file in a gzip file.
+     */
+    private static String gzipEntryName(String filename) {
+        String name = new File(filename).getName();
+        if (name.endsWith(".gz") && name.length() > 3) return name.substring(0, name.length() - 3);
+        return name;
+    }
+
+    private static void readTar(InputStream in, EntryHandler handler) throws IOException, XMLStreamException {
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+
+        //Name from a GNU long name entry for the next entry
+        String longName = null;
+
+        while (true) {
+            if (readFully(in, header) < TAR_BLOCK_SIZE) return;
+
+            //The archive ends with empty blocks
+            if (isEmptyBlock(header)) return;
+
+            long size = parseOctal(header, 124, 12);
+            char type = (char) header[156];
+            long padding = (TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE;
+
+            if (type == 'L') {
+                byte[] name = new byte[(int) size];
+                if (readFully(in, name) < name.length) throw new EOFException("Truncated tar archive");
+                longName = cString(name, 0, name.length);
+                skip(in, padding);
+                continue;
+            }
+
+            String name = longName != null ? longName : entryName(header);
+            longName = null;
+
+            if (type == '0' || type == 0) {
+                EntryInputStream entry = new EntryInputStream(in, size);
+                handler.entry(name, entry);
+                entry.skipRest();
+            } else {
+                skip(in, size);
+            }
+            skip(in, padding);
+        }
+    }
+
+    private static String entryName(byte[] header) {
+        String name = cString(header, 0, 100);
+        if (isUstar(header)) {
+            String prefix = cString(header, 345, 155);
+            if (prefix.length() > 0) name = prefix + "/" + name;
+        }
+        return name;
+    }
+
+    private static boolean isTarHeader(byte[] header) {
+        if (isUstar(header)) return true;
+
+        //An old tar header has an octal checksum of its bytes
+        long checksum = parseOctal(header, 148, 8);
+        long sum = 0;
+        for (int i = 0; i < TAR_BLOCK_SIZE; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+        }
+        return checksum == sum && header[0] != 0;
+    }
+
+    private static boolean isUstar(byte[] header) {
+        return header[257] == 'u' && header[258] == 's' && header[259] == 't'
+                && header[260] == 'a' && header[261] == 'r';
+    }
+
+    private static boolean isEmptyBlock(byte[] block) {
+        for (int i = 0; i < block.length; i++) {
+            if (block[i] != 0) return false;
+        }
+        return true;
+    }
+
+    private static long parseOctal(byte[] b, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int c = b[i];
+            if (c == 0) break;
+            if (c == ' ') continue;
+            if (c < '0' || c > '7') break;
+            value = value * 8 + (c - '0');
+        }
+        return value;
+    }
+
+    private static String cString(byte[] b, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && b[end] != 0) end++;
+        return new String(b, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static int readFully(InputStream in, byte[] b) throws IOException {
+        int len = 0;
+        int r;
+        while (len < b.length && (r = in.read(b, len, b.length - len)) > 0) {
+            len += r;
+        }
+        return len;
+    }
+
+    private static void skip(InputStream in, long n) throws IOException {
+        byte[] buf = null;
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (buf == null) buf = new byte[TAR_BLOCK_SIZE];
+                int r = in.read(buf, 0, (int) Math.min(buf.length, n));
+                if (r < 0) throw new EOFException("Truncated archive");
+                skipped = r;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * One file of an archive. Reads at most the file's size and does not
+     * close the archive.
+     */
+    private static class EntryInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        EntryInputStream(InputStream in) {
+            this(in, Long.MAX_VALUE);
+        }
+
+        EntryInputStream(InputStream in, long size) {
+            super(in);
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int r = in.read(b, off, (int) Math.min(len, remaining));
+            if (r > 0) remaining -= r;
+            return r;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            if (skipped > 0) remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Move the archive to the end of the file.
+         */
+        void skipRest() throws IOException {
+            if (remaining == Long.MAX_VALUE) return;
+            CompressedInput.skip(in, remaining);
+            remaining = 0;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes csv lines as UTF-8 bytes in a reusable buffer.
+ * <p>
+ * A line is built with the append methods and handed to its file with
+ * {@link #writeTo(OutputStream)}. The characters are encoded as they are
+ * appended, so no String is made for the line. The buffer grows to the
+ * longest line and is reused for the next line.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class CsvRowEncoder {
+
+    private static final byte[] LINE_SEPARATOR
+            = System.getProperty("line.separator").getBytes(StandardCharsets.UTF_8);
+
+    private byte[] buf = new byte[8192];
+
+    private int count = 0;
+
+    /**
+     * Append text as it is.
+     *
+     * @param s
+     */
+    public CsvRowEncoder append(String s) {
+        int n = s.length();
+        ensureCapacity(3 * n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            } else {
+                i = appendChar(s, i, c);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Append a character as it is.
+     *
+     * @param c A character that is not a surrogate
+     */
+    public CsvRowEncoder append(char c) {
+        ensureCapacity(3);
+        if (c < 0x80) {
+            buf[count++] = (byte) c;
+        } else {
+            appendChar(null, 0, c);
+        }
+        return this;
+    }
+
+    /**
+     * Append a csv value. Values with a comma, a quote or a line break are
+     * quoted and their quotes doubled. The value is read once: the opening
+     * quote is put in when the first such character is found. A null value
+     * is an empty quoted value.
+     *
+     * @param s
+     */
+    public CsvRowEncoder appendValue(String s) {
+        if (s == null) return append("\"\"");
+
+        int n = s.length();
+        ensureCapacity(4 * n + 2);
+        int start = count;
+        boolean quoted = false;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                i = appendChar(s, i, c);
+                continue;
+            }
+
+            if (!quoted && (c == ',' || c == '"' || c == '\n' || c == '\r')) {
+                System.arraycopy(buf, start, buf, start + 1, count - start);
+                buf[start] = '"';
+                count++;
+                quoted = true;
+            }
+            if (c == '"') buf[count++] = '"';
+            buf[count++] = (byte) c;
+        }
+        if (quoted) buf[count++] = '"';
+        return this;
+    }
+
+    /**
+     * Append the values of a row layout after the FILENAME and DATETIME
+     * values. The values are appended as csv values. Slots without a value
+     * are empty.
+     *
+     * @param fileBasename
+     * @param fileDateTime
+     * @param layout
+     */
+    public CsvRowEncoder appendRow(String fileBasename, String fileDateTime, RowLayout layout) {
+        appendValue(fileBasename).append(',').appendValue(fileDateTime);
+        for (int i = 0; i < layout.size(); i++) {
+            append(',');
+            String value = layout.get(i);
+            if (value != null) appendValue(value);
+        }
+        return this;
+    }
+
+    /**
+     * End the line with the platform line separator.
+     */
+    public CsvRowEncoder newLine() {
+        ensureCapacity(LINE_SEPARATOR.length);
+        for (int i = 0; i < LINE_SEPARATOR.length; i++) {
+            buf[count++] = LINE_SEPARATOR[i];
+        }
+        return this;
+    }
+
+    /**
+     * Number of bytes encoded since the last write.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Write the encoded bytes and start again.
+     *
+     * @param out
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        try {
+            out.write(buf, 0, count);
+        } finally {
+            count = 0;
+        }
+    }
+
+    /**
+     * Drop what was appended since the last write.
+     */
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * Encode a character that is not ASCII.
+     *
+     * @param s The string of the character, used to find the low surrogate
+     * of a pair. Can be null.
+     * @param i Index of the character in s
+     * @param c The character
+     * @return Index of the last character encoded
+     */
+    private int appendChar(String s, int i, char c) {
+        if (c < 0x800) {
+            buf[count++] = (byte) (0xc0 | (c >> 6));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && s != null && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            buf[count++] = (byte) (0xf0 | (cp >> 18));
+            buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (cp & 0x3f));
+            return i + 1;
+        } else if (Character.isSurrogate(c)) {
+            //A lone surrogate is replaced as the JDK encoder does
+            buf[count++] = '?';
+        } else {
+            buf[count++] = (byte) (0xe0 | (c >> 12));
+            buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void ensureCapacity(int n) {
+        if (count + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Passes on only the rows added, changed or deleted since the last run.
+ * <p>
+ * A fingerprint of each row is kept in a store file between runs. A row is
+ * known by its table and the values of its ID columns, the columns ending
+ * with _id, which are the IDs of the MO and its parents. The fingerprint is
+ * a hash of the row's non empty values and their column names, without the
+ * FILENAME and DATETIME values, so that rows of a newer dump with the same
+ * values are unchanged, whatever the dump file is called. Adding columns to
+ * a table does not change the fingerprints of its rows.
+ * <p>
+ * Rows of a run with the same ID values, such as the rows of a table
+ * without ID columns or MOs found in two input files, are reported once per
+ * table and told apart by their order in the run.
+ * <p>
+ * The rows passed on get a CHANGE_TYPE column after DATETIME with ADDED,
+ * CHANGED or DELETED. Rows in the store that are not found in the run are
+ * passed on as DELETED rows with their ID values when the sink is closed.
+ * The store is then replaced with the fingerprints of the run.
+ * <p>
+ * The store file is a gzip compressed text file:
+ * <pre>
+ * #bulkcm delta store 3
+ * T &lt;kind&gt; &lt;table&gt; &lt;ID column&gt;,&lt;ID column&gt;...
+ * &lt;fingerprint&gt; &lt;ID value&gt;\t&lt;ID value&gt;...[\t#&lt;order&gt;]
+ * </pre>
+ * The ID values are as they are in the input with tabs, line breaks,
+ * backslashes and # escaped. The order is there for the second and later rows with the
+ * same ID values.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class DeltaRecordSink implements RecordSink {
+
+    /**
+     * First line of a store file.
+     */
+    static final String HEADER = "#bulkcm delta store 3";
+
+    /**
+     * Name of the column with the change type.
+     */
+    public static final String CHANGE_TYPE = "CHANGE_TYPE";
+
+    public static final String ADDED = "ADDED";
+
+    public static final String CHANGED = "CHANGED";
+
+    public static final String DELETED = "DELETED";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The fingerprints of a table.
+     */
+    private static class Table {
+
+        final int kind;
+
+        final String name;
+
+        /**
+         * ID columns of the keys.
+         */
+        String[] idColumns;
+
+        /**
+         * Fingerprints of the last run by key.
+         */
+        Map<String, Long> previous = new HashMap<String, Long>();
+
+        /**
+         * Fingerprints of this run by key.
+         */
+        Map<String, Long> current = new LinkedHashMap<String, Long>();
+
+        /**
+         * Number of rows of this run with the same key by key.
+         */
+        Map<String, Integer> duplicates = new HashMap<String, Integer>();
+
+        /**
+         * The last layout of the table's rows and the layout with the
+         * CHANGE_TYPE column made from it.
+         */
+        RowLayout layout;
+
+        RowLayout deltaLayout;
+
+        /**
+         * Slots of the ID columns in the layout.
+         */
+        int[] idSlots;
+
+        Table(int kind, String name) {
+            this.kind = kind;
+            this.name = name;
+        }
+    }
+
+    private final String storeFilename;
+
+    private final RecordSink sink;
+
+    private final Map<String, Table> tables = new LinkedHashMap<String, Table>();
+
+    private final StringBuilder keyBuilder = new StringBuilder();
+
+    /**
+     * FILENAME and DATETIME of the last row. They are used for the deleted
+     * rows.
+     */
+    private String fileBasename = "";
+
+    private String fileDateTime = "";
+
+    /**
+     * Create a sink passing the changed rows to another sink.
+     *
+     * @param storeFilename The store file. The fingerprints of the last run
+     * are loaded from it if it exists.
+     * @param sink
+     */
+    public DeltaRecordSink(String storeFilename, RecordSink sink) throws IOException {
+        this.storeFilename = storeFilename;
+        this.sink = sink;
+        load();
+    }
+
+    @Override
+    public void row(int kind, String table, String fileBasename, String fileDateTime, RowLayout row) throws IOException {
+        this.fileBasename = fileBasename;
+        this.fileDateTime = fileDateTime;
+
+        Table t = getTable(kind, table);
+        if (row != t.layout) setLayout(t, row);
+
+        String key = key(row, t.idSlots);
+        long fingerprint = fingerprint(row);
+        if (t.current.containsKey(key)) key = duplicateKey(t, key);
+        t.current.put(key, fingerprint);
+
+        Long previous = t.previous.get(key);
+        if (previous != null && previous == fingerprint) return;
+
+        RowLayout delta = t.deltaLayout;
+        delta.clearRow();
+        delta.set(0, previous == null ? ADDED : CHANGED);
+        for (int i = 0; i < row.size(); i++) {
+            delta.set(i + 1, row.get(i));
+        }
+        sink.row(kind, table, fileBasename, fileDateTime, delta);
+    }
+
+    /**
+     * Forget the rows of the table found in this run. They are passed
+     * again.
+     */
+    @Override
+    public void discard(int kind, String table) throws IOException {
+        Table t = tables.get(kind + ":" + table);
+        if (t != null) {
+            t.current.clear();
+            t.duplicates.clear();
+        }
+        sink.discard(kind, table);
+    }
+
+    /**
+     * Pass on the deleted rows, save the store and close the sink.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            Iterator<Table> iter = tables.values().iterator();
+            while (iter.hasNext()) {
+                writeDeletedRows(iter.next());
+            }
+            save();
+        } finally {
+            sink.close();
+        }
+    }
+
+    private Table getTable(int kind, String table) {
+        String tableKey = kind + ":" + table;
+        Table t = tables.get(tableKey);
+        if (t == null) {
+            t = new Table(kind, table);
+            tables.put(tableKey, t);
+        }
+        return t;
+    }
+
+    /**
+     * Use a new layout for a table's rows.
+     */
+    private void setLayout(Table t, RowLayout layout) {
+        List<String> idColumns = new ArrayList<String>();
+        List<Integer> idSlots = new ArrayList<Integer>();
+        List<String> columns = new ArrayList<String>();
+        columns.add(CHANGE_TYPE);
+        for (int i = 0; i < layout.size(); i++) {
+            String column = layout.getColumn(i);
+            columns.add(column);
+            if (column.endsWith("_id")) {
+                idColumns.add(column);
+                idSlots.add(i);
+            }
+        }
+
+        //The keys of the last run are made with the ID columns of the last
+        //run. They are made again if the table has other ID columns now.
+        String[] ids = idColumns.toArray(new String[idColumns.size()]);
+        if (t.idColumns != null && !Arrays.equals(t.idColumns, ids)) {
+            t.previous = rekey(t.previous, t.idColumns, ids);
+            t.current = rekey(t.current, t.idColumns, ids);
+        }
+        t.idColumns = ids;
+
+        t.idSlots = new int[idSlots.size()];
+        for (int i = 0; i < t.idSlots.length; i++) {
+            t.idSlots[i] = idSlots.get(i);
+        }
+        t.layout = layout;
+        t.deltaLayout = new RowLayout(columns, null, layout.getRegistrySize());
+    }
+
+    /**
+     * Make keys with other ID columns. Columns that were not ID columns
+     * before have no values. The order is kept.
+     */
+    private static Map<String, Long> rekey(Map<String, Long> fingerprints, String[] from, String[] to) {
+        Map<String, Long> rekeyed = new LinkedHashMap<String, Long>();
+        Iterator<Map.Entry<String, Long>> iter = fingerprints.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Long> me = iter.next();
+            String[] values = me.getKey().split("\t", -1);
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < to.length; i++) {
+                if (i > 0) sb.append('\t');
+                for (int j = 0; j < from.length && j < values.length; j++) {
+                    if (from[j].equals(to[i])) {
+                        sb.append(values[j]);
+                        break;
+                    }
+                }
+            }
+            String last = values[values.length - 1];
+            if (last.startsWith("#")) sb.append('\t').append(last);
+            rekeyed.put(sb.toString(), me.getValue());
+        }
+        return rekeyed;
+    }
+
+    /**
+     * Make the key of a row from its ID values.
+     */
+    private String key(RowLayout row, int[] idSlots) {
+        StringBuilder sb = keyBuilder;
+        sb.setLength(0);
+        for (int i = 0; i < idSlots.length; i++) {
+            if (i > 0) sb.append('\t');
+            String value = row.get(idSlots[i]);
+            if (value != null) escape(sb, value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Make the key of a row with the same ID values as an earlier row of
+     * this run by adding its order. The first duplicate of a table is
+     * reported.
+     */
+    private String duplicateKey(Table t, String key) {
+        if (t.duplicates.isEmpty()) {
+            System.err.println("WARNING: " + t.name + " has rows with the same ID values. "
+                    + "They are told apart by their order in the run.");
+        }
+
+        Integer count = t.duplicates.get(key);
+        int order = count == null ? 2 : count + 1;
+        t.duplicates.put(key, order);
+        return key + "\t#" + order;
+    }
+
+    /**
+     * FNV-1a hash of the non empty values of a row and their column names.
+     */
+    static long fingerprint(RowLayout row) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < row.size(); i++) {
+            String value = row.get(i);
+            if (value == null || value.length() == 0) continue;
+
+            hash = hash(hash, row.getColumn(i));
+            hash = (hash ^ '=') * FNV_PRIME;
+            hash = hash(hash, value);
+            hash = (hash ^ '\n') * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Pass on the rows of the last run that were not found in this run.
+     */
+    private void writeDeletedRows(Table t) throws IOException {
+        if (t.deltaLayout == null) {
+            //The table has no rows in this run
+            List<String> columns = new ArrayList<String>();
+            columns.add(CHANGE_TYPE);
+            t.idSlots = new int[t.idColumns.length];
+            for (int i = 0; i < t.idColumns.length; i++) {
+                columns.add(t.idColumns[i]);
+                t.idSlots[i] = i;
+            }
+            t.deltaLayout = new RowLayout(columns, null, 0);
+        }
+
+        RowLayout delta = t.deltaLayout;
+        Iterator<String> iter = t.previous.keySet().iterator();
+        while (iter.hasNext()) {
+            String key = iter.next();
+            if (t.current.containsKey(key)) continue;
+
+            delta.clearRow();
+            delta.set(0, DELETED);
+            String[] values = key.split("\t", -1);
+            for (int i = 0; i < t.idSlots.length && i < values.length; i++) {
+                if (values[i].length() > 0) delta.set(t.idSlots[i] + 1, unescape(values[i]));
+            }
+            sink.row(t.kind, t.name, fileBasename, fileDateTime, delta);
+        }
+    }
+
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '#':
+                    sb.append("\\#");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) return value;
+
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                c = value.charAt(++i);
+                if (c == 't') c = '\t';
+                else if (c == 'n') c = '\n';
+                else if (c == 'r') c = '\r';
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Load the fingerprints of the last run.
+     */
+    private void load() throws IOException {
+        File file = new File(storeFilename);
+        if (!file.isFile()) return;
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8));
+        try {
+            if (!HEADER.equals(br.readLine())) {
+                System.err.println("WARNING: " + storeFilename + " is not a delta store of this version. All rows are added.");
+                return;
+            }
+
+            Table t = null;
+            for (String line; (line = br.readLine()) != null; ) {
+                if (line.startsWith("T ")) {
+                    String[] parts = line.split(" ", 4);
+                    t = getTable(Integer.parseInt(parts[1]), parts[2]);
+                    t.idColumns = parts.length < 4 || parts[3].length() == 0
+                            ? new String[0] : parts[3].split(",");
+                    continue;
+                }
+
+                int space = line.indexOf(' ');
+                if (t == null || space < 0) continue;
+                t.previous.put(line.substring(space + 1), Long.parseUnsignedLong(line.substring(0, space), 16));
+            }
+        } finally {
+            br.close();
+        }
+    }
+
+    /**
+     * Replace the store with the fingerprints of this run.
+     */
+    private void save() throws IOException {
+        File file = new File(storeFilename);
+        File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(tmpFile)), StandardCharsets.UTF_8));
+        try {
+            bw.write(HEADER);
+            bw.newLine();
+
+            Iterator<Table> iter = tables.values().iterator();
+            while (iter.hasNext()) {
+                Table t = iter.next();
+                if (t.current.isEmpty()) continue;
+
+                bw.write("T " + t.kind + " " + t.name + " ");
+                for (int i = 0; i < t.idColumns.length; i++) {
+                    if (i > 0) bw.write(',');
+                    bw.write(t.idColumns[i]);
+                }
+                bw.newLine();
+
+                Iterator<Map.Entry<String, Long>> fIter = t.current.entrySet().iterator();
+                while (fIter.hasNext()) {
+                    Map.Entry<String, Long> me = fIter.next();
+                    bw.write(Long.toHexString(me.getValue()));
+                    bw.write(' ');
+                    bw.write(me.getKey());
+                    bw.newLine();
+                }
+            }
+        } finally {
+            bw.close();
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,778 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Splits a Bulk CM file into pieces that can be parsed at the same time.
+ * <p>
+ * The pieces are cut at the start and end of MeContext and ManagedElement
+ * elements. Files without them are cut at SubNetworks nested in another
+ * SubNetwork. Consecutive split elements with the same parent are put in
+ * the same piece up to a target size. The parts of the file between them
+ * are pieces of their own.
+ * <p>
+ * A large file is scanned for split elements by several threads. The file
+ * is cut near equal byte offsets, each cut is moved forward to the next
+ * MeContext or ManagedElement start tag and each thread scans one range.
+ * The ranges are then joined in file order. A cut that lands inside an
+ * element skipped by the range before it is joined at the end tag of that
+ * element. A range that can not be joined, for example because its cut is
+ * in a comment, is scanned again from the end of the range before it.
+ * <p>
+ * A piece starts with a prefix holding the start tags of the elements that
+ * are open where the piece starts, each followed by the element's
+ * xn:attributes seen so far. Parsing the prefix gives the parser the parent
+ * IDs of the piece's MOs. The attributes let an open MO whose end tag is in
+ * the piece be written with its values.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class FileSplitter {
+
+    /**
+     * Smallest number of bytes scanned by a thread.
+     */
+    static final long MIN_SCAN_RANGE_SIZE = 4L << 20;
+
+    /**
+     * Number of bytes read at a time when looking for a start tag.
+     */
+    private static final int SEARCH_BLOCK_SIZE = 1 << 16;
+
+    /**
+     * Longest element name looked at when looking for a start tag.
+     */
+    private static final int MAX_NAME_LENGTH = 256;
+
+    /**
+     * A byte range of the file and the prefix to parse before it.
+     */
+    public static class Piece {
+
+        final long start;
+
+        final long end;
+
+        final byte[] prefix;
+
+        Piece(long start, long end, byte[] prefix) {
+            this.start = start;
+            this.end = end;
+            this.prefix = prefix;
+        }
+
+        /**
+         * Number of bytes in the piece including the prefix.
+         */
+        public long length() {
+            return prefix.length + end - start;
+        }
+
+        public int prefixLength() {
+            return prefix.length;
+        }
+
+        /**
+         * Open a channel reading the prefix and then the piece's bytes.
+         *
+         * @param filename
+         */
+        public ReadableByteChannel open(String filename) throws IOException {
+            return new PieceChannel(FileChannel.open(Paths.get(filename), StandardOpenOption.READ), this);
+        }
+    }
+
+    /**
+     * An element that is open during the scan.
+     */
+    private static class OpenElement {
+
+        final SymbolTable.Symbol symbol;
+
+        final OpenElement parent;
+
+        /**
+         * Byte ranges of the start tag and the xn:attributes of the element.
+         */
+        final List<long[]> ranges = new ArrayList<long[]>();
+
+        OpenElement(SymbolTable.Symbol symbol, OpenElement parent, long start, long end) {
+            this.symbol = symbol;
+            this.parent = parent;
+            ranges.add(new long[]{start, end});
+        }
+    }
+
+    /**
+     * A split element.
+     */
+    static class SplitElement {
+
+        final long start;
+
+        long end;
+
+        final OpenElement parent;
+
+        /**
+         * The element's id attribute or null.
+         */
+        String id;
+
+        /**
+         * Byte ranges of the prefix of a piece starting or ending at the
+         * element.
+         */
+        final List<long[]> context = new ArrayList<long[]>();
+
+        SplitElement(long start, long end, OpenElement parent) {
+            this.start = start;
+            this.end = end;
+            this.parent = parent;
+
+            //Copy the ranges as they are when the element is found. More
+            //xn:attributes of the parents can come later.
+            List<OpenElement> path = new ArrayList<OpenElement>();
+            for (OpenElement e = parent; e != null; e = e.parent) {
+                path.add(0, e);
+            }
+            for (OpenElement e : path) {
+                context.addAll(e.ranges);
+            }
+        }
+    }
+
+    /**
+     * Reads a piece's prefix and then its bytes from the file.
+     */
+    private static class PieceChannel implements ReadableByteChannel {
+
+        private final FileChannel file;
+
+        private final Piece piece;
+
+        private int prefixPosition = 0;
+
+        private long position;
+
+        PieceChannel(FileChannel file, Piece piece) {
+            this.file = file;
+            this.piece = piece;
+            this.position = piece.start;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (prefixPosition < piece.prefix.length) {
+                int n = Math.min(dst.remaining(), piece.prefix.length - prefixPosition);
+                dst.put(piece.prefix, prefixPosition, n);
+                prefixPosition += n;
+                return n;
+            }
+
+            long remaining = piece.end - position;
+            if (remaining <= 0) return -1;
+
+            int limit = dst.limit();
+            if (dst.remaining() > remaining) ((Buffer) dst).limit(dst.position() + (int) remaining);
+            int n;
+            try {
+                n = file.read(dst, position);
+            } finally {
+                ((Buffer) dst).limit(limit);
+            }
+            if (n > 0) position += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    static boolean isManagedElement(String localName) {
+        return localName.equals("MeContext") || localName.equals("meContext")
+                || localName.equals("ManagedElement");
+    }
+
+    private static boolean isNestedSubNetwork(OpenElement e) {
+        return e.symbol.localName.equals("SubNetwork") && e.parent != null
+                && e.parent.symbol.localName.equals("SubNetwork");
+    }
+
+    /**
+     * Follows the open elements of a scan and collects the split elements.
+     */
+    private static class Scanner {
+
+        final List<SplitElement> managedElements;
+
+        final List<SplitElement> subNetworks;
+
+        OpenElement top = null;
+
+        /**
+         * The outermost open nested SubNetwork.
+         */
+        OpenElement subNetwork = null;
+
+        Scanner(List<SplitElement> managedElements, List<SplitElement> subNetworks) {
+            this.managedElements = managedElements;
+            this.subNetworks = subNetworks;
+        }
+
+        void startElement(SymbolTable.Symbol symbol, long start, long end) {
+            top = new OpenElement(symbol, top, start, end);
+            if (subNetwork == null && isNestedSubNetwork(top)) {
+                subNetwork = top;
+                subNetworks.add(new SplitElement(start, -1, top.parent));
+            }
+        }
+
+        void endElement(long end) {
+            if (top == subNetwork) {
+                subNetworks.get(subNetworks.size() - 1).end = end;
+                subNetwork = null;
+            }
+            top = top.parent;
+        }
+
+        void attributes(long start, long end) {
+            if (top != null) top.ranges.add(new long[]{start, end});
+        }
+
+        void managedElement(long start, long end, String id) {
+            SplitElement element = new SplitElement(start, end, top);
+            element.id = id;
+            managedElements.add(element);
+        }
+
+        /**
+         * Apply a token found by a range scan.
+         *
+         * @return false if the token does not fit the open elements
+         */
+        boolean replay(RangeScan.Token token) {
+            switch (token.type) {
+                case RangeScan.START_ELEMENT:
+                    startElement(token.symbol, token.start, token.end);
+                    return true;
+                case RangeScan.END_ELEMENT:
+                    if (top == null) return false;
+                    endElement(token.end);
+                    return true;
+                case RangeScan.ATTRIBUTES:
+                    attributes(token.start, token.end);
+                    return true;
+                default:
+                    if (top == null) return false;
+                    managedElement(token.start, token.end, token.id);
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * The tokens of a byte range that change the open elements of a scan.
+     * <p>
+     * The range starts at a start tag and its scan starts with no open
+     * elements. The elements open where the range starts are only known
+     * when the ranges are joined. MeContext and ManagedElement elements are
+     * taken to be inside an element.
+     */
+    private static class RangeScan implements Callable<RangeScan> {
+
+        static final int START_ELEMENT = 1;
+
+        static final int END_ELEMENT = 2;
+
+        static final int ATTRIBUTES = 3;
+
+        static final int MANAGED_ELEMENT = 4;
+
+        static class Token {
+
+            final int type;
+
+            final long start;
+
+            final long end;
+
+            /**
+             * Number of start elements less end elements in the range up
+             * to and including the token.
+             */
+            final int depth;
+
+            SymbolTable.Symbol symbol;
+
+            String id;
+
+            Token(int type, long start, long end, int depth) {
+                this.type = type;
+                this.start = start;
+                this.end = end;
+                this.depth = depth;
+            }
+        }
+
+        final String filename;
+
+        final long start;
+
+        /**
+         * Start of the next range.
+         */
+        final long cut;
+
+        /**
+         * Offset just after the last token of the range.
+         */
+        long stop;
+
+        /**
+         * Set when the range is not well formed from its start.
+         */
+        XMLStreamException error;
+
+        final List<Token> tokens = new ArrayList<Token>();
+
+        RangeScan(String filename, long start, long cut) {
+            this.filename = filename;
+            this.start = start;
+            this.cut = cut;
+        }
+
+        @Override
+        public RangeScan call() throws IOException, XMLStreamException {
+            SymbolTable symbolTable = new SymbolTable();
+            FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            channel.position(start);
+            BulkCMTokenizer tokenizer = new BulkCMTokenizer(channel);
+            tokenizer.setFragment(start > 0);
+            try {
+                int depth = 0;
+
+                //The end of an empty element at the cut is in this range
+                while (start + tokenizer.getOffset() < cut || tokenizer.isEndPending()) {
+                    int token = tokenizer.next();
+                    if (token == BulkCMTokenizer.END_DOCUMENT) break;
+
+                    if (token == BulkCMTokenizer.END_ELEMENT) {
+                        depth--;
+                        add(END_ELEMENT, tokenizer.getTokenOffset(), tokenizer.getOffset(), depth);
+                        continue;
+                    }
+
+                    if (token != BulkCMTokenizer.START_ELEMENT) continue;
+
+                    BulkCMTokenizer.Name name = tokenizer.getElementName();
+                    if (name.symbol == null) {
+                        name.symbol = symbolTable.lookup(name.localName, name.prefix);
+                    }
+                    SymbolTable.Symbol symbol = name.symbol;
+                    long tokenStart = tokenizer.getTokenOffset();
+
+                    if (symbol.kind == SymbolTable.KIND_ATTRIBUTES) {
+                        tokenizer.skipElement();
+                        add(ATTRIBUTES, tokenStart, tokenizer.getOffset(), depth);
+                        continue;
+                    }
+                    if (symbol.kind == SymbolTable.KIND_VS_DATA_CONTAINER
+                            || symbol.kind == SymbolTable.KIND_VS_DATA_TYPE) {
+                        tokenizer.skipElement();
+                        continue;
+                    }
+
+                    if (isManagedElement(symbol.localName)) {
+                        String id = getId(tokenizer);
+                        tokenizer.skipElement();
+                        add(MANAGED_ELEMENT, tokenStart, tokenizer.getOffset(), depth).id = id;
+                        continue;
+                    }
+
+                    depth++;
+                    add(START_ELEMENT, tokenStart, tokenizer.getOffset(), depth).symbol = symbol;
+                }
+                stop = start + tokenizer.getOffset();
+                return this;
+            } catch (XMLStreamException e) {
+                error = e;
+                return this;
+            } finally {
+                tokenizer.close();
+            }
+        }
+
+        private Token add(int type, long tokenStart, long tokenEnd, int depth) {
+            Token token = new Token(type, start + tokenStart, start + tokenEnd, depth);
+            tokens.add(token);
+            return token;
+        }
+
+        /**
+         * Find the first token after an offset where the scan of the file
+         * is in step with this range.
+         * <p>
+         * The offset is the end of an element that holds the start of the
+         * range. Its end tag must be a token of the range and the elements
+         * opened in the range before it must be closed.
+         *
+         * @param offset
+         * @return Index of the token or -1 if the range can not be joined
+         * there
+         */
+        int resume(long offset) {
+            if (error != null) return -1;
+            if (offset == start) return 0;
+
+            int minDepth = 0;
+            for (int i = 0; i < tokens.size(); i++) {
+                Token token = tokens.get(i);
+                if (token.end > offset) return -1;
+                minDepth = Math.min(minDepth, token.depth);
+                if (token.end == offset) {
+                    return token.type == END_ELEMENT && token.depth == minDepth ? i + 1 : -1;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Split a file into pieces.
+     *
+     * @param filename A file supported by the Bulk CM tokenizer
+     * @param targetSize Largest number of bytes of split elements in a piece.
+     * A split element larger than this is a piece of its own.
+     * @return The pieces in file order. There is one piece if the file has no
+     * split elements.
+     */
+    public static List<Piece> split(String filename, long targetSize) throws IOException, XMLStreamException {
+        return split(filename, targetSize, 1);
+    }
+
+    /**
+     * Split a file into pieces, looking for the split elements with several
+     * threads.
+     *
+     * @param filename A file supported by the Bulk CM tokenizer
+     * @param targetSize Largest number of bytes of split elements in a piece.
+     * A split element larger than this is a piece of its own.
+     * @param threads Largest number of threads scanning the file
+     * @return The pieces in file order. There is one piece if the file has no
+     * split elements.
+     */
+    public static List<Piece> split(String filename, long targetSize, int threads) throws IOException, XMLStreamException {
+        List<SplitElement> managedElements = new ArrayList<SplitElement>();
+        List<SplitElement> subNetworks = new ArrayList<SplitElement>();
+
+        long fileSize = -1;
+        int ranges = (int) Math.min(threads, new File(filename).length() / MIN_SCAN_RANGE_SIZE);
+        if (ranges > 1) {
+            fileSize = scan(filename, ranges, managedElements, subNetworks);
+        }
+        if (fileSize < 0) {
+            managedElements.clear();
+            subNetworks.clear();
+            fileSize = scan(filename, managedElements, subNetworks);
+        }
+
+        List<SplitElement> splitElements = managedElements.isEmpty() ? subNetworks : managedElements;
+
+        RandomAccessFile raf = new RandomAccessFile(filename, "r");
+        try {
+            return pieces(raf, splitElements, fileSize, targetSize);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Find the outermost MeContext and ManagedElement elements and the
+     * outermost nested SubNetworks of a file.
+     *
+     * @param filename A file supported by the Bulk CM tokenizer
+     * @param managedElements Gets the MeContext and ManagedElement elements
+     * @param subNetworks Gets the nested SubNetworks
+     * @return Size of the file
+     */
+    static long scan(String filename, List<SplitElement> managedElements,
+            List<SplitElement> subNetworks) throws IOException, XMLStreamException {
+        SymbolTable symbolTable = new SymbolTable();
+        BulkCMTokenizer tokenizer = BulkCMTokenizer.open(filename);
+        try {
+            Scanner scanner = new Scanner(managedElements, subNetworks);
+
+            while (true) {
+                int token = tokenizer.next();
+                if (token == BulkCMTokenizer.END_DOCUMENT) break;
+
+                if (token == BulkCMTokenizer.END_ELEMENT) {
+                    scanner.endElement(tokenizer.getOffset());
+                    continue;
+                }
+
+                if (token != BulkCMTokenizer.START_ELEMENT) continue;
+
+                BulkCMTokenizer.Name name = tokenizer.getElementName();
+                if (name.symbol == null) {
+                    name.symbol = symbolTable.lookup(name.localName, name.prefix);
+                }
+                SymbolTable.Symbol symbol = name.symbol;
+                long start = tokenizer.getTokenOffset();
+
+                //Split elements are not looked for in attributes and vendor
+                //specific data
+                if (symbol.kind == SymbolTable.KIND_ATTRIBUTES) {
+                    tokenizer.skipElement();
+                    scanner.attributes(start, tokenizer.getOffset());
+                    continue;
+                }
+                if (symbol.kind == SymbolTable.KIND_VS_DATA_CONTAINER
+                        || symbol.kind == SymbolTable.KIND_VS_DATA_TYPE) {
+                    tokenizer.skipElement();
+                    continue;
+                }
+
+                if (scanner.top != null && isManagedElement(symbol.localName)) {
+                    String id = getId(tokenizer);
+                    tokenizer.skipElement();
+                    scanner.managedElement(start, tokenizer.getOffset(), id);
+                    continue;
+                }
+
+                scanner.startElement(symbol, start, tokenizer.getOffset());
+            }
+            return tokenizer.getOffset();
+        } finally {
+            tokenizer.close();
+        }
+    }
+
+    /**
+     * Find the split elements of a file with several threads, each scanning
+     * a range of the file.
+     *
+     * @param filename A file supported by the Bulk CM tokenizer
+     * @param ranges Number of ranges to cut the file into
+     * @param managedElements Gets the MeContext and ManagedElement elements
+     * @param subNetworks Gets the nested SubNetworks
+     * @return Size of the file or -1 if the ranges do not give the same
+     * elements as one scan. The lists then have to be cleared.
+     */
+    static long scan(String filename, int ranges, List<SplitElement> managedElements,
+            List<SplitElement> subNetworks) throws IOException, XMLStreamException {
+        long fileSize = new File(filename).length();
+
+        List<Long> starts = new ArrayList<Long>();
+        starts.add(0L);
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            for (int i = 1; i < ranges; i++) {
+                long from = Math.max(fileSize / ranges * i, starts.get(starts.size() - 1) + 1);
+                long cut = findManagedElement(channel, from);
+                if (cut < 0) break;
+                starts.add(cut);
+            }
+        } finally {
+            channel.close();
+        }
+
+        List<RangeScan> scans = new ArrayList<RangeScan>();
+        for (int i = 0; i < starts.size(); i++) {
+            long cut = i + 1 < starts.size() ? starts.get(i + 1) : Long.MAX_VALUE;
+            scans.add(new RangeScan(filename, starts.get(i), cut));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(scans.size());
+        try {
+            for (Future<RangeScan> future : executor.invokeAll(scans)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Scanner scanner = new Scanner(managedElements, subNetworks);
+        long offset = 0;
+        for (RangeScan scan : scans) {
+            //The range is inside an element skipped by the ranges before it
+            if (scan.error == null && offset >= scan.stop) continue;
+
+            int i = scan.resume(offset);
+            if (i < 0) {
+                scan = new RangeScan(filename, offset, scan.cut).call();
+                if (scan.error != null) throw scan.error;
+                i = 0;
+            }
+            for (; i < scan.tokens.size(); i++) {
+                if (!scanner.replay(scan.tokens.get(i))) return -1;
+            }
+            offset = scan.stop;
+        }
+        if (offset != fileSize || scanner.top != null) return -1;
+        return fileSize;
+    }
+
+    /**
+     * Find the first MeContext or ManagedElement start tag at or after an
+     * offset. The tag can be in a comment or CDATA section.
+     *
+     * @param channel The file
+     * @param offset
+     * @return Offset of the tag or -1 if there is none
+     */
+    private static long findManagedElement(FileChannel channel, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SEARCH_BLOCK_SIZE);
+        byte[] b = buffer.array();
+        while (true) {
+            ((Buffer) buffer).clear();
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+                //Fill the buffer
+            }
+            int length = buffer.position();
+            boolean last = buffer.hasRemaining();
+
+            //A name starting near the end of the buffer is read again with
+            //the next block
+            int searchEnd = last ? length : length - MAX_NAME_LENGTH;
+            for (int i = 0; i < searchEnd; i++) {
+                if (b[i] != '<' || i + 1 >= length) continue;
+                if (b[i + 1] == '/' || b[i + 1] == '!' || b[i + 1] == '?') continue;
+
+                int nameEnd = i + 1;
+                int localStart = i + 1;
+                while (nameEnd < length && nameEnd - i <= MAX_NAME_LENGTH && b[nameEnd] != '>'
+                        && b[nameEnd] != '/' && b[nameEnd] > ' ') {
+                    if (b[nameEnd] == ':') localStart = nameEnd + 1;
+                    nameEnd++;
+                }
+                int localLength = nameEnd - localStart;
+                if (nameEnd < length && (localLength == 9 || localLength == 14)
+                        && isManagedElement(new String(b, localStart, localLength, StandardCharsets.US_ASCII))) {
+                    return offset + i;
+                }
+            }
+            if (last) return -1;
+            offset += searchEnd;
+        }
+    }
+
+    /**
+     * Get the id attribute of the current start element.
+     */
+    private static String getId(BulkCMTokenizer tokenizer) {
+        for (int i = 0; i < tokenizer.getAttributeCount(); i++) {
+            if (!tokenizer.attributeHasNamespace(i) && tokenizer.getAttributeLocalName(i).equals("id")) {
+                return tokenizer.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    private static List<Piece> pieces(RandomAccessFile raf, List<SplitElement> splitElements,
+            long fileSize, long targetSize) throws IOException {
+        List<Piece> pieces = new ArrayList<Piece>();
+
+        //Start and prefix of the next piece
+        long position = 0;
+        List<long[]> context = new ArrayList<long[]>();
+
+        //Parent of the split element that ends at position
+        OpenElement parent = null;
+
+        int i = 0;
+        while (i < splitElements.size()) {
+            SplitElement first = splitElements.get(i);
+
+            int last = i;
+            while (last + 1 < splitElements.size()
+                    && splitElements.get(last + 1).parent == first.parent
+                    && splitElements.get(last + 1).end - first.start <= targetSize) {
+                last++;
+            }
+
+            //Split elements with the same parent are in consecutive pieces.
+            //The bytes between them go with the next piece.
+            if (first.parent != parent) {
+                if (first.start > position) {
+                    pieces.add(piece(raf, position, first.start, context));
+                }
+                position = first.start;
+                context = first.context;
+            }
+
+            SplitElement lastElement = splitElements.get(last);
+            pieces.add(piece(raf, position, lastElement.end, context));
+
+            position = lastElement.end;
+            context = lastElement.context;
+            parent = first.parent;
+            i = last + 1;
+        }
+
+        if (position < fileSize) {
+            pieces.add(piece(raf, position, fileSize, context));
+        }
+        return pieces;
+    }
+
+    /**
+     * Read a piece's prefix.
+     *
+     * @param raf The file
+     * @param start Start of the piece
+     * @param end End of the piece
+     * @param context Byte ranges of the prefix
+     */
+    static Piece piece(RandomAccessFile raf, long start, long end, List<long[]> context) throws IOException {
+        int length = 0;
+        for (long[] range : context) {
+            length += (int) (range[1] - range[0]);
+        }
+
+        byte[] prefix = new byte[length];
+        int offset = 0;
+        for (long[] range : context) {
+            raf.seek(range[0]);
+            raf.readFully(prefix, offset, (int) (range[1] - range[0]));
+            offset += (int) (range[1] - range[0]);
+        }
+        return new Piece(start, end, prefix);
+    }
+}
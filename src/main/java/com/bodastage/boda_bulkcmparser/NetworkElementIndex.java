@@ -0,0 +1,333 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Byte offsets of the network elements of a Bulk CM file.
+ * <p>
+ * The index holds the byte range of each outermost MeContext and
+ * ManagedElement element of the file with its id attribute, and the byte
+ * ranges of the start tags and xn:attributes of the elements it is in. The
+ * network elements with given IDs are parsed by reading their ranges only,
+ * as pieces of the file.
+ * <p>
+ * The index is kept in a sidecar file next to the input file, or in an
+ * index directory when the input directory cannot be written to:
+ * <pre>
+ * #bulkcm ne index 1
+ * &lt;file size&gt; &lt;file last modified time&gt;
+ * C &lt;start&gt;-&lt;end&gt;,&lt;start&gt;-&lt;end&gt;...
+ * E &lt;start&gt; &lt;end&gt; &lt;id&gt;
+ * </pre>
+ * A C line holds the ranges of the enclosing elements of the E lines after
+ * it. The index is built again when the size or the time of the input file
+ * has changed.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class NetworkElementIndex {
+
+    /**
+     * Extension of the index file added to the input file name.
+     */
+    public static final String EXTENSION = ".neidx";
+
+    /**
+     * First line of an index file.
+     */
+    static final String HEADER = "#bulkcm ne index 1";
+
+    /**
+     * A network element.
+     */
+    static class Entry {
+
+        final String id;
+
+        final long start;
+
+        final long end;
+
+        /**
+         * Byte ranges of the enclosing elements. Entries with the same
+         * enclosing elements share the array.
+         */
+        final long[][] context;
+
+        Entry(String id, long start, long end, long[][] context) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+            this.context = context;
+        }
+    }
+
+    private final long fileSize;
+
+    private final long lastModified;
+
+    private final List<Entry> entries;
+
+    private NetworkElementIndex(long fileSize, long lastModified, List<Entry> entries) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.entries = entries;
+    }
+
+    /**
+     * Number of network elements in the index.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the name of the index file of an input file.
+     *
+     * @param filename
+     */
+    public static String indexFilename(String filename) {
+        return filename + EXTENSION;
+    }
+
+    /**
+     * Get the name of the index file of an input file in an index directory.
+     * The name has a hash of the input file's path, so that input files with
+     * the same name in different directories have their own index files.
+     *
+     * @param filename
+     * @param indexDirectory The index directory or null for the index file
+     * next to the input file
+     */
+    public static String indexFilename(String filename, String indexDirectory) {
+        if (indexDirectory == null) return indexFilename(filename);
+
+        File file = new File(filename).getAbsoluteFile();
+        String name = file.getName() + "." + Integer.toHexString(file.getPath().hashCode()) + EXTENSION;
+        return new File(indexDirectory, name).getPath();
+    }
+
+    /**
+     * Get the index of a file from its index file, building and saving the
+     * index if the index file is missing or out of date. A warning is
+     * printed if the index file cannot be saved.
+     *
+     * @param filename A file supported by the Bulk CM tokenizer
+     */
+    public static NetworkElementIndex get(String filename) throws IOException, XMLStreamException {
+        return get(filename, null);
+    }
+
+    /**
+     * Get the index of a file from its index file in an index directory,
+     * building and saving the index if the index file is missing or out of
+     * date. A warning is printed if the index file cannot be saved.
+     *
+     * @param filename A file supported by the Bulk CM tokenizer
+     * @param indexDirectory The index directory or null for the index file
+     * next to the input file
+     */
+    public static NetworkElementIndex get(String filename, String indexDirectory) throws IOException, XMLStreamException {
+        String indexFilename = indexFilename(filename, indexDirectory);
+        NetworkElementIndex index = load(filename, indexFilename);
+        if (index != null) return index;
+
+        index = build(filename);
+        try {
+            index.save(indexFilename);
+        } catch (IOException e) {
+            System.err.println("WARNING: Cannot save the index of " + filename + ". " + e.getMessage());
+        }
+        return index;
+    }
+
+    /**
+     * Build the index of a file.
+     *
+     * @param filename A file supported by the Bulk CM tokenizer
+     */
+    public static NetworkElementIndex build(String filename) throws IOException, XMLStreamException {
+        File file = new File(filename);
+        long lastModified = file.lastModified();
+
+        List<FileSplitter.SplitElement> managedElements = new ArrayList<FileSplitter.SplitElement>();
+        long fileSize = FileSplitter.scan(filename, managedElements, new ArrayList<FileSplitter.SplitElement>());
+
+        List<Entry> entries = new ArrayList<Entry>(managedElements.size());
+        long[][] context = null;
+        for (FileSplitter.SplitElement e : managedElements) {
+            long[][] c = e.context.toArray(new long[e.context.size()][]);
+            if (context == null || !Arrays.deepEquals(context, c)) context = c;
+            entries.add(new Entry(e.id, e.start, e.end, context));
+        }
+        return new NetworkElementIndex(fileSize, lastModified, entries);
+    }
+
+    /**
+     * Load the index of a file from its index file.
+     *
+     * @param filename The input file
+     * @return The index or null if there is no index file or it is out of
+     * date
+     */
+    public static NetworkElementIndex load(String filename) throws IOException {
+        return load(filename, indexFilename(filename));
+    }
+
+    /**
+     * Load the index of a file from an index file.
+     *
+     * @param filename The input file
+     * @param indexFilename
+     * @return The index or null if there is no index file or it is out of
+     * date
+     */
+    public static NetworkElementIndex load(String filename, String indexFilename) throws IOException {
+        File file = new File(filename);
+        File indexFile = new File(indexFilename);
+        if (!indexFile.isFile()) return null;
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(indexFile), StandardCharsets.UTF_8));
+        try {
+            if (!HEADER.equals(br.readLine())) return null;
+
+            String line = br.readLine();
+            if (line == null) return null;
+            String[] parts = line.split(" ");
+            long fileSize = Long.parseLong(parts[0]);
+            long lastModified = Long.parseLong(parts[1]);
+            if (fileSize != file.length() || lastModified != file.lastModified()) return null;
+
+            List<Entry> entries = new ArrayList<Entry>();
+            long[][] context = new long[0][];
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith("C ")) {
+                    String[] ranges = line.length() > 2 ? line.substring(2).split(",") : new String[0];
+                    context = new long[ranges.length][];
+                    for (int i = 0; i < ranges.length; i++) {
+                        int dash = ranges[i].indexOf('-');
+                        context[i] = new long[]{Long.parseLong(ranges[i].substring(0, dash)),
+                            Long.parseLong(ranges[i].substring(dash + 1))};
+                    }
+                } else if (line.startsWith("E ")) {
+                    parts = line.split(" ", 4);
+                    entries.add(new Entry(parts.length > 3 ? parts[3] : null,
+                            Long.parseLong(parts[1]), Long.parseLong(parts[2]), context));
+                }
+            }
+            return new NetworkElementIndex(fileSize, lastModified, entries);
+        } catch (RuntimeException e) {
+            //Not an index file written by save
+            return null;
+        } finally {
+            br.close();
+        }
+    }
+
+    /**
+     * Save the index. The file is replaced once the new index has been
+     * written. A missing directory is created.
+     *
+     * @param indexFilename
+     */
+    public void save(String indexFilename) throws IOException {
+        File file = new File(indexFilename);
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmpFile), StandardCharsets.UTF_8));
+        try {
+            bw.write(HEADER);
+            bw.newLine();
+            bw.write(fileSize + " " + lastModified);
+            bw.newLine();
+
+            long[][] context = null;
+            for (Entry e : entries) {
+                if (e.context != context) {
+                    context = e.context;
+                    bw.write("C ");
+                    for (int i = 0; i < context.length; i++) {
+                        if (i > 0) bw.write(',');
+                        bw.write(context[i][0] + "-" + context[i][1]);
+                    }
+                    bw.newLine();
+                }
+
+                bw.write("E " + e.start + " " + e.end);
+                if (e.id != null) bw.write(" " + e.id.replace('\n', ' ').replace('\r', ' '));
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Get the piece of the file from the end of a network element to the end
+     * of the file.
+     *
+     * @param filename The indexed file
+     * @param offset End of the network element
+     * @return The piece or null if no network element ends at the offset
+     */
+    FileSplitter.Piece piece(String filename, long offset) throws IOException {
+        for (Entry e : entries) {
+            if (e.end != offset) continue;
+
+            RandomAccessFile raf = new RandomAccessFile(filename, "r");
+            try {
+                return FileSplitter.piece(raf, offset, fileSize, Arrays.asList(e.context));
+            } finally {
+                raf.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the pieces of the file holding network elements with given IDs.
+     *
+     * @param filename The indexed file
+     * @param ids
+     * @return The pieces in file order
+     */
+    public List<FileSplitter.Piece> pieces(String filename, Collection<String> ids) throws IOException {
+        List<FileSplitter.Piece> pieces = new ArrayList<FileSplitter.Piece>();
+        RandomAccessFile raf = new RandomAccessFile(filename, "r");
+        try {
+            for (Entry e : entries) {
+                if (e.id == null || !ids.contains(e.id)) continue;
+                pieces.add(FileSplitter.piece(raf, e.start, e.end, Arrays.asList(e.context)));
+            }
+        } finally {
+            raf.close();
+        }
+        return pieces;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Output buffers of the csv files shared out from one memory budget.
+ * <p>
+ * The budget is cut into chunks. A file gets a chunk when it is first
+ * written and another each time its chunks are full, up to
+ * {@link #MAX_FILE_CHUNKS}. Files with many rows so end up with large
+ * buffers and files with few rows with one chunk. The full chunks of a file
+ * are written with one gathering write through its FileChannel.
+ * <p>
+ * When the budget is used up, the file that got or wrote a chunk least
+ * recently is flushed and its chunks are given to the file asking for one.
+ * A file that cannot get a chunk writes its own chunks and reuses them.
+ * <p>
+ * The budget and its streams are used by one thread.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class OutputBufferBudget {
+
+    /**
+     * Default budget in megabytes.
+     */
+    public static final int DEFAULT_BUDGET_MB = 64;
+
+    /**
+     * Size of a chunk.
+     */
+    static final int CHUNK_SIZE = 1 << 16;
+
+    /**
+     * Largest number of chunks of a file.
+     */
+    static final int MAX_FILE_CHUNKS = 16;
+
+    /**
+     * Number of chunks in the budget.
+     */
+    private final int maxChunks;
+
+    /**
+     * Number of chunks allocated so far.
+     */
+    private int allocated = 0;
+
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+    /**
+     * Streams holding chunks from the least to the most recently active.
+     */
+    private final LinkedHashMap<ChunkedOutputStream, Boolean> holders
+            = new LinkedHashMap<ChunkedOutputStream, Boolean>(16, 0.75f, true);
+
+    /**
+     * Create a budget.
+     *
+     * @param budget Bytes shared out among the files. At least one chunk is
+     * used.
+     */
+    public OutputBufferBudget(long budget) {
+        maxChunks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / CHUNK_SIZE));
+    }
+
+    /**
+     * Open a file for writing with buffers from the budget.
+     *
+     * @param filename
+     * @param append Add to the end of the file instead of truncating it
+     */
+    public OutputStream open(String filename, boolean append) throws IOException {
+        FileChannel channel = append
+                ? FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                : FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new ChunkedOutputStream(channel);
+    }
+
+    /**
+     * Get a chunk for a stream, taking it from another stream if the budget
+     * is used up.
+     *
+     * @return The chunk or null if only the requester holds chunks
+     */
+    private ByteBuffer take(ChunkedOutputStream requester) {
+        ByteBuffer chunk = free.poll();
+        if (chunk == null && allocated < maxChunks) {
+            allocated++;
+            chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+
+        Iterator<ChunkedOutputStream> iter = holders.keySet().iterator();
+        while (chunk == null && iter.hasNext()) {
+            ChunkedOutputStream holder = iter.next();
+            if (holder == requester) continue;
+            iter.remove();
+            holder.release();
+            chunk = free.poll();
+        }
+
+        //A stream always gets its first chunk
+        if (chunk == null && requester.count == 0) {
+            allocated++;
+            chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+
+        if (chunk != null) holders.put(requester, Boolean.TRUE);
+        return chunk;
+    }
+
+    /**
+     * A file writing through chunks of the budget.
+     */
+    private class ChunkedOutputStream extends OutputStream {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer[] chunks = new ByteBuffer[MAX_FILE_CHUNKS];
+
+        /**
+         * Number of chunks held.
+         */
+        private int count = 0;
+
+        /**
+         * Index of the chunk being filled.
+         */
+        private int current = -1;
+
+        /**
+         * The chunk being filled or null.
+         */
+        private ByteBuffer buffer = null;
+
+        /**
+         * Error writing the chunks when they were taken by another stream.
+         */
+        private IOException error = null;
+
+        private boolean closed = false;
+
+        ChunkedOutputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (buffer == null || !buffer.hasRemaining()) nextChunk();
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (buffer == null || !buffer.hasRemaining()) nextChunk();
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void nextChunk() throws IOException {
+            if (closed) throw new IOException("The stream is closed");
+            checkError();
+
+            //Chunks kept after the last write
+            if (current + 1 < count) {
+                buffer = chunks[++current];
+                return;
+            }
+
+            ByteBuffer chunk = count < MAX_FILE_CHUNKS ? take(this) : null;
+            if (chunk != null) {
+                ((Buffer) chunk).clear();
+                chunks[count] = chunk;
+                current = count++;
+                buffer = chunk;
+                return;
+            }
+
+            //All the chunks are full
+            holders.put(this, Boolean.TRUE);
+            writeChunks();
+            current = 0;
+            buffer = chunks[0];
+        }
+
+        /**
+         * Write the filled chunks with one gathering write and clear them.
+         */
+        private void writeChunks() throws IOException {
+            if (current < 0) return;
+
+            int n = current + 1;
+            long remaining = 0;
+            for (int i = 0; i < n; i++) {
+                ((Buffer) chunks[i]).flip();
+                remaining += chunks[i].remaining();
+            }
+            try {
+                while (remaining > 0) {
+                    remaining -= channel.write(chunks, 0, n);
+                }
+            } finally {
+                for (int i = 0; i < n; i++) ((Buffer) chunks[i]).clear();
+            }
+        }
+
+        /**
+         * Write the chunks and give them back to the budget.
+         */
+        private void release() {
+            try {
+                writeChunks();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+            for (int i = 0; i < count; i++) {
+                free.add(chunks[i]);
+                chunks[i] = null;
+            }
+            count = 0;
+            current = -1;
+            buffer = null;
+        }
+
+        private void checkError() throws IOException {
+            if (error != null) {
+                IOException e = error;
+                error = null;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed) return;
+            checkError();
+            writeChunks();
+            current = count > 0 ? 0 : -1;
+            buffer = count > 0 ? chunks[0] : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+
+            try {
+                checkError();
+                writeChunks();
+            } finally {
+                current = -1;
+                release();
+                holders.remove(this);
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Writes csv files in a writer thread.
+ * <p>
+ * The streams returned by {@link #open(OutputStream)} collect bytes in
+ * blocks. A full block is handed to the writer thread through a ring buffer
+ * and the ring slot's free block is taken in its place, so the blocks are
+ * reused. The writer thread writes the blocks to the files while the parser
+ * goes on. The parser waits when all the ring's
+ * blocks are waiting to be written.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class OutputPipeline {
+
+    /**
+     * Number of blocks in the ring.
+     */
+    static final int RING_SIZE = 64;
+
+    /**
+     * Bytes per block.
+     */
+    static final int BLOCK_SIZE = 8192;
+
+    private static final int WRITE = 0;
+
+    private static final int CLOSE = 1;
+
+    private static final int STOP = 2;
+
+    private static final int FLUSH = 3;
+
+    private static final int SYNC = 4;
+
+    /**
+     * A slot of the ring.
+     */
+    private static class Task {
+
+        int type;
+
+        OutputStream target;
+
+        byte[] block = new byte[BLOCK_SIZE];
+
+        int length;
+
+        /**
+         * Counted down when a SYNC task is reached.
+         */
+        CountDownLatch synced;
+    }
+
+    private final RingBuffer<Task> ring;
+
+    private final Thread writer;
+
+    /**
+     * First error of the writer thread.
+     */
+    private volatile IOException error = null;
+
+    private boolean stopped = false;
+
+    public OutputPipeline() {
+        Task[] tasks = new Task[RING_SIZE];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new Task();
+        }
+        ring = new RingBuffer<Task>(tasks);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeTasks();
+            }
+        }, "bulkcm-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writeTasks() {
+        try {
+            while (true) {
+                Task task = ring.take();
+                if (task.type == STOP) {
+                    ring.release();
+                    return;
+                }
+
+                if (task.type == SYNC) {
+                    task.synced.countDown();
+                    task.synced = null;
+                    ring.release();
+                    continue;
+                }
+
+                try {
+                    if (task.type == WRITE) {
+                        task.target.write(task.block, 0, task.length);
+                    } else if (task.type == FLUSH) {
+                        task.target.flush();
+                    } else {
+                        task.target.close();
+                    }
+                } catch (IOException e) {
+                    if (error == null) error = e;
+                }
+                task.target = null;
+                ring.release();
+            }
+        } catch (IOException e) {
+            //The ring was aborted
+        }
+    }
+
+    /**
+     * Write a stream through the pipeline. The stream's file is opened by
+     * the caller, so errors opening it are reported at once.
+     *
+     * @param out The stream is written and closed in the writer thread
+     * @return A stream handing its bytes to the writer thread
+     */
+    public OutputStream open(OutputStream out) {
+        return new PipedOutputStream(out);
+    }
+
+    /**
+     * Wait for the writer thread to write and flush what the streams have
+     * handed to it. Call flush on the streams first.
+     *
+     * @throws IOException The first error writing the files
+     */
+    public void sync() throws IOException {
+        CountDownLatch synced = new CountDownLatch(1);
+        Task task = ring.claim();
+        task.type = SYNC;
+        task.synced = synced;
+        ring.publish();
+        try {
+            synced.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (error != null) throw error;
+    }
+
+    /**
+     * Wait for the writer thread to write everything and stop it. The files
+     * must be closed first.
+     *
+     * @throws IOException The first error writing the files
+     */
+    public void close() throws IOException {
+        if (stopped) return;
+        stopped = true;
+        try {
+            Task task = ring.claim();
+            task.type = STOP;
+            ring.publish();
+            writer.join();
+        } catch (InterruptedException e) {
+            ring.abort();
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) throw error;
+    }
+
+    /**
+     * Stream collecting bytes for the writer thread.
+     */
+    private class PipedOutputStream extends OutputStream {
+
+        private final OutputStream target;
+
+        private byte[] block = new byte[BLOCK_SIZE];
+
+        private int length = 0;
+
+        private boolean closed = false;
+
+        PipedOutputStream(OutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length == block.length) flushBlock();
+            block[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == block.length) flushBlock();
+                int n = Math.min(len, block.length - length);
+                System.arraycopy(b, off, block, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Blocks are handed to the writer thread when they are full and when
+         * the stream is flushed or closed. The writer thread flushes the
+         * file after writing the block. {@link OutputPipeline#sync()} waits
+         * for it.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (closed) return;
+
+            flushBlock();
+            Task task = ring.claim();
+            task.type = FLUSH;
+            task.target = target;
+            ring.publish();
+        }
+
+        private void flushBlock() throws IOException {
+            if (length == 0) return;
+
+            Task task = ring.claim();
+            byte[] free = task.block;
+            task.type = WRITE;
+            task.target = target;
+            task.block = block;
+            task.length = length;
+            ring.publish();
+
+            block = free;
+            length = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+
+            flushBlock();
+            Task task = ring.claim();
+            task.type = CLOSE;
+            task.target = target;
+            ring.publish();
+        }
+    }
+}
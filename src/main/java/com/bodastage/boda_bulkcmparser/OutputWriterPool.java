@@ -0,0 +1,192 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The csv file streams of a parser with a limit on how many are open.
+ * <p>
+ * When the limit is reached, the stream used least recently is closed. A
+ * closed file is opened again in append mode the next time a row is written
+ * to it, so its header is only written when it is created. This keeps the
+ * open files and their buffers within a budget when there are thousands of
+ * MOs.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class OutputWriterPool {
+
+    /**
+     * Default largest number of open streams.
+     */
+    public static final int DEFAULT_MAX_OPEN = 512;
+
+    /**
+     * Opens the streams of the pool.
+     */
+    public interface Opener {
+
+        /**
+         * Open a file.
+         *
+         * @param filename
+         * @param append True to add to the end of an existing file. False to
+         * create the file or truncate it.
+         */
+        OutputStream open(String filename, boolean append) throws IOException;
+    }
+
+    private final Opener opener;
+
+    private int maxOpen = DEFAULT_MAX_OPEN;
+
+    /**
+     * The open streams from the least to the most recently used.
+     */
+    private final LinkedHashMap<String, OutputStream> streams
+            = new LinkedHashMap<String, OutputStream>(16, 0.75f, true);
+
+    /**
+     * File names of the files created through the pool.
+     */
+    private final Map<String, String> filenames = new HashMap<String, String>();
+
+    public OutputWriterPool(Opener opener) {
+        this.opener = opener;
+    }
+
+    /**
+     * Set the largest number of open streams.
+     *
+     * @param maxOpen At least 1
+     */
+    public void setMaxOpen(int maxOpen) {
+        this.maxOpen = Math.max(1, maxOpen);
+    }
+
+    public int getMaxOpen() {
+        return maxOpen;
+    }
+
+    /**
+     * Get the stream of a file created through the pool, opening the file
+     * again if it was closed.
+     *
+     * @param key
+     * @return The stream or null if no file was created for the key
+     */
+    public OutputStream get(String key) throws IOException {
+        OutputStream out = streams.get(key);
+        if (out != null) return out;
+
+        String filename = filenames.get(key);
+        if (filename == null) return null;
+
+        makeRoom();
+        out = opener.open(filename, true);
+        streams.put(key, out);
+        return out;
+    }
+
+    /**
+     * Create a file and get its stream. An existing file is truncated.
+     *
+     * @param key
+     * @param filename
+     */
+    public OutputStream create(String key, String filename) throws IOException {
+        OutputStream out = streams.remove(key);
+        if (out != null) out.close();
+
+        makeRoom();
+        out = opener.open(filename, false);
+        streams.put(key, out);
+        filenames.put(key, filename);
+        return out;
+    }
+
+    /**
+     * Add to the end of an existing file and get its stream.
+     *
+     * @param key
+     * @param filename
+     */
+    public OutputStream append(String key, String filename) throws IOException {
+        OutputStream out = streams.remove(key);
+        if (out != null) out.close();
+
+        makeRoom();
+        out = opener.open(filename, true);
+        streams.put(key, out);
+        filenames.put(key, filename);
+        return out;
+    }
+
+    /**
+     * Number of open streams.
+     */
+    public int openCount() {
+        return streams.size();
+    }
+
+    /**
+     * Close the least recently used streams until another can be opened.
+     */
+    private void makeRoom() throws IOException {
+        Iterator<OutputStream> iter = streams.values().iterator();
+        while (streams.size() >= maxOpen && iter.hasNext()) {
+            OutputStream out = iter.next();
+            iter.remove();
+            out.close();
+        }
+    }
+
+    /**
+     * Flush all the open streams. The closed streams have nothing to flush.
+     *
+     * @throws IOException The first error flushing the files. All the files
+     * are flushed.
+     */
+    public void flushAll() throws IOException {
+        IOException error = null;
+        Iterator<OutputStream> iter = streams.values().iterator();
+        while (iter.hasNext()) {
+            try {
+                iter.next().flush();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    /**
+     * Close all the streams and forget the files. Files created afterwards
+     * are truncated again.
+     *
+     * @throws IOException The first error closing the files. All the files
+     * are closed.
+     */
+    public void closeAll() throws IOException {
+        IOException error = null;
+        Iterator<OutputStream> iter = streams.values().iterator();
+        while (iter.hasNext()) {
+            try {
+                iter.next().close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        streams.clear();
+        filenames.clear();
+        if (error != null) throw error;
+    }
+}
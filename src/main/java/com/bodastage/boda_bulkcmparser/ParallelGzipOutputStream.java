@@ -0,0 +1,252 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a gzip file deflating blocks of it at the same time.
+ * <p>
+ * The data is cut into blocks that are deflated by a pool of threads. Each
+ * block is deflated with the end of the block before it as its dictionary
+ * and ends with a sync flush, so the deflated blocks join into one deflate
+ * stream. The file is the same single member gzip file any gzip reader
+ * reads. The blocks are written in order as they are done. The writer waits
+ * when too many blocks are being deflated.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    /**
+     * Size of the blocks deflated at the same time.
+     */
+    static final int BLOCK_SIZE = 1 << 17;
+
+    /**
+     * Deflate looks back at most this many bytes.
+     */
+    private static final int DICTIONARY_SIZE = 1 << 15;
+
+    /**
+     * Blocks are collected in a small buffer first so that small files do
+     * not take a whole block.
+     */
+    private static final int INITIAL_BLOCK_SIZE = 8192;
+
+    /**
+     * Number of blocks of a file that can be waiting to be deflated or
+     * written.
+     */
+    private static final int MAX_PENDING = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Each pool thread reuses its deflater.
+     */
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private final OutputStream out;
+
+    private final ExecutorService executor;
+
+    /**
+     * Deflated blocks in file order.
+     */
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+    private final CRC32 crc = new CRC32();
+
+    private long size = 0;
+
+    private byte[] block = new byte[INITIAL_BLOCK_SIZE];
+
+    private int length = 0;
+
+    /**
+     * The last block handed to the pool. Its end is the dictionary of the
+     * next block.
+     */
+    private byte[] previous = null;
+
+    private int previousLength = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Create a pool of daemon threads for deflating blocks.
+     *
+     * @param threads
+     */
+    public static ExecutorService newExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bulkcm-deflate");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start a gzip file.
+     *
+     * @param out The stream is closed with this stream
+     * @param executor The pool deflating the blocks. It can be shared by
+     * many files.
+     */
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor) throws IOException {
+        this.out = out;
+        this.executor = executor;
+
+        //Header of a gzip member with no file name and no time
+        out.write(new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0});
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (closed) throw new IOException("The stream is closed");
+        if (length == block.length) nextBlock();
+        block[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("The stream is closed");
+
+        while (len > 0) {
+            if (length == block.length) nextBlock();
+            int n = Math.min(len, block.length - length);
+            System.arraycopy(b, off, block, length, n);
+            length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Blocks are deflated when they are full and when the stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+    }
+
+    /**
+     * Grow the block up to the block size or hand it to the pool.
+     */
+    private void nextBlock() throws IOException {
+        if (block.length < BLOCK_SIZE) {
+            block = Arrays.copyOf(block, Math.min(BLOCK_SIZE, block.length * 2));
+            return;
+        }
+
+        submit(false);
+        block = new byte[BLOCK_SIZE];
+        length = 0;
+
+        //Write what is done and wait when too many blocks are pending
+        while (!pending.isEmpty() && (pending.size() >= MAX_PENDING || pending.peek().isDone())) {
+            writeBlock();
+        }
+    }
+
+    private void submit(final boolean last) {
+        crc.update(block, 0, length);
+        size += length;
+
+        final byte[] data = block;
+        final int dataLength = length;
+        final byte[] dictionary = previous;
+        final int dictionaryLength = previousLength;
+        pending.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return deflate(data, dataLength, dictionary, dictionaryLength, last);
+            }
+        }));
+
+        previous = data;
+        previousLength = dataLength;
+    }
+
+    private static byte[] deflate(byte[] data, int length, byte[] dictionary, int dictionaryLength, boolean last) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        if (dictionary != null) {
+            int n = Math.min(DICTIONARY_SIZE, dictionaryLength);
+            deflater.setDictionary(dictionary, dictionaryLength - n, n);
+        }
+        deflater.setInput(data, 0, length);
+        if (last) deflater.finish();
+
+        byte[] buf = new byte[length / 2 + 64];
+        int n = 0;
+        while (true) {
+            if (n == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+            int space = buf.length - n;
+            int r = deflater.deflate(buf, n, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            n += r;
+            if (last ? deflater.finished() : r < space) break;
+        }
+        return Arrays.copyOf(buf, n);
+    }
+
+    private void writeBlock() throws IOException {
+        byte[] deflated;
+        try {
+            deflated = pending.remove().get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+        out.write(deflated);
+    }
+
+    /**
+     * Deflate the rest of the data, write the gzip trailer and close the
+     * stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            submit(true);
+            block = null;
+            previous = null;
+            while (!pending.isEmpty()) writeBlock();
+
+            long value = crc.getValue();
+            byte[] trailer = new byte[8];
+            for (int i = 0; i < 4; i++) {
+                trailer[i] = (byte) (value >>> (8 * i));
+                trailer[4 + i] = (byte) (size >>> (8 * i));
+            }
+            out.write(trailer);
+        } finally {
+            for (Future<byte[]> f : pending) f.cancel(false);
+            out.close();
+        }
+    }
+}
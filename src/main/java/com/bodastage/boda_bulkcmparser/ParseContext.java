@@ -0,0 +1,275 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * The state of the parser while it goes through one input file.
+ * <p>
+ * A new context is used for each file, so a parser can be reused. Only the
+ * file name and dateTime are passed on from the context they were looked up
+ * in, since a file without a fileFooter gets the dateTime of the file before
+ * it. The parser's settings, the MO columns and the output files are kept by
+ * the parser, which is not thread-safe. A context belongs to the thread
+ * parsing its file.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class ParseContext {
+
+    /**
+     * The base file name of the file being parsed. It is the FILENAME of the
+     * rows.
+     *
+     * @since 2.3.0
+     */
+    String fileBasename = "";
+
+    /**
+     * The DATETIME of the rows. It is the fileFooter dateTime of the file or
+     * that of the file before it.
+     *
+     * @since 2.3.0
+     */
+    String dateTime = "";
+
+    /**
+     * Set when the fileFooter dateTime is read while parsing the file.
+     *
+     * @since 2.3.0
+     */
+    boolean footerDateTimeFound = false;
+
+    /**
+     * Tracks XML elements.
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    PathStack xmlTagStack = new PathStack();
+
+    /**
+     * Tracks how deep a Management Object is in the XML doc hierarchy.
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    int depth = 0;
+
+    /**
+     * Tracks XML attributes per Management Objects.
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    AttributeStack xmlAttrStack = new AttributeStack();
+
+    /**
+     * Tracks Managed Object specific 3GPP attributes.
+     * <p>
+     * This tracks every thing within <xn:attributes>...</xn:attributes>.
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    AttributeStack threeGPPAttrStack = new AttributeStack();
+
+    /**
+     * Marks start of processing per MO attributes.
+     * <p>
+     * This is set to true when xn:attributes is encountered. It's set to false
+     * when the corresponding closing tag is encountered.
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    boolean attrMarker = false;
+
+    /**
+     * Tracks the depth of VsDataContainer tags in the XML document hierarchy.
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    int vsDCDepth = 0;
+
+    /**
+     * Maps of vsDataContainer instances to vendor specific data types.
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    Map<String, String> vsDataContainerTypeMap = new LinkedHashMap<String, String>();
+
+    /**
+     * Tracks current vsDataType if not null
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    String vsDataType = null;
+
+    /**
+     * Symbol of the current vsDataType. Only valid when vsDataType is not null.
+     *
+     * @since 2.3.0
+     */
+    SymbolTable.Symbol vsDataTypeSymbol = null;
+
+    /**
+     * Set by startElement when the rest of the current element can be
+     * skipped because none of its values are in the parameter file.
+     *
+     * @since 2.3.0
+     */
+    boolean skipCurrentElement = false;
+
+    /**
+     * vsDataTypes stack.
+     *
+     * @version 1.1.0
+     * @since 1.0.0
+     */
+    Map<String, String> vsDataTypeStack = new LinkedHashMap<String, String>();
+
+    /**
+     * Real stack to push and pop vsDataType attributes.
+     * <p>
+     * This is used to track multivalued attributes and attributes with children
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    Stack vsDataTypeRlStack = new Stack();
+
+    /**
+     * Real stack to push and pop xn:attributes.
+     * <p>
+     * This is used to track multivalued attributes and attributes with children
+     *
+     * @version 1.0.0
+     * @since 1.0.2
+     */
+    Stack xnAttrRlStack = new Stack();
+
+    /**
+     * Start element tag.
+     * <p>
+     * Use in the character event to determine the data parent XML tag.
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    String startElementTag = "";
+
+    /**
+     * Start element NS prefix.
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    String startElementTagPrefix = "";
+
+    /**
+     * Tag data.
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    String tagData = "";
+
+    /**
+     * Tracking parameters with children under vsDataSomeMO.
+     *
+     * @version 1.0.0
+     * @since 1.0.0
+     */
+    Map<String, String> parentChildParameters = new LinkedHashMap<String, String>();
+
+    /**
+     * Tracking parameters with children in xn:attributes.
+     *
+     * @version 1.0.0
+     * @since 1.0.2
+     */
+    Map<String, String> attrParentChildMap = new LinkedHashMap<String, String>();
+
+    /**
+     * This stores the values of the 3GPP MO attributes to be used when combining
+     * a 3GPP MO with a vendor specific MO (i.e. vsData...).
+     *
+     * @since 2.1.0
+     */
+    Map<String, String> threeGPPAttrValues = new LinkedHashMap<String, String>();
+
+    /**
+     * Collects character data between tags for the XMLStreamReader cursor.
+     *
+     * @since 2.3.0
+     */
+    StringBuilder characterBuffer = new StringBuilder();
+
+    /**
+     * Local names of the current start element's attributes.
+     *
+     * @since 2.3.0
+     */
+    String[] attrLocalNames = new String[8];
+
+    /**
+     * Values of the current start element's attributes.
+     *
+     * @since 2.3.0
+     */
+    String[] attrValues = new String[8];
+
+    /**
+     * Marks the current start element's attributes that have a namespace.
+     *
+     * @since 2.3.0
+     */
+    boolean[] attrHasNamespace = new boolean[8];
+
+    /**
+     * Number of attributes of the current start element.
+     *
+     * @since 2.3.0
+     */
+    int attrCount = 0;
+
+    /**
+     * This is used to mark when processing is still inside the children of a
+     * a parameter - child scenario. It is useful when one of the children has
+     * the same name as the parent.
+     * <moname>
+     * <chid1>someValue</child1>
+     * ...
+     * <moname>someValue</moname>
+     * ...
+     * <child/>someValue<childN>
+     * </moName>
+     */
+    Boolean inParentChildTag = false;
+
+    /**
+     * The input file parsed with checkpoints after its outermost MeContext
+     * and ManagedElement elements. Null if no checkpoints are made in the
+     * file.
+     *
+     * @since 2.3.0
+     */
+    File checkpointedFile = null;
+
+    /**
+     * Offset in the checkpointed file of the tokenizer's offset 0.
+     *
+     * @since 2.3.0
+     */
+    long checkpointedFileOffset = 0;
+}
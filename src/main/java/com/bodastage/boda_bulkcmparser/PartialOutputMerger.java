@@ -0,0 +1,350 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Merges csv files written to part directories into the output directory.
+ * <p>
+ * Each part directory holds the csv files written while parsing one input
+ * file. The parts of an MO are joined in the order of the part directories.
+ * When all the parts of an MO have the same header, the rows are copied as
+ * they are. Otherwise the output header is the union of the part headers
+ * and the rows are moved to the union columns.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class PartialOutputMerger {
+
+    /**
+     * The csv files are written in UTF-8.
+     */
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    /**
+     * Merge the part directories into the output directory. Existing output
+     * files are replaced.
+     *
+     * @param partDirectories Part directories in merge order
+     * @param outputDirectory
+     */
+    public static void merge(List<File> partDirectories, File outputDirectory) throws IOException {
+        merge(partDirectories, outputDirectory, null);
+    }
+
+    /**
+     * Merge the part directories into gzip compressed files in the output
+     * directory. The parts are plain csv files. Existing output files are
+     * replaced.
+     *
+     * @param partDirectories Part directories in merge order
+     * @param outputDirectory
+     * @param compressor Threads deflating the output files, or null to
+     * write plain csv files
+     */
+    public static void merge(List<File> partDirectories, File outputDirectory,
+            ExecutorService compressor) throws IOException {
+        Map<String, List<File>> parts = new LinkedHashMap<String, List<File>>();
+        for (File partDirectory : partDirectories) {
+            File[] files = partDirectory.listFiles();
+            if (files == null) continue;
+
+            Arrays.sort(files);
+            for (File f : files) {
+                List<File> fileParts = parts.get(f.getName());
+                if (fileParts == null) {
+                    fileParts = new ArrayList<File>();
+                    parts.put(f.getName(), fileParts);
+                }
+                fileParts.add(f);
+            }
+        }
+
+        Iterator<Map.Entry<String, List<File>>> iter = parts.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, List<File>> me = iter.next();
+            String name = compressor != null ? me.getKey() + ".gz" : me.getKey();
+            mergeFile(me.getValue(), new File(outputDirectory, name), compressor);
+        }
+    }
+
+    /**
+     * Delete the part directories and their files.
+     *
+     * @param partsDirectory Directory holding the part directories
+     */
+    public static void delete(File partsDirectory) {
+        File[] partDirectories = partsDirectory.listFiles();
+        if (partDirectories != null) {
+            for (File partDirectory : partDirectories) {
+                File[] files = partDirectory.listFiles();
+                if (files != null) {
+                    for (File f : files) f.delete();
+                }
+                partDirectory.delete();
+            }
+        }
+        partsDirectory.delete();
+    }
+
+    private static void mergeFile(List<File> parts, File target, ExecutorService compressor) throws IOException {
+        //Length in bytes of the header line of each part
+        int[] headerLengths = new int[parts.size()];
+        String[] headers = new String[parts.size()];
+        boolean sameHeaders = true;
+        for (int i = 0; i < parts.size(); i++) {
+            byte[] line = readHeaderLine(parts.get(i));
+            headerLengths[i] = line.length;
+            headers[i] = stripLineTerminator(new String(line, CHARSET));
+            if (!headers[i].equals(headers[0])) sameHeaders = false;
+        }
+
+        if (sameHeaders && compressor == null) {
+            copyParts(parts, headerLengths, target);
+        } else if (sameHeaders) {
+            copyParts(parts, headerLengths, openTarget(target, compressor));
+        } else {
+            mergeParts(parts, headers, openTarget(target, compressor));
+        }
+    }
+
+    private static OutputStream openTarget(File target, ExecutorService compressor) throws IOException {
+        OutputStream out = new FileOutputStream(target);
+        if (compressor == null) return out;
+
+        try {
+            return new ParallelGzipOutputStream(out, compressor);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copy the bytes of the parts skipping the header of all but the first.
+     */
+    private static void copyParts(List<File> parts, int[] headerLengths, File target) throws IOException {
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            FileChannel outChannel = out.getChannel();
+            for (int i = 0; i < parts.size(); i++) {
+                FileInputStream in = new FileInputStream(parts.get(i));
+                try {
+                    FileChannel inChannel = in.getChannel();
+                    long position = i == 0 ? 0 : headerLengths[i];
+                    long size = inChannel.size();
+                    while (position < size) {
+                        position += inChannel.transferTo(position, size - position, outChannel);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Copy the bytes of the parts to a stream skipping the header of all but
+     * the first. The stream is closed.
+     */
+    private static void copyParts(List<File> parts, int[] headerLengths, OutputStream out) throws IOException {
+        try {
+            byte[] buf = new byte[1 << 16];
+            for (int i = 0; i < parts.size(); i++) {
+                InputStream in = new FileInputStream(parts.get(i));
+                try {
+                    long skip = i == 0 ? 0 : headerLengths[i];
+                    while (skip > 0) {
+                        long n = in.skip(skip);
+                        if (n <= 0) break;
+                        skip -= n;
+                    }
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        out.write(buf, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the union of the part headers and each part's rows under the
+     * union columns to a stream. Columns missing from a part are left empty.
+     * The stream is closed.
+     */
+    private static void mergeParts(List<File> parts, String[] headers, OutputStream target) throws IOException {
+        List<String> columns = new ArrayList<String>();
+        Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+        int[][] partIndexes = new int[parts.size()][];
+
+        for (int i = 0; i < parts.size(); i++) {
+            List<String> names = splitRecord(headers[i]);
+            partIndexes[i] = new int[names.size()];
+
+            //A column name can be repeated. The nth column with a name is
+            //matched to the nth union column with that name.
+            Map<String, Integer> occurrences = new HashMap<String, Integer>();
+            for (int j = 0; j < names.size(); j++) {
+                String name = names.get(j);
+                Integer n = occurrences.get(name);
+                n = n == null ? 1 : n + 1;
+                occurrences.put(name, n);
+
+                String key = name + "#" + n;
+                Integer index = columnIndexes.get(key);
+                if (index == null) {
+                    index = columns.size();
+                    columns.add(name);
+                    columnIndexes.put(key, index);
+                }
+                partIndexes[i][j] = index;
+            }
+        }
+
+        String lineSeparator = System.getProperty("line.separator");
+        Writer out = new BufferedWriter(new OutputStreamWriter(target, CHARSET));
+        try {
+            for (int j = 0; j < columns.size(); j++) {
+                if (j > 0) out.write(',');
+                out.write(columns.get(j));
+            }
+            out.write(lineSeparator);
+
+            String[] values = new String[columns.size()];
+            for (int i = 0; i < parts.size(); i++) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(parts.get(i)), CHARSET));
+                try {
+                    //Skip the header
+                    readRecord(in);
+
+                    List<String> record;
+                    while ((record = readRecord(in)) != null) {
+                        Arrays.fill(values, "");
+                        for (int j = 0; j < record.size() && j < partIndexes[i].length; j++) {
+                            values[partIndexes[i][j]] = record.get(j);
+                        }
+                        for (int j = 0; j < values.length; j++) {
+                            if (j > 0) out.write(',');
+                            out.write(values[j]);
+                        }
+                        out.write(lineSeparator);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read the first line of a file including its line terminator.
+     */
+    private static byte[] readHeaderLine(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[8192];
+            int len = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (len == buf.length) buf = Arrays.copyOf(buf, len * 2);
+                buf[len++] = (byte) b;
+                if (b == '\n') break;
+            }
+            return Arrays.copyOf(buf, len);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String stripLineTerminator(String line) {
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\n') end--;
+        if (end > 0 && line.charAt(end - 1) == '\r') end--;
+        return line.substring(0, end);
+    }
+
+    private static List<String> splitRecord(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') quoted = !quoted;
+            if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Read a csv record. Quoted values can span lines. The values are kept
+     * as they are written i.e. with their quotes.
+     *
+     * @return The values or null at the end of the input
+     */
+    private static List<String> readRecord(BufferedReader in) throws IOException {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        int c = in.read();
+        if (c < 0) return null;
+
+        for (; c >= 0; c = in.read()) {
+            if (c == '"') quoted = !quoted;
+            if (!quoted && (c == '\n' || c == '\r')) {
+                if (c == '\r') {
+                    //Consume the line feed of \r\n
+                    in.mark(1);
+                    if (in.read() != '\n') in.reset();
+                }
+                break;
+            }
+            if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append((char) c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.Arrays;
+import java.util.EmptyStackException;
+
+/**
+ * Stack of the MO elements from the document root to the current element.
+ * <p>
+ * An element whose name is already on the stack is pushed with its
+ * occurrence appended e.g. the second nested SubNetwork is SubNetwork_2.
+ * xn:VsDataContainer elements are pushed as VsDataContainer_n where n is
+ * the VsDataContainer depth.
+ * <p>
+ * The number of times each name is on the stack is kept by name id so
+ * contains and the occurrence count do not scan the stack.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class PathStack {
+
+    /**
+     * Marks a VsDataContainer entry in nameIds.
+     */
+    private static final int CONTAINER = -1;
+
+    /**
+     * Names of the elements as pushed.
+     */
+    private String[] names = new String[32];
+
+    /**
+     * Name ids of the elements or CONTAINER.
+     */
+    private int[] nameIds = new int[32];
+
+    /**
+     * Marks the elements pushed with their occurrence appended.
+     */
+    private boolean[] renamed = new boolean[32];
+
+    private int size = 0;
+
+    /**
+     * Number of entries by name id. This includes the renamed entries.
+     */
+    private int[] occurrences = new int[64];
+
+    /**
+     * Number of entries by name id that were pushed with the plain name.
+     */
+    private int[] plainOccurrences = new int[64];
+
+    /**
+     * VsDataContainer_n names by VsDataContainer depth.
+     */
+    private String[] containerNames = new String[8];
+
+    /**
+     * Push an MO. If the name is already on the stack, the MO is pushed with
+     * its occurrence appended.
+     *
+     * @param symbol
+     * @return The name the MO was pushed with
+     */
+    public String push(SymbolTable.Symbol symbol) {
+        int nameId = symbol.nameId;
+        ensureNameCapacity(nameId);
+
+        String name = symbol.localName;
+        boolean isRenamed = plainOccurrences[nameId] > 0;
+        if (isRenamed) {
+            name = name + "_" + (occurrences[nameId] + 1);
+        } else {
+            plainOccurrences[nameId]++;
+        }
+        occurrences[nameId]++;
+
+        add(name, nameId, isRenamed);
+        return name;
+    }
+
+    /**
+     * Push an xn:VsDataContainer.
+     *
+     * @param vsDCDepth The VsDataContainer depth starting from 1
+     * @return The name the container was pushed with i.e. VsDataContainer_n
+     */
+    public String pushContainer(int vsDCDepth) {
+        String name = containerName(vsDCDepth);
+        add(name, CONTAINER, false);
+        return name;
+    }
+
+    /**
+     * Name of the xn:VsDataContainer at the given VsDataContainer depth i.e.
+     * VsDataContainer_n
+     *
+     * @param vsDCDepth
+     */
+    public String containerName(int vsDCDepth) {
+        if (vsDCDepth >= containerNames.length) {
+            containerNames = Arrays.copyOf(containerNames, Math.max(vsDCDepth + 1, containerNames.length * 2));
+        }
+        String name = containerNames[vsDCDepth];
+        if (name == null) {
+            name = "VsDataContainer_" + vsDCDepth;
+            containerNames[vsDCDepth] = name;
+        }
+        return name;
+    }
+
+    private void add(String name, int nameId, boolean isRenamed) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            nameIds = Arrays.copyOf(nameIds, size * 2);
+            renamed = Arrays.copyOf(renamed, size * 2);
+        }
+        names[size] = name;
+        nameIds[size] = nameId;
+        renamed[size] = isRenamed;
+        size++;
+    }
+
+    /**
+     * Remove the top element.
+     *
+     * @return The name the element was pushed with
+     */
+    public String pop() {
+        if (size == 0) throw new EmptyStackException();
+
+        size--;
+        int nameId = nameIds[size];
+        if (nameId != CONTAINER) {
+            occurrences[nameId]--;
+            if (!renamed[size]) plainOccurrences[nameId]--;
+        }
+
+        String name = names[size];
+        names[size] = null;
+        return name;
+    }
+
+    /**
+     * Name of the top element.
+     */
+    public String peek() {
+        if (size == 0) throw new EmptyStackException();
+        return names[size - 1];
+    }
+
+    /**
+     * Name of the element at index. The element at index i is at depth i+1.
+     */
+    public String get(int index) {
+        if (index >= size) throw new ArrayIndexOutOfBoundsException(index);
+        return names[index];
+    }
+
+    /**
+     * Whether the element at index is an xn:VsDataContainer.
+     */
+    public boolean isContainer(int index) {
+        if (index >= size) throw new ArrayIndexOutOfBoundsException(index);
+        return nameIds[index] == CONTAINER;
+    }
+
+    /**
+     * Whether an element is on the stack with its plain name.
+     *
+     * @param symbol
+     */
+    public boolean contains(SymbolTable.Symbol symbol) {
+        int nameId = symbol.nameId;
+        return nameId < plainOccurrences.length && plainOccurrences[nameId] > 0;
+    }
+
+    /**
+     * Number of times a name is on the stack with or without its occurrence
+     * appended.
+     *
+     * @param symbol
+     */
+    public int occurrences(SymbolTable.Symbol symbol) {
+        int nameId = symbol.nameId;
+        return nameId < occurrences.length ? occurrences[nameId] : 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        while (size > 0) pop();
+    }
+
+    private void ensureNameCapacity(int nameId) {
+        if (nameId >= occurrences.length) {
+            int length = Math.max(nameId + 1, occurrences.length * 2);
+            occurrences = Arrays.copyOf(occurrences, length);
+            plainOccurrences = Arrays.copyOf(plainOccurrences, length);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(names, size));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a channel ahead of its user in a reader thread.
+ * <p>
+ * The reader thread fills preallocated buffers and hands them over through
+ * a ring buffer, so reading the input overlaps with parsing it. The reader
+ * stops when all the buffers are full until the parser takes one.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class ReadAheadChannel implements ReadableByteChannel {
+
+    /**
+     * Number of buffers read ahead.
+     */
+    static final int BUFFER_COUNT = 4;
+
+    /**
+     * Size of each buffer.
+     */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * A buffer of the ring. The reader thread flips it before publishing.
+     */
+    private static class Chunk {
+
+        final ByteBuffer buffer;
+
+        boolean eof = false;
+
+        IOException error = null;
+
+        Chunk(int size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+    }
+
+    private final ReadableByteChannel source;
+
+    private final RingBuffer<Chunk> ring;
+
+    private final Thread reader;
+
+    /**
+     * The chunk being read by the user, or null.
+     */
+    private Chunk current = null;
+
+    private boolean eof = false;
+
+    private boolean open = true;
+
+    /**
+     * Start reading a channel ahead.
+     *
+     * @param source The channel is closed with this channel
+     */
+    public ReadAheadChannel(ReadableByteChannel source) {
+        this.source = source;
+
+        Chunk[] chunks = new Chunk[BUFFER_COUNT];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk(BUFFER_SIZE);
+        }
+        ring = new RingBuffer<Chunk>(chunks);
+
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        }, "bulkcm-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readAhead() {
+        try {
+            while (true) {
+                Chunk chunk = ring.claim();
+                ((Buffer) chunk.buffer).clear();
+                try {
+                    while (chunk.buffer.hasRemaining()) {
+                        if (source.read(chunk.buffer) < 0) {
+                            chunk.eof = true;
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    chunk.error = e;
+                }
+                ((Buffer) chunk.buffer).flip();
+                ring.publish();
+                if (chunk.eof || chunk.error != null) return;
+            }
+        } catch (IOException e) {
+            //The channel was closed
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) throw new IOException("The channel is closed");
+
+        while (true) {
+            if (eof) return -1;
+
+            if (current == null) current = ring.take();
+
+            ByteBuffer buffer = current.buffer;
+            if (buffer.hasRemaining()) {
+                int n = Math.min(dst.remaining(), buffer.remaining());
+                int limit = buffer.limit();
+                ((Buffer) buffer).limit(buffer.position() + n);
+                dst.put(buffer);
+                ((Buffer) buffer).limit(limit);
+                return n;
+            }
+
+            if (current.error != null) throw current.error;
+            eof = current.eof;
+            current = null;
+            ring.release();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) return;
+        open = false;
+        ring.abort();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        source.close();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows found by the parser.
+ * <p>
+ * By default the parser writes each table to a csv file in the output
+ * directory. A parser embedded in another program can be given a sink
+ * with {@link BodaBulkCMParser#setRecordSink(RecordSink)} to take the rows
+ * as they are found instead, without writing or reading csv files.
+ * <p>
+ * A table holds the rows of one MO. A 3GPP MO and a vendor specific MO can
+ * have tables with the same name, so tables are told apart by their kind as
+ * well. The rows are passed in the order they are written to the csv
+ * files. The sink is called from the parsing thread. A parser with a sink
+ * parses with one thread.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public interface RecordSink {
+
+    /**
+     * Table of a 3GPP MO.
+     */
+    int THREE_GPP = 1;
+
+    /**
+     * Table of a vendor specific MO i.e. vsData... or, when the vendor
+     * attributes are not separated, of a 3GPP MO with its vendor attributes.
+     */
+    int VENDOR = 2;
+
+    /**
+     * Take a row.
+     * <p>
+     * The row layout is the table's column schema and holds the row's
+     * values. The same layout is used for the rows of a table until the
+     * table gets new columns, so it can be used to tell when the schema
+     * changes. The values are as they are in the input, without csv
+     * quoting. A null value is a column the row has no value for. The
+     * values are only valid during the call.
+     *
+     * @param kind THREE_GPP or VENDOR
+     * @param table Name of the table i.e. the csv file name without the
+     * extension
+     * @param fileBasename Value of the FILENAME column
+     * @param fileDateTime Value of the DATETIME column
+     * @param row The columns after FILENAME and DATETIME and their values
+     */
+    void row(int kind, String table, String fileBasename, String fileDateTime, RowLayout row) throws IOException;
+
+    /**
+     * Forget the rows of a table. All its rows are passed again with new
+     * columns. This happens when a schema cache is used and the input has
+     * parameters that are not in the cache.
+     *
+     * @param kind THREE_GPP or VENDOR
+     * @param table
+     */
+    void discard(int kind, String table) throws IOException;
+
+    /**
+     * The parser is done. No more rows are passed.
+     */
+    void close() throws IOException;
+}
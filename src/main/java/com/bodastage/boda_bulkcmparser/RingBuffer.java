@@ -0,0 +1,126 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring of preallocated slots passed from one producer thread to
+ * one consumer thread.
+ * <p>
+ * The producer claims the next free slot, fills it and publishes it. The
+ * consumer takes the next published slot, uses it and releases it. The
+ * producer waits while all the slots are published and the consumer waits
+ * while none are. The slots are reused, so nothing is allocated per hand
+ * off.
+ * <p>
+ * A waiting thread announces itself before checking the ring a last time
+ * and parking. The other side moves its index before looking for a waiting
+ * thread to wake, so a wake up is not missed.
+ *
+ * @param <E> Type of the slots
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class RingBuffer<E> {
+
+    private final Object[] slots;
+
+    /**
+     * Number of slots published. The next slot to claim is at head.
+     */
+    private volatile long head = 0;
+
+    /**
+     * Number of slots released. The next slot to take is at tail.
+     */
+    private volatile long tail = 0;
+
+    private volatile Thread waitingProducer = null;
+
+    private volatile Thread waitingConsumer = null;
+
+    private volatile boolean aborted = false;
+
+    /**
+     * Create a ring.
+     *
+     * @param slots The preallocated slots
+     */
+    public RingBuffer(E[] slots) {
+        this.slots = slots.clone();
+    }
+
+    /**
+     * Get the next free slot, waiting while the ring is full.
+     *
+     * @return The slot to fill and publish
+     * @throws IOException if the ring was aborted
+     */
+    @SuppressWarnings("unchecked")
+    public E claim() throws IOException {
+        while (head - tail == slots.length) {
+            waitingProducer = Thread.currentThread();
+            if (head - tail == slots.length && !aborted) LockSupport.park(this);
+            waitingProducer = null;
+            checkState();
+        }
+        checkState();
+        return (E) slots[(int) (head % slots.length)];
+    }
+
+    /**
+     * Hand the claimed slot to the consumer.
+     */
+    public void publish() {
+        head = head + 1;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Get the next published slot, waiting while the ring is empty.
+     *
+     * @return The slot to use and release
+     * @throws IOException if the ring was aborted
+     */
+    @SuppressWarnings("unchecked")
+    public E take() throws IOException {
+        while (head == tail) {
+            waitingConsumer = Thread.currentThread();
+            if (head == tail && !aborted) LockSupport.park(this);
+            waitingConsumer = null;
+            checkState();
+        }
+        checkState();
+        return (E) slots[(int) (tail % slots.length)];
+    }
+
+    /**
+     * Give the taken slot back to the producer.
+     */
+    public void release() {
+        tail = tail + 1;
+        Thread producer = waitingProducer;
+        if (producer != null) LockSupport.unpark(producer);
+    }
+
+    /**
+     * Stop both sides. Waiting and later calls to claim and take fail.
+     */
+    public void abort() {
+        aborted = true;
+        Thread t = waitingProducer;
+        if (t != null) LockSupport.unpark(t);
+        t = waitingConsumer;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    private void checkState() throws IOException {
+        if (aborted) throw new IOException("The ring buffer was aborted");
+        if (Thread.interrupted()) throw new InterruptedIOException();
+    }
+}
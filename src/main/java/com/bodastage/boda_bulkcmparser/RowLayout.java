@@ -0,0 +1,127 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The csv columns of an MO file after FILENAME and DATETIME.
+ * <p>
+ * The layout is built once per MO from its column registries. Row values
+ * are set by slot and the row is formatted by walking the slots. The values
+ * are kept as they are in the input; they are csv quoted when the row is
+ * written.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class RowLayout {
+
+    private static final int[] NO_SLOTS = new int[0];
+
+    private final String[] columns;
+
+    /**
+     * Kind of each slot. The meaning of the kinds is up to the writer of the
+     * rows.
+     */
+    private final int[] kinds;
+
+    /**
+     * Slots by column name. A name can be in more than one slot.
+     */
+    private final Map<String, int[]> slots = new HashMap<String, int[]>();
+
+    /**
+     * Size of the column registries the layout was built from. Used to tell
+     * when the layout is out of date.
+     */
+    private final long registrySize;
+
+    private final String header;
+
+    /**
+     * Values of the row being built.
+     */
+    private final String[] values;
+
+    /**
+     * Create a layout.
+     *
+     * @param columns Column names in output order
+     * @param kinds Kind of each column. Can be null.
+     * @param registrySize Size of the registries the columns were taken from
+     */
+    public RowLayout(List<String> columns, int[] kinds, long registrySize) {
+        this.columns = columns.toArray(new String[columns.size()]);
+        this.kinds = kinds == null ? new int[this.columns.length] : kinds;
+        this.registrySize = registrySize;
+        this.values = new String[this.columns.length];
+
+        StringBuilder sb = new StringBuilder("FILENAME,DATETIME");
+        for (int i = 0; i < this.columns.length; i++) {
+            String name = this.columns[i];
+            sb.append(',').append(name);
+
+            int[] s = slots.get(name);
+            if (s == null) {
+                s = new int[]{i};
+            } else {
+                s = Arrays.copyOf(s, s.length + 1);
+                s[s.length - 1] = i;
+            }
+            slots.put(name, s);
+        }
+        header = sb.toString();
+    }
+
+    public long getRegistrySize() {
+        return registrySize;
+    }
+
+    public String getHeader() {
+        return header;
+    }
+
+    public int size() {
+        return columns.length;
+    }
+
+    public String getColumn(int slot) {
+        return columns[slot];
+    }
+
+    public int getKind(int slot) {
+        return kinds[slot];
+    }
+
+    /**
+     * Get the slots of a column.
+     *
+     * @param name
+     * @return The slots. This is empty if the column is not in the layout.
+     */
+    public int[] slotsOf(String name) {
+        int[] s = slots.get(name);
+        return s == null ? NO_SLOTS : s;
+    }
+
+    /**
+     * Clear the row values.
+     */
+    public void clearRow() {
+        Arrays.fill(values, null);
+    }
+
+    public String get(int slot) {
+        return values[slot];
+    }
+
+    public void set(int slot, String value) {
+        values[slot] = value;
+    }
+}
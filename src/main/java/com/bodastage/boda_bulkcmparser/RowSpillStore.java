@@ -0,0 +1,258 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Temporary store for rows collected during single pass parsing.
+ * <p>
+ * Each MO gets its own spill segment. The parameter names in a segment are
+ * replaced by ordinals so that a row is stored as a list of (ordinal, value)
+ * pairs. The segments are replayed in the order they were created once the
+ * MO columns are known. Only a limited number of segment files are open at
+ * a time. The others are opened again in append mode when rows are added.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class RowSpillStore {
+
+    /**
+     * Row collected at the end of a 3GPP MO.
+     */
+    public static final int THREE_GPP_ROW = 1;
+
+    /**
+     * Row collected at the end of a vendor specific MO i.e. vsData...
+     */
+    public static final int VENDOR_ROW = 2;
+
+    /**
+     * Directory holding the spill segment files.
+     */
+    private final Path spillDirectory;
+
+    /**
+     * Spill segments by MO.
+     */
+    private final Map<String, Segment> segments = new LinkedHashMap<String, Segment>();
+
+    /**
+     * The segment file streams by MO.
+     */
+    private final OutputWriterPool outputStreams = new OutputWriterPool(new OutputWriterPool.Opener() {
+        @Override
+        public OutputStream open(String filename, boolean append) throws IOException {
+            return new BufferedOutputStream(new FileOutputStream(filename, append), 1 << 13);
+        }
+    });
+
+    /**
+     * Receives rows when the segments are replayed.
+     */
+    public interface RowHandler {
+
+        /**
+         * Handle a replayed row.
+         *
+         * @param kind THREE_GPP_ROW or VENDOR_ROW
+         * @param fields Fixed fields of the row in the order they were spilled
+         * @param maps Name-value maps of the row in the order they were spilled
+         */
+        void handleRow(int kind, String[] fields, List<Map<String, String>> maps) throws IOException;
+    }
+
+    /**
+     * Create a spill store in a temporary directory under the given directory.
+     *
+     * @param parentDirectory
+     * @param maxOpen Largest number of open segment files
+     */
+    public RowSpillStore(String parentDirectory, int maxOpen) throws IOException {
+        spillDirectory = Files.createTempDirectory(Paths.get(parentDirectory), ".bulkcm_spill");
+        outputStreams.setMaxOpen(maxOpen);
+    }
+
+    /**
+     * Append a row to the MO's spill segment.
+     *
+     * @param mo The MO whose segment is appended to
+     * @param kind THREE_GPP_ROW or VENDOR_ROW
+     * @param fields Fixed fields such as the file name and date time
+     * @param maps Name-value maps. The names are stored as ordinals.
+     */
+    public void spill(String mo, int kind, String[] fields, List<Map<String, String>> maps) throws IOException {
+        Segment segment = segments.get(mo);
+        OutputStream stream;
+        if (segment == null) {
+            segment = new Segment(new File(spillDirectory.toFile(), segments.size() + ".spill"));
+            segments.put(mo, segment);
+            stream = outputStreams.create(mo, segment.file.getPath());
+        } else {
+            stream = outputStreams.get(mo);
+        }
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeByte(kind);
+        out.writeShort(fields.length);
+        for (int i = 0; i < fields.length; i++) {
+            out.writeInt(segment.ordinal(fields[i]));
+        }
+
+        out.writeShort(maps.size());
+        for (int i = 0; i < maps.size(); i++) {
+            Map<String, String> m = maps.get(i);
+            if (m == null) {
+                out.writeInt(-1);
+                continue;
+            }
+            out.writeInt(m.size());
+            Iterator<Map.Entry<String, String>> iter = m.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<String, String> me = iter.next();
+                out.writeInt(segment.ordinal(me.getKey()));
+                writeValue(out, me.getValue());
+            }
+        }
+    }
+
+    /**
+     * Replay the rows of every segment in the order the segments were created.
+     *
+     * @param handler
+     */
+    public void replay(RowHandler handler) throws IOException {
+        outputStreams.closeAll();
+
+        Iterator<Segment> iter = segments.values().iterator();
+        while (iter.hasNext()) {
+            Segment segment = iter.next();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(segment.file), 1 << 16));
+            try {
+                while (true) {
+                    int kind;
+                    try {
+                        kind = in.readByte();
+                    } catch (EOFException e) {
+                        break;
+                    }
+
+                    String[] fields = new String[in.readShort()];
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = segment.names.get(in.readInt());
+                    }
+
+                    int mapCount = in.readShort();
+                    List<Map<String, String>> maps = new ArrayList<Map<String, String>>(mapCount);
+                    for (int i = 0; i < mapCount; i++) {
+                        int size = in.readInt();
+                        if (size < 0) {
+                            maps.add(null);
+                            continue;
+                        }
+                        Map<String, String> m = new LinkedHashMap<String, String>();
+                        for (int j = 0; j < size; j++) {
+                            String name = segment.names.get(in.readInt());
+                            m.put(name, readValue(in));
+                        }
+                        maps.add(m);
+                    }
+
+                    handler.handleRow(kind, fields, maps);
+                }
+            } finally {
+                in.close();
+            }
+            segment.file.delete();
+        }
+    }
+
+    /**
+     * Close open segments and remove the spill directory.
+     */
+    public void close() {
+        try {
+            outputStreams.closeAll();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+
+        Iterator<Segment> iter = segments.values().iterator();
+        while (iter.hasNext()) {
+            iter.next().file.delete();
+        }
+        segments.clear();
+        spillDirectory.toFile().delete();
+    }
+
+    private static void writeValue(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readValue(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A spill segment and the ordinals of the names written to it.
+     */
+    private static class Segment {
+
+        final File file;
+
+        final Map<String, Integer> ordinals = new LinkedHashMap<String, Integer>();
+
+        final List<String> names = new ArrayList<String>();
+
+        Segment(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Get the ordinal of a name, assigning the next one if it is new.
+         */
+        int ordinal(String name) {
+            Integer ordinal = ordinals.get(name);
+            if (ordinal == null) {
+                ordinal = names.size();
+                ordinals.put(name, ordinal);
+                names.add(name);
+            }
+            return ordinal;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The input files of a run and where their rows are in the csv files.
+ * <p>
+ * Each input file is kept with its size, last modified time and a CRC32 of
+ * its content. The rows of an input file are written one after the other
+ * in each csv file, so the rows it produced are kept as a byte range of
+ * each csv file. A later run skips the files that have not changed and
+ * keeps their rows. The rows of changed and removed files are cut out of
+ * the csv files before the rows of the changed and new files are added at
+ * the end. The size and last modified time of each csv file with rows are
+ * kept too, so that csv files changed after the run are not cut.
+ * <p>
+ * The manifest file:
+ * <pre>
+ * #bulkcm manifest 2
+ * O &lt;size&gt; &lt;last modified time&gt; &lt;csv file name&gt;
+ * F &lt;size&gt; &lt;last modified time&gt; &lt;crc32&gt; &lt;input file&gt;
+ * R &lt;start&gt; &lt;end&gt; &lt;csv file name&gt;
+ * </pre>
+ * The R lines hold the byte ranges of the rows of the F line before them.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class RunManifest {
+
+    /**
+     * First line of a manifest file.
+     */
+    static final String HEADER = "#bulkcm manifest 2";
+
+    private static final int HASH_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * An input file and the byte ranges of its rows.
+     */
+    public static class Entry {
+
+        final String path;
+
+        long size;
+
+        long lastModified;
+
+        long crc;
+
+        /**
+         * Byte ranges of the rows by csv file name.
+         */
+        final Map<String, long[]> ranges = new LinkedHashMap<String, long[]>();
+
+        Entry(String path, long size, long lastModified, long crc) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.crc = crc;
+        }
+
+        /**
+         * Take a row written to a csv file.
+         *
+         * @param csvFileName
+         * @param start Offset of the row in the csv file
+         * @param end Offset after the row
+         */
+        public void addRow(String csvFileName, long start, long end) {
+            long[] range = ranges.get(csvFileName);
+            if (range == null) {
+                ranges.put(csvFileName, new long[]{start, end});
+            } else {
+                range[1] = end;
+            }
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Size and last modified time of the csv files with rows by name, as
+     * they were when the manifest was saved.
+     */
+    private final Map<String, long[]> csvFiles = new LinkedHashMap<String, long[]>();
+
+    /**
+     * Get the entry of an input file.
+     *
+     * @param path Absolute path of the file
+     * @return The entry or null
+     */
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * Create the entry of an input file, replacing an existing entry.
+     *
+     * @param file
+     */
+    public Entry add(File file) throws IOException {
+        Entry entry = new Entry(file.getAbsolutePath(), file.length(), file.lastModified(), crc(file));
+        entries.put(entry.path, entry);
+        return entry;
+    }
+
+    /**
+     * Keep an entry of another manifest.
+     *
+     * @param entry
+     */
+    public void add(Entry entry) {
+        entries.put(entry.path, entry);
+    }
+
+    /**
+     * Forget the rows in a csv file.
+     *
+     * @param csvFileName
+     */
+    public void removeRows(String csvFileName) {
+        for (Entry e : entries.values()) {
+            e.ranges.remove(csvFileName);
+        }
+    }
+
+    /**
+     * Check whether a file has the content it had when its entry was made.
+     * The content is only read if the size is the same and the last
+     * modified time is not. The time of the entry is then updated.
+     *
+     * @param entry
+     * @param file
+     */
+    public static boolean isUnchanged(Entry entry, File file) throws IOException {
+        if (entry.size != file.length()) return false;
+        if (entry.lastModified == file.lastModified()) return true;
+
+        if (entry.crc != crc(file)) return false;
+        entry.lastModified = file.lastModified();
+        return true;
+    }
+
+    /**
+     * CRC32 of the content of a file.
+     *
+     * @param file
+     */
+    public static long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            while (channel.read(buffer) >= 0) {
+                ((Buffer) buffer).flip();
+                crc.update(buffer);
+                ((Buffer) buffer).clear();
+            }
+        } finally {
+            channel.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Check whether the csv files holding the rows of the entries have the
+     * size and time they had when the manifest was saved.
+     *
+     * @param outputDirectory
+     */
+    public boolean hasRows(String outputDirectory) {
+        for (Entry e : entries.values()) {
+            for (String csvFileName : e.ranges.keySet()) {
+                long[] csvFile = csvFiles.get(csvFileName);
+                if (csvFile == null) return false;
+
+                File f = new File(outputDirectory, csvFileName);
+                if (!f.isFile() || f.length() != csvFile[0] || f.lastModified() != csvFile[1]) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cut the rows of removed entries out of the csv files and move the
+     * ranges of the kept entries. A csv file left without rows is deleted.
+     *
+     * @param outputDirectory
+     * @param removed Entries whose rows are cut out
+     * @param kept Entries whose rows are kept
+     */
+    public static void cutRows(String outputDirectory, Collection<Entry> removed,
+            Collection<Entry> kept) throws IOException {
+        Map<String, List<long[]>> cuts = new LinkedHashMap<String, List<long[]>>();
+        for (Entry e : removed) {
+            for (Map.Entry<String, long[]> me : e.ranges.entrySet()) {
+                List<long[]> ranges = cuts.get(me.getKey());
+                if (ranges == null) {
+                    ranges = new ArrayList<long[]>();
+                    cuts.put(me.getKey(), ranges);
+                }
+                ranges.add(me.getValue());
+            }
+        }
+
+        Iterator<Map.Entry<String, List<long[]>>> iter = cuts.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, List<long[]>> me = iter.next();
+            String csvFileName = me.getKey();
+            List<long[]> ranges = me.getValue();
+            Collections.sort(ranges, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] a, long[] b) {
+                    return Long.compare(a[0], b[0]);
+                }
+            });
+
+            boolean hasRows = false;
+            for (Entry e : kept) {
+                long[] range = e.ranges.get(csvFileName);
+                if (range == null) continue;
+                hasRows = true;
+
+                long shift = 0;
+                for (long[] cut : ranges) {
+                    if (cut[1] <= range[0]) shift += cut[1] - cut[0];
+                }
+                range[0] -= shift;
+                range[1] -= shift;
+            }
+
+            File csvFile = new File(outputDirectory, csvFileName);
+            if (!hasRows) {
+                csvFile.delete();
+                continue;
+            }
+            cut(csvFile, ranges);
+        }
+    }
+
+    /**
+     * Copy a file without the byte ranges and replace it with the copy.
+     */
+    private static void cut(File file, List<long[]> ranges) throws IOException {
+        File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                long position = 0;
+                for (long[] range : ranges) {
+                    transfer(in, position, range[0] - position, out);
+                    position = range[1];
+                }
+                transfer(in, position, in.size() - position, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        while (count > 0) {
+            long n = in.transferTo(position, count, out);
+            position += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Load a manifest file.
+     *
+     * @param filename
+     * @return The manifest or null if the file does not exist or is not a
+     * manifest file
+     */
+    public static RunManifest load(String filename) throws IOException {
+        File file = new File(filename);
+        if (!file.isFile()) return null;
+
+        RunManifest manifest = new RunManifest();
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            if (!HEADER.equals(br.readLine())) return null;
+
+            Entry entry = null;
+            for (String line; (line = br.readLine()) != null; ) {
+                String[] parts = line.split(" ", 5);
+                if (parts[0].equals("O")) {
+                    parts = line.split(" ", 4);
+                    manifest.csvFiles.put(parts[3], new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+                } else if (parts[0].equals("F") && parts.length == 5) {
+                    entry = new Entry(parts[4], Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                            Long.parseLong(parts[3], 16));
+                    manifest.add(entry);
+                } else if (parts[0].equals("R") && entry != null) {
+                    parts = line.split(" ", 4);
+                    entry.ranges.put(parts[3], new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+                }
+            }
+        } catch (RuntimeException e) {
+            //Not a manifest file written by save
+            return null;
+        } finally {
+            br.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Save the manifest with the current size and time of the csv files. The
+     * file is replaced once the new manifest has been written.
+     *
+     * @param filename
+     * @param outputDirectory
+     */
+    public void save(String filename, String outputDirectory) throws IOException {
+        csvFiles.clear();
+        for (Entry e : entries.values()) {
+            for (String csvFileName : e.ranges.keySet()) {
+                File f = new File(outputDirectory, csvFileName);
+                csvFiles.put(csvFileName, new long[]{f.length(), f.lastModified()});
+            }
+        }
+
+        File file = new File(filename);
+        File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmpFile), StandardCharsets.UTF_8));
+        try {
+            bw.write(HEADER);
+            bw.newLine();
+            Iterator<Map.Entry<String, long[]>> oIter = csvFiles.entrySet().iterator();
+            while (oIter.hasNext()) {
+                Map.Entry<String, long[]> me = oIter.next();
+                bw.write("O " + me.getValue()[0] + " " + me.getValue()[1] + " " + me.getKey());
+                bw.newLine();
+            }
+            for (Entry e : entries.values()) {
+                bw.write("F " + e.size + " " + e.lastModified + " " + Long.toHexString(e.crc) + " " + e.path);
+                bw.newLine();
+
+                Iterator<Map.Entry<String, long[]>> iter = e.ranges.entrySet().iterator();
+                while (iter.hasNext()) {
+                    Map.Entry<String, long[]> me = iter.next();
+                    bw.write("R " + me.getValue()[0] + " " + me.getValue()[1] + " " + me.getKey());
+                    bw.newLine();
+                }
+            }
+        } finally {
+            bw.close();
+        }
+
+        Files.move(tmpFile.toPath(), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Saves and loads the MOs and parameters found by the parameter extraction
+ * pass.
+ * <p>
+ * The cache is a text file with one MO per line in the same MO:param1,param2
+ * form as the parameter file. Each line starts with the map the MO is in:
+ * <pre>
+ * 3GPP:UtranCell:UtranCell_id,userLabel,cId
+ * VSDATA:vsDataUtranCell:UtranCell_id,vsDataUtranCell_id,qRxLevMin
+ * PARENTIDS:vsDataUtranCell:UtranCell_id,vsDataUtranCell_id
+ * </pre>
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class SchemaCache {
+
+    /**
+     * First line of a cache file.
+     */
+    static final String HEADER = "#bulkcm schema cache 1";
+
+    static final String THREE_GPP = "3GPP";
+
+    static final String VENDOR = "VSDATA";
+
+    static final String PARENT_IDS = "PARENTIDS";
+
+    /**
+     * Load a schema cache file into the MO maps.
+     *
+     * @param filename
+     * @param moThreeGPPAttrMap
+     * @param moColumns
+     * @param moColumnsParentIds
+     * @return False if the file does not exist or is not a schema cache file
+     */
+    public static boolean load(String filename,
+            Map<String, ColumnRegistry> moThreeGPPAttrMap,
+            Map<String, ColumnRegistry> moColumns,
+            Map<String, ColumnRegistry> moColumnsParentIds) throws IOException {
+
+        File file = new File(filename);
+        if (!file.isFile()) return false;
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            if (!HEADER.equals(br.readLine())) return false;
+
+            for (String line; (line = br.readLine()) != null; ) {
+                String[] parts = line.split(":", 3);
+                if (parts.length < 3) continue;
+
+                Map<String, ColumnRegistry> map;
+                if (parts[0].equals(THREE_GPP)) {
+                    map = moThreeGPPAttrMap;
+                } else if (parts[0].equals(VENDOR)) {
+                    map = moColumns;
+                } else if (parts[0].equals(PARENT_IDS)) {
+                    map = moColumnsParentIds;
+                } else {
+                    continue;
+                }
+
+                ColumnRegistry columns = new ColumnRegistry();
+                if (parts[2].length() > 0) {
+                    String[] parameters = parts[2].split(",");
+                    for (int i = 0; i < parameters.length; i++) {
+                        columns.add(parameters[i]);
+                    }
+                }
+                map.put(parts[1], columns);
+            }
+        } finally {
+            br.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Save the MO maps to a schema cache file. The file is replaced once the
+     * new cache has been written.
+     *
+     * @param filename
+     * @param moThreeGPPAttrMap
+     * @param moColumns
+     * @param moColumnsParentIds
+     */
+    public static void save(String filename,
+            Map<String, ColumnRegistry> moThreeGPPAttrMap,
+            Map<String, ColumnRegistry> moColumns,
+            Map<String, ColumnRegistry> moColumnsParentIds) throws IOException {
+
+        File file = new File(filename);
+        File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmpFile), StandardCharsets.UTF_8));
+        try {
+            bw.write(HEADER);
+            bw.newLine();
+            write(bw, THREE_GPP, moThreeGPPAttrMap);
+            write(bw, VENDOR, moColumns);
+            write(bw, PARENT_IDS, moColumnsParentIds);
+        } finally {
+            bw.close();
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void write(BufferedWriter bw, String kind,
+            Map<String, ColumnRegistry> map) throws IOException {
+        Iterator<Map.Entry<String, ColumnRegistry>> iter = map.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, ColumnRegistry> me = iter.next();
+            ColumnRegistry columns = me.getValue();
+
+            bw.write(kind);
+            bw.write(':');
+            bw.write(me.getKey());
+            bw.write(':');
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) bw.write(',');
+                bw.write(columns.get(i));
+            }
+            bw.newLine();
+        }
+    }
+}
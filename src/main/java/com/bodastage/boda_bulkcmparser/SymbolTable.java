@@ -0,0 +1,181 @@
+/*
+ *
+ */
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of the element names seen during a parser run.
+ * <p>
+ * Each distinct prefix and local name pair gets a symbol with an integer id
+ * the first time it is seen. The checks the event handlers make on the tag
+ * name, such as whether it is xn:VsDataContainer or a vsData type, are done
+ * once when the symbol is created.
+ *
+ * @author info@bodastage.com
+ * @since 2.3.0
+ */
+public class SymbolTable {
+
+    /**
+     * Any element without special handling i.e. 3GPP MOs and attributes.
+     */
+    public static final int KIND_OTHER = 0;
+
+    /**
+     * xn:VsDataContainer
+     */
+    public static final int KIND_VS_DATA_CONTAINER = 1;
+
+    /**
+     * Vendor specific data type e.g. es:vsDataUtranCell
+     */
+    public static final int KIND_VS_DATA_TYPE = 2;
+
+    /**
+     * xn:attributes
+     */
+    public static final int KIND_ATTRIBUTES = 3;
+
+    /**
+     * fileFooter
+     */
+    public static final int KIND_FILE_FOOTER = 4;
+
+    /**
+     * Symbols by local name. Symbols with the same local name and different
+     * prefixes are chained.
+     */
+    private final Map<String, Symbol> symbols = new HashMap<String, Symbol>();
+
+    /**
+     * Symbols by id.
+     */
+    private final List<Symbol> symbolsById = new ArrayList<Symbol>();
+
+    /**
+     * Number of distinct local names.
+     */
+    private int nameCount = 0;
+
+    /**
+     * An element name and the precomputed facts about it.
+     */
+    public static final class Symbol {
+
+        /**
+         * Id of the symbol. Ids are assigned from 0 in the order the names
+         * are seen.
+         */
+        public final int id;
+
+        /**
+         * Id of the local name. Symbols with the same local name and
+         * different prefixes have the same name id.
+         */
+        public final int nameId;
+
+        public final String localName;
+
+        public final String prefix;
+
+        /**
+         * One of the KIND_ constants.
+         */
+        public final int kind;
+
+        /**
+         * The local name with vsData removed e.g. vsDataUtranCell gives
+         * UtranCell. This is the 3GPP MO of a vendor specific data type.
+         */
+        public final String threeGPPName;
+
+        /**
+         * The local name with vsData prepended e.g. UtranCell gives
+         * vsDataUtranCell. This is the vendor specific data type of a 3GPP MO.
+         */
+        public final String vsDataName;
+
+        private Symbol next;
+
+        private Symbol(int id, int nameId, String localName, String prefix) {
+            this.id = id;
+            this.nameId = nameId;
+            this.localName = localName;
+            this.prefix = prefix;
+            this.threeGPPName = localName.replace("vsData", "");
+            this.vsDataName = "vsData" + localName;
+
+            if (localName.equalsIgnoreCase("VsDataContainer")) {
+                kind = KIND_VS_DATA_CONTAINER;
+            } else if (localName.startsWith("vsData") && !prefix.equals("xn")) {
+                kind = KIND_VS_DATA_TYPE;
+            } else if (localName.equals("attributes")) {
+                kind = KIND_ATTRIBUTES;
+            } else if (localName.equals("fileFooter")) {
+                kind = KIND_FILE_FOOTER;
+            } else {
+                kind = KIND_OTHER;
+            }
+        }
+    }
+
+    /**
+     * Get the symbol of an element name, adding it if it is new.
+     *
+     * @param localName
+     * @param prefix The namespace prefix. Use an empty string if there is none.
+     * @return Symbol
+     */
+    public Symbol lookup(String localName, String prefix) {
+        Symbol first = symbols.get(localName);
+        for (Symbol s = first; s != null; s = s.next) {
+            if (s.prefix.equals(prefix)) return s;
+        }
+
+        int nameId = first == null ? nameCount++ : first.nameId;
+        Symbol s = new Symbol(symbolsById.size(), nameId, localName, prefix);
+        s.next = first;
+        symbols.put(localName, s);
+        symbolsById.add(s);
+        return s;
+    }
+
+    /**
+     * Get a symbol with the given local name if the name has been seen.
+     *
+     * @param localName
+     * @return Symbol or null
+     */
+    public Symbol get(String localName) {
+        return symbols.get(localName);
+    }
+
+    /**
+     * Get the symbol with the given id.
+     *
+     * @param id
+     * @return Symbol
+     */
+    public Symbol get(int id) {
+        return symbolsById.get(id);
+    }
+
+    /**
+     * Number of symbols in the table.
+     */
+    public int size() {
+        return symbolsById.size();
+    }
+
+    /**
+     * Number of distinct local names in the table.
+     */
+    public int nameCount() {
+        return nameCount;
+    }
+}
@@ -2,14 +2,33 @@ package com.bodastage.boda_bulkcmparser;
 
 import com.bodastage.boda_bulkcmparser.bulkcmxml.BulkCmConfigDataFile;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.xml.stream.XMLStreamException;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -21,6 +40,16 @@ public class    BodaBulkCMParserTest
     extends TestCase
 {
     String sampleBulkCMFile;
+
+    /**
+     * Number of meContext elements in the file written by createLargeInput.
+     */
+    static final int LARGE_INPUT_COUNT = 400;
+
+    /**
+     * Folders made by createOutputFolder. They are deleted in tearDown.
+     */
+    List<File> outputFolders = new ArrayList<File>();
     
     String [] expectedFiles = {
         "/tmp/bulkCmConfigDataFile.csv",
@@ -84,6 +113,10 @@ public class    BodaBulkCMParserTest
             for(int i=0; i<expectedFiles.length;i++){
                 new File( expectedFiles[i]).delete();
             }
+
+            for (File folder : outputFolders) {
+                deleteFolder(folder);
+            }
             
         }catch(Exception e){
             System.err.println(e.getMessage());
@@ -262,4 +295,1503 @@ public class    BodaBulkCMParserTest
         }
 
     }
+
+    /**
+     * Test that single pass parsing gives the same csv files as the separate
+     * parameter and value extraction passes.
+     */
+    public void testSinglePassMatchesTwoPass(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm.xml").getFile());
+        String inputFile = inFile.getAbsolutePath();
+
+        File twoPassFolder = createOutputFolder("two_pass");
+        File singlePassFolder = createOutputFolder("single_pass");
+
+        try {
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setDataSource(inputFile);
+            parser.setOutputDirectory(twoPassFolder.getAbsolutePath());
+            parser.parse();
+
+            parser = new BodaBulkCMParser();
+            parser.setSinglePass(true);
+            parser.setDataSource(inputFile);
+            parser.setOutputDirectory(singlePassFolder.getAbsolutePath());
+            parser.parse();
+
+            assertSameCsvFiles(twoPassFolder, singlePassFolder);
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that the XMLStreamReader cursor gives the same csv files as the
+     * XMLEventReader.
+     */
+    public void testCursorEngineMatchesEventEngine(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm.xml").getFile());
+        String inputFile = inFile.getAbsolutePath();
+
+        File eventFolder = createOutputFolder("event_engine");
+        File cursorFolder = createOutputFolder("cursor_engine");
+
+        try {
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setParserEngine(BodaBulkCMParser.ENGINE_EVENT);
+            parser.setDataSource(inputFile);
+            parser.setOutputDirectory(eventFolder.getAbsolutePath());
+            parser.parse();
+
+            parser = new BodaBulkCMParser();
+            parser.setParserEngine(BodaBulkCMParser.ENGINE_CURSOR);
+            parser.setDataSource(inputFile);
+            parser.setOutputDirectory(cursorFolder.getAbsolutePath());
+            parser.parse();
+
+            assertSameCsvFiles(eventFolder, cursorFolder);
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that the Bulk CM tokenizer gives the same csv files as the
+     * XMLEventReader.
+     */
+    public void testBulkCMTokenizerMatchesEventEngine(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm_parent_child_same_name.xml").getFile());
+        String inputFile = inFile.getAbsolutePath();
+
+        File eventFolder = createOutputFolder("event_engine");
+        File tokenizerFolder = createOutputFolder("bulkcm_engine");
+
+        try {
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setParserEngine(BodaBulkCMParser.ENGINE_EVENT);
+            parser.setDataSource(inputFile);
+            parser.setOutputDirectory(eventFolder.getAbsolutePath());
+            parser.parse();
+
+            parser = new BodaBulkCMParser();
+            parser.setParserEngine(BodaBulkCMParser.ENGINE_BULKCM);
+            parser.setDataSource(inputFile);
+            parser.setOutputDirectory(tokenizerFolder.getAbsolutePath());
+            parser.parse();
+
+            assertSameCsvFiles(eventFolder, tokenizerFolder);
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that the Bulk CM tokenizer gives the same csv files as the
+     * XMLEventReader with a parameter file that leaves out the parents of
+     * listed MOs. The skipped ManagedElement and ExternalUtranCell elements
+     * hold the listed ExternalUtranCell and vsData MOs.
+     */
+    public void testBulkCMTokenizerMatchesEventEngineWithParameterFile(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm.xml").getFile());
+        String inputFile = inFile.getAbsolutePath();
+
+        File paramFolder = createOutputFolder("engine_param_file");
+        File eventFolder = createOutputFolder("event_engine_param");
+        File tokenizerFolder = createOutputFolder("bulkcm_engine_param");
+
+        try {
+            File paramFile = new File(paramFolder, "params.conf");
+            Files.write(paramFile.toPath(), Arrays.asList(
+                    "ExternalUtranCell:rac,lac,cId",
+                    "vsDataExternalUtranCell:qQualMin,cellCapability_edchSupport",
+                    "vsDataEUtranCellFDD:userLabel,cellId"), StandardCharsets.UTF_8);
+
+            for (boolean separateVendorAttributes : new boolean[]{false, true}) {
+                createOutputFolder("event_engine_param");
+                createOutputFolder("bulkcm_engine_param");
+
+                BodaBulkCMParser parser = new BodaBulkCMParser();
+                parser.setParserEngine(BodaBulkCMParser.ENGINE_EVENT);
+                parser.setSeparateVendorAttributes(separateVendorAttributes);
+                parser.setParameterFile(paramFile.getAbsolutePath());
+                parser.setDataSource(inputFile);
+                parser.setOutputDirectory(eventFolder.getAbsolutePath());
+                parser.parse();
+
+                parser = new BodaBulkCMParser();
+                parser.setParserEngine(BodaBulkCMParser.ENGINE_BULKCM);
+                parser.setSeparateVendorAttributes(separateVendorAttributes);
+                parser.setParameterFile(paramFile.getAbsolutePath());
+                parser.setDataSource(inputFile);
+                parser.setOutputDirectory(tokenizerFolder.getAbsolutePath());
+                parser.parse();
+
+                assertTrue(new File(eventFolder, "ExternalUtranCell.csv").isFile());
+                assertFalse(new File(eventFolder, "ManagedElement.csv").exists());
+                assertSameCsvFiles(eventFolder, tokenizerFolder);
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test the element name symbols.
+     */
+    public void testSymbolTable(){
+        SymbolTable symbolTable = new SymbolTable();
+
+        SymbolTable.Symbol container = symbolTable.lookup("VsDataContainer", "xn");
+        assertEquals(SymbolTable.KIND_VS_DATA_CONTAINER, container.kind);
+        assertSame(container, symbolTable.lookup("VsDataContainer", "xn"));
+
+        SymbolTable.Symbol vsDataType = symbolTable.lookup("vsDataUtranCell", "un");
+        assertEquals(SymbolTable.KIND_VS_DATA_TYPE, vsDataType.kind);
+        assertEquals("UtranCell", vsDataType.threeGPPName);
+
+        //xn:vsDataType is an attribute of the container
+        assertEquals(SymbolTable.KIND_OTHER, symbolTable.lookup("vsDataType", "xn").kind);
+        assertEquals(SymbolTable.KIND_VS_DATA_TYPE, symbolTable.lookup("vsDataType", "un").kind);
+
+        SymbolTable.Symbol cell = symbolTable.lookup("UtranCell", "un");
+        assertEquals(SymbolTable.KIND_OTHER, cell.kind);
+        assertEquals("vsDataUtranCell", cell.vsDataName);
+        assertEquals(SymbolTable.KIND_ATTRIBUTES, symbolTable.lookup("attributes", "xn").kind);
+
+        assertEquals(6, symbolTable.size());
+        assertSame(cell, symbolTable.get(cell.id));
+    }
+
+    /**
+     * Test renaming of nested MOs with the same name in the path stack.
+     */
+    public void testPathStack(){
+        SymbolTable symbolTable = new SymbolTable();
+        SymbolTable.Symbol subNetwork = symbolTable.lookup("SubNetwork", "xn");
+        SymbolTable.Symbol meContext = symbolTable.lookup("MeContext", "xn");
+
+        PathStack pathStack = new PathStack();
+        assertEquals("SubNetwork", pathStack.push(subNetwork));
+        assertTrue(pathStack.contains(subNetwork));
+        assertFalse(pathStack.contains(meContext));
+
+        assertEquals("SubNetwork_2", pathStack.push(subNetwork));
+        assertEquals("SubNetwork_3", pathStack.push(subNetwork));
+        assertEquals(3, pathStack.occurrences(subNetwork));
+
+        assertEquals("MeContext", pathStack.push(meContext));
+        assertEquals("VsDataContainer_1", pathStack.pushContainer(1));
+        assertTrue(pathStack.isContainer(4));
+        assertFalse(pathStack.isContainer(3));
+
+        pathStack.pop();
+        pathStack.pop();
+        assertEquals("SubNetwork_3", pathStack.pop());
+        assertEquals(2, pathStack.occurrences(subNetwork));
+        assertEquals("SubNetwork_3", pathStack.push(subNetwork));
+
+        pathStack.clear();
+        assertTrue(pathStack.isEmpty());
+        assertFalse(pathStack.contains(subNetwork));
+        assertEquals(0, pathStack.occurrences(subNetwork));
+    }
+
+    /**
+     * Test that attribute frames keep insertion order and are reused.
+     */
+    public void testAttributeStack(){
+        AttributeStack attributeStack = new AttributeStack();
+        assertNull(attributeStack.get(1));
+
+        AttributeStack.Frame frame = attributeStack.getOrOpen(1);
+        frame.put("id", "1");
+        frame.put("userLabel", null);
+        frame.put("cId", "5");
+        frame.put("userLabel", "cell");
+        assertEquals("[id, userLabel, cId]", frame.keySet().toString());
+
+        frame.remove("userLabel");
+        frame.put("userLabel", "cell");
+        assertEquals("{id=1, cId=5, userLabel=cell}", frame.toString());
+        assertSame(frame, attributeStack.getOrOpen(1));
+
+        attributeStack.remove(1);
+        assertFalse(attributeStack.containsKey(1));
+        assertTrue(attributeStack.isEmpty());
+
+        AttributeStack.Frame reopened = attributeStack.open(1);
+        assertSame(frame, reopened);
+        assertTrue(reopened.isEmpty());
+        assertNull(attributeStack.open(40).put("id", "2"));
+        assertEquals("2", attributeStack.get(40).get("id"));
+    }
+
+    /**
+     * Test column ordinals and row layouts.
+     */
+    public void testColumnRegistryAndRowLayout(){
+        ColumnRegistry columns = new ColumnRegistry();
+        assertEquals(0, columns.add("UtranCell_id"));
+        assertEquals(1, columns.add("cId"));
+        assertEquals(0, columns.add("UtranCell_id"));
+        assertEquals(2, columns.append("cId"));
+        assertEquals(1, columns.ordinal("cId"));
+        assertEquals(-1, columns.ordinal("lac"));
+        assertEquals(3, columns.size());
+
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < columns.size(); i++) names.add(columns.get(i));
+        RowLayout layout = new RowLayout(names, null, columns.size());
+        assertEquals("FILENAME,DATETIME,UtranCell_id,cId,cId", layout.getHeader());
+        assertEquals(2, layout.slotsOf("cId").length);
+        assertEquals(0, layout.slotsOf("lac").length);
+
+        layout.set(layout.slotsOf("UtranCell_id")[0], "C1");
+        assertEquals("C1", layout.get(0));
+        layout.clearRow();
+        assertNull(layout.get(0));
+    }
+
+    /**
+     * Test that parsing a directory with several threads gives the same csv
+     * files as parsing the files one after the other.
+     */
+    public void testThreadsMatchSequential(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inputFolder = createOutputFolder("threads_input");
+        File sequentialFolder = createOutputFolder("sequential");
+        File threadsFolder = createOutputFolder("threads");
+
+        try {
+            for (String name : new String[]{"bulkcm.xml", "bulkcm2.xml", "bulkcm_parent_child_same_name.xml"}) {
+                File inFile = new File(classLoader.getResource(name).getFile());
+                Files.copy(inFile.toPath(), new File(inputFolder, name).toPath());
+            }
+            createLargeInput(inputFolder, LARGE_INPUT_COUNT);
+
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setDataSource(inputFolder.getAbsolutePath());
+            parser.setOutputDirectory(sequentialFolder.getAbsolutePath());
+            parser.parse();
+
+            parser = new BodaBulkCMParser();
+            parser.setThreads(3);
+            parser.setDataSource(inputFolder.getAbsolutePath());
+            parser.setOutputDirectory(threadsFolder.getAbsolutePath());
+            parser.parse();
+
+            assertSameCsvFiles(sequentialFolder, threadsFolder);
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that splitting a file gives the same csv files as parsing it with
+     * one thread.
+     */
+    public void testFileSplitMatchesSequential(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm_parent_child_same_name.xml").getFile());
+        File inputFolder = createOutputFolder("split_input");
+        File sequentialFolder = createOutputFolder("split_sequential");
+        File threadsFolder = createOutputFolder("split_threads");
+
+        try {
+            assertTrue(FileSplitter.split(inFile.getAbsolutePath(), 1).size() > 1);
+
+            //The piece size the parser uses with 3 threads
+            File largeFile = createLargeInput(inputFolder, LARGE_INPUT_COUNT);
+            assertTrue(FileSplitter.split(largeFile.getAbsolutePath(), largeFile.length() / 12).size() > 1);
+
+            //Scanning ranges of the file with several threads finds the same
+            //split elements. Some ranges start at a ManagedElement inside a
+            //meContext.
+            List<FileSplitter.SplitElement> expected = new ArrayList<FileSplitter.SplitElement>();
+            long size = FileSplitter.scan(largeFile.getAbsolutePath(), expected, new ArrayList<FileSplitter.SplitElement>());
+            for (int ranges = 2; ranges <= 16; ranges++) {
+                List<FileSplitter.SplitElement> actual = new ArrayList<FileSplitter.SplitElement>();
+                assertEquals(size, FileSplitter.scan(largeFile.getAbsolutePath(), ranges, actual,
+                        new ArrayList<FileSplitter.SplitElement>()));
+                assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i).start, actual.get(i).start);
+                    assertEquals(expected.get(i).end, actual.get(i).end);
+                    assertEquals(expected.get(i).id, actual.get(i).id);
+                    assertEquals(expected.get(i).context.size(), actual.get(i).context.size());
+                }
+            }
+
+            for (File f : new File[]{inFile, largeFile}) {
+                createOutputFolder("split_sequential");
+                createOutputFolder("split_threads");
+
+                BodaBulkCMParser parser = new BodaBulkCMParser();
+                parser.setDataSource(f.getAbsolutePath());
+                parser.setOutputDirectory(sequentialFolder.getAbsolutePath());
+                parser.parse();
+
+                parser = new BodaBulkCMParser();
+                parser.setThreads(3);
+                parser.setDataSource(f.getAbsolutePath());
+                parser.setOutputDirectory(threadsFolder.getAbsolutePath());
+                parser.parse();
+
+                assertSameCsvFiles(sequentialFolder, threadsFolder);
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that reading and writing in their own threads gives the same csv
+     * files, with a file that fills several read ahead buffers.
+     */
+    public void testPipelineMatchesSequential(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm.xml").getFile());
+        File inputFolder = createOutputFolder("pipeline_input");
+        File sequentialFolder = createOutputFolder("pipeline_sequential");
+        File pipelineFolder = createOutputFolder("pipeline");
+
+        try {
+            File largeFile = createLargeInput(inputFolder, LARGE_INPUT_COUNT);
+            assertTrue(largeFile.length() > 2 * ReadAheadChannel.BUFFER_SIZE);
+
+            for (File f : new File[]{inFile, largeFile}) {
+                createOutputFolder("pipeline_sequential");
+                createOutputFolder("pipeline");
+
+                BodaBulkCMParser parser = new BodaBulkCMParser();
+                parser.setDataSource(f.getAbsolutePath());
+                parser.setOutputDirectory(sequentialFolder.getAbsolutePath());
+                parser.parse();
+
+                parser = new BodaBulkCMParser();
+                parser.setPipeline(true);
+                parser.setDataSource(f.getAbsolutePath());
+                parser.setOutputDirectory(pipelineFolder.getAbsolutePath());
+                parser.parse();
+
+                assertSameCsvFiles(sequentialFolder, pipelineFolder);
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that gzip and zip compressed input gives the same csv files as
+     * the uncompressed file.
+     */
+    public void testCompressedInputMatchesPlain(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm.xml").getFile());
+        File inputFolder = createOutputFolder("compressed_input");
+        File plainFolder = createOutputFolder("compressed_plain");
+        File gzipFolder = createOutputFolder("compressed_gzip");
+        File zipFolder = createOutputFolder("compressed_zip");
+
+        try {
+            byte[] xml = Files.readAllBytes(inFile.toPath());
+
+            File gzipFile = new File(inputFolder, "bulkcm.xml.gz");
+            GZIPOutputStream gz = new GZIPOutputStream(new FileOutputStream(gzipFile));
+            gz.write(xml);
+            gz.close();
+
+            File zipFile = new File(inputFolder, "bulkcm.zip");
+            ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipFile));
+            zip.putNextEntry(new ZipEntry("dump/bulkcm.xml"));
+            zip.write(xml);
+            zip.closeEntry();
+            zip.close();
+
+            assertEquals(CompressedInput.GZIP, CompressedInput.detect(gzipFile.getAbsolutePath()));
+            assertEquals(CompressedInput.ZIP, CompressedInput.detect(zipFile.getAbsolutePath()));
+
+            String[][] runs = {
+                {inFile.getAbsolutePath(), plainFolder.getAbsolutePath()},
+                {gzipFile.getAbsolutePath(), gzipFolder.getAbsolutePath()},
+                {zipFile.getAbsolutePath(), zipFolder.getAbsolutePath()}
+            };
+            for (String[] run : runs) {
+                BodaBulkCMParser parser = new BodaBulkCMParser();
+                parser.setDataSource(run[0]);
+                parser.setOutputDirectory(run[1]);
+                parser.parse();
+            }
+
+            assertSameCsvFiles(plainFolder, gzipFolder);
+            assertSameCsvFiles(plainFolder, zipFolder);
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that gzip compressed csv files hold the plain csv files, with one
+     * thread and with worker parsers merging their parts. Data of several
+     * blocks is deflated in parallel and read back.
+     */
+    public void testCompressedOutputMatchesPlain(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm.xml").getFile());
+        File plainFolder = createOutputFolder("gzip_output_plain");
+        File gzipFolder = createOutputFolder("gzip_output");
+        File threadsFolder = createOutputFolder("gzip_output_threads");
+
+        ExecutorService executor = ParallelGzipOutputStream.newExecutor(2);
+        try {
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(plainFolder.getAbsolutePath());
+            parser.parse();
+
+            File[] folders = {gzipFolder, threadsFolder};
+            for (int i = 0; i < folders.length; i++) {
+                parser = new BodaBulkCMParser();
+                parser.setOutputCompression(BodaBulkCMParser.COMPRESS_GZIP);
+                parser.setThreads(i + 1);
+                parser.setDataSource(inFile.getAbsolutePath());
+                parser.setOutputDirectory(folders[i].getAbsolutePath());
+                parser.parse();
+            }
+
+            for (String name : plainFolder.list()) {
+                byte[] expected = Files.readAllBytes(new File(plainFolder, name).toPath());
+                for (File folder : folders) {
+                    byte[] actual = readGzipFile(new File(folder, name + ".gz"));
+                    assertTrue(name, Arrays.equals(expected, actual));
+                }
+            }
+            assertEquals(plainFolder.list().length, gzipFolder.list().length);
+
+            byte[] data = new byte[3 * ParallelGzipOutputStream.BLOCK_SIZE + 100];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) ("MeContext=" + (i % 1000) + ",").charAt(i % 7);
+            }
+            File blocksFile = new File(gzipFolder, "blocks.gz");
+            ParallelGzipOutputStream out = new ParallelGzipOutputStream(new FileOutputStream(blocksFile), executor);
+            out.write(data, 0, 10);
+            out.write(data, 10, data.length - 10);
+            out.close();
+            assertTrue(Arrays.equals(data, readGzipFile(blocksFile)));
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test that closing idle csv files and opening them again in append mode
+     * gives the same csv files as keeping them all open.
+     */
+    public void testMaxOpenFilesMatchesUnbounded(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm.xml").getFile());
+        File unboundedFolder = createOutputFolder("open_files_unbounded");
+        File boundedFolder = createOutputFolder("open_files_bounded");
+
+        try {
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(unboundedFolder.getAbsolutePath());
+            parser.parse();
+
+            parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setMaxOpenFiles(1);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(boundedFolder.getAbsolutePath());
+            parser.parse();
+
+            assertTrue(unboundedFolder.list().length > 1);
+            assertSameCsvFiles(unboundedFolder, boundedFolder);
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that csv files sharing a budget of one buffer chunk are the same
+     * as with the default budget, and that files taking chunks from each
+     * other keep all their bytes in order.
+     */
+    public void testOutputMemoryBudget(){
+        File inputFolder = createOutputFolder("output_memory_input");
+        File defaultFolder = createOutputFolder("output_memory_default");
+        File budgetFolder = createOutputFolder("output_memory_budget");
+
+        try {
+            File inFile = createLargeInput(inputFolder, LARGE_INPUT_COUNT);
+
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(defaultFolder.getAbsolutePath());
+            parser.parse();
+
+            parser = new BodaBulkCMParser();
+            parser.setOutputMemory(1);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(budgetFolder.getAbsolutePath());
+            parser.parse();
+
+            assertSameCsvFiles(defaultFolder, budgetFolder);
+            assertTrue(new File(budgetFolder, "ExternalUtranCell.csv").length() > OutputBufferBudget.CHUNK_SIZE);
+
+            OutputBufferBudget budget = new OutputBufferBudget(2 * OutputBufferBudget.CHUNK_SIZE);
+            File[] files = new File[3];
+            OutputStream[] streams = new OutputStream[files.length];
+            ByteArrayOutputStream[] expected = new ByteArrayOutputStream[files.length];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = new File(budgetFolder, "budget" + i + ".bin");
+                streams[i] = budget.open(files[i].getAbsolutePath(), false);
+                expected[i] = new ByteArrayOutputStream();
+            }
+            byte[] data = new byte[5000];
+            for (int n = 0; n < 300; n++) {
+                int i = (n * 7) % files.length;
+                Arrays.fill(data, (byte) n);
+                int len = 1 + (n * 131) % data.length;
+                streams[i].write(data, 0, len);
+                expected[i].write(data, 0, len);
+            }
+            for (int i = 0; i < files.length; i++) {
+                streams[i].close();
+                assertTrue(Arrays.equals(expected[i].toByteArray(), Files.readAllBytes(files[i].toPath())));
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test quoting csv values and encoding csv lines as UTF-8.
+     */
+    public void testCsvRowEncoder() throws IOException {
+        BodaBulkCMParser parser = new BodaBulkCMParser();
+        assertEquals("\"\"", parser.toCSVFormat(null));
+        assertEquals("abc", parser.toCSVFormat("abc"));
+        assertEquals("\"a,b\"", parser.toCSVFormat("a,b"));
+        assertEquals("\"a\"\"b\"", parser.toCSVFormat("a\"b"));
+        assertEquals("\"a,\"\"b\"\"\"", parser.toCSVFormat("a,\"b\""));
+        assertEquals("\"a\nb\"", parser.toCSVFormat("a\nb"));
+        assertEquals("\"a\r\nb\"", parser.toCSVFormat("a\r\nb"));
+
+        String[] values = {null, "", "abc", "a,b", "a\"b", "a\nb", "\u00e9t\u00e9,", "\u20ac\"", "\ud83d\ude00", "x\ud83dy"};
+        CsvRowEncoder encoder = new CsvRowEncoder();
+        StringBuilder expected = new StringBuilder();
+        for (String value : values) {
+            encoder.append(value == null ? "null" : value).append(',').appendValue(value).append(';');
+            expected.append(value == null ? "null" : value).append(',').append(parser.toCSVFormat(value)).append(';');
+        }
+        encoder.newLine();
+        expected.append(System.getProperty("line.separator"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeTo(out);
+        assertTrue(Arrays.equals(expected.toString().getBytes(StandardCharsets.UTF_8), out.toByteArray()));
+
+        //Row values are quoted as they are encoded. Slots without a value
+        //are empty.
+        RowLayout layout = new RowLayout(Arrays.asList("a", "b", "c"), null, 3);
+        layout.set(0, "x,y");
+        layout.set(2, "");
+        out.reset();
+        encoder.appendRow("f,1.xml", "t", layout).writeTo(out);
+        assertEquals("\"f,1.xml\",t,\"x,y\",,", new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        //The buffer is reused for the next line
+        out.reset();
+        encoder.append("FILENAME,DATETIME").writeTo(out);
+        assertEquals("FILENAME,DATETIME", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test that the rows taken by a record sink are the rows of the csv
+     * files and that their values are not csv quoted.
+     */
+    public void testRecordSinkMatchesCsvFiles(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm.xml").getFile());
+        File csvFolder = createOutputFolder("sink_csv");
+        final File sinkFolder = createOutputFolder("sink_rows");
+
+        try {
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(csvFolder.getAbsolutePath());
+            parser.parse();
+
+            final Map<String, StringBuilder> tables = new LinkedHashMap<String, StringBuilder>();
+            final String nl = System.getProperty("line.separator");
+            final CsvRowEncoder encoder = new CsvRowEncoder();
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            final List<String> values = new ArrayList<String>();
+            RecordSink sink = new RecordSink() {
+                @Override
+                public void row(int kind, String table, String fileBasename, String fileDateTime, RowLayout row) throws IOException {
+                    StringBuilder sb = tables.get(table);
+                    if (sb == null) {
+                        sb = new StringBuilder(row.getHeader()).append(nl);
+                        tables.put(table, sb);
+                    }
+                    line.reset();
+                    encoder.appendRow(fileBasename, fileDateTime, row).newLine().writeTo(line);
+                    sb.append(new String(line.toByteArray(), StandardCharsets.UTF_8));
+
+                    for (int i = 0; i < row.size(); i++) values.add(row.get(i));
+                }
+
+                @Override
+                public void discard(int kind, String table) {
+                    tables.remove(table);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    for (Map.Entry<String, StringBuilder> me : tables.entrySet()) {
+                        Files.write(new File(sinkFolder, me.getKey() + ".csv").toPath(),
+                                me.getValue().toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            };
+
+            parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setRecordSink(sink);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(sinkFolder.getAbsolutePath());
+            parser.parse();
+
+            assertTrue(csvFolder.list().length > 1);
+            assertSameCsvFiles(csvFolder, sinkFolder);
+
+            //The sink is given the values without the csv quoting
+            assertTrue(values.contains("SubNetwork=ONRM_RootMo_R,vsDataExternalUtranPlmn=yyyyy"));
+            assertFalse(values.contains("\"SubNetwork=ONRM_RootMo_R,vsDataExternalUtranPlmn=yyyyy\""));
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that extracting only the parameters writes no csv files and that
+     * parsing with the parameter file written gives the same csv files as a
+     * full parse.
+     */
+    public void testExtractParametersOnly(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm.xml").getFile());
+        File paramFolder = createOutputFolder("extract_parameters");
+        File fullFolder = createOutputFolder("extract_parameters_full");
+        File configFolder = createOutputFolder("extract_parameters_config");
+
+        try {
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setExtractParametersOnly(true);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(paramFolder.getAbsolutePath());
+            parser.parse();
+
+            File paramFile = new File(paramFolder, BodaBulkCMParser.PARAMETER_FILENAME);
+            assertTrue(Arrays.equals(new String[]{BodaBulkCMParser.PARAMETER_FILENAME}, paramFolder.list()));
+
+            parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(fullFolder.getAbsolutePath());
+            parser.parse();
+
+            parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setParameterFile(paramFile.getAbsolutePath());
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(configFolder.getAbsolutePath());
+            parser.parse();
+
+            //MOs without parameters are not in the parameter file
+            String[] names = configFolder.list();
+            assertTrue(names.length > 1);
+            for (String name : names) {
+                byte[] expected = Files.readAllBytes(new File(fullFolder, name).toPath());
+                byte[] actual = Files.readAllBytes(new File(configFolder, name).toPath());
+                assertTrue(name, Arrays.equals(expected, actual));
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that parsing one network element through the index gives the
+     * rows of the element that a full parse gives. A compressed file, which
+     * cannot be indexed, gives the same rows.
+     */
+    public void testNetworkElementIndex(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inputFolder = createOutputFolder("ne_input");
+        File fullFolder = createOutputFolder("ne_full");
+        File neFolder = createOutputFolder("ne_selected");
+        File noneFolder = createOutputFolder("ne_none");
+        File otherInputFolder = createOutputFolder("ne_other_input");
+        File indexFolder = createOutputFolder("ne_index");
+        File indexedFolder = createOutputFolder("ne_indexed");
+        File gzipInputFolder = createOutputFolder("ne_gzip_input");
+        File gzipFolder = createOutputFolder("ne_gzip");
+
+        try {
+            File inFile = new File(inputFolder, "bulkcm.xml");
+            Files.copy(new File(classLoader.getResource("bulkcm.xml").getFile()).toPath(), inFile.toPath());
+
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setDataSource(inputFolder.getAbsolutePath());
+            parser.setOutputDirectory(fullFolder.getAbsolutePath());
+            parser.parse();
+
+            parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setNetworkElements(Arrays.asList("4698"));
+            parser.setDataSource(inputFolder.getAbsolutePath());
+            parser.setOutputDirectory(neFolder.getAbsolutePath());
+            parser.parse();
+
+            NetworkElementIndex index = NetworkElementIndex.load(inFile.getAbsolutePath());
+            assertNotNull(index);
+            assertEquals(1, index.size());
+
+            //The MOs outside the network element are not written
+            String[] names = neFolder.list();
+            assertTrue(names.length > 1);
+            assertTrue(names.length < fullFolder.list().length);
+            for (String name : names) {
+                byte[] expected = Files.readAllBytes(new File(fullFolder, name).toPath());
+                byte[] actual = Files.readAllBytes(new File(neFolder, name).toPath());
+                assertTrue(name, Arrays.equals(expected, actual));
+            }
+
+            //The index file in the input folder is not parsed
+            parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setNetworkElements(Arrays.asList("unknown"));
+            parser.setDataSource(inputFolder.getAbsolutePath());
+            parser.setOutputDirectory(noneFolder.getAbsolutePath());
+            parser.parse();
+            assertEquals(0, noneFolder.list().length);
+
+            //The index is kept in the index directory
+            File otherFile = new File(otherInputFolder, "bulkcm.xml");
+            Files.copy(inFile.toPath(), otherFile.toPath());
+            parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setNetworkElements(Arrays.asList("4698"));
+            parser.setIndexDirectory(indexFolder.getAbsolutePath());
+            parser.setDataSource(otherInputFolder.getAbsolutePath());
+            parser.setOutputDirectory(indexedFolder.getAbsolutePath());
+            parser.parse();
+
+            assertEquals(Arrays.asList("bulkcm.xml"), Arrays.asList(otherInputFolder.list()));
+            String indexFile = NetworkElementIndex.indexFilename(otherFile.getAbsolutePath(), indexFolder.getAbsolutePath());
+            assertEquals(indexFolder.getAbsoluteFile(), new File(indexFile).getParentFile());
+            assertNotNull(NetworkElementIndex.load(otherFile.getAbsolutePath(), indexFile));
+            assertSameCsvFiles(neFolder, indexedFolder);
+
+            //The other network elements of a compressed file are skipped as
+            //they are parsed
+            GZIPOutputStream gz = new GZIPOutputStream(new FileOutputStream(new File(gzipInputFolder, "bulkcm.xml.gz")));
+            gz.write(Files.readAllBytes(inFile.toPath()));
+            gz.close();
+            parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setNetworkElements(Arrays.asList("4698"));
+            parser.setDataSource(gzipInputFolder.getAbsolutePath());
+            parser.setOutputDirectory(gzipFolder.getAbsolutePath());
+            parser.parse();
+            assertSameCsvFiles(neFolder, gzipFolder);
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that delta mode writes all rows as added on the first run, no
+     * rows when the input has not changed and the changed and deleted rows
+     * when it has. A renamed dump with the same rows gives no rows. Rows of
+     * files with the same IDs are kept apart.
+     */
+    public void testDeltaMode(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm.xml").getFile());
+        File storeFolder = createOutputFolder("delta_store");
+        File fullFolder = createOutputFolder("delta_full");
+        File firstFolder = createOutputFolder("delta_first");
+        File secondFolder = createOutputFolder("delta_second");
+        File editedFolder = createOutputFolder("delta_edited");
+        File thirdFolder = createOutputFolder("delta_third");
+        File fourthFolder = createOutputFolder("delta_fourth");
+        File renamedFolder = createOutputFolder("delta_renamed");
+        File renamedOutFolder = createOutputFolder("delta_renamed_out");
+        File filesFolder = createOutputFolder("delta_files");
+        File filesOutFolder = createOutputFolder("delta_files_out");
+        String storeFile = new File(storeFolder, BodaBulkCMParser.DELTA_STORE_FILENAME).getAbsolutePath();
+
+        try {
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(fullFolder.getAbsolutePath());
+            parser.parse();
+
+            parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setDeltaStoreFile(storeFile);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(firstFolder.getAbsolutePath());
+            parser.parse();
+
+            //Each row is added with the CHANGE_TYPE column after DATETIME
+            String[] names = fullFolder.list();
+            Arrays.sort(names);
+            String[] firstNames = firstFolder.list();
+            Arrays.sort(firstNames);
+            assertTrue(Arrays.equals(names, firstNames));
+            for (String name : names) {
+                List<String> expected = Files.readAllLines(new File(fullFolder, name).toPath(), StandardCharsets.UTF_8);
+                List<String> actual = Files.readAllLines(new File(firstFolder, name).toPath(), StandardCharsets.UTF_8);
+                assertEquals(name, expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    String[] e = expected.get(i).split(",", 3);
+                    String type = i == 0 ? DeltaRecordSink.CHANGE_TYPE : DeltaRecordSink.ADDED;
+                    assertEquals(name, e[0] + "," + e[1] + "," + type + "," + e[2], actual.get(i));
+                }
+            }
+
+            parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setDeltaStoreFile(storeFile);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(secondFolder.getAbsolutePath());
+            parser.parse();
+            assertEquals(0, secondFolder.list().length);
+
+            //Edit lac, remove the zzzz container and add a cell under a new
+            //parent, which adds the RncFunction_id column to the keys
+            String xml = new String(Files.readAllBytes(inFile.toPath()), StandardCharsets.UTF_8);
+            xml = xml.replace("<un:lac>17734</un:lac>", "<un:lac>17735</un:lac>");
+            int start = xml.indexOf("<xn:vsDataContainer id=\"zzzz\">");
+            int end = xml.indexOf("</xn:vsDataContainer>", start) + "</xn:vsDataContainer>".length();
+            xml = xml.substring(0, start) + xml.substring(end);
+            xml = xml.replace("<un:ExternalUtranCell id=\"xxxxxx\">",
+                    "<un:RncFunction id=\"134\"><un:ExternalUtranCell id=\"yyyyyy\">"
+                    + "<un:attributes><un:lac>100</un:lac></un:attributes>"
+                    + "</un:ExternalUtranCell></un:RncFunction>"
+                    + "<un:ExternalUtranCell id=\"xxxxxx\">");
+            File editedFile = new File(editedFolder, "bulkcm.xml");
+            Files.write(editedFile.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+
+            String prefix = "bulkcm.xml,2019-04-16T00:05:00+03:00,";
+            String schemaLocation = "http://www.3gpp.org/ftp/specs/archive/32_series/32.615#configData configData.xsd,";
+            for (File folder : new File[]{thirdFolder, fourthFolder}) {
+                parser = new BodaBulkCMParser();
+                parser.setSeparateVendorAttributes(true);
+                parser.setDeltaStoreFile(storeFile);
+                parser.setDataSource(editedFile.getAbsolutePath());
+                parser.setOutputDirectory(folder.getAbsolutePath());
+                parser.parse();
+            }
+
+            names = thirdFolder.list();
+            Arrays.sort(names);
+            assertEquals(Arrays.asList("ExternalUtranCell.csv", "RncFunction.csv", "vsDataEutranFreqRelation.csv"),
+                    Arrays.asList(names));
+            assertEquals(Arrays.asList(
+                    "FILENAME,DATETIME,CHANGE_TYPE,bulkCmConfigDataFile_schemaLocation,SubNetwork_id,"
+                    + "SubNetwork_2_id,meContext_id,ManagedElement_id,RncFunction_id,ExternalUtranCell_id,"
+                    + "lac,rac,primaryCpichPower,primaryScramblingCode,uarfcnDl,uarfcnUl,mnc,mcc,rncId,cId,"
+                    + "userLabel",
+                    prefix + "ADDED," + schemaLocation + "BS_NRM_ROOT,101,4698,4698,134,yyyyyy,100,,,,,,,,,,",
+                    prefix + "CHANGED," + schemaLocation + "BS_NRM_ROOT,101,4698,4698,,xxxxxx,17735,0,320,"
+                    + "283,10738,9788,1,214,134,6551,xxxxxx"),
+                    Files.readAllLines(new File(thirdFolder, "ExternalUtranCell.csv").toPath(), StandardCharsets.UTF_8));
+            assertEquals(Arrays.asList(
+                    "FILENAME,DATETIME,CHANGE_TYPE,SubNetwork_id,SubNetwork_2_id,meContext_id,"
+                    + "ManagedElement_id,vsDataEutranFreqRelation_id",
+                    prefix + "DELETED,BS_NRM_ROOT,101,4698,4698,zzzz"),
+                    Files.readAllLines(new File(thirdFolder, "vsDataEutranFreqRelation.csv").toPath(), StandardCharsets.UTF_8));
+
+            //The store was replaced with the rows of the edited file
+            assertEquals(0, fourthFolder.list().length);
+
+            //The next day's dump has another name
+            File renamedFile = new File(renamedFolder, "bulkcm_20190417.xml");
+            Files.copy(editedFile.toPath(), renamedFile.toPath());
+            parser = new BodaBulkCMParser();
+            parser.setSeparateVendorAttributes(true);
+            parser.setDeltaStoreFile(storeFile);
+            parser.setDataSource(renamedFile.getAbsolutePath());
+            parser.setOutputDirectory(renamedOutFolder.getAbsolutePath());
+            parser.parse();
+            assertEquals(0, renamedOutFolder.list().length);
+
+            //Two files with the same IDs and other values are not changed
+            //on the next run
+            Files.copy(inFile.toPath(), new File(filesFolder, "x1.xml").toPath());
+            Files.copy(editedFile.toPath(), new File(filesFolder, "x2.xml").toPath());
+            String filesStoreFile = new File(storeFolder, "files_store").getAbsolutePath();
+            for (int i = 0; i < 2; i++) {
+                createOutputFolder("delta_files_out");
+                parser = new BodaBulkCMParser();
+                parser.setSeparateVendorAttributes(true);
+                parser.setDeltaStoreFile(filesStoreFile);
+                parser.setDataSource(filesFolder.getAbsolutePath());
+                parser.setOutputDirectory(filesOutFolder.getAbsolutePath());
+                parser.parse();
+                assertEquals(i == 0, filesOutFolder.list().length > 0);
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that a run with a manifest skips the unchanged input files and
+     * cuts the rows of removed files out of the csv files. All the files are
+     * parsed again when a csv file has changed.
+     */
+    public void testManifestSkipsUnchangedFiles(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFolder = createOutputFolder("manifest_in");
+        File outFolder = createOutputFolder("manifest_out");
+        String manifestFile = new File(outFolder, BodaBulkCMParser.MANIFEST_FILENAME).getAbsolutePath();
+
+        try {
+            for (String name : new String[]{"bulkcm.xml", "bulkcm2.xml"}) {
+                File f = new File(classLoader.getResource(name).getFile());
+                Files.copy(f.toPath(), new File(inFolder, name).toPath());
+            }
+
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setManifestFile(manifestFile);
+            parser.setDataSource(inFolder.getAbsolutePath());
+            parser.setOutputDirectory(outFolder.getAbsolutePath());
+            parser.parse();
+
+            Map<String, List<String>> first = new LinkedHashMap<String, List<String>>();
+            for (String name : outFolder.list()) {
+                if (!name.endsWith(".csv")) continue;
+                first.put(name, Files.readAllLines(new File(outFolder, name).toPath(), StandardCharsets.UTF_8));
+            }
+            assertTrue(first.size() > 0);
+
+            //Nothing has changed
+            parser = new BodaBulkCMParser();
+            parser.setManifestFile(manifestFile);
+            parser.setDataSource(inFolder.getAbsolutePath());
+            parser.setOutputDirectory(outFolder.getAbsolutePath());
+            parser.parse();
+
+            for (Map.Entry<String, List<String>> me : first.entrySet()) {
+                List<String> actual = Files.readAllLines(new File(outFolder, me.getKey()).toPath(), StandardCharsets.UTF_8);
+                assertEquals(me.getKey(), me.getValue(), actual);
+            }
+
+            //The rows of a removed file are cut out
+            new File(inFolder, "bulkcm2.xml").delete();
+            parser = new BodaBulkCMParser();
+            parser.setManifestFile(manifestFile);
+            parser.setDataSource(inFolder.getAbsolutePath());
+            parser.setOutputDirectory(outFolder.getAbsolutePath());
+            parser.parse();
+
+            for (Map.Entry<String, List<String>> me : first.entrySet()) {
+                List<String> expected = new ArrayList<String>();
+                for (String line : me.getValue()) {
+                    if (!line.startsWith("bulkcm2.xml,")) expected.add(line);
+                }
+
+                File csvFile = new File(outFolder, me.getKey());
+                if (expected.size() == 1) {
+                    assertFalse(me.getKey(), csvFile.exists());
+                } else {
+                    assertEquals(me.getKey(), expected, Files.readAllLines(csvFile.toPath(), StandardCharsets.UTF_8));
+                }
+            }
+
+            //A csv file changed after the run is written again instead of
+            //being cut
+            File changedFile = null;
+            for (String name : outFolder.list()) {
+                if (name.endsWith(".csv")) changedFile = new File(outFolder, name);
+            }
+            List<String> expected = Files.readAllLines(changedFile.toPath(), StandardCharsets.UTF_8);
+            Files.write(changedFile.toPath(), "changed\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            parser = new BodaBulkCMParser();
+            parser.setManifestFile(manifestFile);
+            parser.setDataSource(inFolder.getAbsolutePath());
+            parser.setOutputDirectory(outFolder.getAbsolutePath());
+            parser.parse();
+            assertEquals(expected, Files.readAllLines(changedFile.toPath(), StandardCharsets.UTF_8));
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that a run that dies can be resumed from its checkpoint.
+     */
+    public void testResumeFromCheckpoint(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFolder = createOutputFolder("checkpoint_in");
+        File cacheFolder = createOutputFolder("checkpoint_cache");
+        File expectedFolder = createOutputFolder("checkpoint_expected");
+        File outFolder = createOutputFolder("checkpoint_out");
+        File inFile = new File(inFolder, "bulkcm.xml");
+        String schemaCacheFile = new File(cacheFolder, BodaBulkCMParser.SCHEMA_CACHE_FILENAME).getAbsolutePath();
+        String checkpointFile = new File(outFolder, BodaBulkCMParser.CHECKPOINT_FILENAME).getAbsolutePath();
+
+        try {
+            //A file with two network elements. The parser fails on the second
+            //one when it is broken.
+            String xml = new String(Files.readAllBytes(new File(classLoader.getResource("bulkcm.xml").getFile()).toPath()),
+                    StandardCharsets.UTF_8);
+            int start = xml.indexOf("<xn:meContext");
+            int end = xml.indexOf("</xn:meContext>") + "</xn:meContext>".length();
+            String ne = xml.substring(start, end);
+            int i = ne.lastIndexOf("</xn:attributes>");
+            String brokenNe = ne.substring(0, i) + "</xn:attributez>" + ne.substring(i + "</xn:attributes>".length());
+            byte[] good = (xml.substring(0, end) + ne + xml.substring(end)).getBytes(StandardCharsets.UTF_8);
+            byte[] broken = (xml.substring(0, end) + brokenNe + xml.substring(end)).getBytes(StandardCharsets.UTF_8);
+
+            Files.write(inFile.toPath(), good);
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setSchemaCacheFile(schemaCacheFile);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(expectedFolder.getAbsolutePath());
+            parser.parse();
+
+            //The run dies after the checkpoint at the end of the first
+            //network element
+            Files.write(inFile.toPath(), broken);
+            long lastModified = inFile.lastModified();
+            parser = new BodaBulkCMParser();
+            parser.setSchemaCacheFile(schemaCacheFile);
+            parser.setCheckpointFile(checkpointFile);
+            parser.setCheckpointInterval(0);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(outFolder.getAbsolutePath());
+            try {
+                parser.parse();
+                fail("The broken network element was parsed");
+            } catch (XMLStreamException e) {
+                //Expected
+            }
+            assertTrue(new File(checkpointFile).isFile());
+
+            //The file is fixed without changing its size or time
+            Files.write(inFile.toPath(), good);
+            inFile.setLastModified(lastModified);
+            parser = new BodaBulkCMParser();
+            parser.setSchemaCacheFile(schemaCacheFile);
+            parser.setCheckpointFile(checkpointFile);
+            parser.setResume(true);
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(outFolder.getAbsolutePath());
+            parser.parse();
+
+            assertFalse(new File(checkpointFile).exists());
+            assertSameCsvFiles(expectedFolder, outFolder);
+
+            //A large file fails in its last network element after many
+            //checkpoints
+            inFile.delete();
+            File largeFile = createLargeInput(inFolder, LARGE_INPUT_COUNT);
+            xml = new String(Files.readAllBytes(largeFile.toPath()), StandardCharsets.UTF_8);
+            i = xml.lastIndexOf("</xn:attributes>");
+            good = xml.getBytes(StandardCharsets.UTF_8);
+            broken = (xml.substring(0, i) + "</xn:attributez>" + xml.substring(i + "</xn:attributes>".length()))
+                    .getBytes(StandardCharsets.UTF_8);
+            long firstEnd = xml.indexOf("</xn:meContext>") + "</xn:meContext>".length();
+
+            createOutputFolder("checkpoint_expected");
+            createOutputFolder("checkpoint_out");
+            parser = new BodaBulkCMParser();
+            parser.setSchemaCacheFile(schemaCacheFile);
+            parser.setDataSource(largeFile.getAbsolutePath());
+            parser.setOutputDirectory(expectedFolder.getAbsolutePath());
+            parser.parse();
+
+            Files.write(largeFile.toPath(), broken);
+            lastModified = largeFile.lastModified();
+            parser = new BodaBulkCMParser();
+            parser.setSchemaCacheFile(schemaCacheFile);
+            parser.setCheckpointFile(checkpointFile);
+            parser.setCheckpointInterval(0);
+            parser.setDataSource(largeFile.getAbsolutePath());
+            parser.setOutputDirectory(outFolder.getAbsolutePath());
+            try {
+                parser.parse();
+                fail("The broken network element was parsed");
+            } catch (XMLStreamException e) {
+                //Expected
+            }
+
+            Checkpoint checkpoint = Checkpoint.load(checkpointFile);
+            assertNotNull(checkpoint);
+            assertEquals(largeFile.getAbsolutePath(), checkpoint.currentFile);
+            assertTrue(checkpoint.offset > firstEnd);
+            assertTrue(checkpoint.offset < i);
+
+            Files.write(largeFile.toPath(), good);
+            largeFile.setLastModified(lastModified);
+            parser = new BodaBulkCMParser();
+            parser.setSchemaCacheFile(schemaCacheFile);
+            parser.setCheckpointFile(checkpointFile);
+            parser.setResume(true);
+            parser.setDataSource(largeFile.getAbsolutePath());
+            parser.setOutputDirectory(outFolder.getAbsolutePath());
+            parser.parse();
+
+            assertFalse(new File(checkpointFile).exists());
+            assertSameCsvFiles(expectedFolder, outFolder);
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that a parser used again gives the same csv files as a new parser.
+     */
+    public void testParserCanBeReused(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File firstFile = new File(classLoader.getResource("bulkcm2.xml").getFile());
+        File inFile = new File(classLoader.getResource("bulkcm.xml").getFile());
+        File firstFolder = createOutputFolder("reuse_first");
+        File reusedFolder = createOutputFolder("reuse_reused");
+        File newFolder = createOutputFolder("reuse_new");
+
+        try {
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setDataSource(firstFile.getAbsolutePath());
+            parser.setOutputDirectory(firstFolder.getAbsolutePath());
+            parser.parse();
+
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(reusedFolder.getAbsolutePath());
+            parser.parse();
+
+            parser = new BodaBulkCMParser();
+            parser.setDataSource(inFile.getAbsolutePath());
+            parser.setOutputDirectory(newFolder.getAbsolutePath());
+            parser.parse();
+
+            assertSameCsvFiles(newFolder, reusedFolder);
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test skipping an element with the Bulk CM tokenizer.
+     */
+    public void testBulkCMTokenizerSkipElement() throws Exception {
+        String xml = "<a><b x=\"1>2\"><c/><!-- </b> --><d>t<![CDATA[</d>]]></d></b><e/><f></f></a>";
+        BulkCMTokenizer tokenizer = new BulkCMTokenizer(Channels.newChannel(
+                new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+
+        assertEquals(BulkCMTokenizer.START_ELEMENT, tokenizer.next());
+        assertEquals(BulkCMTokenizer.START_ELEMENT, tokenizer.next());
+        assertEquals("b", tokenizer.getLocalName());
+        assertTrue(tokenizer.skipElement());
+        assertEquals("b", tokenizer.getLocalName());
+
+        assertEquals(BulkCMTokenizer.START_ELEMENT, tokenizer.next());
+        assertFalse(tokenizer.skipElement());
+        assertEquals("e", tokenizer.getLocalName());
+
+        assertEquals(BulkCMTokenizer.START_ELEMENT, tokenizer.next());
+        assertFalse(tokenizer.skipElement());
+        assertEquals("f", tokenizer.getLocalName());
+
+        assertEquals(BulkCMTokenizer.END_ELEMENT, tokenizer.next());
+        assertEquals("a", tokenizer.getLocalName());
+        assertEquals(BulkCMTokenizer.END_DOCUMENT, tokenizer.next());
+    }
+
+    /**
+     * Test that parsing with the schema cache gives the same csv files as the
+     * parameter and value extraction passes. The cache is first empty so the
+     * MO files are written again once all the parameters are known.
+     */
+    public void testSchemaCacheMatchesTwoPass(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm.xml").getFile());
+        String inputFile = inFile.getAbsolutePath();
+
+        File twoPassFolder = createOutputFolder("two_pass");
+        File cacheFolder = createOutputFolder("schema_cache");
+        File cacheFile = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm_schema_cache.txt");
+
+        try {
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            parser.setDataSource(inputFile);
+            parser.setOutputDirectory(twoPassFolder.getAbsolutePath());
+            parser.parse();
+
+            Files.write(cacheFile.toPath(), (SchemaCache.HEADER + "\n").getBytes(StandardCharsets.UTF_8));
+            parser = new BodaBulkCMParser();
+            parser.setSchemaCacheFile(cacheFile.getAbsolutePath());
+            parser.setDataSource(inputFile);
+            parser.setOutputDirectory(cacheFolder.getAbsolutePath());
+            parser.parse();
+
+            assertSameCsvFiles(twoPassFolder, cacheFolder);
+
+            //Reuse the saved cache
+            cacheFolder = createOutputFolder("schema_cache");
+            parser = new BodaBulkCMParser();
+            parser.setSchemaCacheFile(cacheFile.getAbsolutePath());
+            parser.setDataSource(inputFile);
+            parser.setOutputDirectory(cacheFolder.getAbsolutePath());
+            parser.parse();
+
+            assertSameCsvFiles(twoPassFolder, cacheFolder);
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+    /**
+     * Test reading the fileFooter dateTime from the end of the file.
+     */
+    public void testReadFooterDateTime(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm2.xml").getFile());
+
+        BodaBulkCMParser parser = new BodaBulkCMParser();
+        assertEquals("2018-04-16T00:05:00+03:00",
+                parser.readFooterDateTime(inFile.getAbsolutePath()));
+    }
+
+    /**
+     * Test that the dateTime is taken from the parsed fileFooter when it can
+     * not be read from the end of the file.
+     */
+    public void testFooterDateTimeFallback(){
+        ClassLoader classLoader = getClass().getClassLoader();
+        File inFile = new File(classLoader.getResource("bulkcm2.xml").getFile());
+        File inputFolder = createOutputFolder("footer_input");
+        File outFolder = createOutputFolder("footer_output");
+        String dateTime = "2018-04-16T00:05:00+03:00";
+        String footer = "<fileFooter dateTime=\"" + dateTime + "\"/>";
+
+        try {
+            String xml = new String(Files.readAllBytes(inFile.toPath()), StandardCharsets.UTF_8);
+            assertTrue(xml.contains(footer));
+
+            //A character reference the end of file scan does not decode
+            File escapedFile = new File(inputFolder, "escaped.xml");
+            Files.write(escapedFile.toPath(), xml.replace(footer, footer.replace("+", "&#43;"))
+                    .getBytes(StandardCharsets.UTF_8));
+
+            //The fileFooter is before the scanned end of the file
+            StringBuilder comment = new StringBuilder("<!--");
+            while (comment.length() <= BodaBulkCMParser.FOOTER_SCAN_SIZE) comment.append(" padding");
+            comment.append(" -->");
+            File farFile = new File(inputFolder, "far.xml");
+            Files.write(farFile.toPath(), (xml + comment).getBytes(StandardCharsets.UTF_8));
+
+            File gzipFile = new File(inputFolder, "bulkcm2.xml.gz");
+            GZIPOutputStream gz = new GZIPOutputStream(new FileOutputStream(gzipFile));
+            gz.write(xml.getBytes(StandardCharsets.UTF_8));
+            gz.close();
+
+            File zipFile = new File(inputFolder, "bulkcm2.zip");
+            ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipFile));
+            zip.putNextEntry(new ZipEntry("bulkcm2.xml"));
+            zip.write(xml.getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.close();
+
+            File missingFile = new File(inputFolder, "missing.xml");
+            Files.write(missingFile.toPath(), xml.replace(footer, "").getBytes(StandardCharsets.UTF_8));
+
+            //Cut off in the middle of the fileFooter
+            File truncatedFile = new File(inputFolder, "truncated.xml");
+            int cut = xml.indexOf(footer) + footer.length() / 2;
+            Files.write(truncatedFile.toPath(), xml.substring(0, cut).getBytes(StandardCharsets.UTF_8));
+
+            BodaBulkCMParser parser = new BodaBulkCMParser();
+            for (File f : new File[]{escapedFile, farFile, gzipFile, zipFile, missingFile, truncatedFile}) {
+                assertNull(f.getName(), parser.readFooterDateTime(f.getAbsolutePath()));
+            }
+
+            for (File f : new File[]{escapedFile, farFile, gzipFile, zipFile}) {
+                for (boolean singlePass : new boolean[]{false, true}) {
+                    createOutputFolder("footer_output");
+                    parser = new BodaBulkCMParser();
+                    parser.setSinglePass(singlePass);
+                    parser.setDataSource(f.getAbsolutePath());
+                    parser.setOutputDirectory(outFolder.getAbsolutePath());
+                    parser.parse();
+                    assertDateTime(f.getName(), dateTime, outFolder);
+                }
+            }
+
+            //There is no dateTime to fall back to
+            createOutputFolder("footer_output");
+            parser = new BodaBulkCMParser();
+            parser.setDataSource(missingFile.getAbsolutePath());
+            parser.setOutputDirectory(outFolder.getAbsolutePath());
+            parser.parse();
+            assertDateTime(missingFile.getName(), "", outFolder);
+
+            //The fileFooter is not well formed, so the file is not parsed
+            parser = new BodaBulkCMParser();
+            parser.setDataSource(truncatedFile.getAbsolutePath());
+            parser.setOutputDirectory(outFolder.getAbsolutePath());
+            try {
+                parser.parse();
+                fail("A truncated file is parsed");
+            } catch (XMLStreamException e) {
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(BodaBulkCMParserTest.class.getName()).log(Level.SEVERE, null, ex);
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Assert that all the rows of the csv files in a folder have a DATETIME.
+     */
+    private void assertDateTime(String message, String dateTime, File folder) throws IOException {
+        String[] names = folder.list();
+        assertTrue(message, names.length > 0);
+        for (String name : names) {
+            List<String> lines = Files.readAllLines(new File(folder, name).toPath(), StandardCharsets.UTF_8);
+            assertTrue(message, lines.size() > 1);
+            for (int i = 1; i < lines.size(); i++) {
+                assertEquals(message + " " + name, dateTime, lines.get(i).split(",", 3)[1]);
+            }
+        }
+    }
+
+    /**
+     * Read a gzip file.
+     */
+    private byte[] readGzipFile(File f) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new FileInputStream(f));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Create an empty output folder under the temporary directory.
+     */
+    private File createOutputFolder(String name){
+        File folder = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm_" + name);
+        folder.mkdirs();
+        for (File f : folder.listFiles()) {
+            f.delete();
+        }
+        outputFolders.add(folder);
+        return folder;
+    }
+
+    /**
+     * Delete a folder and everything in it.
+     */
+    private static void deleteFolder(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory()) deleteFolder(f);
+                else f.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    /**
+     * Write large.xml, a copy of bulkcm.xml with its meContext repeated with
+     * other IDs. It is large enough to be split into pieces, to fill more
+     * than one read ahead buffer and output buffer chunk, and to get more
+     * than one checkpoint.
+     *
+     * @param folder
+     * @param count Number of meContext elements
+     */
+    private File createLargeInput(File folder, int count) throws IOException {
+        File inFile = new File(getClass().getClassLoader().getResource("bulkcm.xml").getFile());
+        String xml = new String(Files.readAllBytes(inFile.toPath()), StandardCharsets.UTF_8);
+        int start = xml.indexOf("<xn:meContext");
+        int end = xml.indexOf("</xn:meContext>") + "</xn:meContext>".length();
+        String ne = xml.substring(start, end);
+
+        StringBuilder sb = new StringBuilder(xml.substring(0, start));
+        for (int i = 0; i < count; i++) {
+            sb.append(ne.replace("id=\"4698\"", "id=\"" + (4698 + i) + "\""));
+        }
+        sb.append(xml.substring(end));
+
+        File largeFile = new File(folder, "large.xml");
+        Files.write(largeFile.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        return largeFile;
+    }
+
+    /**
+     * Assert that two folders have the same csv files with the same content.
+     */
+    private void assertSameCsvFiles(File expectedFolder, File actualFolder) throws IOException {
+        String[] expectedFiles = expectedFolder.list();
+        String[] actualFiles = actualFolder.list();
+        Arrays.sort(expectedFiles);
+        Arrays.sort(actualFiles);
+        assertTrue(expectedFiles.length > 0);
+        assertTrue(Arrays.equals(expectedFiles, actualFiles));
+
+        for (String name : expectedFiles) {
+            byte[] expected = Files.readAllBytes(new File(expectedFolder, name).toPath());
+            byte[] actual = Files.readAllBytes(new File(actualFolder, name).toPath());
+            assertTrue(name, Arrays.equals(expected, actual));
+        }
+    }
 }